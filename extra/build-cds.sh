@@ -0,0 +1,20 @@
+#!/bin/sh
+# Builds target/smsolver.jsa, an application class-data sharing archive, from a training run of SMSolver.
+# JVMs started with -XX:SharedArchiveFile=target/smsolver.jsa map the classes from the archive instead of
+# loading and verifying them, which shortens startup.  Requires JDK 13 or later and a built project
+# ('mvn package').  The archive must be rebuilt whenever the classes or the JDK change.
+#
+# Compare startup with and without the archive using:
+#   java -cp "$(cat target/classpath.txt)" com.deepdownstudios.smsolver.StartupBenchmark
+#   java -cp "$(cat target/classpath.txt)" com.deepdownstudios.smsolver.StartupBenchmark --jvm-arg -XX:SharedArchiveFile=target/smsolver.jsa
+set -e
+cd "$(dirname "$0")/.."
+mvn -q dependency:build-classpath -Dmdep.outputFile=target/dependencies.txt
+echo "target/classes:$(cat target/dependencies.txt)" > target/classpath.txt
+CP="$(cat target/classpath.txt)"
+
+# The training run loads the classes a normal session uses: the command parser, tuProlog, JAXB and
+# the SCXML converters.
+printf 'new(cds_training). query(children(top_state)).\n' | \
+	java -XX:ArchiveClassesAtExit=target/smsolver.jsa -cp "$CP" com.deepdownstudios.smsolver.SMSolver --autosave 0
+echo "Built target/smsolver.jsa.  Run java with -XX:SharedArchiveFile=target/smsolver.jsa -cp \"$CP\" ..."
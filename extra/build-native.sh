@@ -0,0 +1,15 @@
+#!/bin/sh
+# Builds libsmsolverclingo.so, the optional in-process clingo binding used by NativeClingo.
+# Requires the clingo 5 C library and headers.  Set CLINGO_HOME if they are not installed under /usr/local.
+# Run SMSolver with -Djava.library.path=<directory containing the library> to use it.
+set -e
+: "${JAVA_HOME:?JAVA_HOME must be set}"
+CLINGO_HOME="${CLINGO_HOME:-/usr/local}"
+cd "$(dirname "$0")/.."
+mkdir -p target/native
+cc -shared -fPIC -O2 -std=c99 \
+	-I"$JAVA_HOME/include" -I"$JAVA_HOME/include/linux" -I"$CLINGO_HOME/include" \
+	src/main/native/clingo_jni.c \
+	-L"$CLINGO_HOME/lib" -lclingo \
+	-o target/native/libsmsolverclingo.so
+echo "Built target/native/libsmsolverclingo.so"
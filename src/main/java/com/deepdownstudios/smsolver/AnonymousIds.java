@@ -0,0 +1,129 @@
+package com.deepdownstudios.smsolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+
+/**
+ * IDs for the states of one document that have no id attribute.  The ID of such a state is its parent's
+ * ID and its position among the parent's child states: '<parentId>__<index>' (eg top_state__0__2).  So
+ * converting the same document always gives the same facts.
+ *
+ * A generated ID can equal an id attribute that appears anywhere else in the document, possibly later,
+ * and then the anonymous children of both states get equal IDs too.  So, once the whole document has been
+ * converted, resolveCollisions() renames generated IDs that are taken by appending '_'.  Which state keeps
+ * an ID does not depend on the order the states were converted in, so that is deterministic too.
+ *
+ * The Struct returned for a state must be the one used in every term that refers to that state, and the
+ * one passed as the parent of its children.  That is how resolveCollisions() tells equal IDs apart.
+ *
+ * Safe to use from the threads of the ConversionPool.
+ */
+public class AnonymousIds {
+	private static final String SEPARATOR = "__";
+	private static final String COLLISION_SUFFIX = "_";
+	private static final String EXPLICIT_ORIGIN_PREFIX = "=";
+	private static final String ORIGIN_SEPARATOR = "/";
+
+	private final Set<String> explicitIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	/** Each generated ID and its origin: the path to it from the nearest state with an id attribute. */
+	private final Map<Struct, String> origins = Collections.synchronizedMap(new IdentityHashMap<Struct, String>());
+
+	/**
+	 * The ID of a state.
+	 * @param id		The state's id attribute, or null if it has none.
+	 * @param parent	The parent state's ID (as returned by this method, or TOP_STATE_ATOM).
+	 * @param index		The state's position among its parent's child states, counting from 0.
+	 */
+	public Struct get(String id, Struct parent, int index)	{
+		if(id != null)	{
+			explicitIds.add(id);
+			return new Struct(id);
+		}
+		Struct ret = new Struct(parent.getName() + SEPARATOR + index);
+		String parentOrigin = origins.get(parent);
+		if(parentOrigin == null)
+			parentOrigin = EXPLICIT_ORIGIN_PREFIX + parent.getName();
+		origins.put(ret, parentOrigin + ORIGIN_SEPARATOR + index);
+		return ret;
+	}
+
+	/**
+	 * Rename the generated IDs that equal an id attribute or another generated ID.
+	 * @param terms		The document's terms.  Changed in place.
+	 */
+	public void resolveCollisions(List<Term> terms)	{
+		final Map<Struct, String> generated = new IdentityHashMap<Struct, String>(origins);
+		Map<String, List<Struct>> byName = new HashMap<String, List<Struct>>();
+		for(Struct id : generated.keySet())	{
+			List<Struct> owners = byName.get(id.getName());
+			if(owners == null)	{
+				owners = new ArrayList<Struct>();
+				byName.put(id.getName(), owners);
+			}
+			owners.add(id);
+		}
+		Set<String> collisions = new TreeSet<String>();		// Renamed in the same order every time
+		for(Map.Entry<String, List<Struct>> entry : byName.entrySet())	{
+			if(entry.getValue().size() > 1 || explicitIds.contains(entry.getKey()))
+				collisions.add(entry.getKey());
+		}
+		if(collisions.isEmpty())
+			return;
+
+		Set<String> taken = new HashSet<String>(explicitIds);
+		taken.addAll(byName.keySet());
+		Map<Term, Struct> renames = new IdentityHashMap<Term, Struct>();
+		for(String name : collisions)	{
+			List<Struct> owners = byName.get(name);
+			Collections.sort(owners, new Comparator<Struct>() {
+				public int compare(Struct a, Struct b) {
+					return generated.get(a).compareTo(generated.get(b));
+				}
+			});
+			// An id attribute keeps its ID.  Otherwise the first generated one does.
+			for(int i=explicitIds.contains(name) ? 0 : 1; i<owners.size(); ++i)	{
+				String newName = name + COLLISION_SUFFIX;
+				while(!taken.add(newName))
+					newName += COLLISION_SUFFIX;
+				renames.put(owners.get(i), new Struct(newName));
+			}
+		}
+		for(int i=0; i<terms.size(); ++i)
+			terms.set(i, rename(terms.get(i), renames));
+	}
+
+	private static Term rename(Term term, Map<Term, Struct> renames)	{
+		Struct renamed = renames.get(term);
+		if(renamed != null)
+			return renamed;
+		if(!term.isCompound())
+			return term;
+		Struct struct = (Struct) term;
+		Term[] args = null;
+		for(int i=0; i<struct.getArity(); ++i)	{
+			Term arg = struct.getArg(i);
+			Term newArg = rename(arg, renames);
+			if(newArg != arg)	{
+				if(args == null)	{
+					args = new Term[struct.getArity()];
+					for(int j=0; j<args.length; ++j)
+						args[j] = struct.getArg(j);
+				}
+				args[i] = newArg;
+			}
+		}
+		return args == null ? struct : new Struct(struct.getName(), args);
+	}
+}
@@ -0,0 +1,157 @@
+package com.deepdownstudios.smsolver;
+
+import static com.deepdownstudios.smsolver.ScxmlPrologData.EDGE_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.NO_EVENTS_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.PROP_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.STATE_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.TOP_STATE_STR;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import jline.console.completer.Completer;
+
+import alice.tuprolog.Struct;
+
+/**
+ * Completes the state IDs, event names and property names of the current document in the console.
+ * The atoms are kept in a sorted map so a completion is a range lookup, no matter how large the chart is.
+ * The map counts the facts that use each atom and is updated from the facts that were added and removed
+ * whenever the history changes, so it is not rebuilt from scratch after every command.
+ *
+ * Finding those facts compares the old and new FactIndex, which costs time in the size of the chart, so it
+ * is done on a background thread.  Commands only hand over the new (immutable) History, and changes made
+ * while an update runs are folded into the next one.  Until then completions come from the previous document.
+ */
+public class AtomCompleter implements Completer, HistoryListener {
+	/** Maximum number of candidates listed for one completion. */
+	public static final int MAX_CANDIDATES = 500;
+	private static final String DELIMITERS = " \t(),[]";
+
+	private final TreeMap<String, Integer> atoms = new TreeMap<String, Integer>();	///< Atom -> number of facts using it
+	private FactIndex indexed = null;		///< The index whose atoms are in 'atoms'
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "atom-completer");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+	private final Object pendingLock = new Object();
+	private History pending = null;			///< Latest history not yet indexed, or null
+	private boolean scheduled = false;		///< True iff an update is scheduled
+
+	private final Runnable updateTask = new Runnable() {
+		public void run() {
+			History history;
+			synchronized(pendingLock)	{
+				history = pending;
+				pending = null;
+				scheduled = false;
+			}
+			FactIndex factIndex = null;
+			try	{
+				if(!history.getStates().isEmpty())
+					factIndex = history.getCurrentState().getScxmlFile().getFactIndex();
+			} catch (CommandException e) {
+				// The document could not be read.  Nothing to complete.
+			}
+			update(factIndex);
+		}
+	};
+
+	public void historyChanged(History history) {
+		synchronized(pendingLock)	{
+			pending = history;
+			if(!scheduled)	{
+				scheduled = true;
+				executor.execute(updateTask);
+			}
+		}
+	}
+
+	public synchronized int complete(String buffer, int cursor, List<CharSequence> candidates) {
+		if(buffer == null)
+			return -1;
+		int start = cursor;
+		while(start > 0 && DELIMITERS.indexOf(buffer.charAt(start-1)) < 0)
+			--start;
+		String prefix = buffer.substring(start, cursor);
+		if(prefix.isEmpty())
+			return -1;		// Don't list every state in the chart
+
+		for(String atom : atoms.tailMap(prefix).keySet())	{
+			if(!atom.startsWith(prefix) || candidates.size() >= MAX_CANDIDATES)
+				break;
+			candidates.add(atom);
+		}
+		return candidates.isEmpty() ? -1 : start;
+	}
+
+	/**
+	 * Make the atoms those of 'factIndex' (null for no document).  Runs on the background thread.
+	 */
+	synchronized void update(FactIndex factIndex)	{
+		if(factIndex == indexed)
+			return;
+		if(indexed == null || factIndex == null)	{
+			atoms.clear();
+			if(factIndex != null)	{
+				for(Struct fact : factIndex.getFacts())
+					count(fact, 1);
+			}
+		} else	{
+			for(Struct fact : indexed.getFacts())	{
+				if(!factIndex.contains(FactIndex.key(fact)))
+					count(fact, -1);
+			}
+			for(Struct fact : factIndex.getFacts())	{
+				if(!indexed.contains(FactIndex.key(fact)))
+					count(fact, 1);
+			}
+		}
+		indexed = factIndex;
+	}
+
+	private void count(Struct fact, int delta)	{
+		List<String> factAtoms = new ArrayList<String>(3);
+		String name = fact.getName();
+		if(STATE_STR.equals(name))
+			factAtoms.add(FactIndex.key(fact.getArg(1)));
+		else if(EDGE_STR.equals(name))	{
+			factAtoms.add(FactIndex.key(fact.getArg(0)));
+			factAtoms.add(FactIndex.key(fact.getArg(1)));
+			factAtoms.add(FactIndex.key(fact.getArg(3)));
+		} else if(PROP_STR.equals(name))	{
+			factAtoms.add(FactIndex.key(fact.getArg(0)));
+			factAtoms.add(FactIndex.key(fact.getArg(1)));
+		} else	{		// parent
+			factAtoms.add(FactIndex.key(fact.getArg(0)));
+			factAtoms.add(FactIndex.key(fact.getArg(1)));
+		}
+
+		for(String atom : factAtoms)	{
+			if(NO_EVENTS_STR.equals(atom) || TOP_STATE_STR.equals(atom))
+				continue;
+			Integer count = atoms.get(atom);
+			int newCount = (count == null ? 0 : count) + delta;
+			if(newCount > 0)
+				atoms.put(atom, newCount);
+			else
+				atoms.remove(atom);
+		}
+	}
+
+	/**
+	 * Number of distinct atoms that can be completed.
+	 */
+	public synchronized int size()	{
+		return atoms.size();
+	}
+}
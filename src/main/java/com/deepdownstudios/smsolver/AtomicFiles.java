@@ -0,0 +1,33 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Files that are replaced as a whole are written under a temporary name and then renamed over the old
+ * file, so a crash while writing leaves either the old file or the new one, never a truncated one.
+ */
+final class AtomicFiles {
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private AtomicFiles()	{	}
+
+	/**
+	 * The temporary file to write a new version of 'file' to.  It is in the same directory, so it can be
+	 * renamed over 'file'.
+	 */
+	static File getTempFile(File file)	{
+		return new File(file.getPath() + TEMP_SUFFIX);
+	}
+
+	/**
+	 * Rename 'tempFile' to 'file', replacing it.
+	 * @throws IOException	It could not be renamed.  'tempFile' is left where it is.
+	 */
+	static void replace(File tempFile, File file) throws IOException	{
+		// renameTo() will not replace an existing file on some platforms (Windows).  There a crash between
+		// the delete and the second rename leaves just the temporary file.
+		if(!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file)))
+			throw new IOException("Could not replace '" + file.getPath() + "'.");
+	}
+}
@@ -0,0 +1,131 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+
+import com.deepdownstudios.smsolver.Command.REPLCommand;
+import com.deepdownstudios.smsolver.Command.SingleCommand;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Saves the session to '<name>.autosave.lpscr' on a background thread.  Commands only hand over the new
+ * (immutable) History.  The first change schedules a save 'delay' later and any changes made before the
+ * save runs are included in it, so a burst of commands costs one write.  The file is written under a
+ * temporary name and renamed into place, so the autosave file is always complete.
+ */
+public class AutosaveService implements HistoryListener {
+	public static final String AUTOSAVE_SUFFIX = ".autosave." + ScxmlFile.LPSCR_SUFFIX;
+	private static final String TEMP_SUFFIX = ".autosave.tmp." + ScxmlFile.LPSCR_SUFFIX;
+
+	private final long delayMillis;
+	private final ScheduledExecutorService executor;
+	private History latest = null;			///< Most recent history
+	private History saved = null;			///< History that was last saved
+	private boolean scheduled = false;		///< True iff a save is scheduled
+	private CommandException lastError = null;
+
+	private final Runnable saveTask = new Runnable() {
+		public void run() {
+			save();
+		}
+	};
+
+	/**
+	 * @param delayMillis	Time from the first change to the save that includes it.
+	 */
+	public AutosaveService(long delayMillis)	{
+		assert delayMillis >= 0;
+		this.delayMillis = delayMillis;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "autosave");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	public synchronized void historyChanged(History history) {
+		latest = history;
+		if(!scheduled)	{
+			scheduled = true;
+			executor.schedule(saveTask, delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * The error from the most recent save, or null if it succeeded.
+	 */
+	public synchronized CommandException getLastError()	{
+		return lastError;
+	}
+
+	/**
+	 * Save any pending changes now and stop the background thread.
+	 */
+	public void close()	{
+		synchronized(this)	{
+			if(scheduled)
+				executor.submit(saveTask);
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The autosave file for a document.
+	 */
+	public static String getAutosaveName(ScxmlFile scxmlFile)	{
+		String lpscrName = scxmlFile.getLPSCRName();
+		return lpscrName.substring(0, lpscrName.length() - ScxmlFile.LPSCR_SUFFIX.length() - 1) + AUTOSAVE_SUFFIX;
+	}
+
+	private void save()	{
+		History history;
+		synchronized(this)	{
+			scheduled = false;
+			history = latest;
+			if(history == saved)
+				return;
+		}
+
+		CommandException error = null;
+		try	{
+			write(history);
+		} catch (CommandException e) {
+			error = e;
+			System.err.println("Autosave failed: " + e.getMessage());
+		}
+
+		synchronized(this)	{
+			lastError = error;
+			if(error == null)
+				saved = history;
+		}
+	}
+
+	private static void write(History history) throws CommandException {
+		if(history.getStates().isEmpty())
+			return;
+		String autosaveName = getAutosaveName(history.getCurrentState().getScxmlFile());
+		String tempName = autosaveName.substring(0, autosaveName.length() - AUTOSAVE_SUFFIX.length()) + TEMP_SUFFIX;
+		ScxmlFile.save(history, new SingleCommand(REPLCommand.SAVE, ImmutableList.<Term>of(new Struct(tempName))));
+		try	{
+			AtomicFiles.replace(new File(tempName), new File(autosaveName));
+		} catch (IOException e) {
+			throw new CommandException("Could not replace autosave file '" + autosaveName + "'.", e);
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+
+import com.deepdownstudios.smsolver.Command.REPLCommand;
+import com.deepdownstudios.smsolver.Command.SingleCommand;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Headless compiler that converts every .lpscr file under a directory to .scxml.  This is the
+ * equivalent of issuing 'load(file).' and 'save(file.scxml).' in the REPL for each file, except
+ * that files are compiled concurrently and files that have not changed since the last successful
+ * build (according to the manifest of content hashes) are skipped.  Files that load their document
+ * from a separate .scxml file ('scxmlfile' blocks) are always rebuilt.
+ */
+public class BatchCompiler {
+	public static final String MANIFEST_FILENAME = ".smsolver-manifest";
+	private static final String MANIFEST_COMMENT = "smsolver batch manifest: lpscr path -> SHA-256 of contents";
+	private static final String STATUS_COMPILED = "compiled";
+	private static final String STATUS_SKIPPED = "skipped";
+	private static final String STATUS_FAILED = "failed";
+
+	private final File rootDir;
+	private final File outputDir;		///< null means 'next to the .lpscr file'
+	private final int parallelism;
+	private final boolean force;
+	private Solver solver = ClingoSolver.INSTANCE;
+
+	/**
+	 * @param rootDir		Directory to search (recursively) for .lpscr files.
+	 * @param outputDir		Directory to write .scxml files to, mirroring the layout under rootDir.  If null then
+	 * 						each .scxml file is written next to its .lpscr file.
+	 * @param parallelism	Number of files to compile at once.  This is also the limit on the number of
+	 * 						simultaneous clingo processes.
+	 * @param force			If true, the manifest is ignored and every file is rebuilt.
+	 */
+	public BatchCompiler(File rootDir, File outputDir, int parallelism, boolean force)	{
+		assert rootDir != null && parallelism > 0;
+		this.rootDir = rootDir;
+		this.outputDir = outputDir;
+		this.parallelism = parallelism;
+		this.force = force;
+	}
+
+	/**
+	 * Set the solver that runs the commands in each .lpscr file.  Default is clingo.
+	 */
+	public void setSolver(Solver solver)	{
+		assert solver != null;
+		this.solver = solver;
+	}
+
+	/**
+	 * The outcome of compiling one file.
+	 */
+	public static class Result	{
+		private final String file;
+		private final String status;
+		private final long millis;
+		private final String message;
+		private final String hash;		///< null if the file could not be read
+
+		private Result(String file, String status, long millis, String message, String hash)	{
+			this.file = file;
+			this.status = status;
+			this.millis = millis;
+			this.message = message;
+			this.hash = hash;
+		}
+
+		public String getFile() {
+			return file;
+		}
+
+		public String getStatus() {
+			return status;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public boolean isFailure() {
+			return STATUS_FAILED.equals(status);
+		}
+
+		/**
+		 * The result as a single line of JSON.
+		 */
+		public String toJson()	{
+			return new StringBuilder("{\"file\":").append(jsonString(file))
+					.append(",\"status\":").append(jsonString(status))
+					.append(",\"millis\":").append(millis)
+					.append(",\"message\":").append(jsonString(message))
+					.append('}').toString();
+		}
+	}
+
+	/**
+	 * Compile all out-of-date .lpscr files and update the manifest.
+	 * @param report	Receives one JSON object per line for each file found.  May be null.
+	 * @return			The per-file results, in path order.
+	 * @throws CommandException		The directory could not be searched or the manifest could not be written.
+	 */
+	public List<Result> run(PrintWriter report) throws CommandException {
+		if(!rootDir.isDirectory())
+			throw new CommandException("'" + rootDir.getPath() + "' is not a directory.");
+
+		List<File> files = new ArrayList<File>();
+		findLpscrFiles(rootDir, files);
+		Collections.sort(files);
+
+		File manifestFile = new File(rootDir, MANIFEST_FILENAME);
+		final Properties manifest = readManifest(manifestFile);
+
+		// Limit the number of simultaneous clingo processes to the number of workers.  More than that
+		// would just contend for the same cores.
+		ClingoSolver.setMaxConcurrentProcesses(parallelism);
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		try	{
+			for(final File file : files)	{
+				futures.add(pool.submit(new Callable<Result>() {
+					public Result call() {
+						return compile(file, manifest);
+					}
+				}));
+			}
+
+			List<Result> results = new ArrayList<Result>();
+			for(Future<Result> future : futures)	{
+				Result result;
+				try {
+					result = future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new CommandException("Batch compile was interrupted.", e);
+				} catch (ExecutionException e) {
+					throw new CommandException("BUG: Batch compile task failed: " + e.getCause(), e);
+				}
+				results.add(result);
+				if(result.hash != null && !result.isFailure())
+					manifest.setProperty(result.file, result.hash);
+				else
+					manifest.remove(result.file);
+				if(report != null)	{
+					report.println(result.toJson());
+					report.flush();
+				}
+			}
+			writeManifest(manifestFile, manifest);
+			return results;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private Result compile(File lpscrFile, Properties manifest)	{
+		String relativePath = relativePath(lpscrFile);
+		long start = System.nanoTime();
+		String hash;
+		boolean external;
+		try {
+			byte[] contents = Files.toByteArray(lpscrFile);
+			hash = Hashing.sha256().hashBytes(contents).toString();
+			external = referencesScxmlFile(contents);
+		} catch (IOException e) {
+			return new Result(relativePath, STATUS_FAILED, elapsedMillis(start),
+					"I/O error while reading file: " + e.getMessage(), null);
+		}
+
+		File scxmlFile = getOutputFile(lpscrFile);
+		if(!force && !external && hash.equals(manifest.getProperty(relativePath)) && scxmlFile.isFile())
+			return new Result(relativePath, STATUS_SKIPPED, elapsedMillis(start), "Unchanged.", hash);
+
+		try	{
+			ScxmlFile loaded = ScxmlFile.load(new History(),
+					new SingleCommand(REPLCommand.LOAD, ImmutableList.<Term>of(new Struct(lpscrFile.getPath()))), solver);
+			State state = new State(Command.NOOP, "Loaded '" + lpscrFile.getPath() + "'", loaded);
+			History history = new History(ImmutableList.<State>of(state), 0);
+			File parent = scxmlFile.getParentFile();
+			if(parent != null && !parent.isDirectory() && !parent.mkdirs())
+				throw new CommandException("Could not create directory '" + parent.getPath() + "'.");
+			ScxmlFile.save(history,
+					new SingleCommand(REPLCommand.SAVE, ImmutableList.<Term>of(new Struct(scxmlFile.getPath()))));
+		} catch (CommandException e) {
+			return new Result(relativePath, STATUS_FAILED, elapsedMillis(start), e.getMessage(), hash);
+		} catch (RuntimeException e) {
+			return new Result(relativePath, STATUS_FAILED, elapsedMillis(start), "BUG: " + e, hash);
+		}
+		return new Result(relativePath, STATUS_COMPILED, elapsedMillis(start), "Wrote " + scxmlFile.getPath(), hash);
+	}
+
+	/**
+	 * True iff the .lpscr file loads its document from a separate .scxml file (a 'scxmlfile' block).  The
+	 * manifest only has the hash of the .lpscr file, so these are always rebuilt.
+	 */
+	private static boolean referencesScxmlFile(byte[] contents)	{
+		String text = new String(contents, Charsets.UTF_8).trim();
+		String tag = ScxmlFile.LPSCR_SCXML_FILE_TAG;
+		return text.startsWith(tag) && (text.length() == tag.length() || Character.isWhitespace(text.charAt(tag.length())));
+	}
+
+	private File getOutputFile(File lpscrFile)	{
+		String scxmlName = Files.getNameWithoutExtension(lpscrFile.getName()) + '.' + ScxmlFile.SCXML_SUFFIX;
+		if(outputDir == null)
+			return new File(lpscrFile.getParentFile(), scxmlName);
+		String relativeParent = new File(relativePath(lpscrFile)).getParent();
+		File dir = relativeParent == null ? outputDir : new File(outputDir, relativeParent);
+		return new File(dir, scxmlName);
+	}
+
+	private String relativePath(File file)	{
+		String root = rootDir.getAbsolutePath();
+		String path = file.getAbsolutePath();
+		if(path.startsWith(root + File.separator))
+			return path.substring(root.length() + 1);
+		return path;
+	}
+
+	private static void findLpscrFiles(File dir, List<File> files) throws CommandException {
+		File[] children = dir.listFiles();
+		if(children == null)
+			throw new CommandException("I/O error while listing directory '" + dir.getPath() + "'.");
+		for(File child : children)	{
+			if(child.isDirectory())
+				findLpscrFiles(child, files);
+			else if(ScxmlFile.LPSCR_SUFFIX.equals(Files.getFileExtension(child.getName())))
+				files.add(child);
+		}
+	}
+
+	private static Properties readManifest(File manifestFile) throws CommandException {
+		Properties manifest = new Properties();
+		if(!manifestFile.isFile())
+			return manifest;
+		InputStream stream = null;
+		try {
+			stream = new FileInputStream(manifestFile);
+			manifest.load(stream);
+		} catch (IOException e) {
+			// A corrupt manifest just means a full rebuild.
+			System.err.println("WARNING: Could not read manifest '" + manifestFile.getPath() + "'.  Rebuilding everything.");
+			manifest.clear();
+		} finally {
+			if(stream != null)	{
+				try {
+					stream.close();
+				} catch (IOException e) {
+					throw new CommandException("I/O error while trying to close file '" + manifestFile.getPath() + "'.", e);
+				}
+			}
+		}
+		return manifest;
+	}
+
+	private static void writeManifest(File manifestFile, Properties manifest) throws CommandException {
+		OutputStream stream;
+		try {
+			stream = new FileOutputStream(manifestFile);
+		} catch (FileNotFoundException e) {
+			throw new CommandException("I/O error while trying to create file '" + manifestFile.getPath() + "'.", e);
+		}
+		try	{
+			manifest.store(stream, MANIFEST_COMMENT);
+		} catch (IOException e) {
+			throw new CommandException("I/O error while writing '" + manifestFile.getPath() + "'.", e);
+		} finally {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				throw new CommandException("I/O error while trying to close file '" + manifestFile.getPath() + "'.", e);
+			}
+		}
+	}
+
+	private static long elapsedMillis(long startNanos)	{
+		return (System.nanoTime() - startNanos) / 1000000L;
+	}
+
+	private static String jsonString(String str)	{
+		StringBuilder ret = new StringBuilder("\"");
+		for(int i=0; i<str.length(); i++)	{
+			char c = str.charAt(i);
+			switch(c)	{
+			case '"':	ret.append("\\\""); break;
+			case '\\':	ret.append("\\\\"); break;
+			case '\n':	ret.append("\\n"); break;
+			case '\r':	ret.append("\\r"); break;
+			case '\t':	ret.append("\\t"); break;
+			default:
+				if(c < 0x20)
+					ret.append(String.format("\\u%04x", (int)c));
+				else
+					ret.append(c);
+			}
+		}
+		return ret.append('"').toString();
+	}
+}
@@ -6,21 +6,156 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import alice.tuprolog.InvalidTermException;
-import alice.tuprolog.Parser;
 import alice.tuprolog.Struct;
 import alice.tuprolog.Term;
 
+import com.google.common.collect.ImmutableList;
+
 public class ClingoSolver {
 	private static final String CLINGO_UNSATISFIABLE = "UNSATISFIABLE";
 	private static final String CLINGO_SATISFIABLE = "SATISFIABLE";
 	private static final String CLINGO_UNKNOWN = "UNKNOWN";
 	private static final String ENGINE_RESOURCE_NAME = "/engine.lp";
+	// engine.lp without comments.  Written by EngineCompiler during the build.
+	private static final String COMPILED_ENGINE_RESOURCE_NAME = "/engine.compiled.lp";
 	private static final String CLINGO_ANSWER_TAG = "Answer: ";
+	private static final String CLINGO_EXECUTABLE = "clingo";
+	private static final String THREADS_OPTION = "-t";
+	private static final String CONFIGURATION_OPTION = "--configuration=";
+	private static final String STATS_OPTION = "--stats";
+	/** Inputs with at least this many facts and commands are solved with more than one thread. */
+	public static final int PARALLEL_INPUT_THRESHOLD = 2000;
+	/** clingo configurations raced by setPortfolio(DEFAULT_PORTFOLIO). */
+	public static final List<String> DEFAULT_PORTFOLIO = ImmutableList.of("jumpy", "tweety", "trendy", "crafty");
 	private static String engineCode = getLpscrEngineCode();
-	
+	/** Runs commands with clingo. */
+	public static final Solver INSTANCE = new Solver() {
+		public ScxmlFile run(State state, Command command) throws CommandException {
+			return ClingoSolver.run(state, command);
+		}
+	};
+	// Limits the number of clingo processes that may run at once.  Unlimited unless a batch job says otherwise.
+	private static volatile Semaphore processPermits = null;
+	// Idle in-process clingo sessions, by clingo arguments, when the native library is available.  A solve
+	// takes one (or opens one) and puts it back, so there are never more than the solves that ran at once.
+	private static final Map<List<String>, List<NativeClingo>> idleNativeSessions = 
+			new HashMap<List<String>, List<NativeClingo>>();
+	// Once set, sessions are closed instead of being put back.
+	private static boolean nativeSessionsClosed = false;
+	// Solver threads per solve.  0 means choose by input size.
+	private static volatile int threads = 0;
+	// clingo configurations to race on large inputs.  Empty means no racing.
+	private static volatile List<String> portfolio = ImmutableList.of();
+	// Chooses configurations from past solve times.  null means use clingo's default.
+	private static volatile SolverTuner tuner = null;
+	// Number of races won by each configuration
+	private static final ConcurrentHashMap<String, AtomicInteger> portfolioWins = new ConcurrentHashMap<String, AtomicInteger>();
+
+	private static class PortfolioExecutorHolder	{
+		static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "clingo-portfolio");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * The result of solving was UNSATISFIABLE.  This is a definitive answer, unlike other failures.
+	 */
+	private static class UnsatisfiableException extends CommandException	{
+		private static final long serialVersionUID = 5123874400981L;
+		public UnsatisfiableException(String message)	{
+			super(message);
+		}
+	}
+
+	/**
+	 * The clingo processes started for one solve.  Once closed, every process is destroyed, including
+	 * any that are started later.
+	 */
+	private static class ProcessGroup	{
+		private final List<Process> processes = new ArrayList<Process>();
+		private boolean closed = false;
+
+		public synchronized boolean add(Process process)	{
+			if(closed)
+				return false;
+			processes.add(process);
+			return true;
+		}
+
+		public synchronized void close()	{
+			closed = true;
+			for(Process process : processes)
+				process.destroy();
+			processes.clear();
+		}
+	}
+
+	/**
+	 * Limit the number of clingo processes that may run simultaneously across all threads.
+	 * @param maxProcesses	The limit.  Zero or less means unlimited.
+	 */
+	public static void setMaxConcurrentProcesses(int maxProcesses) {
+		processPermits = maxProcesses > 0 ? new Semaphore(maxProcesses, true) : null;
+	}
+
+	/**
+	 * Set the number of solver threads clingo uses for each solve.
+	 * @param count		The number of threads.  Zero or less means one thread for small inputs and one
+	 * 					per processor for inputs of at least PARALLEL_INPUT_THRESHOLD facts.
+	 */
+	public static void setThreads(int count) {
+		threads = Math.max(count, 0);
+	}
+
+	/**
+	 * Race several clingo configurations (eg "jumpy", "tweety") on inputs of at least PARALLEL_INPUT_THRESHOLD
+	 * facts.  Each configuration runs in its own clingo process, with an equal share of the solver threads,
+	 * and the first to finish is used.  The others are killed.  Every process needs its own permit (see
+	 * setMaxConcurrentProcesses), so when fewer permits are free only the first configurations race.
+	 * @param configurations	The configurations to race.  Fewer than two means no racing.
+	 */
+	public static void setPortfolio(List<String> configurations) {
+		portfolio = ImmutableList.copyOf(configurations);
+	}
+
+	/**
+	 * Choose the clingo configuration of each solve (other than portfolio races) with 'tuner'.
+	 * @param tuner		The tuner.  null means always use clingo's default configuration.
+	 */
+	public static void setTuner(SolverTuner tuner) {
+		ClingoSolver.tuner = tuner;
+	}
+
+	/**
+	 * The number of races that each portfolio configuration has won.
+	 */
+	public static Map<String, Integer> getPortfolioWins() {
+		Map<String, Integer> ret = new TreeMap<String, Integer>();
+		for(Map.Entry<String, AtomicInteger> entry : portfolioWins.entrySet())
+			ret.put(entry.getKey(), entry.getValue().get());
+		return ret;
+	}
+
 	/**
 	 * Run 'command' on 'state' using clingo.
 	 * @param state		The state to use as clingo input
@@ -29,24 +164,238 @@ public class ClingoSolver {
 	 * @throws CommandException
 	 */
 	public static ScxmlFile run(State state, Command command) throws CommandException {
-		// Build the ASP payload
-		String aspPayload = buildAspPayload(state, command);
-		
+		// Executable content is given to clingo as the handles the facts store it as, unless a command
+		// has a pattern that must be matched against the content itself.
+		boolean resolveContent = command.hasContentPattern();
+		List<Term> inputTerms = getInputTerms(state, resolveContent);
+		String commandText = resolveContent ? command.toString() : command.toSolverString();
+
 		// Send to clingo and get the result.
-		String clingoResult = runClingo(aspPayload);
+		List<Term> resultTerms;
+		Semaphore permits = processPermits;
+		if(permits == null)	{
+			resultTerms = solve(inputTerms, command, commandText, null);
+		} else {
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CommandException("Interrupted while waiting to run clingo.", e);
+			}
+			try	{
+				resultTerms = solve(inputTerms, command, commandText, permits);
+			} finally {
+				permits.release();
+			}
+		}
+		// The answer's content is either inline (resolveContent) or handle atoms that do not hold their content.
+		List<Term> interned = new ArrayList<Term>(resultTerms.size());
+		for(Term term : resultTerms)
+			interned.add(ExecutableContentStore.internFacts(term));
+		resultTerms = interned;
 
-		// Parse the clingo output to build a new state
 		String filename = state.getScxmlFile().getFilename();
-		String statemachineName = state.getScxmlFile().getScxml().getName();
+		String statemachineName = state.getScxmlFile().getStatemachineName();
 		assert statemachineName != null;
-		return new ScxmlFile(filename, statemachineName, parseClingoResult(clingoResult));
+		return new ScxmlFile(filename, statemachineName, resultTerms);
 	}
 
-	private static String buildAspPayload(State state, Command command) throws CommandException {
-		// First, add the engine and any user functions
-		StringBuilder ret = new StringBuilder(engineCode);
-		// Then, add the SCXML document from state
+	/**
+	 * Solve with the in-process clingo if it is available, otherwise with the clingo executable.
+	 * @param permits	The process permits, of which the caller holds one, or null if there is no limit.
+	 */
+	private static List<Term> solve(List<Term> inputTerms, Command command, String commandText, Semaphore permits)
+			throws CommandException {
+		int size = inputTerms.size() + command.getSubcommands().size();
+		int threadCount = getThreadCount(size);
+		SolverTuner currentTuner = tuner;
+		String configuration = currentTuner == null ? null : currentTuner.choose(size);
+		List<String> arguments = new ArrayList<String>(getThreadArguments(threadCount));
+		if(configuration != null)
+			arguments.add(CONFIGURATION_OPTION + configuration);
+
+		if(NativeClingo.isAvailable())	{
+			// Configurations are not raced in-process.  The session uses all of the threads instead.
+			long start = System.nanoTime();
+			NativeClingo session = takeNativeClingo(arguments);
+			List<Term> result;
+			try	{
+				result = session.solve(inputTerms, commandText);
+			} finally {
+				putNativeClingo(arguments, session);
+			}
+			if(currentTuner != null)
+				currentTuner.record(size, configuration, (System.nanoTime() - start) / 1000000.0);
+			if(result == null)
+				throw new UnsatisfiableException("The state machine commands were not satisfiable:\n" + 
+						buildAspPayload(inputTerms, commandText));
+			return result;
+		}
+
+		// Build the ASP payload, run clingo and parse its output to build a new state
+		String aspPayload = buildAspPayload(inputTerms, commandText);
+		List<String> configurations = portfolio;
+		if(size >= PARALLEL_INPUT_THRESHOLD && configurations.size() > 1)	{
+			// The caller's permit covers one racer.  Take one more for each other racer, without waiting
+			// since other threads may be holding permits while they wait for more too.
+			int extra = permits == null ? configurations.size() - 1 : tryAcquireUpTo(permits, configurations.size() - 1);
+			try	{
+				if(extra > 0)	{
+					List<String> racers = configurations.subList(0, extra + 1);
+					return parseClingoResult(race(aspPayload, racers, Math.max(1, threadCount / racers.size())));
+				}
+			} finally {
+				if(permits != null)
+					permits.release(extra);
+			}
+			// No permits to spare: a single run, as without a portfolio.
+		}
+		if(currentTuner == null)
+			return parseClingoResult(runClingo(aspPayload, arguments, null, null));
+
+		// Time the solve with clingo's statistics.  An unsatisfiable solve still counts.
+		arguments.add(STATS_OPTION);
+		SolverTuner.Stats stats = new SolverTuner.Stats();
+		try	{
+			return parseClingoResult(runClingo(aspPayload, arguments, null, stats));
+		} finally {
+			// Failed runs report no time and are not recorded.
+			currentTuner.record(size, configuration, stats.getMillis());
+		}
+	}
+
+	/**
+	 * Take as many of 'count' permits as are free right now.
+	 * @return	The number taken
+	 */
+	private static int tryAcquireUpTo(Semaphore permits, int count)	{
+		int ret = 0;
+		while(ret < count && permits.tryAcquire())
+			++ret;
+		return ret;
+	}
+
+	private static int getThreadCount(int size)	{
+		if(threads > 0)
+			return threads;
+		return size >= PARALLEL_INPUT_THRESHOLD ? Runtime.getRuntime().availableProcessors() : 1;
+	}
+
+	private static List<String> getThreadArguments(int threadCount)	{
+		if(threadCount <= 1)
+			return ImmutableList.of();
+		return ImmutableList.of(THREADS_OPTION, String.valueOf(threadCount));
+	}
+
+	/**
+	 * Run one clingo process per configuration and return the output of the first that finds an answer
+	 * or proves there is none.
+	 */
+	private static String race(final String aspPayload, List<String> configurations, int threadsEach) throws CommandException {
+		final ProcessGroup processes = new ProcessGroup();
+		CompletionService<String> race = new ExecutorCompletionService<String>(PortfolioExecutorHolder.executor);
+		Map<Future<String>, String> entrants = new HashMap<Future<String>, String>();
+		for(String configuration : configurations)	{
+			final List<String> arguments = ImmutableList.<String>builder()
+					.add(CONFIGURATION_OPTION + configuration).addAll(getThreadArguments(threadsEach)).build();
+			Future<String> entrant = race.submit(new Callable<String>() {
+				public String call() throws CommandException {
+					return runClingo(aspPayload, arguments, processes, null);
+				}
+			});
+			entrants.put(entrant, configuration);
+		}
+
+		CommandException firstFailure = null;
+		try	{
+			for(int i=0; i<entrants.size(); ++i)	{
+				Future<String> finished = race.take();
+				try	{
+					String result = finished.get();
+					recordWin(entrants.get(finished));
+					return result;
+				} catch (ExecutionException e) {
+					if(e.getCause() instanceof UnsatisfiableException)	{
+						recordWin(entrants.get(finished));
+						throw (UnsatisfiableException) e.getCause();
+					}
+					// This configuration failed.  Wait for the others.
+					if(firstFailure == null)
+						firstFailure = e.getCause() instanceof CommandException ? (CommandException) e.getCause() :
+							new CommandException("BUG: clingo run failed: " + e.getCause(), e);
+				}
+			}
+			throw firstFailure;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CommandException("Interrupted while waiting for clingo.", e);
+		} finally {
+			processes.close();
+			for(Future<String> entrant : entrants.keySet())
+				entrant.cancel(true);
+		}
+	}
+
+	private static void recordWin(String configuration)	{
+		AtomicInteger wins = portfolioWins.get(configuration);
+		if(wins == null)	{
+			portfolioWins.putIfAbsent(configuration, new AtomicInteger());
+			wins = portfolioWins.get(configuration);
+		}
+		wins.incrementAndGet();
+	}
+
+	/**
+	 * An idle session for 'arguments', or a new one.  Sessions are not shared since a solve holds the
+	 * session's lock.  Give it back with putNativeClingo().
+	 */
+	private static NativeClingo takeNativeClingo(List<String> arguments) throws CommandException {
+		synchronized(idleNativeSessions)	{
+			List<NativeClingo> idle = idleNativeSessions.get(arguments);
+			if(idle != null && !idle.isEmpty())
+				return idle.remove(idle.size() - 1);
+		}
+		return new NativeClingo(engineCode, arguments);
+	}
+
+	private static void putNativeClingo(List<String> arguments, NativeClingo session)	{
+		synchronized(idleNativeSessions)	{
+			if(!nativeSessionsClosed)	{
+				List<NativeClingo> idle = idleNativeSessions.get(arguments);
+				if(idle == null)	{
+					idle = new ArrayList<NativeClingo>();
+					idleNativeSessions.put(arguments, idle);
+				}
+				idle.add(session);
+				return;
+			}
+		}
+		session.close();
+	}
+
+	/**
+	 * Release the native state of the in-process clingo sessions.  Call this at exit.  Solves that are
+	 * still running (or start later) close their sessions when they finish.
+	 */
+	public static void closeNativeSessions()	{
+		List<NativeClingo> sessions = new ArrayList<NativeClingo>();
+		synchronized(idleNativeSessions)	{
+			nativeSessionsClosed = true;
+			for(List<NativeClingo> idle : idleNativeSessions.values())
+				sessions.addAll(idle);
+			idleNativeSessions.clear();
+		}
+		for(NativeClingo session : sessions)
+			session.close();
+	}
+
+	/**
+	 * The terms in state's SCXML document that clingo is given as input.
+	 * @param resolveContent	If true then executable content handles are replaced by their content.
+	 */
+	private static List<Term> getInputTerms(State state, boolean resolveContent) throws CommandException {
 		List<Term> terms = state.getScxmlFile().getScxmlProlog();
+		List<Term> ret = new ArrayList<Term>(terms.size());
 		for(Term term : terms)	{
 			// TODO: This is unfortunate.  I dont allow parent(top_state,X) terms in clingo input
 			// (it confuses the engine) but I need them in the output (I use them to find the
@@ -56,26 +405,46 @@ public class ClingoSolver {
 			// have weird issues.
 			if((!(term instanceof Struct)) || (!((Struct)term).getName().equals(ScxmlPrologData.PARENT_STR)) ||
 					(!((Struct)term).getArg(0).toUnquotedString().equals(ScxmlPrologData.TOP_STATE_STR)))
-				ret.append("input(").append(term.toUnquotedString()).append(").\n");
+				ret.add(resolveContent ? ExecutableContentStore.resolveFacts(term) : term);
 		}
+		return ret;
+	}
+
+	private static String buildAspPayload(List<Term> inputTerms, String commandText) {
+		// First, add the engine and any user functions
+		StringBuilder ret = new StringBuilder(engineCode);
+		// Then, add the SCXML document from state
+		for(Term term : inputTerms)
+			ret.append("input(").append(term.toUnquotedString()).append(").\n");
 		// Then add the commands
-		ret.append(command.toString());
+		ret.append(commandText);
 		return ret.toString();
 	}
 
 	/**
 	 * Run clingo in a separate process and return (only) the portion of the output that includes the new model.
 	 * @param aspPayload	Model given to clingo as String
+	 * @param arguments		clingo command line arguments
+	 * @param group			If not null, the process is added to group so it can be killed.
+	 * @param stats			If not null, the rest of clingo's output is read for its statistics (see --stats).
 	 * @return			The resultant model as PROLOG/LP terms on one line, space-separated.  Example: 
 	 * 			simple(top_state) start(publisher_start) terminate(publisher_end) deep(publisher_deep_hist) simple(app_splash) simple(publisher_splash)
 	 * @throws CommandException		If there was an internal error, I/O error or if the model had no solution.
 	 */
-	private static String runClingo(String aspPayload) throws CommandException {
-		ProcessBuilder procBuilder = new ProcessBuilder("clingo");
+	private static String runClingo(String aspPayload, List<String> arguments, ProcessGroup group, 
+			SolverTuner.Stats stats) throws CommandException {
+		List<String> commandLine = new ArrayList<String>(arguments.size() + 1);
+		commandLine.add(CLINGO_EXECUTABLE);
+		commandLine.addAll(arguments);
+		ProcessBuilder procBuilder = new ProcessBuilder(commandLine);
 		BufferedOutputStream clingoInput = null;
 		BufferedReader clingoOutput = null;
 		try {
 			Process proc = procBuilder.start();
+			if(group != null && !group.add(proc))	{
+				proc.destroy();
+				throw new CommandException("clingo run was cancelled.");
+			}
 			clingoInput = new BufferedOutputStream(proc.getOutputStream());
 			clingoOutput = new BufferedReader(new InputStreamReader(proc.getInputStream()));
 			clingoOutput.readLine();		// Read the clingo banner
@@ -94,12 +463,15 @@ public class ClingoSolver {
 					lastLineWasAnswerTag = true;
 				else if(line.equals(CLINGO_SATISFIABLE))
 					throw new CommandException("BUG: Clingo reported SATISFIABLE but provided no answer.");
-				else if(line.equals(CLINGO_UNSATISFIABLE))
-					throw new CommandException("The state machine commands were not satisfiable:\n" + aspPayload);
-				else if(line.equals(CLINGO_UNKNOWN))
+				else if(line.equals(CLINGO_UNSATISFIABLE))	{
+					readStats(clingoOutput, stats);
+					throw new UnsatisfiableException("The state machine commands were not satisfiable:\n" + aspPayload);
+				} else if(line.equals(CLINGO_UNKNOWN))
 					throw new CommandException("BUG: Clingo was interrupted.  I think this happens when the input has a syntax error.\n" + aspPayload);
-				else if(lastLineWasAnswerTag && !line.isEmpty())
+				else if(lastLineWasAnswerTag && !line.isEmpty())	{
+					readStats(clingoOutput, stats);
 					return line;
+				}
 				line = clingoOutput.readLine();
 			}
 			throw new CommandException("BUG: Clingo output should include either SATISFIABLE, UNSATISFIABLE or UNKNOWN.");
@@ -123,25 +495,33 @@ public class ClingoSolver {
 		}
 	}
 	
+	private static void readStats(BufferedReader clingoOutput, SolverTuner.Stats stats) throws IOException {
+		if(stats == null)
+			return;
+		String line = clingoOutput.readLine();
+		while(line != null)	{
+			stats.parseLine(line);
+			line = clingoOutput.readLine();
+		}
+	}
+
 	private static List<Term> parseClingoResult(String clingoResult) throws CommandException {
-		Parser parser = new Parser(clingoResult);
-		List<Term> terms = new ArrayList<Term>();
 		try {
-			Term term = parser.nextTerm(false);
-			while(term != null)	{
-				terms.add(term);
-				term = parser.nextTerm(false);
-			}
-		} catch (InvalidTermException e) {
+			return CommandParser.parse(clingoResult, false);
+		} catch (CommandException e) {
 			throw new CommandException("BUG: Prolog error parsing clingo output: '" + 
 					clingoResult + "'.\n" + e.getMessage(), e);
 		}
-
-		return terms;
 	}
 	
 	private static String getLpscrEngineCode() {
-		InputStream stream = ClingoSolver.class.getResourceAsStream(ENGINE_RESOURCE_NAME);
+		// Prefer the compiled engine.  It is missing when running from an IDE that skips the build step.
+		String resourceName = COMPILED_ENGINE_RESOURCE_NAME;
+		InputStream stream = ClingoSolver.class.getResourceAsStream(resourceName);
+		if(stream == null)	{
+			resourceName = ENGINE_RESOURCE_NAME;
+			stream = ClingoSolver.class.getResourceAsStream(resourceName);
+		}
 		if(stream == null)
 			throw new RuntimeException("BUG: Could not find LPSCR engine resource file '" + ENGINE_RESOURCE_NAME + "'.");
 
@@ -155,7 +535,7 @@ public class ClingoSolver {
 				line = reader.readLine();
 			}
 		} catch (IOException e) {
-			throw new RuntimeException("I/O error while reading LPSCR engine code from '"+ENGINE_RESOURCE_NAME+"'.");
+			throw new RuntimeException("I/O error while reading LPSCR engine code from '"+resourceName+"'.");
 		}
 		return ret.toString();
 	}
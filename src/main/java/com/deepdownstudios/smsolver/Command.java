@@ -1,7 +1,9 @@
 package com.deepdownstudios.smsolver;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import alice.tuprolog.Struct;
 import alice.tuprolog.Term;
@@ -10,10 +12,24 @@ import com.google.common.collect.ImmutableList;
 
 public class Command {
 	public enum REPLCommand { 
-		LOAD, SAVE, NEW, CHANGE, SET, TEST, DELETE, UNDO, REDO;
+		LOAD, SAVE, NEW, CHANGE, SET, TEST, DELETE, UNDO, REDO, QUERY, IMPORT;
+		private static final Map<String, REPLCommand> BY_NAME = new HashMap<String, REPLCommand>();
+		static	{
+			for(REPLCommand command : values())	{
+				BY_NAME.put(command.name(), command);
+				BY_NAME.put(command.name().toLowerCase(), command);
+			}
+		}
 		public static REPLCommand valueOfIgnoreCase(String str)	{
 			return valueOf(str.toUpperCase());
 		}
+		/**
+		 * The command named 'str' (ignoring case), or null if there is none.
+		 */
+		public static REPLCommand lookup(String str)	{
+			REPLCommand ret = BY_NAME.get(str);
+			return ret != null ? ret : BY_NAME.get(str.toUpperCase());
+		}
 		public String toString()	{
 			return super.toString().toLowerCase();
 		}
@@ -43,23 +59,35 @@ public class Command {
 	public static class SingleCommand	{
 		private REPLCommand replCommand;
 		private List<Term> parameters;
+		private volatile List<Term> solverParameters = null;		///< Lazily interned copy of parameters
 		public SingleCommand(REPLCommand replCommand, List<Term> parameters)	{
 			this.replCommand = replCommand;
 			this.parameters = parameters;
 		}
 		
 		public static SingleCommand parseCommand(Struct command) throws CommandException {
-			REPLCommand replCommand = REPLCommand.valueOfIgnoreCase(command.getName());
+			REPLCommand replCommand = REPLCommand.lookup(command.getName());
 			if(replCommand == null)
 				throw new CommandException("Unrecognized command: " + command.getName() + "/" + command.getArity());
 			List<Term> parameters = new ArrayList<Term>();
-			for(int i=0; i<command.getArity(); ++i)	{
+			for(int i=0; i<command.getArity(); ++i)
 				parameters.add(command.getArg(i));
-			}
 			return new SingleCommand(replCommand, parameters);
 		}
 		
 		public String toString()	{
+			return toString(parameters);
+		}
+
+		/**
+		 * The command as it is given to the solver: like toString() but with executable content replaced
+		 * by the handles the document's facts store it as.
+		 */
+		public String toSolverString()	{
+			return toString(getSolverParameters());
+		}
+
+		private String toString(List<Term> parameters)	{
 			StringBuilder builder = new StringBuilder();
 			builder.append(replCommand.toString());
 			if(!parameters.isEmpty())	{
@@ -80,12 +108,38 @@ public class Command {
 			return parameters;
 		}
 
+		/**
+		 * The parameters with their (ground) executable content replaced by ExecutableContentStore handles,
+		 * so they match the facts of a document.
+		 */
+		public List<Term> getSolverParameters() {
+			List<Term> ret = solverParameters;
+			if(ret == null)	{
+				ret = new ArrayList<Term>(parameters.size());
+				for(Term parameter : parameters)
+					ret.add(ExecutableContentStore.internFacts(parameter));
+				solverParameters = ret;
+			}
+			return ret;
+		}
+
+		/**
+		 * True if a parameter has executable content with variables in it.
+		 */
+		public boolean hasContentPattern() {
+			for(Term parameter : parameters)	{
+				if(ExecutableContentStore.hasContentPattern(parameter))
+					return true;
+			}
+			return false;
+		}
+
 		public REPLCommand getREPLCommand() {
 			return replCommand;
 		}
 	}
 	
-	private Command(List<SingleCommand> commands)	{
+	Command(List<SingleCommand> commands)	{
 		subcommands = commands;
 	}
 	
@@ -104,12 +158,9 @@ public class Command {
 
 	public static Command build(Struct atom) throws CommandException {
         // The following are the valid atoms: undo.  redo.  save.  load.
-		REPLCommand replCommand;
-		try	{
-			replCommand = REPLCommand.valueOfIgnoreCase(atom.toString());
-		} catch(IllegalArgumentException e)	{
+		REPLCommand replCommand = REPLCommand.lookup(atom.getName());
+		if(replCommand == null)
 	    	throw new CommandException("Unrecognized command: " + atom.toString() + "/0");
-		}
 
 		switch(replCommand)		{
 		case UNDO:
@@ -126,6 +177,13 @@ public class Command {
 	}
 
 	public CommandResult execute(History history) throws CommandException {
+		return execute(history, ClingoSolver.INSTANCE);
+	}
+
+	/**
+	 * Execute the command.  ASP commands are run by 'solver'.
+	 */
+	public CommandResult execute(History history, Solver solver) throws CommandException {
 		if(subcommands.size() == 1)	{
 			switch(subcommands.get(0).getREPLCommand())	{
 			case UNDO:	{
@@ -141,14 +199,14 @@ public class Command {
 								newHistory.getCurrentState().getCommandMessage());
 			}
 			case LOAD:	{
-				ScxmlFile scxmlFile = ScxmlFile.load(history, subcommands.get(0));
+				ScxmlFile scxmlFile = ScxmlFile.load(history, subcommands.get(0), solver);
 				State state = new State(this, "Loaded SCXML File '" + scxmlFile.getFilename() + "'", scxmlFile);
 				History newHistory = history.pushState(state);
 				return new CommandResult(newHistory);
 			}
 			case SAVE:	{
 				String filename = ScxmlFile.save(history, subcommands.get(0));
-				return new CommandResult(history, "Saved " + filename);
+				return new CommandResult(history, "Saved " + filename, filename);
 			}
 			case NEW:	{
 				ScxmlFile scxmlFile = ScxmlFile.newState(subcommands.get(0));
@@ -156,17 +214,34 @@ public class Command {
 				History newHistory = history.pushState(newState);
 				return new CommandResult(newHistory);
 			}
+			case QUERY:	{
+				// Answered from the index.  The history is unchanged.
+				SingleCommand query = subcommands.get(0);
+				if(query.getParameters().size() != 1)
+					throw new CommandException("query takes one parameter: " + query.toString());
+				FactIndex factIndex = history.getCurrentState().getScxmlFile().getFactIndex();
+				return new CommandResult(history, FactQuery.run(factIndex, query.getParameters().get(0)));
+			}
+			case IMPORT:
+				return FactImporter.run(history, subcommands.get(0), solver);
 			default:
 				break;		// was a single ASP command
 			}
 		}
 
-		// Run Clingo and parse the result
-		ScxmlFile scxmlFile = ClingoSolver.run(history.getCurrentState(), this);
+		// Run the solver (normally clingo) and parse the result
+		ScxmlFile scxmlFile = solver.run(history.getCurrentState(), this);
 		State newState = new State(this, "Success.", scxmlFile);
 		return new CommandResult(history.pushState(newState));
 	}
 
+	/**
+	 * The individual commands.
+	 */
+	public List<SingleCommand> getSubcommands() {
+		return subcommands;
+	}
+
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
 		for(SingleCommand cmd : subcommands)	{
@@ -175,6 +250,29 @@ public class Command {
 		return builder.toString();
 	}
 
+	/**
+	 * The commands as they are given to the solver.  See SingleCommand.toSolverString().
+	 */
+	public String toSolverString() {
+		StringBuilder builder = new StringBuilder();
+		for(SingleCommand cmd : subcommands)	{
+			builder.append("\t").append(cmd.toSolverString()).append("\n");
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * True if a command has executable content with variables in it.  The solver must then be given the
+	 * document's content and not its handles.
+	 */
+	public boolean hasContentPattern() {
+		for(SingleCommand cmd : subcommands)	{
+			if(cmd.hasContentPattern())
+				return true;
+		}
+		return false;
+	}
+
 	public boolean isLoad() {
 		return subcommands.size() == 1 && subcommands.get(0).getREPLCommand() == REPLCommand.LOAD; 
 	}
@@ -0,0 +1,139 @@
+package com.deepdownstudios.smsolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.deepdownstudios.smbridge.Endpoint;
+
+/**
+ * Merges bursts of endpoint requests so they are solved together.  A request made only of ASP commands
+ * (set, change, delete, test) waits until no other request has arrived for 'window' milliseconds (but
+ * no longer than MAX_WINDOWS windows in all, or MAX_BATCH requests).  Then every waiting request is run
+ * as one command line, the way Commands merges the ASP commands of a line.  Any other request (or one
+ * that does not parse) first runs the waiting requests, then runs alone, so requests keep their order.
+ */
+public class CommandCoalescer {
+	/** A batch waits at most this many windows after its first request. */
+	public static final int MAX_WINDOWS = 4;
+	/** A batch is run as soon as it has this many requests. */
+	public static final int MAX_BATCH = 64;
+
+	/**
+	 * A request and the endpoint it came from, which is sent its answer.
+	 */
+	public static class Request	{
+		private final String text;
+		private final Endpoint source;
+
+		public Request(String text, Endpoint source)	{
+			this.text = text;
+			this.source = source;
+		}
+
+		public String getText()	{
+			return text;
+		}
+
+		/**
+		 * @return	The endpoint to answer, or null to answer every subscriber
+		 */
+		public Endpoint getSource()	{
+			return source;
+		}
+	}
+
+	/**
+	 * Runs the requests of a batch and answers each of them.
+	 */
+	public interface BatchProcessor	{
+		void processBatch(List<Request> requests);
+	}
+
+	private final long windowMillis;
+	private final BatchProcessor processor;
+	private final ScheduledExecutorService executor;
+	private List<Request> pending = new ArrayList<Request>();
+	private long batchStart = 0;					///< nanoTime of the first pending request
+	private ScheduledFuture<?> scheduledFlush = null;
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	public CommandCoalescer(long windowMillis, BatchProcessor processor)	{
+		assert windowMillis > 0 && processor != null;
+		this.windowMillis = windowMillis;
+		this.processor = processor;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "command-coalescer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Run (now or later) a request from 'source'.
+	 * @param source	The endpoint to answer, or null to answer every subscriber
+	 */
+	public synchronized void submit(String request, Endpoint source)	{
+		if(!isMergeable(request))	{
+			flush();
+			processor.processBatch(Collections.singletonList(new Request(request, source)));
+			return;
+		}
+
+		if(pending.isEmpty())
+			batchStart = System.nanoTime();
+		pending.add(new Request(request, source));
+		if(scheduledFlush != null)
+			scheduledFlush.cancel(false);
+		if(pending.size() >= MAX_BATCH)	{
+			flush();
+			return;
+		}
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batchStart);
+		long delay = Math.max(0, Math.min(windowMillis, MAX_WINDOWS * windowMillis - elapsedMillis));
+		scheduledFlush = executor.schedule(flushTask, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Run the waiting requests now.
+	 */
+	public synchronized void flush()	{
+		if(scheduledFlush != null)	{
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+		if(pending.isEmpty())
+			return;
+		List<Request> batch = pending;
+		pending = new ArrayList<Request>();
+		processor.processBatch(batch);
+	}
+
+	/**
+	 * Run the waiting requests and stop the timer thread.
+	 */
+	public void close()	{
+		flush();
+		executor.shutdownNow();
+	}
+
+	private static boolean isMergeable(String request)	{
+		try	{
+			return Commands.parse(request).isAspOnly();
+		} catch (CommandException e) {
+			return false;		// Run it alone so the error is reported for it
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Append-only log of the commands executed in a session, so a session can be recovered after a crash.
+ * Each record is a command line, or a checkpoint naming the file the session was saved to, along with
+ * the digest of the document that resulted (see FactIndex.getDigest()).  Recovery loads the file of the
+ * last checkpoint and replays the commands after it.  A checkpoint also compacts the journal down to
+ * that one record.
+ *
+ * Appending is split in two so the caller can order records under its own lock and wait for the disk
+ * outside it: enqueueCommand() only queues the record, and awaitDurable() returns once it is on disk
+ * (forced).  Threads that wait at the same time share one write and one force: the first thread writes
+ * every pending record and the others wait for it.
+ *
+ * A record is a header line, 'C|K <digest> <payload length>', followed by the UTF-8 payload and a newline.
+ * A torn record at the end of the file (from a crash during a write) is discarded on open.
+ */
+public class CommandJournal {
+	private static final char COMMAND_TYPE = 'C';
+	private static final char CHECKPOINT_TYPE = 'K';
+	/** Digest recorded when there is no document. */
+	public static final String NO_DIGEST = "-";
+
+	private final File file;
+	private FileChannel channel;
+	private final List<Record> records;			///< Records read when the journal was opened
+
+	private final Object lock = new Object();
+	private List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+	private long appended = 0;					///< Number of records appended
+	private long durable = 0;					///< Number of appended records that are on disk
+	private boolean flushing = false;			///< True while some thread writes the pending records
+	private IOException flushFailure = null;
+
+	/**
+	 * One journal entry.
+	 */
+	public static class Record	{
+		private final boolean checkpoint;
+		private final String digest;
+		private final String payload;
+
+		private Record(boolean checkpoint, String digest, String payload)	{
+			this.checkpoint = checkpoint;
+			this.digest = digest;
+			this.payload = payload;
+		}
+
+		/**
+		 * True for a checkpoint, false for a command.
+		 */
+		public boolean isCheckpoint() {
+			return checkpoint;
+		}
+
+		/**
+		 * Digest of the document after the command or at the checkpoint.
+		 */
+		public String getDigest() {
+			return digest;
+		}
+
+		/**
+		 * The command line or, for a checkpoint, the name of the saved file.
+		 */
+		public String getPayload() {
+			return payload;
+		}
+	}
+
+	/**
+	 * Open (or create) a journal.
+	 * @throws CommandException		The journal could not be read or opened
+	 */
+	public CommandJournal(File file) throws CommandException {
+		this.file = file;
+		try	{
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			records = new ArrayList<Record>();
+			long end = readRecords(records);
+			if(end < channel.size())	{
+				channel.truncate(end);		// torn write
+				channel.force(true);
+			}
+			channel.position(end);
+		} catch (IOException e) {
+			throw new CommandException("I/O error opening journal '" + file.getPath() + "': " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * The records that were in the journal when it was opened, starting from the last checkpoint (if any).
+	 */
+	public List<Record> getRecoveryRecords() {
+		int start = 0;
+		for(int i=0; i<records.size(); ++i)	{
+			if(records.get(i).isCheckpoint())
+				start = i;
+		}
+		return records.subList(start, records.size());
+	}
+
+	/**
+	 * Record an executed command line.  Returns once the record is on disk.
+	 */
+	public void appendCommand(String commandLine, String digest) throws CommandException {
+		awaitDurable(enqueueCommand(commandLine, digest));
+	}
+
+	/**
+	 * Queue the record of an executed command line without waiting for it to be written.  Records are
+	 * written in the order they are queued.
+	 * @return	The record's sequence number, for awaitDurable()
+	 */
+	public long enqueueCommand(String commandLine, String digest)	{
+		ByteBuffer record = encode(COMMAND_TYPE, digest, commandLine);
+		synchronized(lock)	{
+			pending.add(record);
+			return ++appended;
+		}
+	}
+
+	/**
+	 * Record that the session was saved to 'filename', then compact the journal to just that record.
+	 * Queued records are dropped: they are for commands that came before the save, so the saved file
+	 * already has their effects.  Anyone waiting for them is told they are durable.
+	 */
+	public void checkpoint(String filename, String digest) throws CommandException {
+		ByteBuffer record = encode(CHECKPOINT_TYPE, digest, new File(filename).getAbsolutePath());
+		synchronized(lock)	{
+			// Wait for any group write in progress so the new file is not written behind its back.
+			while(flushing)
+				waitForFlush();
+			File tempFile = AtomicFiles.getTempFile(file);
+			try	{
+				RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+				FileChannel newChannel = raf.getChannel();
+				newChannel.truncate(0);
+				List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+				buffers.add(record);
+				write(newChannel, buffers);
+				newChannel.force(true);
+				try	{
+					AtomicFiles.replace(tempFile, file);
+				} catch (IOException e) {
+					newChannel.close();
+					throw e;
+				}
+				channel.close();
+				channel = newChannel;
+				pending = new ArrayList<ByteBuffer>();
+				durable = appended;
+				lock.notifyAll();
+			} catch (IOException e) {
+				throw new CommandException("I/O error writing journal checkpoint: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Close the journal.  Appended records are already on disk.
+	 */
+	public void close()	{
+		synchronized(lock)	{
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Everything was forced already.  Ignore.
+			}
+		}
+	}
+
+	/**
+	 * Wait until the record with sequence number 'sequence' (and every record queued before it) is on
+	 * disk, writing the pending records if no other thread is.
+	 */
+	public void awaitDurable(long sequence) throws CommandException {
+		List<ByteBuffer> batch;
+		long batchEnd;
+		synchronized(lock)	{
+			while(true)	{
+				if(durable >= sequence)
+					return;		// Another thread wrote it
+				if(flushFailure != null)
+					throw new CommandException("I/O error writing journal: " + flushFailure.getMessage(), flushFailure);
+				if(!flushing)
+					break;
+				waitForFlush();
+			}
+			// Become the writer for everything pending
+			flushing = true;
+			batch = pending;
+			batchEnd = appended;
+			pending = new ArrayList<ByteBuffer>();
+		}
+
+		IOException failure = null;
+		try	{
+			write(channel, batch);
+			channel.force(false);
+		} catch (IOException e) {
+			failure = e;
+		}
+
+		synchronized(lock)	{
+			flushing = false;
+			if(failure == null)
+				durable = batchEnd;
+			else
+				flushFailure = failure;
+			lock.notifyAll();
+		}
+		if(failure != null)
+			throw new CommandException("I/O error writing journal: " + failure.getMessage(), failure);
+	}
+
+	private void waitForFlush() throws CommandException {
+		try {
+			lock.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CommandException("Interrupted while writing journal.", e);
+		}
+	}
+
+	private static void write(FileChannel channel, List<ByteBuffer> buffers) throws IOException {
+		ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers.size()]);
+		long remaining = 0;
+		for(ByteBuffer buffer : array)
+			remaining += buffer.remaining();
+		while(remaining > 0)
+			remaining -= channel.write(array);
+	}
+
+	private static ByteBuffer encode(char type, String digest, String payload)	{
+		byte[] payloadBytes = payload.getBytes(Charsets.UTF_8);
+		byte[] header = (type + " " + digest + " " + payloadBytes.length + "\n").getBytes(Charsets.UTF_8);
+		ByteBuffer ret = ByteBuffer.allocate(header.length + payloadBytes.length + 1);
+		ret.put(header).put(payloadBytes).put((byte) '\n');
+		ret.flip();
+		return ret;
+	}
+
+	/**
+	 * Read every complete record.
+	 * @return	The offset just past the last complete record.
+	 */
+	private long readRecords(List<Record> records) throws IOException {
+		byte[] bytes = Files.toByteArray(file);
+		int offset = 0;
+		while(offset < bytes.length)	{
+			int headerEnd = indexOf(bytes, (byte) '\n', offset);
+			if(headerEnd < 0)
+				break;
+			String[] header = new String(bytes, offset, headerEnd - offset, Charsets.UTF_8).split(" ");
+			if(header.length != 3 || header[0].length() != 1 ||
+					(header[0].charAt(0) != COMMAND_TYPE && header[0].charAt(0) != CHECKPOINT_TYPE))
+				break;
+			int length;
+			try	{
+				length = Integer.parseInt(header[2]);
+			} catch (NumberFormatException e) {
+				break;
+			}
+			int payloadStart = headerEnd + 1;
+			if(length < 0 || payloadStart + length >= bytes.length || bytes[payloadStart + length] != '\n')
+				break;
+			records.add(new Record(header[0].charAt(0) == CHECKPOINT_TYPE, header[1],
+					new String(bytes, payloadStart, length, Charsets.UTF_8)));
+			offset = payloadStart + length + 1;
+		}
+		return offset;
+	}
+
+	private static int indexOf(byte[] bytes, byte value, int from)	{
+		for(int i=from; i<bytes.length; ++i)	{
+			if(bytes[i] == value)
+				return i;
+		}
+		return -1;
+	}
+}
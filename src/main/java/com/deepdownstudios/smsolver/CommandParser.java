@@ -0,0 +1,408 @@
+package com.deepdownstudios.smsolver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import alice.tuprolog.Int;
+import alice.tuprolog.InvalidTermException;
+import alice.tuprolog.Parser;
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+import alice.tuprolog.Var;
+
+/**
+ * Parser for the command language and for clingo's answer sets.  These only use the plain part of
+ * Prolog syntax: atoms, quoted atoms and strings, numbers, variables, compound terms and lists.  That
+ * is read by a hand-written tokenizer and recursive descent parser that builds the same tuProlog terms
+ * that alice.tuprolog.Parser does, much faster than the general (operator precedence) Prolog parser.
+ *
+ * Text that uses operators (eg 'a :- b' or 'x > 1') is not part of that grammar.  When the parser meets
+ * one it hands the whole text to alice.tuprolog.Parser instead, so nothing that parsed before is
+ * rejected now.  Other syntax errors are reported with their line and column.
+ *
+ * Grammar:
+ * 		terms	:= (term '.')*					(when periods are required)
+ * 				 | term*						(otherwise, eg clingo output)
+ * 		term	:= atom [ '(' args ')' ] | var | number | '[' [ args [ '|' term ] ] ']'
+ * 		args	:= term (',' term)*
+ */
+public class CommandParser {
+	private final String text;
+	private final int length;
+	private int position = 0;
+	private int line = 1;
+	private int lineStart = 0;		///< Offset of the first character of the current line
+	private Map<String, Var> variables = new HashMap<String, Var>();		///< Variables of the current term
+
+	/**
+	 * Thrown when the text uses syntax this parser leaves to tuProlog.
+	 */
+	private static class UnsupportedSyntaxException extends Exception	{
+		private static final long serialVersionUID = 1L;
+	}
+
+	private CommandParser(String text, int firstLine)	{
+		this.text = text;
+		this.length = text.length();
+		this.line = firstLine;
+	}
+
+	/**
+	 * Parse every term in 'text'.  '%' and '/* *&#47;' comments are skipped.
+	 * @param text				The text.
+	 * @param requirePeriod		If true then every term must end in a period.  Otherwise periods are optional.
+	 * @return	The terms, in order.
+	 * @throws CommandException	The text is not valid.  The message says where.
+	 */
+	public static List<Term> parse(String text, boolean requirePeriod) throws CommandException {
+		return parse(text, requirePeriod, 1);
+	}
+
+	/**
+	 * Parse every term in 'text', which is part of a larger text starting at line 'firstLine'.
+	 * Syntax errors give line numbers in the larger text.
+	 * @see #parse(String, boolean)
+	 */
+	public static List<Term> parse(String text, boolean requirePeriod, int firstLine) throws CommandException {
+		try	{
+			return new CommandParser(text, firstLine).terms(requirePeriod);
+		} catch (UnsupportedSyntaxException e) {
+			return parseWithProlog(text, requirePeriod);
+		}
+	}
+
+	private static List<Term> parseWithProlog(String text, boolean requirePeriod) throws CommandException {
+		Parser parser = new Parser(text);
+		List<Term> terms = new ArrayList<Term>();
+		try	{
+			Term term = parser.nextTerm(requirePeriod);
+			while(term != null)	{
+				terms.add(term);
+				term = parser.nextTerm(requirePeriod);
+			}
+		} catch (InvalidTermException e) {
+			throw new CommandException("Syntax error: " + e.getMessage(), e);
+		}
+		return terms;
+	}
+
+	private List<Term> terms(boolean requirePeriod) throws CommandException, UnsupportedSyntaxException {
+		List<Term> terms = new ArrayList<Term>();
+		skipLayout();
+		while(position < length)	{
+			variables.clear();
+			terms.add(term());
+			skipLayout();
+			if(isEnd())	{
+				++position;
+			} else if(requirePeriod)	{
+				if(position < length && isSymbolChar(text.charAt(position)))
+					throw new UnsupportedSyntaxException();		// An operator
+				if(position < length && text.charAt(position) == ',')
+					throw new UnsupportedSyntaxException();		// A ','/2 conjunction
+				throw error("Expected '.' after " + terms.get(terms.size()-1));
+			}
+			skipLayout();
+		}
+		return terms;
+	}
+
+	private Term term() throws CommandException, UnsupportedSyntaxException {
+		if(position >= length)
+			throw error("Unexpected end of input");
+		char c = text.charAt(position);
+		if(isLower(c))	{
+			return afterName(name());
+		} else if(c == '\'')	{
+			return afterName(quoted('\''));
+		} else if(c == '"')	{
+			return new Struct(quoted('"'));		// tuProlog reads double-quoted text as an atom
+		} else if(isUpper(c) || c == '_')	{
+			return variable(name());
+		} else if(isDigit(c))	{
+			return number(false);
+		} else if(c == '-' && position + 1 < length && isDigit(text.charAt(position+1)))	{
+			++position;
+			return number(true);
+		} else if(c == '[')	{
+			return list();
+		} else if(c == '(' || c == '{' || isSymbolChar(c))	{
+			throw new UnsupportedSyntaxException();
+		}
+		throw error("Unexpected '" + c + "'");
+	}
+
+	/**
+	 * An atom, or a compound term if 'name' is followed immediately by '('.
+	 */
+	private Term afterName(String name) throws CommandException, UnsupportedSyntaxException {
+		if(position >= length || text.charAt(position) != '(')	{
+			checkNotOperator();
+			return new Struct(name);
+		}
+		++position;
+		List<Term> args = args();
+		expect(')');
+		checkNotOperator();
+		return new Struct(name, args.toArray(new Term[args.size()]));
+	}
+
+	private List<Term> args() throws CommandException, UnsupportedSyntaxException {
+		List<Term> args = new ArrayList<Term>();
+		skipLayout();
+		args.add(term());
+		skipLayout();
+		while(position < length && text.charAt(position) == ',')	{
+			++position;
+			skipLayout();
+			args.add(term());
+			skipLayout();
+		}
+		return args;
+	}
+
+	private Term list() throws CommandException, UnsupportedSyntaxException {
+		++position;		// '['
+		skipLayout();
+		if(position < length && text.charAt(position) == ']')	{
+			++position;
+			return new Struct();
+		}
+		List<Term> elements = args();
+		Term tail = new Struct();
+		if(position < length && text.charAt(position) == '|')	{
+			++position;
+			skipLayout();
+			tail = term();
+			skipLayout();
+		}
+		expect(']');
+		for(int i=elements.size()-1; i>=0; --i)
+			tail = new Struct(".", elements.get(i), tail);
+		return tail;
+	}
+
+	private Term variable(String name)	{
+		if("_".equals(name))
+			return new Var();
+		Var ret = variables.get(name);
+		if(ret == null)	{
+			ret = new Var(name);
+			variables.put(name, ret);
+		}
+		return ret;
+	}
+
+	private Term number(boolean negative) throws CommandException, UnsupportedSyntaxException {
+		int start = position;
+		while(position < length && isDigit(text.charAt(position)))
+			++position;
+		boolean isFloat = false;
+		if(position + 1 < length && text.charAt(position) == '.' && isDigit(text.charAt(position+1)))	{
+			isFloat = true;
+			position += 2;
+			while(position < length && isDigit(text.charAt(position)))
+				++position;
+			if(position < length && (text.charAt(position) == 'e' || text.charAt(position) == 'E'))	{
+				int exponent = position + 1;
+				if(exponent < length && (text.charAt(exponent) == '+' || text.charAt(exponent) == '-'))
+					++exponent;
+				if(exponent < length && isDigit(text.charAt(exponent)))	{
+					position = exponent;
+					while(position < length && isDigit(text.charAt(position)))
+						++position;
+				}
+			}
+		}
+		if(position < length && (isLetter(text.charAt(position)) || text.charAt(position) == '\''))
+			throw new UnsupportedSyntaxException();		// eg 0'c or 0x1F
+		String digits = (negative ? "-" : "") + text.substring(start, position);
+		checkNotOperator();
+		try	{
+			if(isFloat)
+				return new alice.tuprolog.Double(Double.parseDouble(digits));
+			long value = Long.parseLong(digits);
+			if(value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+				return new Int((int) value);
+			return new alice.tuprolog.Long(value);
+		} catch (NumberFormatException e) {
+			throw error("Number out of range: " + digits);
+		}
+	}
+
+	private String name()	{
+		int start = position;
+		while(position < length && isAlphanumeric(text.charAt(position)))
+			++position;
+		return text.substring(start, position);
+	}
+
+	/**
+	 * A quoted atom or string.  Doubled quotes and backslash escapes are decoded.
+	 */
+	private String quoted(char quote) throws CommandException, UnsupportedSyntaxException {
+		int startLine = line, startColumn = position - lineStart + 1;
+		++position;
+		StringBuilder ret = null;		// Only needed when there is something to decode
+		int start = position;
+		while(true)	{
+			if(position >= length)
+				throw new CommandException("Syntax error at line " + startLine + ", column " + startColumn +
+						": Unterminated quoted text.");
+			char c = text.charAt(position);
+			if(c == quote)	{
+				if(position + 1 < length && text.charAt(position+1) == quote)	{
+					ret = append(ret, start).append(quote);
+					position += 2;
+					start = position;
+					continue;
+				}
+				String value = ret == null ? text.substring(start, position) : append(ret, start).toString();
+				++position;
+				return value;
+			} else if(c == '\\')	{
+				ret = append(ret, start);
+				if(position + 1 >= length)	{
+					position = length;		// Reported as unterminated
+					continue;
+				}
+				ret.append(escape(text.charAt(position+1)));
+				position += 2;
+				start = position;
+			} else	{
+				if(c == '\n')
+					newLine(position);
+				++position;
+			}
+		}
+	}
+
+	private StringBuilder append(StringBuilder builder, int start)	{
+		if(builder == null)
+			builder = new StringBuilder();
+		return builder.append(text, start, position);
+	}
+
+	/**
+	 * The common escapes.  Any other (eg '\a', '\xHH\', octal or a continued line) is left to tuProlog,
+	 * which decides whether it is valid.
+	 */
+	private char escape(char c) throws UnsupportedSyntaxException {
+		switch(c)	{
+		case 'n':	return '\n';
+		case 't':	return '\t';
+		case 'r':	return '\r';
+		case '\\':
+		case '\'':
+		case '"':
+		case '`':	return c;
+		default:
+			throw new UnsupportedSyntaxException();
+		}
+	}
+
+	private void expect(char c) throws CommandException, UnsupportedSyntaxException {
+		skipLayout();
+		if(position < length && text.charAt(position) == c)	{
+			++position;
+			return;
+		}
+		if(position < length && isSymbolChar(text.charAt(position)))
+			throw new UnsupportedSyntaxException();		// An operator inside the arguments
+		throw error("Expected '" + c + "' but found " + (position < length ? "'" + text.charAt(position) + "'" : "end of input"));
+	}
+
+	/**
+	 * Operators after a term (eg 'a-b', 'x > 1') are handed to tuProlog.  The end period is not an operator.
+	 */
+	private void checkNotOperator() throws UnsupportedSyntaxException {
+		int next = position;
+		while(next < length && isLayout(text.charAt(next)))
+			++next;
+		if(next >= length || isEndAt(next))
+			return;
+		char c = text.charAt(next);
+		if(isSymbolChar(c) || (next > position && c == '('))
+			throw new UnsupportedSyntaxException();
+	}
+
+	/**
+	 * True if the period at position ends a term (it is followed by layout, a comment or the end).
+	 */
+	private boolean isEnd()	{
+		return position < length && isEndAt(position);
+	}
+
+	private boolean isEndAt(int offset)	{
+		if(text.charAt(offset) != '.')
+			return false;
+		if(offset + 1 >= length)
+			return true;
+		char c = text.charAt(offset+1);
+		return isLayout(c) || c == '%';
+	}
+
+	private void skipLayout()	{
+		while(position < length)	{
+			char c = text.charAt(position);
+			if(c == '\n')	{
+				newLine(position);
+				++position;
+			} else if(isLayout(c))	{
+				++position;
+			} else if(c == '%')	{
+				while(position < length && text.charAt(position) != '\n')
+					++position;
+			} else if(c == '/' && position + 1 < length && text.charAt(position+1) == '*')	{
+				int end = text.indexOf("*/", position + 2);
+				end = end < 0 ? length : end + 2;
+				while(position < end)	{
+					if(text.charAt(position) == '\n')
+						newLine(position);
+					++position;
+				}
+			} else	{
+				return;
+			}
+		}
+	}
+
+	private void newLine(int offset)	{
+		++line;
+		lineStart = offset + 1;
+	}
+
+	private CommandException error(String message)	{
+		return new CommandException("Syntax error at line " + line + ", column " + (position - lineStart + 1) + ": " + message + ".");
+	}
+
+	private static boolean isLayout(char c)	{
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+	}
+
+	private static boolean isLower(char c)	{
+		return c >= 'a' && c <= 'z';
+	}
+
+	private static boolean isUpper(char c)	{
+		return c >= 'A' && c <= 'Z';
+	}
+
+	private static boolean isDigit(char c)	{
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isLetter(char c)	{
+		return isLower(c) || isUpper(c) || c == '_';
+	}
+
+	private static boolean isAlphanumeric(char c)	{
+		return isLetter(c) || isDigit(c);
+	}
+
+	private static boolean isSymbolChar(char c)	{
+		return "+-*/\\^<>=~:.?@#&$;!".indexOf(c) >= 0;
+	}
+}
@@ -5,6 +5,7 @@ import com.deepdownstudios.smsolver.History.HistoryException;
 public class CommandResult {
 	private History history;
 	private String message;
+	private String savedFilename = null;
 
 	/**
 	 * Build a command result from the history using the history's current state's user-friendly message.
@@ -26,6 +27,17 @@ public class CommandResult {
 		this.message = message;
 	}
 
+	/**
+	 * Build the result of a save command.
+	 * @param history		The history.  It is unchanged by saving.
+	 * @param message		A user-friendly message that describes the result of running the command.
+	 * @param savedFilename	The name of the file that was written.
+	 */
+	public CommandResult(History history, String message, String savedFilename) {
+		this(history, message);
+		this.savedFilename = savedFilename;
+	}
+
 	/**
 	 * The history that resulted from running the command.
 	 */
@@ -41,6 +53,13 @@ public class CommandResult {
 		return message;
 	}
 
+	/**
+	 * The file written, if the command was a save, otherwise null.
+	 */
+	public String getSavedFilename() {
+		return savedFilename;
+	}
+
 	private static String getMessageFromHistory(History history) throws CommandException {
 		// This function exists because of Java constructor rules.  We want to catch the history exception to change it
 		// because it should never happen (so its an internal error).  There is no command whose result should leave the
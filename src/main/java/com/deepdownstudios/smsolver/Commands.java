@@ -4,8 +4,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-import alice.tuprolog.InvalidTermException;
-import alice.tuprolog.Parser;
 import alice.tuprolog.Struct;
 import alice.tuprolog.Term;
 
@@ -27,47 +25,39 @@ public class Commands {
 	private Commands(String commandStr) throws CommandException {
 		assert commandStr.trim().length() > 0;
 
-		Parser parser = new Parser(commandStr);
 		List<Struct> curCompoundCommandList = new ArrayList<Struct>();
-		try {
-			Term term = parser.nextTerm(true); // true means 'input must end in period'
-			while (term != null) {
-				// We want to put all sequential non-file commands together in one Command structure.
-				// File commands are put in their own Command alone.
-				if (term.isCompound()) {
-					// Most commands will be a prolog structure (ie
-					// load("himom"), set(simple(mystate)), etc)
-					Struct commandStruct = (Struct) term;
-					String functor = commandStruct.getName().toString();
-					if (isMetaCommand(functor)) {
-						if (!curCompoundCommandList.isEmpty()) {
-							// Make a Command object from all of the commands leading up to this one
-							subcommands.add(Command.build(curCompoundCommandList));
-							curCompoundCommandList.clear();
-						}
-						subcommands.add(Command.build(Arrays.asList(commandStruct)));
-					} else	{
-						curCompoundCommandList.add(commandStruct);
-					}
-				} else if (term.isAtom()) {
-					// The following are the valid atoms: undo. redo. save. load.
-					// They are all meta-commands and should not be lumped in
-					// curCompoundCommandList
+		for (Term term : CommandParser.parse(commandStr, true)) { // true means 'input must end in period'
+			// We want to put all sequential non-file commands together in one Command structure.
+			// File commands are put in their own Command alone.
+			if (term.isCompound()) {
+				// Most commands will be a prolog structure (ie
+				// load("himom"), set(simple(mystate)), etc)
+				Struct commandStruct = (Struct) term;
+				String functor = commandStruct.getName().toString();
+				if (isMetaCommand(functor)) {
 					if (!curCompoundCommandList.isEmpty()) {
 						// Make a Command object from all of the commands leading up to this one
 						subcommands.add(Command.build(curCompoundCommandList));
 						curCompoundCommandList.clear();
 					}
-					subcommands.add(Command.build((Struct) term));
-				} else {
-					throw new CommandException("Syntax error.  Command is neither ATOM nor STRUCTURE: "
-							+ term.toString());
+					subcommands.add(Command.build(Arrays.asList(commandStruct)));
+				} else	{
+					curCompoundCommandList.add(commandStruct);
 				}
-
-				term = parser.nextTerm(true);
+			} else if (term.isAtom()) {
+				// The following are the valid atoms: undo. redo. save. load.
+				// They are all meta-commands and should not be lumped in
+				// curCompoundCommandList
+				if (!curCompoundCommandList.isEmpty()) {
+					// Make a Command object from all of the commands leading up to this one
+					subcommands.add(Command.build(curCompoundCommandList));
+					curCompoundCommandList.clear();
+				}
+				subcommands.add(Command.build((Struct) term));
+			} else {
+				throw new CommandException("Syntax error.  Command is neither ATOM nor STRUCTURE: "
+						+ term.toString());
 			}
-		} catch (InvalidTermException e) {
-			throw new CommandException("Syntax error: " + e.getMessage(), e);
 		}
 
 		// If there are leftover commands in the curCompoundCommandList then
@@ -78,20 +68,21 @@ public class Commands {
 
 	/**
 	 * True iff cmd describes a meta-interpreter command (ie non-ASP command).
-	 * They are load, save, new, undo and redo.
+	 * They are load, save, new, undo, redo, query and import.
 	 * 
 	 * @throws CommandException
 	 */
 	private static boolean isMetaCommand(String cmd) throws CommandException {
-		Command.REPLCommand replCommand;
-		try {
-			replCommand = Command.REPLCommand.valueOfIgnoreCase(cmd);
-		} catch (IllegalArgumentException e) {
+		Command.REPLCommand replCommand = Command.REPLCommand.lookup(cmd);
+		if (replCommand == null)
 			throw new CommandException("Unknown command: " + cmd);
-		}
-		assert (replCommand != null);
+		return isMetaCommand(replCommand);
+	}
+
+	private static boolean isMetaCommand(Command.REPLCommand replCommand) {
 		return (replCommand == Command.REPLCommand.UNDO || replCommand == Command.REPLCommand.REDO
-				|| replCommand == Command.REPLCommand.LOAD || replCommand == Command.REPLCommand.SAVE || replCommand == Command.REPLCommand.NEW);
+				|| replCommand == Command.REPLCommand.LOAD || replCommand == Command.REPLCommand.SAVE || replCommand == Command.REPLCommand.NEW
+				|| replCommand == Command.REPLCommand.QUERY || replCommand == Command.REPLCommand.IMPORT);
 	}
 
 	/**
@@ -121,14 +112,59 @@ public class Commands {
 	 * @throws CommandException
 	 */
 	public CommandResult execute(History history) throws CommandException {
+		return execute(history, ClingoSolver.INSTANCE);
+	}
+
+	/**
+	 * Execute this command on the current state in history, running ASP commands with 'solver'.
+	 * 
+	 * @param history
+	 *            The history to run the command on.
+	 * @param solver
+	 *            The solver to run ASP commands with.
+	 * @return
+	 * @throws CommandException
+	 */
+	public CommandResult execute(History history, Solver solver) throws CommandException {
 		if (subcommands.isEmpty())
 			return new CommandResult(history, "");
 
 		CommandResult result = null;
 		for (Command subcommand : subcommands) {
-			result = subcommand.execute(history);
+			result = subcommand.execute(history, solver);
 			history = result.getHistory();
 		}
 		return result;
 	}
+
+	/**
+	 * Execute the commands again, as when recovering from a journal.  Saves are skipped so that replaying
+	 * does not write files again (over files that may have been changed since).
+	 */
+	public CommandResult replay(History history, Solver solver) throws CommandException {
+		CommandResult result = new CommandResult(history, "");
+		for (Command subcommand : subcommands) {
+			if (subcommand.isSave())
+				continue;
+			result = subcommand.execute(history, solver);
+			history = result.getHistory();
+		}
+		return result;
+	}
+
+	/**
+	 * True iff there is at least one command and every command is an ASP command (set, change,
+	 * delete, test).  Such commands can be merged with the ASP commands that follow them.
+	 */
+	public boolean isAspOnly() {
+		if (subcommands.isEmpty())
+			return false;
+		for (Command command : subcommands) {
+			for (Command.SingleCommand subcommand : command.getSubcommands()) {
+				if (isMetaCommand(subcommand.getREPLCommand()))
+					return false;
+			}
+		}
+		return true;
+	}
 }
@@ -0,0 +1,230 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.deepdownstudios.smbridge.Endpoint;
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Compresses the messages sent to an endpoint, once the other end has agreed to it.  Sits between the
+ * solver and a transport in both directions: the transport's incoming messages go through it to the
+ * solver and the solver's responses go through it to the transport.  The agreement covers the whole
+ * transport, so it is only used with transports that have a single peer (an SMSocket), never with the
+ * websocket server, which shares one endpoint among all its clients.
+ *
+ * Negotiation: either side may send the offer 'COMPRESS deflate-scxml'.  A side that supports it answers
+ * 'COMPRESSED deflate-scxml' and, from then on, both sides may send compressed messages.  A side that
+ * does not will treat the offer as a command and answer with an error, which leaves the connection
+ * uncompressed.  A compressed message is 'DEFLATE ' followed by the base64 of the raw deflate stream of
+ * the UTF-8 message, compressed with the preset DICTIONARY.  Each message is compressed on its own so
+ * any message can be decoded without the ones before it.
+ *
+ * Messages shorter than MIN_COMPRESS_LENGTH are sent as is.
+ */
+public class CompressingEndpoint implements Endpoint {
+	public static final String CODEC = "deflate-scxml";
+	public static final String OFFER = "COMPRESS " + CODEC;
+	public static final String ACCEPT = "COMPRESSED " + CODEC;
+	private static final String COMPRESSED_PREFIX = "DEFLATE ";
+	private static final int MIN_COMPRESS_LENGTH = 256;
+
+	/**
+	 * Preset dictionary: the text that appears in every document ScxmlStreamWriter produces.  Deflate
+	 * prefers the end of the dictionary, so the most common strings are last.
+	 */
+	private static final byte[] DICTIONARY = (
+			"<foreach array=\"\" item=\"\" index=\"\"></foreach><assign location=\"\" expr=\"\"/>" +
+			"<if cond=\"\"><elseif cond=\"\"/><else/></if><log label=\"\" expr=\"\"/><raise event=\"\"/>" +
+			"<script src=\"\"></script><history type=\"shallow\"><history type=\"deep\"><parallel id=\"\"></parallel>" +
+			"<final id=\"\"></final><onexit></onexit><onentry></onentry>" +
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<scxml xmlns=\"http://www.w3.org/2005/07/scxml\" " +
+			"version=\"1.0\" name=\"\" initial=\"\">\n</scxml>\n---\n" +
+			"<transition event=\"\" cond=\"\" target=\"\"></transition>\n" +
+			"<state id=\"\" initial=\"\">\n</state>\n" +
+			"<transition event=\"\" target=\"\"/>\n    <state id=\"\">\n    </state>\n        <transition target=\"\"/>\n"
+			).getBytes(Charsets.UTF_8);
+
+	private static final BaseEncoding BASE64 = BaseEncoding.base64();
+
+	private final Endpoint transport;
+	private Endpoint endpoint = null;
+	private final boolean offer;
+	private boolean enabled = false;
+
+	private long rawBytes = 0;
+	private long compressedBytes = 0;
+	private long compressedMessages = 0;
+
+	/**
+	 * @param transport		The endpoint messages are sent through.  Its incoming messages should be sent to
+	 * 						this object (transport.setConnectedEndpoint(this)).
+	 * @param offer			If true then compression is offered when start() is called.  Otherwise this side
+	 * 						waits for the other side's offer.
+	 */
+	public CompressingEndpoint(Endpoint transport, boolean offer)	{
+		assert transport != null;
+		this.transport = transport;
+		this.offer = offer;
+	}
+
+	/**
+	 * Send the offer, if this side makes it.  Call once the transport is connected.
+	 */
+	public void start()	{
+		if(offer)
+			transport.process(OFFER);
+	}
+
+	/**
+	 * True once both sides agreed to compress.
+	 */
+	public synchronized boolean isEnabled()	{
+		return enabled;
+	}
+
+	/**
+	 * Send a message to the transport, compressed if that was agreed.
+	 */
+	public synchronized void process(String message) {
+		transport.process(enabled ? encode(message) : message);
+	}
+
+	/**
+	 * A message from the transport.  Handshake messages are answered here.  Everything else is decoded,
+	 * if it was compressed, and passed on.
+	 */
+	public void receive(String message) {
+		String trimmed = message.trim();
+		if(OFFER.equals(trimmed))	{
+			synchronized(this)	{
+				transport.process(ACCEPT);		// Before any compressed message
+				enabled = true;
+			}
+			return;
+		}
+		if(ACCEPT.equals(trimmed))	{
+			synchronized(this)	{
+				enabled = true;
+			}
+			return;
+		}
+		if(trimmed.startsWith(COMPRESSED_PREFIX))	{
+			try	{
+				message = decode(trimmed.substring(COMPRESSED_PREFIX.length()));
+			} catch (CommandException e) {
+				transport.process(e.getMessage());
+				return;
+			}
+		}
+		if(endpoint != null)
+			endpoint.process(message);
+	}
+
+	/**
+	 * The endpoint that decoded incoming messages go to.
+	 */
+	public void setConnectedEndpoint(Endpoint endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	/**
+	 * The Endpoint that should receive the transport's incoming messages.
+	 */
+	public Endpoint getReceiver()	{
+		return new Endpoint() {
+			public void process(String message) {
+				receive(message);
+			}
+
+			public void setConnectedEndpoint(Endpoint endpoint) {
+				CompressingEndpoint.this.setConnectedEndpoint(endpoint);
+			}
+
+			public void close() {
+				CompressingEndpoint.this.close();
+			}
+		};
+	}
+
+	public void close() {
+		transport.close();
+	}
+
+	/**
+	 * Total UTF-8 size of the messages that were compressed.
+	 */
+	public synchronized long getRawBytes()	{
+		return rawBytes;
+	}
+
+	/**
+	 * Total size, as sent, of the messages that were compressed.
+	 */
+	public synchronized long getCompressedBytes()	{
+		return compressedBytes;
+	}
+
+	/**
+	 * Number of messages that were sent compressed.
+	 */
+	public synchronized long getCompressedMessages()	{
+		return compressedMessages;
+	}
+
+	private String encode(String message)	{
+		if(message.length() < MIN_COMPRESS_LENGTH)
+			return message;
+		byte[] raw = message.getBytes(Charsets.UTF_8);
+		String encoded = COMPRESSED_PREFIX + BASE64.encode(deflate(raw));
+		rawBytes += raw.length;
+		compressedBytes += encoded.length();
+		compressedMessages++;
+		return encoded;
+	}
+
+	private static byte[] deflate(byte[] input)	{
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		try	{
+			deflater.setDictionary(DICTIONARY);
+			deflater.setInput(input);
+			deflater.finish();
+			ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 4 + 64);
+			byte[] buffer = new byte[8192];
+			while(!deflater.finished())	{
+				int count = deflater.deflate(buffer);
+				output.write(buffer, 0, count);
+			}
+			return output.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static String decode(String encoded) throws CommandException {
+		Inflater inflater = new Inflater(true);
+		try	{
+			// A raw stream does not ask for its dictionary.  It must be set before inflating.
+			inflater.setDictionary(DICTIONARY);
+			inflater.setInput(BASE64.decode(encoded));
+			ByteArrayOutputStream output = new ByteArrayOutputStream(encoded.length() * 4);
+			byte[] buffer = new byte[8192];
+			while(!inflater.finished())	{
+				int count = inflater.inflate(buffer);
+				if(count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new CommandException("ERROR\nTruncated compressed message.");
+				output.write(buffer, 0, count);
+			}
+			return new String(output.toByteArray(), Charsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			throw new CommandException("ERROR\nCompressed message is not valid base64: " + e.getMessage(), e);
+		} catch (DataFormatException e) {
+			throw new CommandException("ERROR\nCorrupt compressed message: " + e.getMessage(), e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.deepdownstudios.smsolver;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The ForkJoinPool shared by ScxmlToProlog and PrologToScxml.  Subtrees of the state hierarchy with
+ * at least FORK_THRESHOLD states are converted as separate tasks.  Smaller subtrees are converted on
+ * the current thread since forking them costs more than it saves.
+ */
+public class ConversionPool {
+	/** Minimum number of states in a subtree before it is converted as its own task. */
+	public static final int FORK_THRESHOLD = 64;
+
+	private static volatile boolean parallel = true;
+
+	private static class PoolHolder	{
+		static final ForkJoinPool pool = new ForkJoinPool();
+	}
+
+	/**
+	 * A conversion step that may fail with a CommandException.  ForkJoinTask.compute cannot throw checked
+	 * exceptions so they are wrapped here and unwrapped by invoke/join.
+	 */
+	public static abstract class ConversionTask<T> extends RecursiveTask<T>	{
+		private static final long serialVersionUID = 1L;
+
+		protected abstract T convert() throws CommandException;
+
+		protected final T compute() {
+			try {
+				return convert();
+			} catch (CommandException e) {
+				throw new ConversionException(e);
+			}
+		}
+	}
+
+	/**
+	 * Unchecked wrapper for the CommandExceptions thrown by ConversionTasks.
+	 */
+	public static class ConversionException extends RuntimeException	{
+		private static final long serialVersionUID = 3018467213349L;
+		public ConversionException(Throwable cause)	{
+			super(cause);
+		}
+	}
+
+	/**
+	 * Convert every document on the calling thread, or go back to using the pool.  For tests that compare
+	 * the two.
+	 */
+	static void setParallel(boolean parallel)	{
+		ConversionPool.parallel = parallel;
+	}
+
+	/**
+	 * True iff the caller is running inside the pool, so it may fork subtasks.
+	 */
+	public static boolean canFork()	{
+		return parallel && ForkJoinTask.inForkJoinPool();
+	}
+
+	/**
+	 * Run task in the pool and wait for its result.  If called from inside the pool (or the pool is not
+	 * being used), the task is run directly.
+	 */
+	public static <T> T invoke(ConversionTask<T> task) throws CommandException {
+		try	{
+			if(!parallel || canFork())
+				return task.invoke();
+			return PoolHolder.pool.invoke(task);
+		} catch (RuntimeException e) {
+			throw unwrap(e);
+		}
+	}
+
+	/**
+	 * Wait for a forked task.
+	 */
+	public static <T> T join(ConversionTask<T> task) throws CommandException {
+		try	{
+			return task.join();
+		} catch (RuntimeException e) {
+			throw unwrap(e);
+		}
+	}
+
+	private static CommandException unwrap(RuntimeException e)	{
+		// The pool may rethrow a copy of the task's exception with the original as its cause so search the chain.
+		Throwable cause = e;
+		while(cause != null)	{
+			if(cause instanceof CommandException)
+				return (CommandException) cause;
+			cause = cause.getCause();
+		}
+		throw e;
+	}
+}
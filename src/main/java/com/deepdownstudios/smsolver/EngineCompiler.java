@@ -0,0 +1,162 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+
+/**
+ * Build step that checks engine.lp and writes engine.compiled.lp, which ClingoSolver sends to clingo
+ * instead.  engine.lp is mostly comments (including a large commented-out example), and every byte of it
+ * is sent and parsed on every command.  The compiled form has one statement per line with the comments
+ * and extra whitespace removed.
+ *
+ * The check rejects unterminated block comments, strings and statements, unbalanced parentheses and an
+ * engine without #show directives (the solver reads its results from the shown atoms).  If clingo is on
+ * the path then it also grounds the compiled engine to check its syntax.
+ *
+ * Usage: EngineCompiler engine.lp engine.compiled.lp
+ * The Maven build runs it on the copy of engine.lp in target/classes during process-classes.
+ */
+public class EngineCompiler {
+	private static final String SHOW_DIRECTIVE = "#show";
+	private static final String HEADER = "% Generated from engine.lp by EngineCompiler.  Edit engine.lp instead.";
+
+	private EngineCompiler()	{	}
+
+	/**
+	 * Runs in the Maven process (exec:java), so errors are thrown rather than passed to System.exit().
+	 */
+	public static void main(String[] args) throws IOException, CommandException {
+		if(args.length != 2)
+			throw new IllegalArgumentException("Usage: java " + EngineCompiler.class.getName() + " engine.lp engine.compiled.lp");
+		File source = new File(args[0]);
+		File target = new File(args[1]);
+		List<String> statements;
+		try	{
+			statements = compile(Files.toString(source, Charsets.UTF_8));
+			checkWithClingo(statements);
+		} catch (CommandException e) {
+			throw new CommandException(source.getPath() + ": " + e.getMessage(), e);
+		}
+		Files.write(HEADER + "\n" + Joiner.on('\n').join(statements) + "\n", target, Charsets.UTF_8);
+		System.out.println("Compiled " + statements.size() + " statements from '" + source.getPath() + "' (" + 
+				source.length() + " bytes) to '" + target.getPath() + "' (" + target.length() + " bytes).");
+	}
+
+	/**
+	 * The statements of an ASP program, without comments and with whitespace collapsed.
+	 * @throws CommandException		The program is malformed
+	 */
+	public static List<String> compile(String program) throws CommandException {
+		List<String> ret = new ArrayList<String>();
+		StringBuilder statement = new StringBuilder();
+		int line = 1;
+		int statementLine = 1;
+		int depth = 0;
+		boolean hasShow = false;
+		int length = program.length();
+		for(int i=0; i<length; ++i)	{
+			char c = program.charAt(i);
+			char next = i+1 < length ? program.charAt(i+1) : '\0';
+			if(c == '%' && next == '*')	{				// block comment
+				int end = program.indexOf("*%", i+2);
+				if(end < 0)
+					throw new CommandException("Line " + line + ": Unterminated block comment.");
+				line += countLines(program, i, end);
+				i = end + 1;
+				appendSpace(statement);
+			} else if(c == '%')	{					// line comment
+				int end = program.indexOf('\n', i);
+				i = (end < 0 ? length : end) - 1;
+			} else if(c == '"')	{
+				int end = i+1;
+				while(end < length && program.charAt(end) != '"' && program.charAt(end) != '\n')
+					end += program.charAt(end) == '\\' ? 2 : 1;
+				if(end >= length || program.charAt(end) != '"')
+					throw new CommandException("Line " + line + ": Unterminated string.");
+				if(statement.length() == 0)
+					statementLine = line;
+				statement.append(program, i, end+1);
+				i = end;
+			} else if(Character.isWhitespace(c))	{
+				if(c == '\n')
+					++line;
+				appendSpace(statement);
+			} else	{
+				if(statement.length() == 0)
+					statementLine = line;
+				if(c == '(')
+					++depth;
+				else if(c == ')' && --depth < 0)
+					throw new CommandException("Line " + line + ": Unbalanced ')'.");
+				statement.append(c);
+				if(c == '.' && depth == 0 && (next == '\0' || next == '%' || Character.isWhitespace(next)))	{
+					String text = statement.toString().trim();
+					hasShow |= text.startsWith(SHOW_DIRECTIVE);
+					ret.add(text);
+					statement.setLength(0);
+				}
+			}
+		}
+		if(depth != 0)
+			throw new CommandException("Line " + statementLine + ": Unbalanced '('.");
+		if(statement.toString().trim().length() > 0)
+			throw new CommandException("Line " + statementLine + ": Statement does not end in a period: " + statement.toString().trim());
+		if(!hasShow)
+			throw new CommandException("No " + SHOW_DIRECTIVE + " directives.");
+		return ret;
+	}
+
+	/**
+	 * Ground the statements with clingo, if it is installed, to check their syntax.
+	 */
+	private static void checkWithClingo(List<String> statements) throws CommandException, IOException {
+		Process process;
+		try	{
+			process = new ProcessBuilder("clingo", "--text").redirectErrorStream(true).start();
+		} catch (IOException e) {
+			System.out.println("clingo was not found.  Skipping its syntax check.");
+			return;
+		}
+		OutputStream stdin = process.getOutputStream();
+		stdin.write(Joiner.on('\n').join(statements).getBytes(Charsets.UTF_8));
+		stdin.close();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), Charsets.UTF_8));
+		StringBuilder errors = new StringBuilder();
+		String line;
+		while((line = reader.readLine()) != null)	{
+			if(line.contains("error"))
+				errors.append(line).append('\n');
+		}
+		reader.close();
+		try	{
+			process.waitFor();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if(errors.length() > 0)
+			throw new CommandException("clingo rejected the engine:\n" + errors);
+	}
+
+	private static void appendSpace(StringBuilder statement)	{
+		if(statement.length() > 0 && statement.charAt(statement.length()-1) != ' ')
+			statement.append(' ');
+	}
+
+	private static int countLines(String text, int start, int end)	{
+		int ret = 0;
+		for(int i=start; i<end; ++i)	{
+			if(text.charAt(i) == '\n')
+				++ret;
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,218 @@
+package com.deepdownstudios.smsolver;
+
+import static com.deepdownstudios.smsolver.ScxmlPrologData.*;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * Side table for executable content (onentry/onexit handlers and transition actions).  The solver never
+ * looks inside executable content, so instead of the (possibly large) _seq term it is given a handle
+ * atom, 'xc_' followed by 16 hex digits of the SHA-1 of the content's text.  Equal content always gets
+ * the same handle, so handles can be compared, tested and deleted like the content they stand for.
+ * PrologToScxml and ScxmlStreamWriter resolve handles back to content when writing SCXML.
+ *
+ * Content whose text is not longer than a handle is left in place, and so is content with variables (a
+ * pattern like _seq(X,_) must be matched against the content itself).  Atoms that look like handles but
+ * are not in the table (eg typed by a user) are left as they are.
+ *
+ * Handles only mean something inside this process.  Commands keep the content as the user wrote it, so it
+ * can be saved, and are interned when the solver payload is built (Command.getSolverParameters()).
+ *
+ * The table only holds content weakly.  Each handle made here holds its content, so an entry lasts as
+ * long as some state (or command) has a handle for it.  Handle atoms made elsewhere (eg read from clingo's
+ * answer) must be passed through intern() or internFacts() while the content is still in use, to get
+ * handles that hold it.
+ */
+public class ExecutableContentStore {
+	private static final String HANDLE_PREFIX = "xc_";
+	private static final int HASH_HEX_DIGITS = 16;
+	private static final int HANDLE_LENGTH = HANDLE_PREFIX.length() + HASH_HEX_DIGITS;
+
+	private static final ConcurrentMap<String, ContentRef> contents = new ConcurrentHashMap<String, ContentRef>();
+	private static final ReferenceQueue<Term> collected = new ReferenceQueue<Term>();
+
+	/**
+	 * A handle atom that keeps its content in the table.
+	 */
+	private static class Handle extends Struct	{
+		private static final long serialVersionUID = 1L;
+		private final Term content;
+
+		Handle(String name, Term content)	{
+			super(name);
+			this.content = content;
+		}
+	}
+
+	private static class ContentRef extends WeakReference<Term>	{
+		private final String handle;
+
+		ContentRef(String handle, Term content)	{
+			super(content, collected);
+			this.handle = handle;
+		}
+	}
+
+	private ExecutableContentStore()	{ }		// Static methods only
+
+	/**
+	 * The handle for 'content', which is stored if it was not already, or 'content' itself if it is small
+	 * or is not ground.  If 'content' is a handle atom then the result is a handle that holds its content.
+	 */
+	public static Term intern(Term content)	{
+		if(!content.isCompound())	{
+			Term resolved = resolve(content);
+			return resolved == content || content instanceof Handle ? content : 
+					new Handle(((Struct) content).getName(), resolved);
+		}
+		if(!content.isGround())
+			return content;
+		String text = content.toString();
+		if(text.length() <= HANDLE_LENGTH)
+			return content;
+		String handle = HANDLE_PREFIX +
+				Hashing.sha1().hashString(text, Charsets.UTF_8).toString().substring(0, HASH_HEX_DIGITS);
+		removeCollected();
+		ContentRef ref = new ContentRef(handle, content);
+		while(true)	{
+			ContentRef existingRef = contents.putIfAbsent(handle, ref);
+			if(existingRef == null)
+				return new Handle(handle, content);
+			Term existing = existingRef.get();
+			if(existing == null)	{
+				if(contents.replace(handle, existingRef, ref))
+					return new Handle(handle, content);
+				continue;		// Replaced by another thread.  Look again.
+			}
+			if(!existing.toString().equals(text))
+				return content;		// Hash collision.  Keep this content inline.
+			return new Handle(handle, existing);
+		}
+	}
+
+	/**
+	 * The content 'term' is a handle for, or 'term' if it is not a handle.
+	 */
+	public static Term resolve(Term term)	{
+		if(term instanceof Handle)
+			return ((Handle) term).content;
+		if(!(term instanceof Struct) || term.isCompound())
+			return term;
+		String name = ((Struct) term).getName();
+		if(name.length() != HANDLE_LENGTH || !name.startsWith(HANDLE_PREFIX))
+			return term;
+		ContentRef ref = contents.get(name);
+		Term content = ref == null ? null : ref.get();
+		return content != null ? content : term;
+	}
+
+	/**
+	 * Replace the executable content in edge/5 and onentry/onexit prop/3 facts in 'term' (or in the
+	 * arguments of a command like set(...) or change(..., ...)) with handles.
+	 */
+	public static Term internFacts(Term term)	{
+		return mapContent(term, true);
+	}
+
+	/**
+	 * Replace the handles in edge/5 and onentry/onexit prop/3 facts in 'term' with the content they stand for.
+	 */
+	public static Term resolveFacts(Term term)	{
+		return mapContent(term, false);
+	}
+
+	/**
+	 * True if 'term' has executable content with variables in it, eg delete(prop(s, onentry, _seq(X, _))).
+	 * Such a pattern can only match facts whose content has been resolved.
+	 */
+	public static boolean hasContentPattern(Term term)	{
+		term = term.getTerm();
+		if(!term.isCompound())
+			return false;
+		Struct struct = (Struct) term;
+		int index = getContentIndex(struct);
+		if(index >= 0)
+			return !struct.getArg(index).isGround();
+		for(int i=0; i<struct.getArity(); ++i)	{
+			if(hasContentPattern(struct.getArg(i)))
+				return true;
+		}
+		return false;
+	}
+
+	private static Term mapContent(Term term, boolean intern)	{
+		if(!term.isCompound())
+			return term;
+		Struct struct = (Struct) term;
+		int index = getContentIndex(struct);
+		if(index >= 0)	{
+			Term content = struct.getArg(index);
+			return replaceArg(struct, index, intern ? intern(content) : resolve(content));
+		}
+		Term[] args = null;
+		for(int i=0; i<struct.getArity(); ++i)	{
+			Term arg = struct.getArg(i);
+			Term mapped = mapContent(arg, intern);
+			if(mapped != arg)	{
+				if(args == null)
+					args = getArgs(struct);
+				args[i] = mapped;
+			}
+		}
+		return args == null ? struct : new Struct(struct.getName(), args);
+	}
+
+	/**
+	 * The index of the executable content argument of an edge/5 or onentry/onexit prop/3 fact, or -1.
+	 */
+	private static int getContentIndex(Struct struct)	{
+		String name = struct.getName();
+		if(EDGE_STR.equals(name) && struct.getArity() == 5)
+			return 4;
+		if(PROP_STR.equals(name) && struct.getArity() == 3 &&
+				(ON_ENTRY_ATOM.equals(struct.getArg(1)) || ON_EXIT_ATOM.equals(struct.getArg(1))))
+			return 2;
+		return -1;
+	}
+
+	/**
+	 * Number of distinct pieces of content stored.
+	 */
+	public static int size()	{
+		removeCollected();
+		return contents.size();
+	}
+
+	/**
+	 * Remove the entries whose content is no longer used.
+	 */
+	private static void removeCollected()	{
+		ContentRef ref;
+		while((ref = (ContentRef) collected.poll()) != null)
+			contents.remove(ref.handle, ref);
+	}
+
+	private static Struct replaceArg(Struct struct, int index, Term arg)	{
+		if(arg == struct.getArg(index))
+			return struct;
+		Term[] args = getArgs(struct);
+		args[index] = arg;
+		return new Struct(struct.getName(), args);
+	}
+
+	private static Term[] getArgs(Struct struct)	{
+		Term[] args = new Term[struct.getArity()];
+		for(int i=0; i<args.length; ++i)
+			args[i] = struct.getArg(i);
+		return args;
+	}
+}
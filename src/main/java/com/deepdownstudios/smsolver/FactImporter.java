@@ -0,0 +1,264 @@
+package com.deepdownstudios.smsolver;
+
+import static com.deepdownstudios.smsolver.ScxmlPrologData.EDGE_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.NO_ACTION_ATOM;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.NO_COND_ATOM;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.NO_EVENTS_ATOM;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.SIMPLE_ATOM;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.STATE_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.TOP_STATE_STR;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+import alice.tuprolog.Var;
+
+import com.deepdownstudios.smsolver.Command.REPLCommand;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.io.Files;
+
+/**
+ * Reads the facts for an import(File) command.  Files ending in .csv or .tsv are edge lists with one
+ * transition per line:
+ * 		source,target[,event[,cond]]
+ * A first line that starts with 'source' is a header and is skipped.  Sources and targets that are not
+ * states of the current document are imported as simple states too, since edge/5 needs both ends to be
+ * states.  Any other file holds period-terminated state/2, parent/2, edge/5 and prop/3 facts, as in
+ * set(...) commands.  It is parsed a few thousand lines at a time rather than read whole.
+ *
+ * Facts are checked in Java (they must be ground, of a known kind and, for states, of a known type)
+ * so mistakes are reported with their line before anything is solved.  Duplicates are dropped.
+ * The facts become one set(...) command, which is solved once and is one entry in the history.
+ */
+public class FactImporter {
+	private static final String CSV_SUFFIX = "csv";
+	private static final String TSV_SUFFIX = "tsv";
+	private static final String HEADER_PREFIX = "source";
+	private static final int CHUNK_LINES = 4096;		///< Lines of a fact file parsed at a time
+
+	private FactImporter()	{	}
+
+	/**
+	 * Run an import(File) command.
+	 * @return	The history with the imported facts as its current state.
+	 */
+	public static CommandResult run(History history, Command.SingleCommand importCommand, Solver solver) throws CommandException {
+		assert importCommand.getREPLCommand() == REPLCommand.IMPORT;
+		if(importCommand.getParameters().size() != 1)
+			throw new CommandException("Syntax error in '" + importCommand.toString() + "'.  Expected format: import(filename)");
+		File file = new File(importCommand.getParameters().get(0).toUnquotedString());
+
+		long start = System.nanoTime();
+		FactIndex document = history.getStates().isEmpty() ? null : history.getCurrentState().getScxmlFile().getFactIndex();
+		List<Struct> facts = read(file, document);
+		if(facts.isEmpty())
+			throw new CommandException("No facts found in '" + file.getPath() + "'.");
+		List<Struct> setCommands = new ArrayList<Struct>(facts.size());
+		for(Struct fact : facts)
+			setCommands.add(new Struct(REPLCommand.SET.toString(), new Term[] { fact }));
+		CommandResult result = Command.build(setCommands).execute(history, solver);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		return new CommandResult(result.getHistory(), String.format("Imported %d facts from '%s' in %.2fs (%.0f facts/s).",
+				facts.size(), file.getPath(), seconds, facts.size() / Math.max(seconds, 1e-9)));
+	}
+
+	/**
+	 * Read and check the facts in a file.
+	 * @param document	The document the facts will be added to, or null if there is none.
+	 */
+	public static List<Struct> read(File file, FactIndex document) throws CommandException {
+		Map<String, Struct> facts = new LinkedHashMap<String, Struct>();
+		String suffix = Files.getFileExtension(file.getName()).toLowerCase();
+		try	{
+			if(CSV_SUFFIX.equals(suffix) || TSV_SUFFIX.equals(suffix))
+				readEdgeList(file, TSV_SUFFIX.equals(suffix) ? '\t' : ',', document, facts);
+			else
+				readFacts(file, facts);
+		} catch (FileNotFoundException e) {
+			throw new CommandException("File '" + file.getAbsolutePath() + "' was not found.");
+		} catch (IOException e) {
+			throw new CommandException("I/O error reading '" + file.getPath() + "': " + e.getMessage(), e);
+		}
+		return new ArrayList<Struct>(facts.values());
+	}
+
+	private static void readEdgeList(File file, char separator, FactIndex document, Map<String, Struct> facts)
+			throws IOException, CommandException {
+		Splitter splitter = Splitter.on(separator).trimResults();
+		BufferedReader reader = Files.newReader(file, Charsets.UTF_8);
+		try	{
+			int lineNumber = 0;
+			String line;
+			while((line = reader.readLine()) != null)	{
+				++lineNumber;
+				if(line.trim().isEmpty() || (lineNumber == 1 && line.trim().toLowerCase().startsWith(HEADER_PREFIX)))
+					continue;
+				List<String> fields = splitter.splitToList(line);
+				if(fields.size() < 2 || fields.size() > 4 || fields.get(0).isEmpty() || fields.get(1).isEmpty())
+					throw error(file, lineNumber, "Expected source" + separator + "target[" + separator + "event[" +
+							separator + "cond]]");
+				Term event = fields.size() > 2 && !fields.get(2).isEmpty() ? new Struct(fields.get(2)) : NO_EVENTS_ATOM;
+				Term cond = fields.size() > 3 && !fields.get(3).isEmpty() ? new Struct(fields.get(3)) : NO_COND_ATOM;
+				Struct source = new Struct(fields.get(0));
+				Struct target = new Struct(fields.get(1));
+				addState(facts, document, source);
+				addState(facts, document, target);
+				add(facts, new Struct(EDGE_STR, new Term[] { source, target, cond, event, NO_ACTION_ATOM }));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Read a fact file in chunks of about CHUNK_LINES lines that end with a complete fact.
+	 */
+	private static void readFacts(File file, Map<String, Struct> facts) throws IOException, CommandException {
+		BufferedReader reader = Files.newReader(file, Charsets.UTF_8);
+		try	{
+			ClauseScanner scanner = new ClauseScanner();
+			StringBuilder chunk = new StringBuilder();
+			int chunkLine = 1;		// Line number of the first line in chunk
+			int lineNumber = 0;
+			int count = 0;
+			String line;
+			while((line = reader.readLine()) != null)	{
+				++lineNumber;
+				chunk.append(line).append('\n');
+				if(scanner.endsClause(line) && lineNumber - chunkLine + 1 >= CHUNK_LINES)	{
+					count = addFacts(file, chunk.toString(), chunkLine, count, facts);
+					chunk.setLength(0);
+					chunkLine = lineNumber + 1;
+				}
+			}
+			addFacts(file, chunk.toString(), chunkLine, count, facts);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Parse, check and add the facts in 'text', which starts at line 'firstLine' of 'file'.
+	 * @param count		The number of facts read before 'text'
+	 * @return	The number of facts read up to the end of 'text'
+	 */
+	private static int addFacts(File file, String text, int firstLine, int count, Map<String, Struct> facts) throws CommandException {
+		List<Term> terms;
+		try	{
+			terms = CommandParser.parse(text, true, firstLine);
+		} catch (CommandException e) {
+			throw new CommandException("In '" + file.getPath() + "' (from line " + firstLine + "): " + e.getMessage(), e);
+		}
+		for(Term term : terms)	{
+			++count;
+			String problem = check(term);
+			if(problem != null)
+				throw new CommandException("Fact " + count + " in '" + file.getPath() + "' (" + term + "): " + problem);
+			add(facts, (Struct) term);
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the lines that end a clause: their last character outside quotes and comments is a period.
+	 * Quotes and block comments may span lines, so every line must be passed to it in order.
+	 */
+	private static class ClauseScanner	{
+		private char quote = 0;				///< The open quote character, or 0 outside quotes
+		private boolean inComment = false;	///< Inside a block comment
+
+		boolean endsClause(String line)	{
+			char last = 0;
+			int length = line.length();
+			for(int i=0; i<length; ++i)	{
+				char c = line.charAt(i);
+				if(inComment)	{
+					if(c == '*' && i + 1 < length && line.charAt(i+1) == '/')	{
+						inComment = false;
+						++i;
+					}
+				} else if(quote != 0)	{
+					if(c == '\\')
+						++i;
+					else if(c == quote && i + 1 < length && line.charAt(i+1) == quote)
+						++i;		// Doubled quote
+					else if(c == quote)	{
+						quote = 0;
+						last = c;
+					}
+				} else if(c == '%')	{
+					break;
+				} else if(c == '/' && i + 1 < length && line.charAt(i+1) == '*')	{
+					inComment = true;
+					++i;
+				} else if(c == '0' && i + 1 < length && line.charAt(i+1) == '\'')	{
+					i += 2;			// Character code, eg 0'a
+					last = c;
+				} else if(c == '\'' || c == '"')	{
+					quote = c;
+				} else if(c != ' ' && c != '\t' && c != '\r')	{
+					last = c;
+				}
+			}
+			return quote == 0 && !inComment && last == '.';
+		}
+	}
+
+	/**
+	 * The reason 'term' cannot be imported, or null if it can.
+	 */
+	private static String check(Term term)	{
+		if(!FactIndex.isFact(term))
+			return "Not a state/2, parent/2, edge/5 or prop/3 fact.";
+		if(!isGround(term))
+			return "Facts cannot have variables.";
+		Struct fact = (Struct) term;
+		if(STATE_STR.equals(fact.getName()) && !JavaEngineSolver.STATE_TYPES.contains(FactIndex.key(fact.getArg(0))))
+			return "Unknown state type '" + fact.getArg(0) + "'.";
+		return null;
+	}
+
+	private static boolean isGround(Term term)	{
+		term = term.getTerm();
+		if(term instanceof Var)
+			return false;
+		if(term instanceof Struct)	{
+			Struct struct = (Struct) term;
+			for(int i=0; i<struct.getArity(); ++i)	{
+				if(!isGround(struct.getArg(i)))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Import 'id' as a simple state unless the document already has it as a state.
+	 */
+	private static void addState(Map<String, Struct> facts, FactIndex document, Struct id)	{
+		String name = id.getName();
+		if(TOP_STATE_STR.equals(name) || (document != null && document.isState(name)))
+			return;
+		add(facts, new Struct(STATE_STR, new Term[] { SIMPLE_ATOM, id }));
+	}
+
+	private static void add(Map<String, Struct> facts, Struct fact)	{
+		String key = FactIndex.key(fact);
+		if(!facts.containsKey(key))
+			facts.put(key, fact);
+	}
+
+	private static CommandException error(File file, int lineNumber, String message)	{
+		return new CommandException("Line " + lineNumber + " of '" + file.getPath() + "': " + message);
+	}
+}
@@ -0,0 +1,421 @@
+package com.deepdownstudios.smsolver;
+
+import static com.deepdownstudios.smsolver.ScxmlPrologData.EDGE_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.INITIAL_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.PARENT_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.PROP_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.STATE_STR;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * Indexes the state/2, parent/2, edge/5 and prop/3 facts of an SCXML document by state ID.
+ * Facts and IDs are identified by their Prolog text (see key()).  Terms that are none of the above
+ * are kept but not indexed.
+ *
+ * A FactIndex is built once per ScxmlFile (see ScxmlFile.getFactIndex()) and must not be modified once
+ * it is shared.  JavaEngineSolver copies the index of its input and modifies the copy to build its output.
+ */
+public class FactIndex {
+	private final LinkedHashMap<String, Struct> facts;				///< All indexed facts, in document order
+	private final List<Term> otherTerms;								///< Terms that are not indexed facts
+	private final Map<String, Set<String>> states;						///< State ID -> state/2 fact keys
+	private final Map<String, Set<String>> parentFacts;				///< Child ID -> parent/2 fact keys
+	private final Map<String, Set<String>> childFacts;					///< Parent ID -> parent/2 fact keys
+	private final Map<String, Set<String>> outgoing;					///< Source ID -> edge/5 fact keys
+	private final Map<String, Set<String>> incoming;					///< Target ID -> edge/5 fact keys
+	private final Map<String, Set<String>> props;						///< State ID -> prop/3 fact keys
+	private final Map<String, Set<String>> initialDeclarers;			///< Initial state ID -> declarer IDs
+	private boolean validated = false;
+	private volatile String digest = null;		///< Computed on first use
+
+	private FactIndex()	{
+		facts = new LinkedHashMap<String, Struct>();
+		otherTerms = new ArrayList<Term>();
+		states = new HashMap<String, Set<String>>();
+		parentFacts = new HashMap<String, Set<String>>();
+		childFacts = new HashMap<String, Set<String>>();
+		outgoing = new HashMap<String, Set<String>>();
+		incoming = new HashMap<String, Set<String>>();
+		props = new HashMap<String, Set<String>>();
+		initialDeclarers = new HashMap<String, Set<String>>();
+	}
+
+	/**
+	 * Copy an index.  The copy is not validated.
+	 */
+	FactIndex(FactIndex other)	{
+		facts = new LinkedHashMap<String, Struct>(other.facts);
+		otherTerms = new ArrayList<Term>(other.otherTerms);
+		states = copy(other.states);
+		parentFacts = copy(other.parentFacts);
+		childFacts = copy(other.childFacts);
+		outgoing = copy(other.outgoing);
+		incoming = copy(other.incoming);
+		props = copy(other.props);
+		initialDeclarers = copy(other.initialDeclarers);
+	}
+
+	/**
+	 * Index the terms of an SCXML document.
+	 */
+	public static FactIndex build(List<Term> terms)	{
+		FactIndex ret = new FactIndex();
+		for(Term term : terms)	{
+			if(isFact(term))
+				ret.add((Struct) term);
+			else
+				ret.otherTerms.add(term);
+		}
+		return ret;
+	}
+
+	/**
+	 * The text that identifies a fact or ID.
+	 */
+	public static String key(Term term)	{
+		return term.toString();
+	}
+
+	/**
+	 * True iff term is a state/2, parent/2, edge/5 or prop/3 fact.
+	 */
+	public static boolean isFact(Term term)	{
+		if(!(term instanceof Struct))
+			return false;
+		Struct struct = (Struct) term;
+		String name = struct.getName();
+		int arity = struct.getArity();
+		return (STATE_STR.equals(name) && arity == 2) || (PARENT_STR.equals(name) && arity == 2) ||
+				(EDGE_STR.equals(name) && arity == 5) || (PROP_STR.equals(name) && arity == 3);
+	}
+
+	/**
+	 * The IDs of the states that fact refers to.  Edge targets and initial-state property values are
+	 * included.
+	 */
+	public static List<String> getIds(Struct fact)	{
+		String name = fact.getName();
+		List<String> ret = new ArrayList<String>(2);
+		if(STATE_STR.equals(name))
+			ret.add(key(fact.getArg(1)));
+		else if(PARENT_STR.equals(name) || EDGE_STR.equals(name))	{
+			ret.add(key(fact.getArg(0)));
+			ret.add(key(fact.getArg(1)));
+		} else if(PROP_STR.equals(name))	{
+			ret.add(key(fact.getArg(0)));
+			if(INITIAL_STR.equals(key(fact.getArg(1))))
+				ret.add(key(fact.getArg(2)));
+		}
+		return ret;
+	}
+
+	/**
+	 * Add a fact.  Must be an indexed fact (see isFact()).
+	 * @return	True iff the fact was not already present.
+	 */
+	boolean add(Struct fact)	{
+		assert isFact(fact);
+		String key = key(fact);
+		if(facts.containsKey(key))
+			return false;
+		facts.put(key, fact);
+		index(fact, key, true);
+		validated = false;
+		digest = null;
+		return true;
+	}
+
+	/**
+	 * Remove a fact.
+	 * @return	The removed fact or null if it was not present.
+	 */
+	Struct remove(String key)	{
+		Struct fact = facts.remove(key);
+		if(fact != null)	{
+			index(fact, key, false);
+			validated = false;
+			digest = null;
+		}
+		return fact;
+	}
+
+	private void index(Struct fact, String key, boolean add)	{
+		String name = fact.getName();
+		if(STATE_STR.equals(name))
+			update(states, key(fact.getArg(1)), key, add);
+		else if(PARENT_STR.equals(name))	{
+			update(childFacts, key(fact.getArg(0)), key, add);
+			update(parentFacts, key(fact.getArg(1)), key, add);
+		} else if(EDGE_STR.equals(name))	{
+			update(outgoing, key(fact.getArg(0)), key, add);
+			update(incoming, key(fact.getArg(1)), key, add);
+		} else	{
+			String id = key(fact.getArg(0));
+			update(props, id, key, add);
+			if(INITIAL_STR.equals(key(fact.getArg(1))))	{
+				// Another prop with the same value may still declare the same initial state.
+				String target = key(fact.getArg(2));
+				if(add || !declaresInitial(id, target))
+					update(initialDeclarers, target, id, add);
+			}
+		}
+	}
+
+	private boolean declaresInitial(String declarer, String target)	{
+		for(Struct prop : getProps(declarer))	{
+			if(INITIAL_STR.equals(key(prop.getArg(1))) && target.equals(key(prop.getArg(2))))
+				return true;
+		}
+		return false;
+	}
+
+	private static void update(Map<String, Set<String>> map, String id, String key, boolean add)	{
+		Set<String> keys = map.get(id);
+		if(add)	{
+			if(keys == null)	{
+				keys = new LinkedHashSet<String>();
+				map.put(id, keys);
+			}
+			keys.add(key);
+		} else if(keys != null)	{
+			keys.remove(key);
+			if(keys.isEmpty())
+				map.remove(id);
+		}
+	}
+
+	private static Map<String, Set<String>> copy(Map<String, Set<String>> map)	{
+		Map<String, Set<String>> ret = new HashMap<String, Set<String>>(map.size() * 4 / 3 + 1);
+		for(Map.Entry<String, Set<String>> entry : map.entrySet())
+			ret.put(entry.getKey(), new LinkedHashSet<String>(entry.getValue()));
+		return ret;
+	}
+
+	private List<Struct> lookup(Map<String, Set<String>> map, String id)	{
+		Set<String> keys = map.get(id);
+		if(keys == null)
+			return Collections.emptyList();
+		List<Struct> ret = new ArrayList<Struct>(keys.size());
+		for(String key : keys)
+			ret.add(facts.get(key));
+		return ret;
+	}
+
+	private Set<String> lookupIds(Map<String, Set<String>> map, String id, int arg)	{
+		Set<String> keys = map.get(id);
+		if(keys == null)
+			return Collections.emptySet();
+		Set<String> ret = new LinkedHashSet<String>();
+		for(String key : keys)
+			ret.add(key(facts.get(key).getArg(arg)));
+		return ret;
+	}
+
+	/**
+	 * The indexed facts in document order.
+	 */
+	public Collection<Struct> getFacts()	{
+		return Collections.unmodifiableCollection(facts.values());
+	}
+
+	/**
+	 * Terms that are not state/2, parent/2, edge/5 or prop/3 facts.
+	 */
+	public List<Term> getOtherTerms()	{
+		return Collections.unmodifiableList(otherTerms);
+	}
+
+	/**
+	 * All terms: the indexed facts in document order followed by any others.
+	 */
+	public List<Term> getTerms()	{
+		List<Term> ret = new ArrayList<Term>(facts.size() + otherTerms.size());
+		ret.addAll(facts.values());
+		ret.addAll(otherTerms);
+		return ret;
+	}
+
+	public boolean contains(String key)	{
+		return facts.containsKey(key);
+	}
+
+	public boolean contains(Struct fact)	{
+		return facts.containsKey(key(fact));
+	}
+
+	public Struct get(String key)	{
+		return facts.get(key);
+	}
+
+	public int size()	{
+		return facts.size();
+	}
+
+	public boolean isState(String id)	{
+		return states.containsKey(id);
+	}
+
+	/**
+	 * The IDs of all states.
+	 */
+	public Set<String> getStateIds()	{
+		return Collections.unmodifiableSet(states.keySet());
+	}
+
+	/**
+	 * The types (simple, par, final, shallow, deep) given to state 'id'.  There is normally at most one.
+	 */
+	public Set<String> getStateTypes(String id)	{
+		return lookupIds(states, id, 0);
+	}
+
+	/**
+	 * The state/2 facts for state 'id'.
+	 */
+	public List<Struct> getStateIdFacts(String id)	{
+		return lookup(states, id);
+	}
+
+	public boolean hasStateType(String id, String type)	{
+		Set<String> keys = states.get(id);
+		if(keys == null)
+			return false;
+		for(String key : keys)	{
+			if(type.equals(key(facts.get(key).getArg(0))))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The IDs of the parents of 'id'.  There is normally exactly one.
+	 */
+	public Set<String> getParents(String id)	{
+		return lookupIds(parentFacts, id, 0);
+	}
+
+	public List<Struct> getParentFacts(String id)	{
+		return lookup(parentFacts, id);
+	}
+
+	public Set<String> getChildren(String id)	{
+		return lookupIds(childFacts, id, 1);
+	}
+
+	public boolean hasChildren(String id)	{
+		return childFacts.containsKey(id);
+	}
+
+	public List<Struct> getOutgoing(String id)	{
+		return lookup(outgoing, id);
+	}
+
+	public List<Struct> getIncoming(String id)	{
+		return lookup(incoming, id);
+	}
+
+	/**
+	 * IDs that appear as edge sources or edge targets.
+	 */
+	public Set<String> getEdgeEndpoints()	{
+		Set<String> ret = new LinkedHashSet<String>(outgoing.keySet());
+		ret.addAll(incoming.keySet());
+		return ret;
+	}
+
+	public List<Struct> getProps(String id)	{
+		return lookup(props, id);
+	}
+
+	/**
+	 * IDs that have properties.
+	 */
+	public Set<String> getPropIds()	{
+		return Collections.unmodifiableSet(props.keySet());
+	}
+
+	/**
+	 * The IDs of the states that declare 'id' as an initial state.
+	 */
+	public Set<String> getInitialDeclarers(String id)	{
+		Set<String> ret = initialDeclarers.get(id);
+		return ret == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(ret);
+	}
+
+	/**
+	 * The IDs of every state below 'id' in the hierarchy.  Cycles are tolerated.
+	 */
+	public Set<String> getDescendants(String id)	{
+		Set<String> ret = new LinkedHashSet<String>();
+		List<String> frontier = new ArrayList<String>(getChildren(id));
+		while(!frontier.isEmpty())	{
+			String child = frontier.remove(frontier.size()-1);
+			if(ret.add(child))
+				frontier.addAll(getChildren(child));
+		}
+		return ret;
+	}
+
+	/**
+	 * The strict ancestors of 'id', nearest first, following the first parent of each state.
+	 * Stops early if the parent relation has a cycle.
+	 */
+	public List<String> getAncestors(String id)	{
+		List<String> ret = new ArrayList<String>();
+		Set<String> seen = new LinkedHashSet<String>();
+		seen.add(id);
+		Set<String> parents = getParents(id);
+		while(!parents.isEmpty())	{
+			String parent = parents.iterator().next();
+			if(!seen.add(parent))
+				break;
+			ret.add(parent);
+			parents = getParents(parent);
+		}
+		return ret;
+	}
+
+	/**
+	 * A digest of the set of facts (and other terms).  It does not depend on their order.
+	 */
+	public String getDigest()	{
+		String ret = digest;
+		if(ret == null)	{
+			List<HashCode> hashes = new ArrayList<HashCode>(facts.size() + otherTerms.size());
+			for(String key : facts.keySet())
+				hashes.add(Hashing.sha256().hashString(key, Charsets.UTF_8));
+			for(Term term : otherTerms)
+				hashes.add(Hashing.sha256().hashString(key(term), Charsets.UTF_8));
+			ret = hashes.isEmpty() ? Hashing.sha256().hashInt(0).toString() : Hashing.combineUnordered(hashes).toString();
+			digest = ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * True iff every engine.lp constraint is known to hold for this index.
+	 */
+	public boolean isValidated()	{
+		return validated;
+	}
+
+	void setValidated()	{
+		validated = true;
+	}
+}
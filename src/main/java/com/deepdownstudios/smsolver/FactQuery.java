@@ -0,0 +1,186 @@
+package com.deepdownstudios.smsolver;
+
+import static com.deepdownstudios.smsolver.ScxmlPrologData.EDGE_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.PARENT_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.PROP_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.STATE_STR;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+import alice.tuprolog.Var;
+
+/**
+ * Answers query(...) commands from the FactIndex of a document.  Queries do not run the solver and do
+ * not change the history.  A query is either a relation of one state ID:
+ * 		query(children(Id)).  query(parents(Id)).  query(ancestors(Id)).  query(descendants(Id)).
+ * 		query(incoming(Id)).  query(outgoing(Id)).  query(props(Id)).  query(types(Id)).
+ * or a state/2, parent/2, edge/5 or prop/3 pattern that may contain variables, eg
+ * 		query(edge(idle, Target, Event, _, _)).
+ * Patterns with a bound state ID are looked up in the index.  Others scan every fact.
+ */
+public class FactQuery {
+	public static final String CHILDREN_STR = "children";
+	public static final String PARENTS_STR = "parents";
+	public static final String ANCESTORS_STR = "ancestors";
+	public static final String DESCENDANTS_STR = "descendants";
+	public static final String INCOMING_STR = "incoming";
+	public static final String OUTGOING_STR = "outgoing";
+	public static final String PROPS_STR = "props";
+	public static final String TYPES_STR = "types";
+
+	private FactQuery()	{	}
+
+	/**
+	 * Run a query.
+	 * @param factIndex		The document to query
+	 * @param query			The parameter of the query command
+	 * @return				A user-friendly description of the result
+	 * @throws CommandException		The query is not understood
+	 */
+	public static String run(FactIndex factIndex, Term query) throws CommandException {
+		query = query.getTerm();
+		if(!(query instanceof Struct))
+			throw new CommandException("Query must be a relation or fact pattern: " + query);
+		Struct struct = (Struct) query;
+		if(FactIndex.isFact(struct))
+			return describeMatches(match(factIndex, struct));
+		if(struct.getArity() != 1)
+			throw new CommandException("Unknown query: " + struct.getName() + "/" + struct.getArity());
+
+		String name = struct.getName();
+		Term idTerm = struct.getArg(0).getTerm();
+		if(idTerm instanceof Var)
+			throw new CommandException("Query '" + name + "' needs a state ID: " + query);
+		String id = FactIndex.key(idTerm);
+		if(CHILDREN_STR.equals(name))
+			return describeIds(factIndex.getChildren(id));
+		if(PARENTS_STR.equals(name))
+			return describeIds(factIndex.getParents(id));
+		if(ANCESTORS_STR.equals(name))
+			return describeIds(factIndex.getAncestors(id));
+		if(DESCENDANTS_STR.equals(name))
+			return describeIds(factIndex.getDescendants(id));
+		if(INCOMING_STR.equals(name))
+			return describeFacts(factIndex.getIncoming(id));
+		if(OUTGOING_STR.equals(name))
+			return describeFacts(factIndex.getOutgoing(id));
+		if(PROPS_STR.equals(name))
+			return describeFacts(factIndex.getProps(id));
+		if(TYPES_STR.equals(name))
+			return describeIds(factIndex.getStateTypes(id));
+		throw new CommandException("Unknown query: " + name + "/1");
+	}
+
+	/**
+	 * The facts matching 'pattern', each with the values of the pattern's named variables.
+	 */
+	static Map<Struct, Map<String, String>> match(FactIndex factIndex, Struct pattern)	{
+		Map<Struct, Map<String, String>> ret = new LinkedHashMap<Struct, Map<String, String>>();
+		for(Struct fact : getCandidates(factIndex, pattern))	{
+			Map<String, String> bindings = new LinkedHashMap<String, String>();
+			if(match(pattern, fact, bindings))
+				ret.put(fact, bindings);
+		}
+		return ret;
+	}
+
+	/**
+	 * The facts that could match 'pattern', using the index when the pattern names a state.
+	 */
+	private static Collection<Struct> getCandidates(FactIndex factIndex, Struct pattern)	{
+		String name = pattern.getName();
+		String arg0 = getBoundKey(pattern.getArg(0));
+		String arg1 = getBoundKey(pattern.getArg(1));
+		if(STATE_STR.equals(name) && arg1 != null)
+			return factIndex.getStateIdFacts(arg1);
+		if(PARENT_STR.equals(name) && arg1 != null)
+			return factIndex.getParentFacts(arg1);
+		if(PARENT_STR.equals(name) && arg0 != null)	{
+			List<Struct> ret = new ArrayList<Struct>();
+			for(String child : factIndex.getChildren(arg0))
+				ret.addAll(factIndex.getParentFacts(child));
+			return ret;
+		}
+		if(EDGE_STR.equals(name) && arg0 != null)
+			return factIndex.getOutgoing(arg0);
+		if(EDGE_STR.equals(name) && arg1 != null)
+			return factIndex.getIncoming(arg1);
+		if(PROP_STR.equals(name) && arg0 != null)
+			return factIndex.getProps(arg0);
+		return factIndex.getFacts();
+	}
+
+	private static String getBoundKey(Term term)	{
+		term = term.getTerm();
+		return (term instanceof Var) ? null : FactIndex.key(term);
+	}
+
+	private static boolean match(Term pattern, Term term, Map<String, String> bindings)	{
+		pattern = pattern.getTerm();
+		if(pattern.isCompound())
+			term = ExecutableContentStore.resolve(term);		// Content patterns match the content, not its handle
+		if(pattern instanceof Var)	{
+			String name = ((Var) pattern).getName();
+			if(name.startsWith("_"))
+				return true;		// anonymous
+			String value = FactIndex.key(term);
+			String bound = bindings.get(name);
+			if(bound == null)	{
+				bindings.put(name, value);
+				return true;
+			}
+			return bound.equals(value);
+		}
+		if(pattern instanceof Struct && term instanceof Struct)	{
+			Struct patternStruct = (Struct) pattern;
+			Struct struct = (Struct) term;
+			if(patternStruct.getArity() > 0)	{
+				if(!patternStruct.getName().equals(struct.getName()) || patternStruct.getArity() != struct.getArity())
+					return false;
+				for(int i=0; i<patternStruct.getArity(); ++i)	{
+					if(!match(patternStruct.getArg(i), struct.getArg(i), bindings))
+						return false;
+				}
+				return true;
+			}
+		}
+		return FactIndex.key(pattern).equals(FactIndex.key(term));
+	}
+
+	private static String describeIds(Collection<String> ids)	{
+		StringBuilder builder = new StringBuilder(describeCount(ids.size()));
+		for(String id : ids)
+			builder.append("\n\t").append(id);
+		return builder.toString();
+	}
+
+	private static String describeFacts(Collection<Struct> facts)	{
+		StringBuilder builder = new StringBuilder(describeCount(facts.size()));
+		for(Struct fact : facts)
+			builder.append("\n\t").append(FactIndex.key(fact)).append('.');
+		return builder.toString();
+	}
+
+	private static String describeMatches(Map<Struct, Map<String, String>> matches)	{
+		StringBuilder builder = new StringBuilder(describeCount(matches.size()));
+		for(Map.Entry<Struct, Map<String, String>> match : matches.entrySet())	{
+			builder.append("\n\t").append(FactIndex.key(match.getKey())).append('.');
+			boolean isFirst = true;
+			for(Map.Entry<String, String> binding : match.getValue().entrySet())	{
+				builder.append(isFirst ? "\t\t" : ", ").append(binding.getKey()).append(" = ").append(binding.getValue());
+				isFirst = false;
+			}
+		}
+		return builder.toString();
+	}
+
+	private static String describeCount(int count)	{
+		return count == 1 ? "1 result:" : count + " results:";
+	}
+}
@@ -0,0 +1,13 @@
+package com.deepdownstudios.smsolver;
+
+/**
+ * Notified when a session's history changes.
+ */
+public interface HistoryListener {
+	/**
+	 * Called, on the thread that ran the command, after each command that changes the history.  Histories
+	 * are immutable so the listener may keep 'history' and use it from other threads.  Listeners must
+	 * return quickly.
+	 */
+	void historyChanged(History history);
+}
@@ -0,0 +1,752 @@
+package com.deepdownstudios.smsolver;
+
+import static com.deepdownstudios.smsolver.ScxmlPrologData.DEEP_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.EDGE_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.FINAL_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.INITIAL_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.NO_ACTION_ATOM;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.NO_COND_ATOM;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.NO_COND_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.NO_EVENTS_ATOM;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.NO_TARGET_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.PARALLEL_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.PARENT_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.PROP_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.SHALLOW_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.SIMPLE_ATOM;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.SIMPLE_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.STATE_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.TOP_STATE_ATOM;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.TOP_STATE_STR;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+import alice.tuprolog.Var;
+
+import com.deepdownstudios.smsolver.Command.SingleCommand;
+
+/**
+ * Runs set/change/delete/test commands with the semantics of engine.lp, in Java.  Each command is
+ * applied to the FactIndex of the current state: deletes (explicit, from change() and cascaded from
+ * deleted states) are removed, set/change facts are added, and the top_state parents and history
+ * default edges are derived.  Then the engine.lp integrity constraints are checked.  When the input
+ * index has already been validated, only the IDs that the command touched (plus their neighbours and,
+ * for the ancestor constraints, their descendants) are re-checked.
+ *
+ * Commands the Java engine cannot decide are given to the fallback solver (normally clingo).  Those are
+ * commands with variables, facts that are not state/2, parent/2, edge/5 or prop/3, and the one
+ * non-stratified case in engine.lp: a history state that has transitions, but not one to its parent's
+ * initial state, where engine.lp has two answer sets.
+ *
+ * If crossCheck is set then every command is also run by the fallback solver and the results are
+ * compared.
+ */
+public class JavaEngineSolver implements Solver {
+	static final Set<String> STATE_TYPES = new LinkedHashSet<String>(Arrays.asList(
+			SIMPLE_STR, PARALLEL_STR, SHALLOW_STR, DEEP_STR, FINAL_STR));
+	private static final String UNSATISFIABLE_MESSAGE = "The state machine commands were not satisfiable: ";
+
+	private final Solver fallback;
+	private final boolean crossCheck;
+
+	/**
+	 * Thrown when the Java engine cannot decide a command.  The fallback solver is used instead.
+	 */
+	private static class UnsupportedCommandException extends Exception	{
+		private static final long serialVersionUID = 7740129385562L;
+		public UnsupportedCommandException(String message)	{
+			super(message);
+		}
+	}
+
+	/**
+	 * @param fallback		Solver for the commands that the Java engine does not support.
+	 * @param crossCheck	If true, run every command with fallback as well and fail if the results differ.
+	 */
+	public JavaEngineSolver(Solver fallback, boolean crossCheck)	{
+		assert fallback != null;
+		this.fallback = fallback;
+		this.crossCheck = crossCheck;
+	}
+
+	public ScxmlFile run(State state, Command command) throws CommandException {
+		ScxmlFile input = state.getScxmlFile();
+		FactIndex result;
+		CommandException failure = null;
+		try	{
+			result = solve(input.getFactIndex(), command);
+		} catch (UnsupportedCommandException e) {
+			return fallback.run(state, command);
+		} catch (CommandException e) {
+			if(!crossCheck)
+				throw e;
+			result = null;
+			failure = e;
+		}
+
+		if(crossCheck)
+			crossCheck(state, command, result, failure);
+
+		ScxmlFile ret = new ScxmlFile(input.getFilename(), input.getStatemachineName(), result.getTerms());
+		ret.setFactIndex(result);
+		return ret;
+	}
+
+	private void crossCheck(State state, Command command, FactIndex result, CommandException failure) throws CommandException {
+		ScxmlFile expected;
+		try	{
+			expected = fallback.run(state, command);
+		} catch (CommandException e) {
+			if(failure != null)
+				throw failure;
+			throw new CommandException("BUG: Java engine succeeded but the fallback solver failed on:\n" +
+					command.toString() + e.getMessage(), e);
+		}
+		if(failure != null)
+			throw new CommandException("BUG: Java engine failed but the fallback solver succeeded on:\n" +
+					command.toString() + failure.getMessage(), failure);
+
+		Set<String> expectedKeys = new TreeSet<String>();
+		for(Term term : expected.getScxmlProlog())
+			expectedKeys.add(FactIndex.key(term));
+		Set<String> actualKeys = new TreeSet<String>();
+		for(Term term : result.getTerms())
+			actualKeys.add(FactIndex.key(term));
+		if(!expectedKeys.equals(actualKeys))	{
+			Set<String> missing = new TreeSet<String>(expectedKeys);
+			missing.removeAll(actualKeys);
+			Set<String> extra = new TreeSet<String>(actualKeys);
+			extra.removeAll(expectedKeys);
+			throw new CommandException("BUG: Java engine disagrees with the fallback solver on:\n" + command.toString() +
+					"Missing: " + missing + "\nUnexpected: " + extra);
+		}
+	}
+
+	/**
+	 * Apply command to input.
+	 * @return	The new index.  It is validated.
+	 * @throws CommandException				The command is not satisfiable
+	 * @throws UnsupportedCommandException	The Java engine cannot decide the command
+	 */
+	private FactIndex solve(FactIndex input, Command command) throws CommandException, UnsupportedCommandException {
+		if(!input.getOtherTerms().isEmpty())
+			throw new UnsupportedCommandException("Input has terms that are not state machine facts.");
+
+		Map<String, Struct> asserted = new LinkedHashMap<String, Struct>();	// set() and change() facts
+		Map<String, Struct> deleted = new LinkedHashMap<String, Struct>();		// delete() facts, explicit and derived
+		List<Struct> changes = new ArrayList<Struct>();						// change/1 facts
+		List<Struct> tests = new ArrayList<Struct>();
+
+		for(SingleCommand subcommand : command.getSubcommands())	{
+			List<Term> parameters = subcommand.getSolverParameters();
+			for(Term parameter : parameters)	{
+				if(!isGroundFact(parameter))
+					throw new UnsupportedCommandException("Not a ground fact: " + parameter);
+			}
+			switch(subcommand.getREPLCommand())	{
+			case SET:
+				requireArity(subcommand, 1);
+				put(asserted, (Struct) parameters.get(0));
+				break;
+			case DELETE:
+				requireArity(subcommand, 1);
+				put(deleted, (Struct) parameters.get(0));
+				break;
+			case TEST:
+				requireArity(subcommand, 1);
+				tests.add((Struct) parameters.get(0));
+				break;
+			case CHANGE:
+				if(parameters.size() == 1)	{
+					changes.add((Struct) parameters.get(0));
+					put(asserted, (Struct) parameters.get(0));
+				} else if(parameters.size() == 2)	{
+					changeFromTo((Struct) parameters.get(0), (Struct) parameters.get(1), asserted, deleted, changes);
+				} else
+					throw new UnsupportedCommandException("change/" + parameters.size());
+				break;
+			default:
+				throw new UnsupportedCommandException(subcommand.toString());
+			}
+		}
+
+		// change/1 replaces the old value of a property, the old type of a state and the old parent of a state.
+		for(Struct change : changes)	{
+			String name = change.getName();
+			if(PROP_STR.equals(name))	{
+				String property = FactIndex.key(change.getArg(1));
+				for(Struct prop : input.getProps(FactIndex.key(change.getArg(0))))	{
+					if(property.equals(FactIndex.key(prop.getArg(1))) && !FactIndex.key(prop).equals(FactIndex.key(change)))
+						put(deleted, prop);
+				}
+			} else if(STATE_STR.equals(name))	{
+				for(Struct old : input.getStateIdFacts(FactIndex.key(change.getArg(1))))	{
+					if(!FactIndex.key(old).equals(FactIndex.key(change)))
+						put(deleted, old);
+				}
+			} else if(PARENT_STR.equals(name))	{
+				String newParent = FactIndex.key(change.getArg(0));
+				for(Struct old : input.getParentFacts(FactIndex.key(change.getArg(1))))	{
+					String oldParent = FactIndex.key(old.getArg(0));
+					if(!isTopState(oldParent) && !oldParent.equals(newParent))
+						put(deleted, old);
+				}
+			}
+		}
+
+		FactIndex model = new FactIndex(input);
+		Set<String> touched = new LinkedHashSet<String>();
+		boolean incremental = input.isValidated();
+
+		// The top-level parent facts are recomputed below.  Explicit ones are given by 'asserted'.
+		Set<String> topLevelParentsToCheck = new LinkedHashSet<String>();
+		for(String key : deleted.keySet())
+			remove(model, key, touched);
+		for(Struct fact : asserted.values())	{
+			if(add(model, fact, touched) && isTopLevelParent(fact))
+				topLevelParentsToCheck.add(FactIndex.key(fact.getArg(1)));
+		}
+		add(model, new Struct(STATE_STR, new Term[] { SIMPLE_ATOM, TOP_STATE_ATOM }), touched);
+
+		// Deleted states take their edges and properties with them.  Changed states do not since they still exist.
+		Set<String> cascadeScope;
+		if(incremental)
+			cascadeScope = new LinkedHashSet<String>(touched);
+		else	{
+			cascadeScope = input.getEdgeEndpoints();
+			cascadeScope.addAll(input.getPropIds());
+		}
+		for(String id : cascadeScope)	{
+			if(model.isState(id) || NO_TARGET_STR.equals(id))
+				continue;
+			for(Struct edge : input.getOutgoing(id))
+				cascade(model, edge, asserted, deleted, touched);
+			for(Struct edge : input.getIncoming(id))
+				cascade(model, edge, asserted, deleted, touched);
+			for(Struct prop : input.getProps(id))
+				cascade(model, prop, asserted, deleted, touched);
+		}
+
+		// A fact that is both deleted and asserted is an inconsistent answer set.
+		for(String key : deleted.keySet())	{
+			if(model.contains(key))
+				throw unsatisfiable(key + " is both deleted and set.");
+		}
+
+		// parent(top_state, X) for every state X that has no other parent.
+		Set<String> parentScope;
+		if(incremental)	{
+			parentScope = new LinkedHashSet<String>(touched);
+			parentScope.addAll(topLevelParentsToCheck);
+		} else
+			parentScope = new LinkedHashSet<String>(model.getStateIds());
+		for(Struct fact : input.getFacts())	{
+			if(!incremental && isTopLevelParent(fact))
+				parentScope.add(FactIndex.key(fact.getArg(1)));
+		}
+		for(String id : parentScope)
+			deriveTopLevelParent(model, id, asserted, deleted, touched);
+
+		// History states default to a transition to their parent's initial state.
+		Set<String> historyScope;
+		if(incremental)	{
+			historyScope = new LinkedHashSet<String>();
+			for(String id : touched)	{
+				historyScope.add(id);
+				historyScope.addAll(model.getChildren(id));
+				for(String declarer : model.getInitialDeclarers(id))
+					historyScope.addAll(model.getChildren(declarer));
+			}
+		} else
+			historyScope = new LinkedHashSet<String>(model.getStateIds());
+		for(String id : historyScope)	{
+			if(isHistory(model, id))
+				deriveHistoryEdges(model, id, deleted, touched);
+		}
+
+		checkConstraints(model, incremental ? touched : null);
+		for(Struct test : tests)	{
+			if(!model.contains(test))
+				throw unsatisfiable("test(" + test + ") failed.");
+		}
+		model.setValidated();
+		return model;
+	}
+
+	/**
+	 * change/2.  For edges and properties, deletes 'from' and sets 'to'.  For states it is change/1 on 'to'.
+	 */
+	private static void changeFromTo(Struct from, Struct to, Map<String, Struct> asserted, Map<String, Struct> deleted,
+			List<Struct> changes) throws CommandException {
+		if(FactIndex.key(from).equals(FactIndex.key(to)))
+			throw unsatisfiable("change(X,X) is not allowed.");
+		String name = from.getName();
+		if(!name.equals(to.getName()))
+			return;		// engine.lp silently ignores changes between different kinds of fact
+		if(PARENT_STR.equals(name))	{
+			if(!FactIndex.key(from.getArg(1)).equals(FactIndex.key(to.getArg(1))))
+				throw unsatisfiable("change/2 can only change the parent of one state.");
+			put(asserted, to);
+			put(deleted, from);
+		} else if(PROP_STR.equals(name) || EDGE_STR.equals(name))	{
+			put(asserted, to);
+			put(deleted, from);
+		} else if(STATE_STR.equals(name))	{
+			if(!FactIndex.key(from.getArg(1)).equals(FactIndex.key(to.getArg(1))))
+				throw unsatisfiable("change/2 cannot change the ID of a state.");
+			changes.add(to);
+			put(asserted, to);
+		}
+	}
+
+	private static void cascade(FactIndex model, Struct fact, Map<String, Struct> asserted, Map<String, Struct> deleted,
+			Set<String> touched)	{
+		String key = FactIndex.key(fact);
+		deleted.put(key, fact);
+		if(!asserted.containsKey(key))
+			remove(model, key, touched);
+	}
+
+	private static void deriveTopLevelParent(FactIndex model, String id, Map<String, Struct> asserted,
+			Map<String, Struct> deleted, Set<String> touched) throws CommandException {
+		if(isTopState(id))
+			return;
+		boolean hasOtherParent = false;
+		Struct topLevelParent = null;
+		for(Struct parent : model.getParentFacts(id))	{
+			if(isTopState(FactIndex.key(parent.getArg(0))))
+				topLevelParent = parent;
+			else
+				hasOtherParent = true;
+		}
+
+		if(model.isState(id) && !hasOtherParent)	{
+			if(topLevelParent == null)	{
+				Struct fact = new Struct(PARENT_STR, new Term[] { TOP_STATE_ATOM, model.getStateIdFacts(id).get(0).getArg(1) });
+				if(deleted.containsKey(FactIndex.key(fact)))
+					throw unsatisfiable(fact + " is both deleted and set.");
+				add(model, fact, touched);
+			}
+		} else if(topLevelParent != null && !asserted.containsKey(FactIndex.key(topLevelParent)))	{
+			remove(model, FactIndex.key(topLevelParent), touched);
+		}
+	}
+
+	private static void deriveHistoryEdges(FactIndex model, String history, Map<String, Struct> deleted,
+			Set<String> touched) throws CommandException, UnsupportedCommandException {
+		Term historyTerm = model.getStateIdFacts(history).get(0).getArg(1);
+		List<Struct> forced = new ArrayList<Struct>();
+		List<Struct> undecided = new ArrayList<Struct>();
+		for(String parent : model.getParents(history))	{
+			for(Struct prop : model.getProps(parent))	{
+				if(!INITIAL_STR.equals(FactIndex.key(prop.getArg(1))))
+					continue;
+				Term start = prop.getArg(2);
+				Struct edge = new Struct(EDGE_STR, new Term[] { historyTerm, start, NO_COND_ATOM, NO_EVENTS_ATOM, NO_ACTION_ATOM });
+				// The default edge is derived unless -edge2(History, Start), which needs Start to be a state
+				// with no edge from History.  That in turn depends on the default edge not being derived.
+				if(!model.isState(FactIndex.key(start)) || hasEdge(model, history, FactIndex.key(start)))
+					forced.add(edge);
+				else
+					undecided.add(edge);
+			}
+		}
+		if(!undecided.isEmpty())	{
+			// With no other transition, the answer set without the default edge breaks the 'history
+			// states must have a transition' constraint.  Otherwise both answer sets may be valid.
+			if(undecided.size() > 1 || !model.getOutgoing(history).isEmpty() || !forced.isEmpty())
+				throw new UnsupportedCommandException("History state " + history + " has two possible default transitions.");
+			forced.add(undecided.get(0));
+		}
+		for(Struct edge : forced)	{
+			if(deleted.containsKey(FactIndex.key(edge)))
+				throw unsatisfiable(edge + " is both deleted and set.");
+			add(model, edge, touched);
+		}
+	}
+
+	private static boolean hasEdge(FactIndex model, String source, String target)	{
+		for(Struct edge : model.getOutgoing(source))	{
+			if(target.equals(FactIndex.key(edge.getArg(1))))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check the engine.lp integrity constraints.
+	 * @param touched	IDs in facts that were added or removed.  null means check everything.
+	 */
+	private static void checkConstraints(FactIndex model, Set<String> touched) throws CommandException {
+		Set<String> scope;
+		if(touched == null)	{
+			scope = new LinkedHashSet<String>(model.getStateIds());
+			for(Struct fact : model.getFacts())
+				scope.addAll(FactIndex.getIds(fact));
+		} else	{
+			// Constraints are checked at the IDs they mention so also check the neighbours of touched IDs.
+			scope = new LinkedHashSet<String>(touched);
+			for(String id : touched)	{
+				scope.addAll(model.getParents(id));
+				scope.addAll(model.getChildren(id));
+				for(Struct edge : model.getOutgoing(id))
+					scope.add(FactIndex.key(edge.getArg(1)));
+				for(Struct edge : model.getIncoming(id))
+					scope.add(FactIndex.key(edge.getArg(0)));
+			}
+		}
+
+		for(String id : scope)
+			checkLocalConstraints(model, id);
+		for(String id : scope)
+			checkNoCycle(model, id);
+
+		// Initial and deep history states (s0_ and s1_ in engine.lp) depend on the ancestors of the states
+		// so anything below a touched state may be affected.
+		Set<String> declarers = new LinkedHashSet<String>();
+		Set<String> affected = new LinkedHashSet<String>(scope);
+		if(touched != null)	{
+			for(String id : touched)
+				affected.addAll(model.getDescendants(id));
+		}
+		for(String id : affected)	{
+			if(touched == null || touched.contains(id))
+				declarers.add(id);
+			declarers.addAll(model.getInitialDeclarers(id));
+			if(model.hasStateType(id, DEEP_STR))
+				declarers.addAll(model.getParents(id));
+		}
+		Ancestors ancestors = new Ancestors(model);
+		for(String declarer : declarers)	{
+			checkDeclarer(model, ancestors, declarer, getInitialStates(model, declarer), "initial");
+			checkDeclarer(model, ancestors, declarer, getDeepHistoryStates(model, declarer), "deep history");
+		}
+	}
+
+	private static void checkLocalConstraints(FactIndex model, String id) throws CommandException {
+		boolean isState = model.isState(id);
+		for(String type : model.getStateTypes(id))	{
+			if(!STATE_TYPES.contains(type))
+				throw unsatisfiable("'" + type + "' is not a state type.");
+		}
+		if(isState && NO_TARGET_STR.equals(id))
+			throw unsatisfiable(NO_TARGET_STR + " is not a valid state ID.");
+
+		// Parents
+		Set<String> parents = model.getParents(id);
+		if(parents.size() > 1)
+			throw unsatisfiable(id + " has more than one parent: " + parents + ".");
+		if(!parents.isEmpty())	{
+			if(isTopState(id))
+				throw unsatisfiable("top_state cannot have a parent.");
+			if(!isState)
+				throw unsatisfiable("parent " + parents.iterator().next() + " of " + id + " is set but " + id + " is not a state.");
+		}
+		if(model.hasChildren(id))	{
+			if(!isState)
+				throw unsatisfiable(id + " has children but is not a state.");
+			if(isPseudoState(model, id))
+				throw unsatisfiable("Final and history states cannot have children: " + id + ".");
+			if(model.hasStateType(id, PARALLEL_STR))	{
+				for(String child : model.getChildren(id))	{
+					if(model.hasStateType(child, FINAL_STR))
+						throw unsatisfiable("Final state " + child + " cannot be a child of parallel state " + id + ".");
+				}
+			}
+		}
+
+		// Edges
+		if(!model.getOutgoing(id).isEmpty())	{
+			if(!isState)
+				throw unsatisfiable("There is a transition from " + id + " but it is not a state.");
+			if(model.hasStateType(id, FINAL_STR))
+				throw unsatisfiable("There is a transition from final state " + id + ".");
+		}
+		if(!model.getIncoming(id).isEmpty() && !isState && !NO_TARGET_STR.equals(id))
+			throw unsatisfiable("There is a transition to " + id + " but it is not a state.");
+
+		// Properties have one value
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for(Struct prop : model.getProps(id))	{
+			String property = FactIndex.key(prop.getArg(1));
+			String value = FactIndex.key(prop.getArg(2));
+			String old = values.put(property, value);
+			if(old != null && !old.equals(value))
+				throw unsatisfiable("Property " + property + " of " + id + " has two values: " + old + " and " + value + ".");
+		}
+
+		if(isHistory(model, id))
+			checkHistory(model, id, parents);
+	}
+
+	private static void checkHistory(FactIndex model, String id, Set<String> parents) throws CommandException {
+		List<Struct> edges = model.getOutgoing(id);
+		if(edges.isEmpty())
+			throw unsatisfiable("History state " + id + " must have a transition.");
+		if(parents.contains(TOP_STATE_STR))
+			throw unsatisfiable("History state " + id + " cannot be top-level.");
+		Set<String> targets = new LinkedHashSet<String>();
+		for(Struct edge : edges)	{
+			String target = FactIndex.key(edge.getArg(1));
+			if(NO_TARGET_STR.equals(target))
+				throw unsatisfiable("History state " + id + " has a transition with no target.");
+			if(!NO_COND_STR.equals(FactIndex.key(edge.getArg(2))))
+				throw unsatisfiable("History state " + id + " has a transition with a condition.");
+			targets.add(target);
+		}
+		if(model.hasStateType(id, SHALLOW_STR))	{
+			if(targets.size() > 1)
+				throw unsatisfiable("Shallow history state " + id + " must have exactly one target.");
+			for(String parent : parents)	{
+				for(String target : targets)	{
+					if(!model.getParents(target).contains(parent))
+						throw unsatisfiable("Shallow history state " + id + " must target a child of " + parent + ".");
+				}
+			}
+		}
+	}
+
+	private static void checkNoCycle(FactIndex model, String id) throws CommandException {
+		Set<String> seen = new LinkedHashSet<String>();
+		String current = id;
+		while(true)	{
+			Set<String> parents = model.getParents(current);
+			if(parents.isEmpty())
+				return;
+			current = parents.iterator().next();		// at most one parent was checked already
+			if(current.equals(id))
+				throw unsatisfiable(id + " is its own ancestor.");
+			if(!seen.add(current))
+				return;		// cycle above id.  It is reported for a state on the cycle.
+		}
+	}
+
+	private static List<String> getInitialStates(FactIndex model, String declarer)	{
+		List<String> ret = new ArrayList<String>();
+		for(Struct prop : model.getProps(declarer))	{
+			if(INITIAL_STR.equals(FactIndex.key(prop.getArg(1))))
+				ret.add(FactIndex.key(prop.getArg(2)));
+		}
+		return ret;
+	}
+
+	private static List<String> getDeepHistoryStates(FactIndex model, String declarer)	{
+		List<String> ret = new ArrayList<String>();
+		for(String child : model.getChildren(declarer))	{
+			if(model.hasStateType(child, DEEP_STR))
+				ret.add(child);
+		}
+		return ret;
+	}
+
+	/**
+	 * The s0_/s1_ constraints: every state must be a descendant of its declarer and, if there is more than
+	 * one, their maximal common ancestors must be parallel states.  This follows the s0_max_common_ancestor
+	 * rules in engine.lp literally, including pairs of a state with itself, so it is quadratic in the number
+	 * of initial (or deep history) states of one declarer.
+	 */
+	private static void checkDeclarer(FactIndex model, Ancestors ancestors, String declarer, List<String> states,
+			String kind) throws CommandException {
+		if(states.isEmpty())
+			return;
+		for(String state : states)	{
+			if(!ancestors.isStrictAncestor(declarer, state))
+				throw unsatisfiable(kind + " state " + state + " is not a descendant of " + declarer + ".");
+		}
+		Set<String> distinct = new LinkedHashSet<String>(states);
+		if(distinct.size() < 2)
+			return;
+
+		int count = states.size();
+		String[][] mca = new String[count][count];
+		for(int i=0; i<count; ++i)	{
+			for(int j=0; j<count; ++j)
+				mca[i][j] = ancestors.maxCommonAncestor(states.get(i), states.get(j));
+		}
+		for(int i=0; i<count; ++i)	{
+			for(int j=0; j<count; ++j)	{
+				String candidate = mca[i][j];
+				if(candidate == null || isDominated(ancestors, mca, states, candidate))
+					continue;
+				if(!model.hasStateType(candidate, PARALLEL_STR))
+					throw unsatisfiable("The " + kind + " states of " + declarer + " must be in parallel regions of " +
+							candidate + " but it is not a parallel state.");
+			}
+		}
+	}
+
+	/**
+	 * -sN_max_common_ancestor(Anc0, Declarer) in engine.lp
+	 */
+	private static boolean isDominated(Ancestors ancestors, String[][] mca, List<String> states, String candidate)	{
+		int count = states.size();
+		for(int i=0; i<count; ++i)	{
+			for(int j=0; j<count; ++j)	{
+				if(states.get(i).equals(states.get(j)) || !candidate.equals(mca[i][j]))
+					continue;
+				for(int k=0; k<count; ++k)	{
+					if(!states.get(i).equals(states.get(k)) && mca[i][k] != null &&
+							ancestors.isStrictAncestor(mca[i][k], candidate))
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The ancestor chains of the states of one model, for the s0_/s1_ checks.  Each state's place in the
+	 * hierarchy (its parent's node and its depth) is found once and shared by every state below it, so
+	 * ancestor tests and maximal common ancestors cost O(depth) without building ancestor lists.
+	 *
+	 * Limitation: the chains are built for each command from the model and are not kept in the FactIndex
+	 * between commands.  A command pays O(depth) for the first state it looks at in each branch.
+	 *
+	 * The model must not change while this is used.  Like FactIndex.getAncestors(), it follows the first
+	 * parent of each state and stops at a cycle.
+	 */
+	private static class Ancestors	{
+		private static class Node	{
+			final String id;
+			final Node parent;		///< null for a state with no parent
+			final int depth;
+
+			Node(String id, Node parent)	{
+				this.id = id;
+				this.parent = parent;
+				this.depth = parent == null ? 0 : parent.depth + 1;
+			}
+		}
+
+		private final FactIndex model;
+		private final Map<String, Node> nodes = new HashMap<String, Node>();
+
+		Ancestors(FactIndex model)	{
+			this.model = model;
+		}
+
+		/**
+		 * True if 'ancestor' is a strict ancestor of 'id'.
+		 */
+		boolean isStrictAncestor(String ancestor, String id)	{
+			Node node = getNode(ancestor);
+			Node current = getNode(id).parent;
+			while(current != null && current.depth > node.depth)
+				current = current.parent;
+			return current != null && current.id.equals(ancestor);
+		}
+
+		/**
+		 * The nearest common strict ancestor of 'id0' and 'id1', or null if they have none.
+		 */
+		String maxCommonAncestor(String id0, String id1)	{
+			Node node0 = getNode(id0).parent;
+			Node node1 = getNode(id1).parent;
+			while(node0 != null && node1 != null && node0 != node1)	{
+				if(node0.depth >= node1.depth)
+					node0 = node0.parent;
+				else
+					node1 = node1.parent;
+			}
+			return node0 != null && node0 == node1 ? node0.id : null;
+		}
+
+		private Node getNode(String id)	{
+			Node ret = nodes.get(id);
+			if(ret != null)
+				return ret;
+			// Walk up to the nearest state that has a node (or the root), then make the nodes on the way back down.
+			List<String> path = new ArrayList<String>();
+			Set<String> onPath = new HashSet<String>();
+			String current = id;
+			Node top = null;
+			while(true)	{
+				path.add(current);
+				onPath.add(current);
+				Set<String> parents = model.getParents(current);
+				if(parents.isEmpty())
+					break;
+				String parent = parents.iterator().next();
+				top = nodes.get(parent);
+				if(top != null || onPath.contains(parent))
+					break;		// Known, or a cycle: the chain stops here like getAncestors()
+				current = parent;
+			}
+			for(int i=path.size()-1; i>=0; --i)	{
+				top = new Node(path.get(i), top);
+				nodes.put(top.id, top);
+			}
+			return top;
+		}
+	}
+
+	private static boolean isHistory(FactIndex model, String id)	{
+		return model.hasStateType(id, SHALLOW_STR) || model.hasStateType(id, DEEP_STR);
+	}
+
+	private static boolean isPseudoState(FactIndex model, String id)	{
+		return model.hasStateType(id, FINAL_STR) || isHistory(model, id);
+	}
+
+	private static boolean isTopState(String id)	{
+		return TOP_STATE_STR.equals(id);
+	}
+
+	private static boolean isTopLevelParent(Struct fact)	{
+		return PARENT_STR.equals(fact.getName()) && isTopState(FactIndex.key(fact.getArg(0)));
+	}
+
+	private static boolean add(FactIndex model, Struct fact, Set<String> touched)	{
+		if(!model.add(fact))
+			return false;
+		touched.addAll(FactIndex.getIds(fact));
+		return true;
+	}
+
+	private static void remove(FactIndex model, String key, Set<String> touched)	{
+		Struct fact = model.remove(key);
+		if(fact != null)
+			touched.addAll(FactIndex.getIds(fact));
+	}
+
+	private static void put(Map<String, Struct> map, Struct fact)	{
+		map.put(FactIndex.key(fact), fact);
+	}
+
+	private static void requireArity(SingleCommand command, int arity) throws UnsupportedCommandException {
+		if(command.getParameters().size() != arity)
+			throw new UnsupportedCommandException(command.toString());
+	}
+
+	private static boolean isGroundFact(Term term)	{
+		return FactIndex.isFact(term) && isGround(term);
+	}
+
+	private static boolean isGround(Term term)	{
+		if(term instanceof Var)
+			return false;
+		if(term instanceof Struct)	{
+			Struct struct = (Struct) term;
+			for(int i=0; i<struct.getArity(); ++i)	{
+				if(!isGround(struct.getArg(i)))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private static CommandException unsatisfiable(String reason)	{
+		return new CommandException(UNSATISFIABLE_MESSAGE + reason);
+	}
+}
@@ -0,0 +1,90 @@
+package com.deepdownstudios.smsolver;
+
+import java.util.Arrays;
+import java.util.List;
+
+import alice.tuprolog.Term;
+
+/**
+ * In-process clingo, through the JNI glue in src/main/native/clingo_jni.c (see extra/build-native.sh).
+ * Input facts are handed to clingo as symbols, through the @smsolver_inputs() external function,
+ * and the answer set is converted straight back into tuProlog terms, so nothing is rendered as
+ * text and reparsed except the engine and the commands themselves.
+ *
+ * One NativeClingo is one session: it owns the native state (engine source, clingo arguments) for
+ * as long as it is open.  A new clingo control is grounded for each solve because engine.lp is not
+ * written as an incremental (#program/#external) program, so no ground rules can be carried over
+ * from one command to the next.
+ *
+ * If the native library is not on java.library.path then isAvailable() is false and ClingoSolver
+ * uses the clingo executable instead.
+ */
+public class NativeClingo {
+	private static final String LIBRARY_NAME = "smsolverclingo";
+	/** Set this system property to 'false' to always use the clingo executable. */
+	public static final String USE_NATIVE_PROPERTY = "smsolver.clingo.native";
+	/** The rule that turns the symbols supplied by the native code into input/1 facts. */
+	private static final String INPUT_RULE = "input(X) :- X = @smsolver_inputs().\n";
+	private static final boolean available = loadLibrary();
+
+	private long handle;		///< Native session.  0 once closed.
+
+	/**
+	 * @param engineCode	The LPSCR engine
+	 * @param arguments		clingo command line arguments (eg "--configuration=jumpy")
+	 * @throws CommandException		The library is not available or clingo rejected the arguments
+	 */
+	public NativeClingo(String engineCode, List<String> arguments) throws CommandException {
+		if(!available)
+			throw new CommandException("BUG: Native clingo library '" + LIBRARY_NAME + "' is not available.");
+		handle = createSession(engineCode + INPUT_RULE, arguments.toArray(new String[0]));
+	}
+
+	/**
+	 * True iff the native library was loaded and has not been disabled with USE_NATIVE_PROPERTY.
+	 */
+	public static boolean isAvailable()	{
+		return available;
+	}
+
+	/**
+	 * Solve one command.
+	 * @param inputs		Terms to give clingo as input(Term) facts
+	 * @param commands		The commands, as LP source
+	 * @return				The shown atoms of the first answer set, or null if there is none
+	 * @throws CommandException		clingo reported an error (eg a syntax error in the commands)
+	 */
+	public synchronized List<Term> solve(List<Term> inputs, String commands) throws CommandException {
+		if(handle == 0)
+			throw new CommandException("BUG: Native clingo session is closed.");
+		Term[] answer = solve(handle, inputs.toArray(new Term[0]), commands);
+		return answer == null ? null : Arrays.asList(answer);
+	}
+
+	/**
+	 * Release the native session.
+	 */
+	public synchronized void close()	{
+		if(handle != 0)	{
+			destroySession(handle);
+			handle = 0;
+		}
+	}
+
+	private static boolean loadLibrary()	{
+		if("false".equalsIgnoreCase(System.getProperty(USE_NATIVE_PROPERTY)))
+			return false;
+		try	{
+			System.loadLibrary(LIBRARY_NAME);
+			return true;
+		} catch (UnsatisfiedLinkError e) {
+			return false;		// Not installed.  Use the clingo executable.
+		} catch (SecurityException e) {
+			return false;
+		}
+	}
+
+	private static native long createSession(String program, String[] arguments) throws CommandException;
+	private static native Term[] solve(long handle, Term[] inputs, String commands) throws CommandException;
+	private static native void destroySession(long handle);
+}
@@ -0,0 +1,202 @@
+package com.deepdownstudios.smsolver;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.deepdownstudios.smbridge.Endpoint;
+
+/**
+ * Sends messages to an endpoint on a separate thread so a slow client does not hold up commands.
+ * A response is an acknowledgement (the result message) and, usually, a snapshot of the document.
+ * When a response with a snapshot is queued while an older snapshot is still unsent, the older one is
+ * sent as just its acknowledgement: the client only needs the latest document.  Responses are queued
+ * as built, so one response string can be shared by the queues of many endpoints.  Acknowledgements and
+ * other messages are always sent, in order.  When 'capacity' messages are waiting, senders wait.
+ *
+ * Messages still waiting when the queue is closed are given closeTimeoutMillis to be sent.  The rest are
+ * dropped.  If a send fails then the endpoint is closed and the queue drops everything from then on,
+ * as if it had been closed.
+ */
+public class OutboundQueue implements Endpoint {
+	private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+	private final Endpoint delegate;
+	private final int capacity;
+	private final Deque<Message> queue = new ArrayDeque<Message>();
+	private boolean closed = false;
+	private boolean sending = false;		///< True while the sender thread is sending a message
+	private final Thread sender;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();		///< Snapshots replaced by newer ones
+	private final AtomicLong dropped = new AtomicLong();		///< Messages not sent before closing or after a failed send
+
+	private static class Message	{
+		final String acknowledgement;
+		String response;		///< Whole response, or null if it has no snapshot (or it was replaced)
+
+		Message(String acknowledgement, String response)	{
+			this.acknowledgement = acknowledgement;
+			this.response = response;
+		}
+
+		String getText()	{
+			return response != null ? response : acknowledgement;
+		}
+	}
+
+	/**
+	 * @param delegate	The endpoint to send to.
+	 * @param capacity	Number of waiting messages at which senders wait.
+	 */
+	public OutboundQueue(Endpoint delegate, int capacity)	{
+		assert delegate != null && capacity > 0;
+		this.delegate = delegate;
+		this.capacity = capacity;
+		sender = new Thread(new Runnable() {
+			public void run() {
+				sendLoop();
+			}
+		}, "outbound-queue");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/**
+	 * Queue a message that is always sent.
+	 */
+	public void process(String message) {
+		enqueue(new Message(message, null));
+	}
+
+	/**
+	 * Queue a response with a document snapshot.  If an older snapshot has not been sent yet then only
+	 * its acknowledgement is sent.
+	 * @param acknowledgement	The result message
+	 * @param response			The whole response: the acknowledgement and the document
+	 */
+	public void processSnapshot(String acknowledgement, String response)	{
+		enqueue(new Message(acknowledgement, response));
+	}
+
+	public void setConnectedEndpoint(Endpoint endpoint) {
+		delegate.setConnectedEndpoint(endpoint);
+	}
+
+	/**
+	 * Send what is waiting (for up to CLOSE_TIMEOUT_MILLIS), then close the endpoint.
+	 */
+	public void close() {
+		synchronized(queue)	{
+			if(closed)
+				return;
+			long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+			long remaining;
+			while((!queue.isEmpty() || sending) && (remaining = deadline - System.currentTimeMillis()) > 0)	{
+				try {
+					queue.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			closed = true;
+			dropped.addAndGet(queue.size());
+			queue.clear();
+			queue.notifyAll();
+		}
+		sender.interrupt();
+		delegate.close();
+	}
+
+	public long getSentCount()	{
+		return sent.get();
+	}
+
+	/**
+	 * Number of snapshots that were not sent because a newer one replaced them.
+	 */
+	public long getCoalescedCount()	{
+		return coalesced.get();
+	}
+
+	/**
+	 * Number of messages that were not sent before the queue was closed, or because a send failed.
+	 */
+	public long getDroppedCount()	{
+		return dropped.get();
+	}
+
+	private void enqueue(Message message)	{
+		synchronized(queue)	{
+			if(closed)	{
+				dropped.incrementAndGet();
+				return;
+			}
+			if(message.response != null)	{
+				for(Message waiting : queue)	{
+					if(waiting.response != null)	{
+						waiting.response = null;
+						coalesced.incrementAndGet();
+					}
+				}
+			}
+			while(queue.size() >= capacity && !closed)	{
+				try {
+					queue.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;		// Queue it anyway rather than lose an acknowledgement
+				}
+			}
+			queue.addLast(message);
+			queue.notifyAll();
+		}
+	}
+
+	private void sendLoop()	{
+		while(true)	{
+			Message message;
+			synchronized(queue)	{
+				while(queue.isEmpty() && !closed)	{
+					try {
+						queue.wait();
+					} catch (InterruptedException e) {
+						// Closed.  Checked below.
+					}
+				}
+				if(queue.isEmpty())
+					return;		// closed
+				message = queue.pollFirst();		// Out of the queue, so its snapshot is no longer replaced
+				sending = true;
+			}
+			try	{
+				delegate.process(message.getText());
+			} catch (RuntimeException e) {
+				System.err.println("WARNING: Could not send message to endpoint.  Nothing more will be sent to it: " + e);
+				fail();
+				return;
+			}
+			synchronized(queue)	{
+				sending = false;
+				sent.incrementAndGet();
+				queue.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Stop sending after a failed send.  The failed message and the waiting ones are dropped.
+	 */
+	private void fail()	{
+		synchronized(queue)	{
+			sending = false;
+			closed = true;
+			dropped.addAndGet(queue.size() + 1);
+			queue.clear();
+			queue.notifyAll();
+		}
+		delegate.close();
+	}
+}
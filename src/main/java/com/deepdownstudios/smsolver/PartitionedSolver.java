@@ -0,0 +1,232 @@
+package com.deepdownstudios.smsolver;
+
+import static com.deepdownstudios.smsolver.ScxmlPrologData.NO_TARGET_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.PARENT_STR;
+import static com.deepdownstudios.smsolver.ScxmlPrologData.TOP_STATE_STR;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+
+import com.deepdownstudios.smsolver.Command.SingleCommand;
+
+/**
+ * Solves only the parts of a chart that a command touches.  The states of a chart fall into components
+ * that are connected by parent/2, edge/5 and prop/3 facts (a parent/2 fact from top_state does not
+ * connect anything, since every top-level state has one).  engine.lp never relates states in different
+ * components, so each component that the command's facts mention is solved by the delegate with just
+ * that component's facts and commands.  The facts of the other components are passed through unchanged.
+ * When the command touches more than one component, the components are solved in parallel.
+ *
+ * Commands with variables, or facts that are not state/2, parent/2, edge/5 or prop/3, could touch
+ * anything.  They (and documents with terms that are not indexed facts) are given to the delegate whole.
+ */
+public class PartitionedSolver implements Solver {
+	private final Solver delegate;
+
+	private static class ExecutorHolder	{
+		static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "partition-solver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Union-find over state IDs, with union by size and path compression.  find() is iterative so long
+	 * chains of states cannot overflow the stack.
+	 */
+	static class Components	{
+		private final Map<String, String> parents = new HashMap<String, String>();
+		private final Map<String, Integer> sizes = new HashMap<String, Integer>();		///< Only for roots
+
+		String find(String id)	{
+			String root = parents.get(id);
+			if(root == null)	{
+				parents.put(id, id);
+				sizes.put(id, 1);
+				return id;
+			}
+			String current = id;
+			while(!root.equals(current))	{
+				current = root;
+				root = parents.get(current);
+			}
+			// Path compression: point everything on the way at the root.
+			current = id;
+			while(!current.equals(root))	{
+				String next = parents.get(current);
+				parents.put(current, root);
+				current = next;
+			}
+			return root;
+		}
+
+		void union(List<String> ids)	{
+			if(ids.isEmpty())
+				return;
+			String root = find(ids.get(0));
+			for(int i=1; i<ids.size(); ++i)	{
+				String other = find(ids.get(i));
+				if(other.equals(root))
+					continue;
+				int rootSize = sizes.get(root);
+				int otherSize = sizes.get(other);
+				if(rootSize < otherSize)	{
+					String swap = root;
+					root = other;
+					other = swap;
+				}
+				parents.put(other, root);
+				sizes.put(root, rootSize + otherSize);
+				sizes.remove(other);
+			}
+		}
+	}
+
+	public PartitionedSolver(Solver delegate)	{
+		assert delegate != null;
+		this.delegate = delegate;
+	}
+
+	public ScxmlFile run(State state, Command command) throws CommandException {
+		final ScxmlFile input = state.getScxmlFile();
+		FactIndex factIndex = input.getFactIndex();
+		if(!factIndex.getOtherTerms().isEmpty())
+			return delegate.run(state, command);
+
+		// Connect the IDs of the chart and of the commands.
+		Components components = new Components();
+		for(Struct fact : factIndex.getFacts())
+			components.union(getLinkedIds(fact));
+		List<List<String>> commandIds = new ArrayList<List<String>>();
+		for(SingleCommand subcommand : command.getSubcommands())	{
+			List<String> ids = new ArrayList<String>();
+			for(Term parameter : subcommand.getParameters())	{
+				parameter = parameter.getTerm();
+				if(!FactIndex.isFact(parameter) || !parameter.isGround())
+					return delegate.run(state, command);
+				ids.addAll(getLinkedIds((Struct) parameter));
+			}
+			if(ids.isEmpty())
+				return delegate.run(state, command);
+			components.union(ids);
+			commandIds.add(ids);
+		}
+
+		// Group the commands and the facts by component.
+		Map<String, List<SingleCommand>> touchedCommands = new LinkedHashMap<String, List<SingleCommand>>();
+		for(int i=0; i<commandIds.size(); ++i)	{
+			String root = components.find(commandIds.get(i).get(0));
+			List<SingleCommand> commands = touchedCommands.get(root);
+			if(commands == null)	{
+				commands = new ArrayList<SingleCommand>();
+				touchedCommands.put(root, commands);
+			}
+			commands.add(command.getSubcommands().get(i));
+		}
+		Map<String, List<Term>> touchedFacts = new HashMap<String, List<Term>>();
+		List<Term> untouched = new ArrayList<Term>();
+		for(Struct fact : factIndex.getFacts())	{
+			List<String> ids = getLinkedIds(fact);
+			String root = ids.isEmpty() ? null : components.find(ids.get(0));
+			if(root == null || !touchedCommands.containsKey(root))	{
+				untouched.add(fact);
+				continue;
+			}
+			List<Term> facts = touchedFacts.get(root);
+			if(facts == null)	{
+				facts = new ArrayList<Term>();
+				touchedFacts.put(root, facts);
+			}
+			facts.add(fact);
+		}
+		if(untouched.isEmpty() && touchedCommands.size() == 1)
+			return delegate.run(state, command);		// Nothing to gain
+
+		// Solve the touched components.
+		List<Term> resultTerms = new ArrayList<Term>(untouched);
+		Set<String> resultKeys = new HashSet<String>();
+		for(Term term : untouched)
+			resultKeys.add(FactIndex.key(term));
+		if(touchedCommands.size() == 1)	{
+			String root = touchedCommands.keySet().iterator().next();
+			addNew(resultTerms, resultKeys, solve(input, touchedFacts.get(root), touchedCommands.get(root)));
+		} else	{
+			List<Future<List<Term>>> futures = new ArrayList<Future<List<Term>>>();
+			for(final String root : touchedCommands.keySet())	{
+				final List<Term> facts = touchedFacts.get(root);
+				final List<SingleCommand> commands = touchedCommands.get(root);
+				futures.add(ExecutorHolder.executor.submit(new Callable<List<Term>>() {
+					public List<Term> call() throws Exception {
+						return solve(input, facts, commands);
+					}
+				}));
+			}
+			try	{
+				for(Future<List<Term>> future : futures)
+					addNew(resultTerms, resultKeys, getResult(future));
+			} finally {
+				for(Future<List<Term>> future : futures)
+					future.cancel(true);		// Only has an effect if another component failed
+			}
+		}
+		return new ScxmlFile(input.getFilename(), input.getStatemachineName(), resultTerms);
+	}
+
+	private List<Term> solve(ScxmlFile input, List<Term> facts, List<SingleCommand> commands) throws CommandException {
+		ScxmlFile part = new ScxmlFile(input.getFilename(), input.getStatemachineName(),
+				facts == null ? new ArrayList<Term>() : facts);
+		return delegate.run(new State(Command.NOOP, "", part), new Command(commands)).getScxmlProlog();
+	}
+
+	/**
+	 * Add the facts of a solved component that are not in the result yet.  Each component is solved as a
+	 * chart of its own, so facts that every chart has, like state(simple, top_state), come back from all of them.
+	 */
+	private static void addNew(List<Term> resultTerms, Set<String> resultKeys, List<Term> terms)	{
+		for(Term term : terms)	{
+			if(resultKeys.add(FactIndex.key(term)))
+				resultTerms.add(term);
+		}
+	}
+
+	private static List<Term> getResult(Future<List<Term>> future) throws CommandException {
+		try	{
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CommandException("Interrupted while solving.", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof CommandException)
+				throw (CommandException) e.getCause();
+			throw new CommandException("BUG: partition solve failed: " + e.getCause(), e);
+		}
+	}
+
+	/**
+	 * The IDs that 'fact' puts in one component.
+	 */
+	private static List<String> getLinkedIds(Struct fact)	{
+		List<String> ret = new ArrayList<String>(FactIndex.getIds(fact));
+		if(PARENT_STR.equals(fact.getName()))
+			ret.remove(TOP_STATE_STR);		// Every top-level state has top_state as its parent
+		ret.remove(NO_TARGET_STR);			// Targetless transitions do not connect their sources
+		return ret;
+	}
+}
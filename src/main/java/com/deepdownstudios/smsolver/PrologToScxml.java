@@ -1,8 +1,11 @@
 package com.deepdownstudios.smsolver;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.bind.JAXBElement;
 
@@ -20,6 +23,7 @@ import alice.tuprolog.Var;
 import com.deepdownstudios.scxml.jaxb.HistoryTypeDatatype;
 import com.deepdownstudios.scxml.jaxb.ObjectFactory;
 import com.deepdownstudios.scxml.jaxb.ScxmlAssignType;
+import com.deepdownstudios.scxml.jaxb.ScxmlElseType;
 import com.deepdownstudios.scxml.jaxb.ScxmlElseifType;
 import com.deepdownstudios.scxml.jaxb.ScxmlFinalType;
 import com.deepdownstudios.scxml.jaxb.ScxmlForeachType;
@@ -34,16 +38,57 @@ import com.deepdownstudios.scxml.jaxb.ScxmlScriptType;
 import com.deepdownstudios.scxml.jaxb.ScxmlScxmlType;
 import com.deepdownstudios.scxml.jaxb.ScxmlStateType;
 import com.deepdownstudios.scxml.jaxb.ScxmlTransitionType;
+import com.deepdownstudios.smsolver.ConversionPool.ConversionTask;
 
 public class PrologToScxml {
-	// Map of all states (except TOP_STATE).
-	private HashMap<String, Object> stateNameToState = new HashMap<String, Object>();
-	private List<Runnable> binders = new ArrayList<Runnable>();
+	private static final ThreadLocal<EngineStack> engines = new ThreadLocal<EngineStack>() {
+		protected EngineStack initialValue() {
+			return new EngineStack();
+		}
+	};
+	// Map of all states (except TOP_STATE).  Subtrees may be built by several threads (see addSubstates).
+	private Map<String, Object> stateNameToState = new ConcurrentHashMap<String, Object>();
+	private List<Runnable> binders = Collections.synchronizedList(new ArrayList<Runnable>());
 	private ObjectFactory objectFactory = new ObjectFactory();
 	private Theory theory;
+	// The child state IDs of each state, from the parent/2 facts.  Used to size subtrees.
+	private Map<String, List<String>> children = new HashMap<String, List<String>>();
+
+	/**
+	 * Prolog engines are slow to create (they load their libraries), so each thread keeps the ones it
+	 * created.  An engine is busy until every solution of its query has been processed, and processing a
+	 * solution runs more queries, so a thread's engines are a stack with one engine per nesting depth.
+	 */
+	private static class EngineStack	{
+		private final List<Prolog> engines = new ArrayList<Prolog>();
+		private final List<Theory> theories = new ArrayList<Theory>();		///< The theory each engine has
+		private int depth = 0;
+
+		/**
+		 * An engine with 'theory' that no unfinished query uses.  Call release() when done with it.
+		 */
+		Prolog acquire(Theory theory) throws InvalidTheoryException	{
+			if(depth == engines.size())	{
+				engines.add(new Prolog());
+				theories.add(null);
+			}
+			Prolog ret = engines.get(depth);
+			if(theories.get(depth) != theory)	{
+				theories.set(depth, null);
+				ret.setTheory(theory);
+				theories.set(depth, theory);
+			}
+			++depth;
+			return ret;
+		}
+
+		void release()	{
+			assert depth > 0;
+			--depth;
+		}
+	}
 
 	public ScxmlScxmlType prologToScxml(String name, List<Term> terms) throws CommandException {
-		final Prolog prolog = new Prolog();
 		try {
 			// I'm pretty certain from the TUProlog docs (Sec 7.2.3.2) that the theory
 			// requires facts to be written as clauses (in other words, top-level pred is ':-')
@@ -51,9 +96,9 @@ public class PrologToScxml {
 			List<Term> clauses = new ArrayList<Term>();
 			for(Term term : terms)	{
 				clauses.add(new Struct(CLAUSE_FUNCTOR_STR, term, TRUE_ATOM));
+				addChild(term);
 			}
 			theory = new Theory(new Struct(clauses.toArray(new Term[0])));
-			prolog.setTheory(theory);
 		} catch (InvalidTheoryException e) {
 			throw new CommandException("BUG: Could not make Prolog theory from the Prolog terms.", e);
 		}
@@ -62,7 +107,7 @@ public class PrologToScxml {
 		scxmlType.setName(name);
 		
 		// initial states.  TODO: <initial> child element is more versatile than the attribute.
-		processQuerySolutions(prolog, stateInitialQuery(TOP_STATE_ATOM), X_STR, new ValueProcessor()	{
+		processQuerySolutions(stateInitialQuery(TOP_STATE_ATOM), X_STR, new ValueProcessor()	{
 			public void process(final Term stateName) throws CommandException {
 				binders.add(new Runnable() {
 					public void run() {
@@ -73,8 +118,9 @@ public class PrologToScxml {
 		});
 		
 		// onEntry property
-		processQuerySolutions(prolog, onEntryQuery(TOP_STATE_ATOM), X_STR, new ValueProcessor()	{
+		processQuerySolutions(onEntryQuery(TOP_STATE_ATOM), X_STR, new ValueProcessor()	{
 			public void process(Term onEntryContent) throws CommandException {
+				onEntryContent = ExecutableContentStore.resolve(onEntryContent);
 				// Valid onEntryContent for TOP_STATE has to be <script>
 				if(!(onEntryContent instanceof Struct))	{
 					throw new CommandException("BUG: Invalid format for top-state <script>: " + onEntryContent.toString());
@@ -84,20 +130,30 @@ public class PrologToScxml {
 				if(!functor.equals(SCRIPT_STR))	{
 					throw new CommandException("");
 				}
-				parseExecutableContent(scxmlType.getScxmlScxmlMix(), prolog, onEntryContent);
+				parseExecutableContent(scxmlType.getScxmlScxmlMix(), onEntryContent);
 			}
 		});
 
-		// substates
-		processQuerySolutions(prolog, stateChildrenQuery(TOP_STATE_ATOM), X_STR, new ValueProcessor()	{
-			public void process(Term stateName) throws CommandException {
-				JAXBElement<?> newState = state(prolog, stateName);
-				// top-level states have some restrictions that answer set solutions must obey.
-				// double check some of them here for redundancy.
-				assert !(newState.getValue() instanceof ScxmlHistoryType);
-				scxmlType.getScxmlScxmlMix().add(newState);
-			}
-		});
+		// substates.  Small documents (fewer than FORK_THRESHOLD states below top_state) are built on this
+		// thread.  Large ones are split across the ConversionPool.
+		final List<Object> substates = new ArrayList<Object>();
+		if(countStates(TOP_STATE_STR, ConversionPool.FORK_THRESHOLD + 1) <= ConversionPool.FORK_THRESHOLD)	{
+			addSubstates(TOP_STATE_ATOM, substates);
+		} else	{
+			ConversionPool.invoke(new ConversionTask<Void>() {
+				private static final long serialVersionUID = 1L;
+				protected Void convert() throws CommandException {
+					addSubstates(TOP_STATE_ATOM, substates);
+					return null;
+				}
+			});
+		}
+		for(Object newState : substates)	{
+			// top-level states have some restrictions that answer set solutions must obey.
+			// double check some of them here for redundancy.
+			assert !(((JAXBElement<?>) newState).getValue() instanceof ScxmlHistoryType);
+			scxmlType.getScxmlScxmlMix().add(newState);
+		}
 		
 		// Bind cross-references (ie IDREFS)
 		for(Runnable binder : binders)
@@ -106,8 +162,78 @@ public class PrologToScxml {
 		return scxmlType;
 	}
 
-	protected JAXBElement<?> state(Prolog prolog, Term stateName) throws CommandException {
-		String stateTypeStr = processQuerySolutions(prolog, stateTypeQuery(stateName), X_STR, new ResultValueProcessor<String>() {
+	/**
+	 * Build the child states of parentName and add them to 'mix' in query order.  Subtrees with at least
+	 * FORK_THRESHOLD states are built as separate ConversionPool tasks when running in the pool.  Each
+	 * thread queries with its own engines (see EngineStack).
+	 */
+	private void addSubstates(Term parentName, List<Object> mix) throws CommandException {
+		final List<Object> substates = new ArrayList<Object>();		// JAXBElements and forked StateTasks
+		processQuerySolutions(stateChildrenQuery(parentName), X_STR, new ValueProcessor()	{
+			public void process(Term substateName) throws CommandException {
+				if(ConversionPool.canFork() && 
+						countStates(substateName.toUnquotedString(), ConversionPool.FORK_THRESHOLD) >= ConversionPool.FORK_THRESHOLD)	{
+					StateTask task = new StateTask(substateName);
+					task.fork();
+					substates.add(task);
+				} else
+					substates.add(state(substateName));
+			}
+		});
+		for(Object substate : substates)	{
+			if(substate instanceof StateTask)
+				mix.add(ConversionPool.join((StateTask) substate));
+			else
+				mix.add(substate);
+		}
+	}
+
+	/**
+	 * Builds one state and its subtree.
+	 */
+	private class StateTask extends ConversionTask<JAXBElement<?>>	{
+		private static final long serialVersionUID = 1L;
+		private final Term stateName;
+
+		StateTask(Term stateName)	{
+			this.stateName = stateName;
+		}
+
+		protected JAXBElement<?> convert() throws CommandException {
+			return state(stateName);
+		}
+	}
+
+	private void addChild(Term term)	{
+		if(!(term instanceof Struct) || !PARENT_STR.equals(((Struct) term).getName()) || ((Struct) term).getArity() != 2)
+			return;
+		String parent = ((Struct) term).getArg(0).toUnquotedString();
+		List<String> list = children.get(parent);
+		if(list == null)	{
+			list = new ArrayList<String>();
+			children.put(parent, list);
+		}
+		list.add(((Struct) term).getArg(1).toUnquotedString());
+	}
+
+	/**
+	 * The number of states in the subtree of 'stateName', counting it, or 'limit' if it is more.
+	 */
+	private int countStates(String stateName, int limit)	{
+		int count = 1;
+		List<String> list = children.get(stateName);
+		if(list != null)	{
+			for(String child : list)	{
+				if(count >= limit)
+					break;
+				count += countStates(child, limit - count);
+			}
+		}
+		return Math.min(count, limit);
+	}
+
+	protected JAXBElement<?> state(Term stateName) throws CommandException {
+		String stateTypeStr = processQuerySolutions(stateTypeQuery(stateName), X_STR, new ResultValueProcessor<String>() {
 			String type = null;
 			public void process(Term stateType) throws CommandException {
 				assert type == null;		// only one match for state type should ever be found
@@ -119,45 +245,40 @@ public class PrologToScxml {
 		}).getResult();
 		
 		if(SIMPLE_STR.equals(stateTypeStr))	{
-			return objectFactory.createState(simple(prolog, stateName));
+			return objectFactory.createState(simple(stateName));
 		} else if(PARALLEL_STR.equals(stateTypeStr))	{
-			return objectFactory.createParallel(parallel(prolog, stateName));
+			return objectFactory.createParallel(parallel(stateName));
 		} else if(DEEP_STR.equals(stateTypeStr))	{
-			return objectFactory.createHistory(deep(prolog, stateName));
+			return objectFactory.createHistory(deep(stateName));
 		} else if(SHALLOW_STR.equals(stateTypeStr))	{
-			return objectFactory.createHistory(shallow(prolog, stateName));
+			return objectFactory.createHistory(shallow(stateName));
 		} else if(FINAL_STR.equals(stateTypeStr))	{
-			return objectFactory.createFinal(finalState(prolog, stateName));
+			return objectFactory.createFinal(finalState(stateName));
 		}
 		throw new CommandException("BUG: Invalid state type given for state: " + stateName + " : " + stateTypeStr);
 	}
 	
-	private ScxmlStateType simple(final Prolog prolog, Term stateName) throws CommandException {
+	private ScxmlStateType simple(Term stateName) throws CommandException {
 		final ScxmlStateType newState = new ScxmlStateType();
 		newState.setId(stateName.toUnquotedString());
 		
 		// substates
-		processQuerySolutions(prolog, stateChildrenQuery(stateName), X_STR, new ValueProcessor()	{
-			public void process(Term substateName) throws CommandException {
-				JAXBElement<?> substate = state(prolog, substateName);
-				newState.getScxmlStateMix().add(substate);
-			}
-		});
+		addSubstates(stateName, newState.getScxmlStateMix());
 			
 		// transitions
-		processMultivariateQuerySolutions(prolog, stateTransitionsQuery(stateName), 
+		processMultivariateQuerySolutions(stateTransitionsQuery(stateName), 
 				new String[] { X1_STR /* target state */, X2_STR /* condition */, 
 								X3_STR /* events */, X4_STR /* action */ }, 
 				new MultiValueProcessor()	{
 					public void process(List<Term> edgeParams) throws CommandException {
 						ScxmlTransitionType transition = 
-								transition(prolog, edgeParams.get(0), edgeParams.get(1), edgeParams.get(2), edgeParams.get(3));
+								transition(edgeParams.get(0), edgeParams.get(1), edgeParams.get(2), edgeParams.get(3));
 						newState.getScxmlStateMix().add(objectFactory.createTransition(transition));
 					}
 				});
 			
 		// initial states.  TODO: <initial> child element is more versatile than the attribute.
-		processQuerySolutions(prolog, stateInitialQuery(stateName), X_STR, new ValueProcessor()	{
+		processQuerySolutions(stateInitialQuery(stateName), X_STR, new ValueProcessor()	{
 			public void process(final Term initialStateName) throws CommandException {
 				binders.add(new Runnable() {
 					public void run() {
@@ -168,20 +289,20 @@ public class PrologToScxml {
 		});
 		
 		// onEntry property
-		processQuerySolutions(prolog, onEntryQuery(stateName), X_STR, new ValueProcessor()	{
+		processQuerySolutions(onEntryQuery(stateName), X_STR, new ValueProcessor()	{
 			public void process(Term onEntryContent) throws CommandException {
 				ScxmlOnentryType onEntry = new ScxmlOnentryType();
 				newState.getScxmlStateMix().add(onEntry);
-				parseExecutableContent(onEntry.getScxmlCoreExecutablecontent(), prolog, onEntryContent);
+				parseExecutableContent(onEntry.getScxmlCoreExecutablecontent(), onEntryContent);
 			}
 		});
 			
 		// onExit property
-		processQuerySolutions(prolog, onExitQuery(stateName), X_STR, new ValueProcessor()	{
+		processQuerySolutions(onExitQuery(stateName), X_STR, new ValueProcessor()	{
 			public void process(Term onExitContent) throws CommandException {
 				ScxmlOnexitType onExit = new ScxmlOnexitType();
 				newState.getScxmlStateMix().add(onExit);
-				parseExecutableContent(onExit.getScxmlCoreExecutablecontent(), prolog, onExitContent);
+				parseExecutableContent(onExit.getScxmlCoreExecutablecontent(), onExitContent);
 			}
 		});
 
@@ -189,45 +310,40 @@ public class PrologToScxml {
 		return newState; 
 	}
 
-	private ScxmlParallelType parallel(final Prolog prolog, Term stateName) throws CommandException {
+	private ScxmlParallelType parallel(Term stateName) throws CommandException {
 		final ScxmlParallelType newState = new ScxmlParallelType();
 		newState.setId(stateName.toUnquotedString());
 		
 		// substates
-		processQuerySolutions(prolog, stateChildrenQuery(stateName), X_STR, new ValueProcessor()	{
-			public void process(Term substateName) throws CommandException {
-				JAXBElement<?> substate = state(prolog, substateName);
-				newState.getScxmlParallelMix().add(substate);
-			}
-		});
+		addSubstates(stateName, newState.getScxmlParallelMix());
 			
 		// transitions
-		processMultivariateQuerySolutions(prolog, stateTransitionsQuery(stateName), 
+		processMultivariateQuerySolutions(stateTransitionsQuery(stateName), 
 				new String[] { X1_STR /* target state */, X2_STR /* condition */, 
 								X3_STR /* events */, X4_STR /* action */ }, 
 				new MultiValueProcessor()	{
 					public void process(List<Term> edgeParams) throws CommandException {
 						ScxmlTransitionType transition = 
-								transition(prolog, edgeParams.get(0), edgeParams.get(1), edgeParams.get(2), edgeParams.get(3));
+								transition(edgeParams.get(0), edgeParams.get(1), edgeParams.get(2), edgeParams.get(3));
 						newState.getScxmlParallelMix().add(objectFactory.createTransition(transition));
 					}
 				});
 
 		// onEntry property
-		processQuerySolutions(prolog, onEntryQuery(stateName), X_STR, new ValueProcessor()	{
+		processQuerySolutions(onEntryQuery(stateName), X_STR, new ValueProcessor()	{
 			public void process(Term onEntryContent) throws CommandException {
 				ScxmlOnentryType onEntry = new ScxmlOnentryType();
 				newState.getScxmlParallelMix().add(onEntry);
-				parseExecutableContent(onEntry.getScxmlCoreExecutablecontent(), prolog, onEntryContent);
+				parseExecutableContent(onEntry.getScxmlCoreExecutablecontent(), onEntryContent);
 			}
 		});
 			
 		// onExit property
-		processQuerySolutions(prolog, onExitQuery(stateName), X_STR, new ValueProcessor()	{
+		processQuerySolutions(onExitQuery(stateName), X_STR, new ValueProcessor()	{
 			public void process(Term onExitContent) throws CommandException {
 				ScxmlOnexitType onExit = new ScxmlOnexitType();
 				newState.getScxmlParallelMix().add(onExit);
-				parseExecutableContent(onExit.getScxmlCoreExecutablecontent(), prolog, onExitContent);
+				parseExecutableContent(onExit.getScxmlCoreExecutablecontent(), onExitContent);
 			}
 		});
 		
@@ -235,24 +351,24 @@ public class PrologToScxml {
 		return newState; 
 	}
 
-	private ScxmlHistoryType deep(final Prolog prolog, Term stateName) throws CommandException {
-		ScxmlHistoryType newState = historyHelper(prolog, stateName);
+	private ScxmlHistoryType deep(Term stateName) throws CommandException {
+		ScxmlHistoryType newState = historyHelper(stateName);
 		newState.setType(HistoryTypeDatatype.DEEP);
 		return newState;
 	}
 
-	private ScxmlHistoryType shallow(final Prolog prolog, Term stateName) throws CommandException {
-		ScxmlHistoryType newState = historyHelper(prolog, stateName);
+	private ScxmlHistoryType shallow(Term stateName) throws CommandException {
+		ScxmlHistoryType newState = historyHelper(stateName);
 		newState.setType(HistoryTypeDatatype.SHALLOW);
 		return newState;
 	}
 	
-	private ScxmlHistoryType historyHelper(final Prolog prolog, Term stateName) throws CommandException {
+	private ScxmlHistoryType historyHelper(Term stateName) throws CommandException {
 		final ScxmlHistoryType newState = new ScxmlHistoryType();
 		newState.setId(stateName.toUnquotedString());
 		
 		// transitions
-		processMultivariateQuerySolutions(prolog, stateTransitionsQuery(stateName), 
+		processMultivariateQuerySolutions(stateTransitionsQuery(stateName), 
 				new String[] { X1_STR /* target state */, X2_STR /* condition */, 
 								X3_STR /* events */, X4_STR /* action */ }, 
 				new MultiValueProcessor()	{
@@ -261,7 +377,7 @@ public class PrologToScxml {
 						assert edgeParams.get(1).equals(NO_COND_ATOM);		
 						assert edgeParams.get(2).equals(NO_EVENTS_ATOM);
 						ScxmlTransitionType transition = 
-								transition(prolog, edgeParams.get(0), NO_COND_ATOM, NO_EVENTS_ATOM, edgeParams.get(3));
+								transition(edgeParams.get(0), NO_COND_ATOM, NO_EVENTS_ATOM, edgeParams.get(3));
 						// there should be only one transition from history state.  TODO: What about forks?
 						assert newState.getTransition() == null;		
 						newState.setTransition(transition);
@@ -272,25 +388,25 @@ public class PrologToScxml {
 		return newState; 
 	}
 
-	private ScxmlFinalType finalState(final Prolog prolog, Term stateName) throws CommandException {
+	private ScxmlFinalType finalState(Term stateName) throws CommandException {
 		final ScxmlFinalType newState = new ScxmlFinalType();
 		newState.setId(stateName.toUnquotedString());
 		
 		// onEntry property
-		processQuerySolutions(prolog, onEntryQuery(stateName), X_STR, new ValueProcessor()	{
+		processQuerySolutions(onEntryQuery(stateName), X_STR, new ValueProcessor()	{
 			public void process(Term onEntryContent) throws CommandException {
 				ScxmlOnentryType onEntry = new ScxmlOnentryType();
 				newState.getScxmlFinalMix().add(onEntry);
-				parseExecutableContent(onEntry.getScxmlCoreExecutablecontent(), prolog, onEntryContent);
+				parseExecutableContent(onEntry.getScxmlCoreExecutablecontent(), onEntryContent);
 			}
 		});
 			
 		// onExit property
-		processQuerySolutions(prolog, onExitQuery(stateName), X_STR, new ValueProcessor()	{
+		processQuerySolutions(onExitQuery(stateName), X_STR, new ValueProcessor()	{
 			public void process(Term onExitContent) throws CommandException {
 				ScxmlOnexitType onExit = new ScxmlOnexitType();
 				newState.getScxmlFinalMix().add(onExit);
-				parseExecutableContent(onExit.getScxmlCoreExecutablecontent(), prolog, onExitContent);
+				parseExecutableContent(onExit.getScxmlCoreExecutablecontent(), onExitContent);
 			}
 		});
 		
@@ -298,7 +414,7 @@ public class PrologToScxml {
 		return newState; 
 	}
 
-	protected ScxmlTransitionType transition(Prolog prolog, final Term targetAtom, Term condAtom, Term eventsAtom,
+	protected ScxmlTransitionType transition(final Term targetAtom, Term condAtom, Term eventsAtom,
 			Term actionAtom) throws CommandException {
 		final ScxmlTransitionType transitionType = new ScxmlTransitionType();
 		String eventStr = eventsAtom.toUnquotedString();
@@ -315,13 +431,14 @@ public class PrologToScxml {
 		});
 		
 		if(!actionAtom.equals(NO_ACTION_ATOM))
-			parseExecutableContent(transitionType.getScxmlCoreExecutablecontent(), prolog, actionAtom);
+			parseExecutableContent(transitionType.getScxmlCoreExecutablecontent(), actionAtom);
 		return transitionType;
 	}
 
 
-	protected void parseExecutableContent(List<Object> executableContent, Prolog prolog, Term executableContentTerm) throws CommandException {
+	protected void parseExecutableContent(List<Object> executableContent, Term executableContentTerm) throws CommandException {
 		assert executableContentTerm != null;
+		executableContentTerm = ExecutableContentStore.resolve(executableContentTerm);
 		if(!(executableContentTerm instanceof Struct))	{
 			throw new CommandException("BUG: Invalid format for executable content: " + executableContentTerm.toString());
 		}
@@ -332,8 +449,8 @@ public class PrologToScxml {
 		}
 		if(functor.equals(SEQ_STR))	{
 			assert oec.getArity() == 2;
-			parseExecutableContent(executableContent, prolog, oec.getArg(0));
-			parseExecutableContent(executableContent, prolog, oec.getArg(1));
+			parseExecutableContent(executableContent, oec.getArg(0));
+			parseExecutableContent(executableContent, oec.getArg(1));
 			return;
 		}
 		if(functor.equals(RAISE_STR))	{
@@ -347,12 +464,16 @@ public class PrologToScxml {
 			assert oec.getArity() == 5;
 			ScxmlIfType elt = new ScxmlIfType();
 			elt.setCond(oec.getArg(0).toUnquotedString());		// if-cond
-			parseExecutableContent(elt.getScxmlCoreExecutablecontentIf(), prolog, oec.getArg(1));	// if-branch
+			parseExecutableContent(elt.getScxmlCoreExecutablecontentIf(), oec.getArg(1));	// if-branch
 			ScxmlElseifType elseifType = new ScxmlElseifType();
 			elseifType.setCond(oec.getArg(2).toUnquotedString());		// elseif-cond
 			elt.setElseif(elseifType);
-			parseExecutableContent(elt.getScxmlCoreExecutablecontentIfElseif(), prolog, oec.getArg(3));		// elseif-branch
-			parseExecutableContent(elt.getScxmlCoreExecutablecontentIfElse(), prolog, oec.getArg(4));		// else-branch
+			parseExecutableContent(elt.getScxmlCoreExecutablecontentIfElseif(), oec.getArg(3));		// elseif-branch
+			if(!ScxmlStreamWriter.isNoContent(oec.getArg(4)))	{
+				// Without <else> the else-branch would be read back as part of the elseif-branch
+				elt.setElse(new ScxmlElseType());
+				parseExecutableContent(elt.getScxmlCoreExecutablecontentIfElse(), oec.getArg(4));		// else-branch
+			}
 			executableContent.add(objectFactory.createIf(elt));
 			return;
 		}
@@ -410,14 +531,24 @@ public class PrologToScxml {
 		throw new CommandException("BUG: Unable to interpret executable content: " + oec.toString());
 	}
 
-	private <T extends ValueProcessor> T processQuerySolutions(Prolog _junk_prolog, Term query, String varName,
+	private <T extends ValueProcessor> T processQuerySolutions(Term query, String varName,
 			T valueProcessor) throws CommandException {
-		final Prolog prolog = new Prolog();
+		EngineStack stack = engines.get();
+		final Prolog prolog;
 		try {
-			prolog.setTheory(theory);
+			prolog = stack.acquire(theory);
 		} catch (InvalidTheoryException e1) {
-			throw new CommandException("BUG: Could not make new Prolog instance with same theory as previous instance.");
+			throw new CommandException("BUG: Could not make Prolog theory from the Prolog terms.", e1);
+		}
+		try	{
+			return solve(prolog, query, varName, valueProcessor);
+		} finally {
+			stack.release();
 		}
+	}
+
+	private static <T extends ValueProcessor> T solve(Term query, String varName,
+			T valueProcessor) throws CommandException {
 		SolveInfo solution = prolog.solve(query);
 		assert solution != null;
 		if(solution.isSuccess())	{
@@ -438,14 +569,24 @@ public class PrologToScxml {
 		return valueProcessor;
 	}
 	
-	private <T extends MultiValueProcessor> T processMultivariateQuerySolutions(Prolog __junk_prolog, Term query, String[] varNames,
+	private <T extends MultiValueProcessor> T processMultivariateQuerySolutions(Term query, String[] varNames,
 			T multiValueProcessor) throws CommandException {
-		final Prolog prolog = new Prolog();
+		EngineStack stack = engines.get();
+		final Prolog prolog;
 		try {
-			prolog.setTheory(theory);
+			prolog = stack.acquire(theory);
 		} catch (InvalidTheoryException e1) {
-			throw new CommandException("BUG: Could not make new Prolog instance with same theory as previous instance.");
+			throw new CommandException("BUG: Could not make Prolog theory from the Prolog terms.", e1);
+		}
+		try	{
+			return solveMultivariate(prolog, query, varNames, multiValueProcessor);
+		} finally {
+			stack.release();
 		}
+	}
+
+	private static <T extends MultiValueProcessor> T solveMultivariate(Term query, String[] varNames,
+			T multiValueProcessor) throws CommandException {
 		SolveInfo solution = prolog.solve(query);
 		assert solution != null;
 		if(solution.isSuccess())	{
@@ -1,8 +1,16 @@
 package com.deepdownstudios.smsolver;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import jline.console.ConsoleReader;
 import jline.console.completer.FileNameCompleter;
@@ -10,10 +18,17 @@ import jline.console.completer.StringsCompleter;
 import jline.console.history.FileHistory;
 import jline.console.history.PersistentHistory;
 
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.deepdownstudios.smbridge.Endpoint;
 import com.deepdownstudios.smbridge.WebSocketEndpoint;
+import com.deepdownstudios.smsolver.Command.REPLCommand;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
 
 /**
  * Processes information entered in console or obtained through a required SMBridge host.
@@ -25,18 +40,108 @@ public class SMSolver implements Endpoint
 	private static final String EOL = "\n";
 	private static final String ERROR_TAG = "ERROR";
 	private static final String ENDPOINT_RESPONSE_DELIMETER = "---";
+	private static final String VIEWER_COMMAND_ERROR = "This connection is a viewer.  It cannot send commands.";
+	private static final String ENGINE_CLINGO = "clingo";
+	private static final String ENGINE_JAVA = "java";
+	private static final String ENGINE_JAVA_CHECKED = "java-checked";
+	private static final String PORTFOLIO_DEFAULT = "default";
+	private static final String WARMUP_NEW_COMMAND = "new(warmup).";
+	private static final String WARMUP_COMMAND = "set(state(simple, warmup)). test(state(simple, warmup)).";
 
 	History history = new History();
-	private Endpoint endpoint = null;
+	// Endpoints that are sent every response.  Each is sent the same (shared) message strings.
+	private final List<Endpoint> subscribers = new CopyOnWriteArrayList<Endpoint>();
+	private final List<CompressingEndpoint> compressors = new CopyOnWriteArrayList<CompressingEndpoint>();
+	private final Solver solver;
+
+	private CommandJournal journal = null;
+	private final List<HistoryListener> historyListeners = new CopyOnWriteArrayList<HistoryListener>();
+	private AutosaveService autosave = null;
+	private CommandCoalescer coalescer = null;
+
+	/**
+	 * Have 'listener' told about every change to the history.
+	 */
+	public void addHistoryListener(HistoryListener listener)	{
+		historyListeners.add(listener);
+	}
+
+	public void removeHistoryListener(HistoryListener listener)	{
+		historyListeners.remove(listener);
+	}
+
+	private void setHistory(History history)	{
+		boolean changed = history != this.history;
+		this.history = history;
+		if(changed)	{
+			for(HistoryListener listener : historyListeners)
+				listener.historyChanged(history);
+		}
+	}
 
-	public synchronized CommandResult execute(String commandStr) throws CommandException {
+	public CommandResult execute(String commandStr) throws CommandException {
 		Commands command = Commands.parse(commandStr);
-		// Execute the command and update the history to include the result.
-		CommandResult ret = command.execute(history);
-		history = ret.getHistory();
+		CommandResult ret;
+		long journalSequence = 0;
+		synchronized(this)	{
+			// Execute the command and update the history to include the result.
+			History oldHistory = history;
+			ret = command.execute(history, solver);
+			setHistory(ret.getHistory());
+			if(journal != null && commandStr.trim().length() > 0)	{
+				// A save at the end of the line is a checkpoint: recovery can start from the saved file.
+				if(ret.getSavedFilename() != null)
+					journal.checkpoint(ret.getSavedFilename(), getDigest(history));
+				else if(history != oldHistory)		// eg not just queries
+					journalSequence = journal.enqueueCommand(commandStr, getDigest(history));
+			}
+		}
+		// Wait for the journal outside the lock, so other clients' commands run meanwhile and share the write.
+		if(journalSequence != 0)
+			journal.awaitDurable(journalSequence);
 		return ret;
 	}
 
+	/**
+	 * Record every command that changes the history in 'file', after replaying the commands already in it.
+	 * @return	The number of records replayed
+	 */
+	int openJournal(File file, PrintWriter out) throws CommandException {
+		journal = new CommandJournal(file);
+		return recover(out);
+	}
+
+	/**
+	 * Rebuild the history from the journal: load the file of the last checkpoint and replay the commands after
+	 * it.  Saves in them are not run again.  An undo of a command from before the checkpoint cannot be replayed.
+	 * @return	The number of records replayed
+	 */
+	private synchronized int recover(PrintWriter out) {
+		int replayed = 0;
+		for(CommandJournal.Record record : journal.getRecoveryRecords())	{
+			try	{
+				if(record.isCheckpoint())	{
+					Command load = Command.build(Arrays.asList(new Struct(REPLCommand.LOAD.toString(), 
+							new Term[] { new Struct(record.getPayload()) })));
+					setHistory(load.execute(new History(), solver).getHistory());
+				} else
+					setHistory(Commands.parse(record.getPayload()).replay(history, solver).getHistory());
+				replayed++;
+				if(!record.getDigest().equals(getDigest(history)))
+					out.println("WARNING: Replaying '" + record.getPayload().trim() + "' from the journal gave a different document.");
+			} catch (CommandException e) {
+				out.println("WARNING: Could not replay '" + record.getPayload().trim() + "' from the journal.  " + e.getMessage());
+			}
+		}
+		return replayed;
+	}
+
+	private static String getDigest(History history) throws CommandException {
+		if(history.getStates().isEmpty())
+			return CommandJournal.NO_DIGEST;
+		return history.getCurrentState().getScxmlFile().getFactIndex().getDigest();
+	}
+
 	/******************************************************************************************/
 	/* Main/Driver */
 	/******************************************************************************************/
@@ -51,18 +156,70 @@ public class SMSolver implements Endpoint
 		public boolean useWebsocket = false;
 		@Parameter(names = { "-b", "--smbridge" }, description = "Connect to SMBridge server.  Cannot be used with WebSocket")
 		public boolean useSMBridge = false;
+		@Parameter(names = { "--batch" }, description = "Compile every .lpscr file under the given directory to .scxml and exit.")
+		public String batchDir = null;
+		@Parameter(names = { "--batch-out" }, description = "Directory to write batch-compiled .scxml files to.  " +
+				"Default is next to each .lpscr file.")
+		public String batchOutDir = null;
+		@Parameter(names = { "-j", "--jobs" }, description = "Number of files to compile at once in batch mode.  " + 
+				"Default is the number of processors.")
+		public int jobs = Runtime.getRuntime().availableProcessors();
+		@Parameter(names = { "--force" }, description = "Rebuild every file in batch mode, even if it is unchanged.")
+		public boolean force = false;
+		@Parameter(names = { "--report" }, description = "File to write the batch mode report to (one JSON object per line).  " +
+				"Default is standard output.")
+		public String reportFile = null;
+		@Parameter(names = { "--engine" }, description = "How to run set/change/delete/test commands: 'clingo', 'java' " + 
+				"(falls back to clingo when needed) or 'java-checked' (java, compared against clingo).  Default is clingo.")
+		public String engine = ENGINE_CLINGO;
+		@Parameter(names = { "--partition" }, description = "Solve only the parts of the chart (states connected by parent, " +
+				"edge and prop facts) that each command touches, in parallel.")
+		public boolean partition = false;
+		@Parameter(names = { "--history-budget" }, description = "Megabytes of memory for the undo history.  Older states " +
+				"are written to a temporary file when it is exceeded.  Default is 0 (no limit).")
+		public int historyBudgetMegabytes = 0;
+		@Parameter(names = { "--threads" }, description = "Number of clingo solver threads.  " + 
+				"Default is one for small charts and one per processor for large ones.")
+		public int threads = 0;
+		@Parameter(names = { "--portfolio" }, description = "Comma-separated clingo configurations to race on large charts, " + 
+				"or 'default' for jumpy,tweety,trendy,crafty.  Default is no racing.")
+		public String portfolio = null;
+		@Parameter(names = { "--tune" }, description = "Choose the clingo configuration for each command from the " + 
+				"times of past solves, kept in ~/.smsolver.tuning (see --tuning-store).")
+		public boolean tune = false;
+		@Parameter(names = { "--tuning-store" }, description = "File to keep solve times in for --tune.")
+		public String tuningStore = null;
+		@Parameter(names = { "--journal" }, description = "Journal file that records every command so the session can be " +
+				"recovered after a crash.  If it already has commands then they are replayed at startup.")
+		public String journalFile = null;
+		@Parameter(names = { "--autosave" }, description = "Save the session to <name>.autosave.lpscr in the background, " +
+				"at most once every this many seconds.  Default is 0 (off).")
+		public int autosaveSeconds = 0;
+		@Parameter(names = { "--coalesce" }, description = "Milliseconds to wait for more set/change/delete/test requests " +
+				"from the WebSocket or SMBridge client, so a burst of them is solved at once.  Default is 0 (off).")
+		public int coalesceMillis = 0;
+		@Parameter(names = { "--send-queue" }, description = "Number of responses that may wait to be sent to a slow " +
+				"WebSocket or SMBridge client before commands wait.  Unsent documents are replaced by newer ones.  " +
+				"Default is 0, which sends synchronously.")
+		public int sendQueue = 0;
+		@Parameter(names = { "--compress" }, description = "Compress responses to the SMBridge connection if the other " +
+				"end agrees to it (see CompressingEndpoint).  Cannot be used with the websocket server.")
+		public boolean compress = false;
+		@Parameter(names = { "--viewer" }, description = "host[:port] of another SMBridge to send every response to, " +
+				"for more debuggers watching this session.  Commands from it are refused.  May be repeated.")
+		public List<String> viewers = new ArrayList<String>();
+		@Parameter(names = { "--warmup" }, description = "Set up the command parser, JAXB and Prolog in the background at startup " +
+				"instead of during the first command.  Useful with -w or -b.")
+		public boolean warmup = false;
+		@Parameter(names = { "--print-results" }, description = "Print the result message of each command line to " +
+				"the console.  Used by StartupBenchmark.")
+		public boolean printResults = false;
 		@Parameter(names = { "-h", "--help" }, description = "Help with command line arguments", help = true)
 		public boolean help = false;
 	}
 	
-	private SMSolver()	{
-		// In case we are CTRL+C-ed or something, make sure endpoints are closed.
-		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
-			public void run() {
-				if(endpoint != null)
-					endpoint.close();
-			}
-		}));
+	SMSolver(Solver solver)	{
+		this.solver = solver;
 	}
 	
 	public static void main(String[] args) throws IOException {
@@ -76,27 +233,101 @@ public class SMSolver implements Endpoint
 			jcommander.usage();
 			return;
 		}
+		if(cliArgs.compress && cliArgs.useWebsocket)	{
+			// The websocket server is one endpoint for every client, so one client agreeing to compression
+			// would turn it on for all of them.
+			System.err.println("ERROR: Cannot compress responses from the websocket server.");
+			jcommander.usage();
+			return;
+		}
 		if(cliArgs.help)	{
 			jcommander.usage();
 			return;
 		}
+		Solver solver = getSolver(cliArgs.engine);
+		if(solver == null)	{
+			System.err.println("ERROR: Unknown engine '" + cliArgs.engine + "'.");
+			jcommander.usage();
+			return;
+		}
+		if(cliArgs.partition)
+			solver = new PartitionedSolver(solver);
+		ClingoSolver.setThreads(cliArgs.threads);
+		StateSpillStore.setBudget(cliArgs.historyBudgetMegabytes * 1024L * 1024L);
+		if(cliArgs.portfolio != null)	{
+			ClingoSolver.setPortfolio(PORTFOLIO_DEFAULT.equalsIgnoreCase(cliArgs.portfolio) ? ClingoSolver.DEFAULT_PORTFOLIO :
+					Splitter.on(',').trimResults().omitEmptyStrings().splitToList(cliArgs.portfolio));
+		}
+		if(cliArgs.tune || cliArgs.tuningStore != null)	{
+			File store = cliArgs.tuningStore == null ? SolverTuner.getDefaultStoreFile() : new File(cliArgs.tuningStore);
+			try	{
+				ClingoSolver.setTuner(new SolverTuner(store, SolverTuner.DEFAULT_EXPLORATION_RATE));
+			} catch (CommandException e) {
+				System.err.println("ERROR: " + e.getMessage());
+				return;
+			}
+		}
+		if(cliArgs.batchDir != null)	{
+			int status = runBatch(cliArgs, solver);
+			ClingoSolver.closeNativeSessions();
+			System.exit(status);
+			return;
+		}
 		
-		ConsoleReader reader = new ConsoleReader();
-	    reader.setHistory(new FileHistory(new File(System.getProperty("user.home"), ".smsolver.history")));
-		reader.setPrompt("smsolver> ");
-		reader.addCompleter(new FileNameCompleter());
-		reader.addCompleter(new StringsCompleter( Command.keywords ));
-		reader.setHistoryEnabled(true);
+		// jline is only needed (and only loaded) when a person is typing.  Scripts and batch jobs that pipe
+		// commands in get a plain reader, which starts faster.
+		ConsoleReader reader = null;
+		BufferedReader plainReader = null;
+		PrintWriter consoleWriter;
+		if(System.console() != null)	{
+			reader = createConsoleReader();
+			consoleWriter = new PrintWriter(reader.getOutput());
+		} else	{
+			plainReader = new BufferedReader(new InputStreamReader(System.in, Charsets.UTF_8));
+			consoleWriter = new PrintWriter(new OutputStreamWriter(System.out, Charsets.UTF_8));
+		}
 		
-		PrintWriter consoleWriter = new PrintWriter(reader.getOutput());
-		final SMSolver smsolver = new SMSolver();
+		final SMSolver smsolver = new SMSolver(solver);
+		// In case we are CTRL+C-ed or something, make sure endpoints are closed.
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				smsolver.closeSubscribers();
+			}
+		}));
+		if(reader != null)	{
+			AtomCompleter atomCompleter = new AtomCompleter();
+			smsolver.addHistoryListener(atomCompleter);
+			reader.addCompleter(atomCompleter);
+		}
+		if(cliArgs.autosaveSeconds > 0)	{
+			smsolver.autosave = new AutosaveService(cliArgs.autosaveSeconds * 1000L);
+			smsolver.addHistoryListener(smsolver.autosave);
+		}
+		if(cliArgs.journalFile != null)	{
+			int replayed;
+			try	{
+				replayed = smsolver.openJournal(new File(cliArgs.journalFile), consoleWriter);
+			} catch (CommandException e) {
+				consoleWriter.println("ERROR: " + e.getMessage());
+				consoleWriter.flush();
+				return;
+			}
+			if(replayed > 0)
+				consoleWriter.println("Recovered " + replayed + " journal entries from '" + cliArgs.journalFile + "'.");
+		}
 
+		if(cliArgs.coalesceMillis > 0)	{
+			smsolver.coalescer = new CommandCoalescer(cliArgs.coalesceMillis, new CommandCoalescer.BatchProcessor() {
+				public void processBatch(List<CommandCoalescer.Request> requests) {
+					smsolver.processBatch(requests);
+				}
+			});
+		}
 		if(cliArgs.useWebsocket)	{
 			if(cliArgs.port == -1)
 				cliArgs.port = DEFAULT_WS_PORT;
 			WebSocketEndpoint websocket = new WebSocketEndpoint( cliArgs.port );
-			smsolver.setConnectedEndpoint(websocket);
-			websocket.setConnectedEndpoint(smsolver);
+			smsolver.connect(websocket, false, false, false, cliArgs.sendQueue);
 			websocket.start();
 			consoleWriter.println( "WebSocket Server started at address: " + cliArgs.ipAddr + ":" + cliArgs.port );
 		} else if(cliArgs.useSMBridge)	{
@@ -109,14 +340,37 @@ public class SMSolver implements Endpoint
 				consoleWriter.println( "Failed to open socket: " + e.getMessage() );
 				throw e;
 			}
-			smsocket.setConnectedEndpoint(smsolver);
-			smsolver.setConnectedEndpoint(smsocket);
+			CompressingEndpoint compressor = smsolver.connect(smsocket, cliArgs.compress, true, false, cliArgs.sendQueue);
 			smsocket.start(); 
+			if(compressor != null)
+				compressor.start();
 			consoleWriter.println( "SMBridge connected at address: " + cliArgs.ipAddr + ":" + cliArgs.port );
 		}
+		for(String viewer : cliArgs.viewers)	{
+			// More debuggers watching the same session, through their own SMBridges.
+			List<String> address = Splitter.on(':').trimResults().splitToList(viewer);
+			SMSocket smsocket;
+			try	{
+				smsocket = new SMSocket(address.get(0), address.size() > 1 ? Integer.parseInt(address.get(1)) : DEFAULT_POSIX_PORT,
+						consoleWriter);
+			} catch (IOException e) {
+				consoleWriter.println( "Failed to open socket to viewer '" + viewer + "': " + e.getMessage() );
+				continue;
+			} catch (NumberFormatException e) {
+				consoleWriter.println( "ERROR: Viewer address must be host[:port]: " + viewer );
+				continue;
+			}
+			CompressingEndpoint compressor = smsolver.connect(smsocket, cliArgs.compress, true, true, cliArgs.sendQueue);
+			smsocket.start();
+			if(compressor != null)
+				compressor.start();
+			consoleWriter.println( "Viewer connected at address: " + viewer );
+		}
 
 		String line;
-		while ((line = reader.readLine()) != null) {
+		if(cliArgs.warmup)
+			warmUp(solver);
+		while ((line = (reader != null ? reader.readLine() : plainReader.readLine())) != null) {
 			if (line.equalsIgnoreCase("quit.") || line.equalsIgnoreCase("exit.")) {
 				break;		// Don't want this to persist in 'reader' history.
 			}
@@ -124,25 +378,120 @@ public class SMSolver implements Endpoint
 			// Compute and send the result to the endpoint unless it was
 			// an error, in which case we just log it to the consoleWriter (we dont send it to the endpoint).
 			try {
-				smsolver.executeAndRespond(line);
+				if (smsolver.coalescer != null)
+					smsolver.coalescer.flush();		// Run waiting endpoint requests first
+				CommandResult result = smsolver.executeAndRespond(line);
+				if (cliArgs.printResults && result.getMessage().length() > 0) {
+					consoleWriter.println(result.getMessage());
+					consoleWriter.flush();
+				}
 			} catch (CommandException e) {
 				consoleWriter.println("ERROR: Command Failed.  " + e.getMessage());
+				if (cliArgs.printResults)
+					consoleWriter.flush();
 			}
 			
 			// JLine2 seems to have the bug that it never saves the history to a file
 			// unless you manually do this:
-			((PersistentHistory)reader.getHistory()).flush();
+			if (reader != null)
+				((PersistentHistory)reader.getHistory()).flush();
 		}
 		
 		// Close the connection to the remote server.  This is necessary to stop those threads which
 		// would otherwise keep running forever.
-		if(smsolver.endpoint != null)
-			smsolver.endpoint.close();
+		if(smsolver.coalescer != null)
+			smsolver.coalescer.close();
+		smsolver.closeSubscribers();
+		smsolver.printQueueCounts(consoleWriter);
+		if(smsolver.journal != null)
+			smsolver.journal.close();
+		if(smsolver.autosave != null)
+			smsolver.autosave.close();
+		ClingoSolver.closeNativeSessions();
+		if(StateSpillStore.getEvictionCount() > 0)
+			consoleWriter.println("History states spilled to disk: " + StateSpillStore.getEvictionCount() + 
+					", reloaded: " + StateSpillStore.getReloadCount());
+		consoleWriter.flush();
+	}
+
+	private static ConsoleReader createConsoleReader() throws IOException {
+		ConsoleReader reader = new ConsoleReader();
+	    reader.setHistory(new FileHistory(new File(System.getProperty("user.home"), ".smsolver.history")));
+		reader.setPrompt("smsolver> ");
+		reader.addCompleter(new FileNameCompleter());
+		reader.addCompleter(new StringsCompleter( Command.keywords ));
+		reader.setHistoryEnabled(true);
+		return reader;
+	}
+
+	/**
+	 * Do the one-time setup of the command parser, JAXB, the SCXML readers and writers and the solver in the
+	 * background, by running a command on a scratch document, so the first request from the endpoint does
+	 * not wait for it.
+	 */
+	private static void warmUp(final Solver solver)	{
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try	{
+					History history = Commands.parse(WARMUP_NEW_COMMAND).execute(new History(), solver).getHistory();
+					history = Commands.parse(WARMUP_COMMAND).execute(history, solver).getHistory();
+					history.getCurrentState().getSerializedScxml();
+					ScxmlFile.warmUp();
+				} catch (CommandException e) {
+					System.err.println("WARNING: Warm-up failed.  " + e.getMessage());
+				}
+			}
+		}, "warmup");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	private static Solver getSolver(String engine)	{
+		if(ENGINE_CLINGO.equalsIgnoreCase(engine))
+			return ClingoSolver.INSTANCE;
+		if(ENGINE_JAVA.equalsIgnoreCase(engine))
+			return new JavaEngineSolver(ClingoSolver.INSTANCE, false);
+		if(ENGINE_JAVA_CHECKED.equalsIgnoreCase(engine))
+			return new JavaEngineSolver(ClingoSolver.INSTANCE, true);
+		return null;
 	}
 
-	private void executeAndRespond(String line) throws CommandException {
-		CommandResult result = execute(line);
-		if (endpoint == null)
+	private static int runBatch(Args cliArgs, Solver solver) throws IOException {
+		if(cliArgs.jobs < 1)	{
+			System.err.println("ERROR: --jobs must be at least 1.");
+			return 2;
+		}
+		PrintWriter report = cliArgs.reportFile == null ? new PrintWriter(System.out) :
+				new PrintWriter(new FileWriter(cliArgs.reportFile));
+		try	{
+			BatchCompiler compiler = new BatchCompiler(new File(cliArgs.batchDir), 
+					cliArgs.batchOutDir == null ? null : new File(cliArgs.batchOutDir), cliArgs.jobs, cliArgs.force);
+			compiler.setSolver(solver);
+			int failures = 0;
+			for(BatchCompiler.Result result : compiler.run(report))	{
+				if(result.isFailure())
+					failures++;
+			}
+			return failures == 0 ? 0 : 1;
+		} catch (CommandException e) {
+			System.err.println("ERROR: Batch compile failed.  " + e.getMessage());
+			return 2;
+		} finally {
+			report.flush();
+			if(cliArgs.reportFile != null)
+				report.close();
+		}
+	}
+
+	private CommandResult executeAndRespond(String line) throws CommandException {
+		CommandResult ret = execute(line);
+		respond(ret);
+		return ret;
+	}
+
+	private void respond(CommandResult result) throws CommandException {
+		if (subscribers.isEmpty())
 			return;
 		
 		// If there is no valid currentstate then just return the message
@@ -150,31 +499,183 @@ public class SMSolver implements Endpoint
 		try	{
 			currentState = result.getHistory().getCurrentState();
 		} catch(CommandException e)	{
-			endpoint.process(result.getMessage());
+			broadcast(result.getMessage());
 			return;
 		}
 		
-		StringBuffer message = new StringBuffer(result.getMessage())
+		// The document was serialized once for the state.  The response is built once for all subscribers.
+		String response = new StringBuilder(result.getMessage())
 				.append(EOL)
 				.append(ENDPOINT_RESPONSE_DELIMETER)
 				.append(EOL)
-				.append(currentState.getScxmlFile().getScxmlAsString());
-		endpoint.process(message.toString());
+				.append(currentState.getSerializedScxml().getString())
+				.toString();
+		for (Endpoint subscriber : subscribers) {
+			if (subscriber instanceof OutboundQueue)
+				((OutboundQueue) subscriber).processSnapshot(result.getMessage(), response);	// Replaces an unsent older one
+			else
+				subscriber.process(response);
+		}
+	}
+
+	private void broadcast(String message) {
+		for (Endpoint subscriber : subscribers)
+			subscriber.process(message);
+	}
+
+	/**
+	 * Answer a request from 'source' alone, or every subscriber if it is null.
+	 */
+	private void reply(Endpoint source, String message) {
+		if (source == null)
+			broadcast(message);
+		else
+			source.process(message);
 	}
 
 	public void process(String message) {
+		process(message, null);
+	}
+
+	/**
+	 * Run a request from 'source', which is sent its errors.  The document it results in goes to every subscriber.
+	 */
+	void process(String message, Endpoint source) {
+		if (coalescer != null)
+			coalescer.submit(message, source);
+		else
+			processNow(message, source);
+	}
+
+	private void processNow(String message, Endpoint source) {
 		// Execute the command we were sent and send back the response. If it
 		// results in an error then send the error back.
 		try {
 			executeAndRespond(message);
 		} catch (CommandException e) {
-			if (endpoint != null)
-				endpoint.process(ERROR_TAG + EOL + e.getMessage());
+			reply(source, ERROR_TAG + EOL + e.getMessage());
+		}
+	}
+
+	/**
+	 * Run requests that CommandCoalescer merged.  They are solved as one command line.  Every request but
+	 * the last is answered with just the result message, sent only to the endpoint it came from, and every
+	 * subscriber gets the usual response with the document.  If the merged line fails then the requests are
+	 * run one at a time so each gets its own answer (and error).
+	 */
+	void processBatch(List<CommandCoalescer.Request> requests) {
+		if (requests.size() == 1) {
+			processNow(requests.get(0).getText(), requests.get(0).getSource());
+			return;
+		}
+
+		List<String> lines = new ArrayList<String>(requests.size());
+		for (CommandCoalescer.Request request : requests)
+			lines.add(request.getText());
+		CommandResult result;
+		try {
+			result = execute(Joiner.on(EOL).join(lines));
+		} catch (CommandException e) {
+			for (CommandCoalescer.Request request : requests)
+				processNow(request.getText(), request.getSource());
+			return;
+		}
+		String ack = result.getMessage() + " (solved with " + (requests.size() - 1) + " other requests)";
+		for (int i=0; i<requests.size()-1; ++i)
+			reply(requests.get(i).getSource(), ack);
+		try {
+			respond(new CommandResult(result.getHistory(), ack));
+		} catch (CommandException e) {
+			broadcast(ERROR_TAG + EOL + e.getMessage());
 		}
 	}
 
+	/**
+	 * Send every response to 'endpoint' too, through an OutboundQueue of the given capacity unless it is 0.
+	 * @return	The subscriber that was added
+	 */
+	public Endpoint subscribe(Endpoint endpoint, int queueCapacity) {
+		if (queueCapacity > 0)
+			endpoint = new OutboundQueue(endpoint, queueCapacity);
+		subscribers.add(endpoint);
+		return endpoint;
+	}
+
+	/**
+	 * Connect a transport: it is subscribed to the responses and its incoming messages are commands.
+	 * @param compress		Put a CompressingEndpoint between the transport and the solver.
+	 * @param offer			Whether this side offers compression (when compress is set).
+	 * @param viewer		If true then the transport only watches: its commands are answered with an error.
+	 * @return	The CompressingEndpoint, which should be started once the transport is, or null.
+	 */
+	CompressingEndpoint connect(Endpoint transport, boolean compress, boolean offer, final boolean viewer, int queueCapacity) {
+		CompressingEndpoint compressor = null;
+		if (compress) {
+			compressor = new CompressingEndpoint(transport, offer);
+			compressors.add(compressor);
+		}
+		// Compressed on the queue's thread
+		final Endpoint subscriber = subscribe(compressor != null ? compressor : transport, queueCapacity);
+		Endpoint receiver = new Endpoint() {
+			public void process(String message) {
+				if (viewer)
+					subscriber.process(ERROR_TAG + EOL + VIEWER_COMMAND_ERROR);
+				else
+					SMSolver.this.process(message, subscriber);
+			}
+			public void setConnectedEndpoint(Endpoint endpoint) {	}
+			public void close() {	}
+		};
+		if (compressor == null) {
+			transport.setConnectedEndpoint(receiver);
+		} else {
+			transport.setConnectedEndpoint(compressor.getReceiver());
+			compressor.setConnectedEndpoint(receiver);
+		}
+		return compressor;
+	}
+
+	/**
+	 * Stop sending responses to a subscriber returned by subscribe().  It is not closed.
+	 */
+	public void unsubscribe(Endpoint subscriber) {
+		subscribers.remove(subscriber);
+	}
+
+	/**
+	 * Subscribe 'endpoint', without a queue.
+	 */
 	public void setConnectedEndpoint(Endpoint endpoint) {
-		this.endpoint = endpoint;
+		subscribe(endpoint, 0);
+	}
+
+	private void closeSubscribers() {
+		for (Endpoint subscriber : subscribers)
+			subscriber.close();
+	}
+
+	private void printQueueCounts(PrintWriter out) {
+		long sent = 0, coalesced = 0, dropped = 0;
+		for (Endpoint subscriber : subscribers) {
+			if (subscriber instanceof OutboundQueue) {
+				OutboundQueue queue = (OutboundQueue) subscriber;
+				sent += queue.getSentCount();
+				coalesced += queue.getCoalescedCount();
+				dropped += queue.getDroppedCount();
+			}
+		}
+		if (coalesced > 0 || dropped > 0)
+			out.println("Responses sent: " + sent + ", documents replaced by newer ones: " + coalesced + 
+					", dropped at exit: " + dropped);
+		long messages = 0, rawBytes = 0, compressedBytes = 0;
+		for (CompressingEndpoint compressor : compressors) {
+			messages += compressor.getCompressedMessages();
+			rawBytes += compressor.getRawBytes();
+			compressedBytes += compressor.getCompressedBytes();
+		}
+		if (rawBytes > 0)
+			out.println("Compressed responses: " + messages + ", " + rawBytes + " bytes sent as " + compressedBytes + 
+					" (" + (100 * compressedBytes / rawBytes) + "%)");
 	}
 
 	public void close() {	}
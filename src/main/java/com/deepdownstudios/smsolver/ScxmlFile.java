@@ -1,25 +1,26 @@
 package com.deepdownstudios.smsolver;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.MarshalException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.PropertyException;
-import javax.xml.bind.UnmarshalException;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.transform.stream.StreamSource;
 
 import alice.tuprolog.Term;
 
@@ -28,6 +29,7 @@ import com.deepdownstudios.scxml.jaxb.ScxmlScxmlType;
 import com.deepdownstudios.smsolver.Command.REPLCommand;
 import com.deepdownstudios.smsolver.Command.SingleCommand;
 import com.deepdownstudios.smsolver.History.HistoryException;
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.Files;
 
@@ -38,12 +40,50 @@ public class ScxmlFile {
 	private ScxmlScxmlType scxml;		/// SCXML document as XML
 	private List<Term> scxmlProlog;		/// SCXML document as prolog term(s)
 	private String statemachineName;
+	private FactIndex factIndex = null;		///< Computed on first use
 
 	public static final String SCXML_SUFFIX = "scxml";
 	public static final String LPSCR_SUFFIX = "lpscr";
-	private static final String LPSCR_SCXML_FILE_TAG = "scxmlfile";
+	static final String LPSCR_SCXML_FILE_TAG = "scxmlfile";
 	private static final String LPSCR_BLOCK_DELIMETER = "---";
 	private static final String LPSCR_EMBEDDED_SCXML_TAG = "scxml";
+	private static final String JAXB_PACKAGE = "com.deepdownstudios.scxml.jaxb";
+	private static final String WARMUP_FILENAME = "warmup." + LPSCR_SUFFIX;
+	private static volatile JAXBContext scxmlContext = null;		///< Built on first use
+	// What was last written to each .lpscr file (by absolute path), so later saves can append to it.
+	private static final Map<String, SavedLpscr> savedLpscrFiles = new ConcurrentHashMap<String, SavedLpscr>();
+
+	/**
+	 * The contents of an .lpscr file as this process last wrote it.
+	 */
+	private static class SavedLpscr	{
+		final State baseState;			///< State written as embedded SCXML
+		final List<State> blocks;		///< States whose commands were written as blocks
+		final long length;
+		final long lastModified;
+
+		SavedLpscr(State baseState, List<State> blocks, File file)	{
+			this.baseState = baseState;
+			this.blocks = blocks;
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+		}
+
+		/**
+		 * True iff the file is unchanged since it was written and writing baseState and blocks would only
+		 * add blocks to it.
+		 */
+		boolean isPrefixOf(File file, State baseState, List<State> blocks)	{
+			if(this.baseState != baseState || this.blocks.size() > blocks.size() || 
+					file.length() != length || file.lastModified() != lastModified)
+				return false;
+			for(int i=0; i<this.blocks.size(); ++i)	{
+				if(this.blocks.get(i) != blocks.get(i))
+					return false;
+			}
+			return true;
+		}
+	}
 
 
 	/**
@@ -100,7 +140,7 @@ public class ScxmlFile {
 	 * @return	JAXB SCXML document.
 	 * @throws CommandException		Error generating JAXB document from Prolog spec
 	 */
-	public ScxmlScxmlType getScxml() throws CommandException	{
+	public synchronized ScxmlScxmlType getScxml() throws CommandException	{
 		if(scxml == null)	{
 			assert scxmlProlog != null;
 			scxml = (new PrologToScxml()).prologToScxml(statemachineName, scxmlProlog);
@@ -113,7 +153,7 @@ public class ScxmlFile {
 	 * @return	Prolog terms that define SCXML document
 	 * @throws CommandException		Error generating Prolog terms from JAXB
 	 */
-	public List<Term> getScxmlProlog() throws CommandException {
+	public synchronized List<Term> getScxmlProlog() throws CommandException {
 		if(scxmlProlog == null)	{
 			assert scxml != null;
 			scxmlProlog = ScxmlToProlog.scxmlToProlog(scxml);
@@ -122,6 +162,30 @@ public class ScxmlFile {
 		return scxmlProlog;
 	}
 
+	/**
+	 * @return	The facts of the document, indexed by state
+	 * @throws CommandException		Error generating Prolog terms from JAXB
+	 */
+	public synchronized FactIndex getFactIndex() throws CommandException {
+		if(factIndex == null)
+			factIndex = FactIndex.build(getScxmlProlog());
+		return factIndex;
+	}
+
+	/**
+	 * Give the document an index that was built along with it.  The index must describe getScxmlProlog().
+	 */
+	synchronized void setFactIndex(FactIndex factIndex)	{
+		this.factIndex = factIndex;
+	}
+
+	/**
+	 * @return	Name of the SCXML state machine
+	 */
+	public String getStatemachineName() {
+		return statemachineName;
+	}
+
 	/**
 	 * Get the name of the file as it was specified when the file was loaded/created.  This
 	 * may be either scxml or lpscr (but it is one of the two).
@@ -159,6 +223,18 @@ public class ScxmlFile {
 	 * @throws CommandException		The command was improperly formatted or the file failed to load
 	 */
 	public static ScxmlFile load(History history, SingleCommand singleCommand) throws CommandException {
+		return load(history, singleCommand, ClingoSolver.INSTANCE);
+	}
+
+	/**
+	 * Factory to load an .lpscr or .scxml file.
+	 * @param history		History to load file into
+	 * @param singleCommand	load/0 command or load(Filename)/1 command
+	 * @param solver		Solver to run the commands in an .lpscr file with
+	 * @return				The newly loaded SCXML document
+	 * @throws CommandException		The command was improperly formatted or the file failed to load
+	 */
+	public static ScxmlFile load(History history, SingleCommand singleCommand, Solver solver) throws CommandException {
 		String filename, 
 			requestedName;		// For error messages
 		File file;
@@ -196,7 +272,7 @@ public class ScxmlFile {
 
 		if(asScxml)
 			return loadScxml(file);
-		return loadLpscr(file);
+		return loadLpscr(file, solver);
 	}
 	/**
 	 * Save scxml or lpscr file.  If saving as SCXML then the current state is written.  If saving as lpscr
@@ -236,7 +312,7 @@ public class ScxmlFile {
 			throw new CommandException("Syntax error: '" + singleCommand.toString() + "'.  Format is save. or save(filename).");
 		
 		if(asScxml)
-			saveScxml(history.getCurrentState().getScxmlFile().getScxml(), filename);
+			saveScxml(history.getCurrentState().getScxmlFile(), filename);
 		else
 			saveLpscr(history, filename);
 		return filename;
@@ -253,7 +329,7 @@ public class ScxmlFile {
 	}
 	
 
-	private static ScxmlFile loadLpscr(File file) throws CommandException {
+	private static ScxmlFile loadLpscr(File file, Solver solver) throws CommandException {
 		// Open file
 		Scanner scanner;
 		try {
@@ -271,7 +347,7 @@ public class ScxmlFile {
 				// This is unused and problematic.  The .scxml file can get out of sync with the lpscr file.
 				String scxmlFilename = scanner.nextLine();		// presumably, this skips the word we already read
 				// Filename is everything between single-quotes
-				scxmlFilename = scxmlFilename.substring(scxmlFilename.indexOf('\''), scxmlFilename.lastIndexOf('\''));
+				scxmlFilename = scxmlFilename.substring(scxmlFilename.indexOf('\'') + 1, scxmlFilename.lastIndexOf('\''));
 				ScxmlFile scxmlFile = loadScxml(new File(scxmlFilename));
 				fakeState = new State(Command.NOOP, "Loaded SCXML File '" + scxmlFilename +
 						"' referenced in '" + file.getPath() + "'", scxmlFile);
@@ -306,7 +382,7 @@ public class ScxmlFile {
 				}
 				String commandStr = commandStrBuf.toString();
 				Commands commands = Commands.parse(commandStr);
-				CommandResult result = commands.execute(fakeHistory);
+				CommandResult result = commands.execute(fakeHistory, solver);
 				fakeHistory = result.getHistory();
 			}
 			return fakeHistory.getCurrentState().getScxmlFile();
@@ -317,18 +393,8 @@ public class ScxmlFile {
 		}
 	}
 
-	@SuppressWarnings("unchecked")
 	private static ScxmlFile loadScxml(File file) throws CommandException {
-		Unmarshaller unmarshaller = getScxmlUnmarshaller();
-		ScxmlScxmlType scxml;
-		try {
-			scxml = ((JAXBElement<ScxmlScxmlType>)unmarshaller.unmarshal(file)).getValue();
-		} catch (UnmarshalException e) {
-			throw new CommandException("'" + file.getAbsolutePath() + "' is not a valid SCXML file.", e);
-		} catch (JAXBException e) {
-			throw new CommandException("BUG: SCXML JAXB unmarshaller failed.", e);
-		}
-		return new ScxmlFile(file.getPath(), scxml);
+		return ScxmlStreamReader.load(file);
 	}
 
 	/**
@@ -338,37 +404,10 @@ public class ScxmlFile {
 	 * @return				The new state
 	 * @throws CommandException
 	 */
-	@SuppressWarnings("unchecked")
 	private static ScxmlFile loadScxml(String filename, String scxmlDocument) throws CommandException {
-		Unmarshaller unmarshaller = getScxmlUnmarshaller();
-		ScxmlScxmlType scxml;
-		try {
-			scxml = ((JAXBElement<ScxmlScxmlType>)unmarshaller.unmarshal(
-							new StreamSource( new StringReader( scxmlDocument ) ))).getValue();
-		} catch (UnmarshalException e) {
-			throw new CommandException("'" + filename + "' does not reference valid SCXML contents.", e);
-		} catch (JAXBException e) {
-			throw new CommandException("BUG: SCXML JAXB unmarshaller failed.", e);
-		}
-		return new ScxmlFile(filename, scxml);
+		return ScxmlStreamReader.load(filename, new StringReader(scxmlDocument));
 	}
 
-	private static Unmarshaller getScxmlUnmarshaller() throws CommandException {
-		JAXBContext context;
-		try {
-			context = JAXBContext.newInstance("com.deepdownstudios.scxml.jaxb");
-		} catch (JAXBException e) {
-			throw new CommandException("BUG: JAXB was unable to initialize namespace 'com.deepdownstudios.scxml.jaxb'", e);
-		}
-		
-		try {
-			return context.createUnmarshaller();
-		} catch (JAXBException e) {
-			throw new CommandException("BUG: Could not create SCXML JAXB unmarshaller.", e);
-		}
-	}
-
-
 	/**
 	 * Saves an lpscr file using the embeddedd scxml format - ie the SCXML file is embedded in the lpscr file.
 	 * @param history	History to save.  Everything going back to the last load/new command is written.
@@ -389,46 +428,55 @@ public class ScxmlFile {
 			}
 			command = states.get(lastDeserializeState).getCommand();
 		}
-
-		Marshaller marshaller = getScxmlMarshaller();
-		PrintWriter writer = new PrintWriter(getFileOutputStream(filename));
-		writer.println(LPSCR_EMBEDDED_SCXML_TAG);
+		State baseState = states.get(lastDeserializeState);
+		List<State> blocks = ImmutableList.copyOf(states.subList(lastDeserializeState+1, states.size()));
+
+		// If the file is as we last wrote it and the history only grew since then, just add the new blocks.
+		File file = new File(filename).getAbsoluteFile();
+		SavedLpscr saved = savedLpscrFiles.get(file.getPath());
+		boolean append = saved != null && saved.isPrefixOf(file, baseState, blocks);
+		OutputStream stream;
+		try	{
+			stream = new BufferedOutputStream(new FileOutputStream(file, append));
+		} catch (FileNotFoundException e) {
+			throw new CommandException("Could not open file '" + filename + "' for writing.");
+		}
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(stream, Charsets.UTF_8));
 		try	{	
-			marshaller.marshal(new ObjectFactory().createScxml(states.get(lastDeserializeState).getScxmlFile().getScxml()), writer);
-			writer.println(LPSCR_BLOCK_DELIMETER);
-			for(int itState = lastDeserializeState+1; itState < states.size(); itState++)	{
-				State state = states.get(itState);
+			int firstBlock = 0;
+			if(append)
+				firstBlock = saved.blocks.size();
+			else	{
+				writer.println(LPSCR_EMBEDDED_SCXML_TAG);
+				writer.flush();
+				baseState.getScxmlFile().writeScxml(stream);
+				writer.println();
+				writer.println(LPSCR_BLOCK_DELIMETER);
+			}
+			for(State state : blocks.subList(firstBlock, blocks.size()))	{
 				writer.println(state.getCommand().toString());
 				writer.println(LPSCR_BLOCK_DELIMETER);
 			}
 			if(writer.checkError())	{
 				throw new CommandException("I/O error while writing '" + filename + "'.");
 			}
-		} catch (MarshalException e) {
-			throw new CommandException("BUG: DOM failed marshalling: '" + e.getMessage() + "'.", e);
-		} catch (JAXBException e) {
-			throw new CommandException("BUG: Could not marshal SCXML DOM.", e);
 		} finally {
 			writer.close();
+			savedLpscrFiles.remove(file.getPath());
 			if(writer.checkError())	{
 				throw new CommandException("I/O error while trying to close file '" + filename + "'.");
 			}
 		}
+		savedLpscrFiles.put(file.getPath(), new SavedLpscr(baseState, blocks, file));
 	}
 
-	private static void saveScxml(ScxmlScxmlType scxml, String filename) throws CommandException {
-		Marshaller marshaller = getScxmlMarshaller();
-		FileOutputStream fileOutputStream = getFileOutputStream(filename);
-		try	{	
-			marshaller.marshal(new ObjectFactory().createScxml(scxml), fileOutputStream);
-		} catch (MarshalException e) {
-			e.printStackTrace();
-			throw new CommandException("BUG: DOM failed marshalling: '" + e.getMessage() + "'.", e);
-		} catch (JAXBException e) {
-			throw new CommandException("BUG: Could not marshal SCXML DOM.", e);
+	private static void saveScxml(ScxmlFile scxmlFile, String filename) throws CommandException {
+		OutputStream stream = new BufferedOutputStream(getFileOutputStream(filename));
+		try	{
+			scxmlFile.writeScxml(stream);
 		} finally {
 			try	{
-				fileOutputStream.close();
+				stream.close();
 			} catch (IOException e) {
 				throw new CommandException("I/O error while trying to close file '" + filename + "'.", e);
 			}
@@ -445,14 +493,42 @@ public class ScxmlFile {
 		return fileOutputStream;
 	}
 
-	private static Marshaller getScxmlMarshaller() throws CommandException {
-		JAXBContext context;
-		try {
-			context = JAXBContext.newInstance("com.deepdownstudios.scxml.jaxb");
-		} catch (JAXBException e) {
-			throw new CommandException("BUG: JAXB was unable to initialize namespace 'com.deepdownstudios.scxml.jaxb'", e);
+	/**
+	 * The JAXB context for SCXML documents.  It is expensive to build, so it is built on first use and shared.
+	 */
+	private static JAXBContext getScxmlContext() throws CommandException {
+		JAXBContext ret = scxmlContext;
+		if(ret == null)	{
+			synchronized(ScxmlFile.class)	{
+				ret = scxmlContext;
+				if(ret == null)	{
+					try {
+						ret = JAXBContext.newInstance(JAXB_PACKAGE);
+					} catch (JAXBException e) {
+						throw new CommandException("BUG: JAXB was unable to initialize namespace '" + JAXB_PACKAGE + "'", e);
+					}
+					scxmlContext = ret;
+				}
+			}
 		}
-		
+		return ret;
+	}
+
+	/**
+	 * Do the one-time setup of JAXB and of the readers and writers commands use (ScxmlToProlog for new
+	 * documents, ScxmlStreamWriter, ScxmlStreamReader and the FactIndex) now, instead of during the first
+	 * command.  Used by SMSolver --warmup.
+	 */
+	public static void warmUp() throws CommandException {
+		ScxmlFile scxmlFile = new ScxmlFile(WARMUP_FILENAME);
+		scxmlFile.getScxmlProlog();
+		byte[] scxml = scxmlFile.getScxmlAsBytes();
+		ScxmlStreamReader.load(WARMUP_FILENAME, new StringReader(new String(scxml, Charsets.UTF_8))).getFactIndex();
+		getScxmlMarshaller();
+	}
+
+	private static Marshaller getScxmlMarshaller() throws CommandException {
+		JAXBContext context = getScxmlContext();
 		Marshaller marshaller;
 		try {
 			marshaller = context.createMarshaller();
@@ -468,22 +544,50 @@ public class ScxmlFile {
 	}
 
 	public String getScxmlAsString() throws CommandException {
+		return new String(getScxmlAsBytes(), Charsets.UTF_8);
+	}
+
+	/**
+	 * Marshal the document.  Callers that hold a State should prefer State.getSerializedScxml(),
+	 * which only does this once.
+	 * @return	The formatted SCXML document, UTF-8 encoded.
+	 * @throws CommandException		Error generating or marshalling the document
+	 */
+	public byte[] getScxmlAsBytes() throws CommandException {
+		ByteArrayOutputStream ret = new ByteArrayOutputStream();
+		writeScxml(ret);
+		return ret.toByteArray();
+	}
+
+	/**
+	 * Write the formatted SCXML document as UTF-8.  If the document exists as Prolog terms then it is
+	 * streamed straight from them; the DOM is only marshalled when there are no terms.
+	 * @param stream		Stream to write to.  It is not closed.
+	 * @throws CommandException		Error generating or writing the document
+	 */
+	public void writeScxml(OutputStream stream) throws CommandException {
+		List<Term> prolog;
+		synchronized(this)	{
+			prolog = scxmlProlog;
+		}
+		if(prolog != null)	{
+			ScxmlStreamWriter.write(statemachineName, prolog, stream);
+			return;
+		}
 		Marshaller marshaller = getScxmlMarshaller();
-		StringWriter ret = new StringWriter();
 		try	{	
-			marshaller.marshal(new ObjectFactory().createScxml(scxml), ret);
+			marshaller.marshal(new ObjectFactory().createScxml(getScxml()), stream);
 		} catch (MarshalException e) {
 			e.printStackTrace();
-			throw new CommandException("BUG: DOM failed marshalling to string: '" + e.getMessage() + "'.", e);
+			throw new CommandException("BUG: DOM failed marshalling: '" + e.getMessage() + "'.", e);
 		} catch (JAXBException e) {
-			throw new CommandException("BUG: Could not marshal SCXML DOM to string.", e);
+			throw new CommandException("BUG: Could not marshal SCXML DOM.", e);
 		}
-		return ret.toString();
 	}
 
 	// Constructor helper
 	private void setFilename(String filename) {
-		assert filename != null && scxml != null;
+		assert filename != null;
 		assert LPSCR_SUFFIX.equals(Files.getFileExtension(filename)) || SCXML_SUFFIX.equals(Files.getFileExtension(filename)); 
 		this.filenameWithSuffix = filename;
 		this.filenameBase = Files.getNameWithoutExtension(filename);
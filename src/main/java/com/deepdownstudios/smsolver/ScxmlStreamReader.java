@@ -0,0 +1,470 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import static com.deepdownstudios.smsolver.ScxmlPrologData.*;
+import static com.deepdownstudios.smsolver.ScxmlToProlog.*;
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+
+import com.google.common.io.Files;
+
+/**
+ * Single-pass SCXML reader that produces the same state/parent/edge/prop facts as ScxmlToProlog
+ * without building the JAXB object graph first.  Only the terms and the element nesting are ever
+ * held in memory.  Any change to the facts made here must be made to ScxmlToProlog too.
+ */
+public class ScxmlStreamReader {
+	private static final String ELT_SCXML = "scxml";
+	private static final String ELT_STATE = "state";
+	private static final String ELT_PARALLEL = "parallel";
+	private static final String ELT_FINAL = "final";
+	private static final String ELT_HISTORY = "history";
+	private static final String ELT_INITIAL = "initial";
+	private static final String ELT_TRANSITION = "transition";
+	private static final String ELT_ONENTRY = "onentry";
+	private static final String ELT_ONEXIT = "onexit";
+	private static final String ELT_DATAMODEL = "datamodel";
+	private static final String ELT_INVOKE = "invoke";
+	private static final String ELT_SCRIPT = "script";
+	private static final String ELT_RAISE = "raise";
+	private static final String ELT_IF = "if";
+	private static final String ELT_ELSEIF = "elseif";
+	private static final String ELT_ELSE = "else";
+	private static final String ELT_FOREACH = "foreach";
+	private static final String ELT_LOG = "log";
+	private static final String ELT_ASSIGN = "assign";
+	private static final String ELT_SEND = "send";
+	private static final String ELT_CANCEL = "cancel";
+	private static final String HISTORY_TYPE_DEEP = "deep";
+
+	private static final XMLInputFactory inputFactory = createInputFactory();
+
+	private final XMLStreamReader xml;
+	private final List<Term> ret = new ArrayList<Term>();
+	private final AnonymousIds ids = new AnonymousIds();
+
+	private ScxmlStreamReader(XMLStreamReader xml)	{
+		this.xml = xml;
+	}
+
+	/**
+	 * Load an SCXML file.
+	 * @param file		The .scxml file
+	 * @return			The document, as Prolog terms
+	 * @throws CommandException		The file could not be read or is not valid SCXML
+	 */
+	public static ScxmlFile load(File file) throws CommandException {
+		InputStream stream;
+		try {
+			stream = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			throw new CommandException("File '" + file.getAbsolutePath() + "' was not found.");
+		}
+		try	{
+			XMLStreamReader xml;
+			synchronized(inputFactory)	{
+				xml = inputFactory.createXMLStreamReader(stream);
+			}
+			return read(file.getPath(), xml, "'" + file.getAbsolutePath() + "' is not a valid SCXML file.");
+		} catch (XMLStreamException e) {
+			throw new CommandException("'" + file.getAbsolutePath() + "' is not a valid SCXML file.", e);
+		} finally {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				throw new CommandException("I/O error while trying to close file '" + file.getPath() + "'.", e);
+			}
+		}
+	}
+
+	/**
+	 * Load an SCXML document from a reader.
+	 * @param filename		Name of file to associate with the SCXML document.  Must have either .scxml or .lpscr suffix.
+	 * @param reader		The XML document
+	 * @return				The document, as Prolog terms
+	 * @throws CommandException		The document is not valid SCXML
+	 */
+	public static ScxmlFile load(String filename, Reader reader) throws CommandException {
+		try	{
+			XMLStreamReader xml;
+			synchronized(inputFactory)	{
+				xml = inputFactory.createXMLStreamReader(reader);
+			}
+			return read(filename, xml, "'" + filename + "' does not reference valid SCXML contents.");
+		} catch (XMLStreamException e) {
+			throw new CommandException("'" + filename + "' does not reference valid SCXML contents.", e);
+		}
+	}
+
+	private static ScxmlFile read(String filename, XMLStreamReader xml, String invalidMessage) throws CommandException {
+		try	{
+			ScxmlStreamReader reader = new ScxmlStreamReader(xml);
+			String name = reader.scxml();
+			reader.ids.resolveCollisions(reader.ret);
+			if(name == null)
+				name = Files.getNameWithoutExtension(filename);
+			return new ScxmlFile(filename, name, reader.ret);
+		} catch (XMLStreamException e) {
+			throw new CommandException(invalidMessage + "  " + e.getMessage(), e);
+		} finally {
+			try {
+				xml.close();
+			} catch (XMLStreamException e) {
+				throw new CommandException("BUG: Could not close SCXML stream reader.", e);
+			}
+		}
+	}
+
+	/**
+	 * Read the root element.
+	 * @return	The state machine name, or null if it has none.
+	 */
+	private String scxml() throws XMLStreamException, CommandException {
+		if(xml.nextTag() != XMLStreamConstants.START_ELEMENT || !ELT_SCXML.equals(xml.getLocalName()))
+			throw new CommandException("Root element must be <scxml>.");
+		String name = attr("name");
+		addInitialStates(TOP_STATE_ATOM, attr("initial"));
+
+		List<Term> onEntryHandlers = new ArrayList<Term>();
+		int childIndex = 0;
+		while(nextChild())	{
+			String elt = xml.getLocalName();
+			if(ELT_STATE.equals(elt))	{
+				state(TOP_STATE_ATOM, childIndex++);
+			} else if(ELT_PARALLEL.equals(elt))	{
+				parallel(TOP_STATE_ATOM, childIndex++);
+			} else if(ELT_FINAL.equals(elt))	{
+				finalState(TOP_STATE_ATOM, childIndex++);
+			} else if(ELT_SCRIPT.equals(elt))	{
+				// Model top-level scripts as onEntry into TOP_STATE_ATOM.
+				onEntryHandlers.add(executableContentHelper());
+			} else if(ELT_DATAMODEL.equals(elt))	{
+				throw new CommandException("SCXML child element <" + elt + "> is not yet supported.");
+			} else {
+				throw new CommandException("SCXML child element <" + elt + "> could not be interpreted.");
+			}
+		}
+		if(!onEntryHandlers.isEmpty())
+			ret.add(onEntryProp(TOP_STATE_ATOM, toSeqList(onEntryHandlers)));
+		return name;
+	}
+
+	private void state(Struct parent, int index) throws XMLStreamException, CommandException {
+		Struct id = ids.get(attr("id"), parent, index);
+		ret.add(simple(id));
+		ret.add(parent(parent, id));
+		addInitialStates(id, attr("initial"));
+
+		List<Term> onEntryHandlers = new ArrayList<Term>();
+		List<Term> onExitHandlers = new ArrayList<Term>();
+		int childIndex = 0;
+		while(nextChild())	{
+			String elt = xml.getLocalName();
+			if(ELT_ONENTRY.equals(elt))	{
+				onEntryHandlers.add(executableContent());
+			} else if(ELT_ONEXIT.equals(elt))	{
+				onExitHandlers.add(executableContent());
+			} else if(ELT_STATE.equals(elt))	{
+				state(id, childIndex++);
+			} else if(ELT_PARALLEL.equals(elt))	{
+				parallel(id, childIndex++);
+			} else if(ELT_FINAL.equals(elt))	{
+				finalState(id, childIndex++);
+			} else if(ELT_HISTORY.equals(elt))	{
+				history(id, childIndex++);
+			} else if(ELT_INVOKE.equals(elt))	{
+				throw new CommandException("The invoke element is not yet implemented.");
+			} else if(ELT_TRANSITION.equals(elt))	{
+				transition(id);
+			} else if(ELT_INITIAL.equals(elt))	{
+				initial(id);
+			} else if(ELT_DATAMODEL.equals(elt))	{
+				throw new CommandException("Simple state child element <" + elt + "> is not yet supported.");
+			} else {
+				throw new CommandException("Simple state child element <" + elt + "> could not be interpreted.");
+			}
+		}
+		if(!onEntryHandlers.isEmpty())
+			ret.add(onEntryProp(id, toSeqList(onEntryHandlers)));
+		if(!onExitHandlers.isEmpty())
+			ret.add(onExitProp(id, toSeqList(onExitHandlers)));
+	}
+
+	private void parallel(Struct parent, int index) throws XMLStreamException, CommandException {
+		Struct id = ids.get(attr("id"), parent, index);
+		ret.add(ScxmlToProlog.parallel(id));
+		ret.add(parent(parent, id));
+
+		List<Term> onEntryHandlers = new ArrayList<Term>();
+		List<Term> onExitHandlers = new ArrayList<Term>();
+		int childIndex = 0;
+		while(nextChild())	{
+			String elt = xml.getLocalName();
+			if(ELT_ONENTRY.equals(elt))	{
+				onEntryHandlers.add(executableContent());
+			} else if(ELT_ONEXIT.equals(elt))	{
+				onExitHandlers.add(executableContent());
+			} else if(ELT_STATE.equals(elt))	{
+				state(id, childIndex++);
+			} else if(ELT_PARALLEL.equals(elt))	{
+				parallel(id, childIndex++);
+			} else if(ELT_HISTORY.equals(elt))	{
+				history(id, childIndex++);
+			} else if(ELT_INVOKE.equals(elt))	{
+				throw new CommandException("The invoke element is not yet implemented.");
+			} else if(ELT_TRANSITION.equals(elt))	{
+				transition(id);
+			} else if(ELT_DATAMODEL.equals(elt))	{
+				throw new CommandException("Parallel state child element <" + elt + "> is not yet supported.");
+			} else {
+				throw new CommandException("Parallel state child element <" + elt + "> could not be interpreted.");
+			}
+		}
+		if(!onEntryHandlers.isEmpty())
+			ret.add(onEntryProp(id, toSeqList(onEntryHandlers)));
+		if(!onExitHandlers.isEmpty())
+			ret.add(onExitProp(id, toSeqList(onExitHandlers)));
+	}
+
+	private void history(Struct parent, int index) throws XMLStreamException, CommandException {
+		Struct id = ids.get(attr("id"), parent, index);
+		Struct historyType = HISTORY_TYPE_DEEP.equals(attr("type")) ? DEEP_ATOM : SHALLOW_ATOM;
+		ret.add(simple(id));
+		ret.add(parent(parent, id));
+		ret.add(new Struct(STATE_STR, new Term[] { historyType, id }));
+		while(nextChild())	{
+			String elt = xml.getLocalName();
+			if(ELT_TRANSITION.equals(elt))
+				transition(id);
+			else
+				throw new CommandException("History state child element <" + elt + "> could not be interpreted.");
+		}
+	}
+
+	private void finalState(Struct parent, int index) throws XMLStreamException, CommandException {
+		Struct id = ids.get(attr("id"), parent, index);
+		ret.add(ScxmlToProlog.finalState(id));
+		ret.add(parent(parent, id));
+
+		List<Term> onEntryHandlers = new ArrayList<Term>();
+		List<Term> onExitHandlers = new ArrayList<Term>();
+		while(nextChild())	{
+			String elt = xml.getLocalName();
+			if(ELT_ONENTRY.equals(elt))	{
+				onEntryHandlers.add(executableContent());
+			} else if(ELT_ONEXIT.equals(elt))	{
+				onExitHandlers.add(executableContent());
+			} else {
+				throw new CommandException("Final state child element <" + elt + "> could not be interpreted.");
+			}
+		}
+		if(!onEntryHandlers.isEmpty())
+			ret.add(onEntryProp(id, toSeqList(onEntryHandlers)));
+		if(!onExitHandlers.isEmpty())
+			ret.add(onExitProp(id, toSeqList(onExitHandlers)));
+	}
+
+	/**
+	 * The <initial> child of a compound state.  Its only child is a transition with targets but no cond,
+	 * event or actions.
+	 */
+	private void initial(Struct id) throws XMLStreamException, CommandException {
+		while(nextChild())	{
+			if(!ELT_TRANSITION.equals(xml.getLocalName()))
+				throw new CommandException("Initial element child <" + xml.getLocalName() + "> could not be interpreted.");
+			String targets = attr("target");
+			if(nextChild())
+				throw new CommandException("Initial transition actions are not yet supported: <" + xml.getLocalName() + ">");
+			addInitialStates(id, targets);
+		}
+	}
+
+	private void transition(Struct srcState) throws XMLStreamException, CommandException {
+		Term events = events(attr("event"));
+		Term cond = condition(attr("cond"));
+		String[] targets = idrefs(attr("target"));
+		if(targets.length > 1)	{
+			// TODO:
+			throw new CommandException("Fork-transitions are not yet supported: " + attr("target"));
+		}
+		Term target = targets.length == 0 ? NO_TARGET_ATOM : new Struct(targets[0]);
+
+		// Executable content defines actions
+		List<Term> actions = new ArrayList<Term>();
+		while(nextChild())
+			actions.add(executableContentHelper());
+		Term action = actions.isEmpty() ? NO_ACTION_ATOM : ExecutableContentStore.intern(toSeqList(actions));
+		ret.add(new Struct(EDGE_STR, new Term[] { srcState, target, cond, events, action } ));
+	}
+
+	private void addInitialStates(Struct fromState, String idrefs)	{
+		for(String target : idrefs(idrefs))
+			ret.add(initialProp(fromState, new Struct(target)));
+	}
+
+	/**
+	 * Read the children of the current element as a sequence of executable content.
+	 */
+	private Term executableContent() throws XMLStreamException, CommandException {
+		List<Term> terms = new ArrayList<Term>();
+		while(nextChild())
+			terms.add(executableContentHelper());
+		if(terms.isEmpty())
+			return NO_CONTENT_ATOM;
+		return toSeqList(terms);
+	}
+
+	/**
+	 * Read the current element, which must be executable content, through its end tag.
+	 */
+	private Term executableContentHelper() throws XMLStreamException, CommandException {
+		String elt = xml.getLocalName();
+		if(ELT_RAISE.equals(elt))	{
+			Term result = raise(attr("event"));
+			skipElement();
+			return result;
+		} else if(ELT_IF.equals(elt))	{
+			return ifContent();
+		} else if(ELT_FOREACH.equals(elt))	{
+			String indexStr = attr("index");
+			Struct index = indexStr == null ? NO_INDEX_ATOM : new Struct(indexStr);
+			Term result = new Struct(FOREACH_STR, new Term[] { new Struct(attr("array")), new Struct(attr("item")), index });
+			skipElement();
+			return result;
+		} else if(ELT_LOG.equals(elt))	{
+			String labelStr = attr("label");
+			String exprStr = attr("expr");
+			Struct label = labelStr == null ? NO_LABEL_ATOM : new Struct(labelStr);
+			Struct expr = exprStr == null ? NO_LOG_EXPR_ATOM : new Struct(exprStr);
+			skipElement();
+			return new Struct(LOG_STR, new Term[] { label, expr });
+		} else if(ELT_ASSIGN.equals(elt))	{
+			String location = attr("location");
+			String exprStr = attr("expr");
+			String content = elementText();
+			// assignment value is in children of XML element.  Not sure what to expect so keep the text followed by EOL.
+			Struct expr = new Struct(exprStr != null ? exprStr : content + EOL_STR);
+			return new Struct(ASSIGN_STR, new Term[] { new Struct(location), expr });
+		} else if(ELT_SCRIPT.equals(elt))	{
+			String src = attr("src");
+			String content = elementText();
+			Term script = src != null ? new Struct(SCRIPT_SRC_STR, new Term[] { new Struct(src) }) : new Struct(content);
+			return new Struct(SCRIPT_STR, new Term[] { script });
+		} else if(ELT_SEND.equals(elt) || ELT_CANCEL.equals(elt))	{
+			// TODO:
+			throw new CommandException("SCXML Element not yet implemented: <" + elt + ">");
+		}
+		throw new CommandException("Executable content could not be interpreted: <" + elt + ">");
+	}
+
+	private Term ifContent() throws XMLStreamException, CommandException {
+		Term ifCond = new Struct(attr("cond"));
+		Term elseIfCond = NO_COND_ATOM;
+		// DLP: The spec makes conditionals pretty worthless because
+		// multiple elseifs lead to conflicts so the spec doesn't include them.
+		List<List<Term>> branches = new ArrayList<List<Term>>();
+		branches.add(new ArrayList<Term>());
+		branches.add(new ArrayList<Term>());
+		branches.add(new ArrayList<Term>());
+		int branch = 0;
+		while(nextChild())	{
+			String elt = xml.getLocalName();
+			if(ELT_ELSEIF.equals(elt))	{
+				elseIfCond = new Struct(attr("cond"));
+				branch = 1;
+				skipElement();
+			} else if(ELT_ELSE.equals(elt))	{
+				branch = 2;
+				skipElement();
+			} else {
+				branches.get(branch).add(executableContentHelper());
+			}
+		}
+		Term[] content = new Term[3];
+		for(int i=0; i<3; i++)
+			content[i] = branches.get(i).isEmpty() ? NO_CONTENT_ATOM : toSeqList(branches.get(i));
+		return new Struct(IF_STR, new Term[] { ifCond, content[0], elseIfCond, content[1], content[2] });
+	}
+
+	/******************************** STREAM HELPERS ***********************************/
+
+	/**
+	 * Advance to the next child element of the current element.
+	 * @return	true if positioned on the child's start tag, false if positioned on the parent's end tag.
+	 */
+	private boolean nextChild() throws XMLStreamException {
+		while(true)	{
+			int event = xml.next();
+			if(event == XMLStreamConstants.START_ELEMENT)
+				return true;
+			if(event == XMLStreamConstants.END_ELEMENT)
+				return false;
+			if(event == XMLStreamConstants.END_DOCUMENT)
+				throw new XMLStreamException("Unexpected end of document.");
+			// Anything else is whitespace, comments or processing instructions.
+		}
+	}
+
+	/**
+	 * Skip the rest of the current element, including its children.
+	 */
+	private void skipElement() throws XMLStreamException {
+		int depth = 1;
+		while(depth > 0)	{
+			int event = xml.next();
+			if(event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if(event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+	}
+
+	/**
+	 * The text content of the current element (child elements are skipped).  Consumes the element.
+	 */
+	private String elementText() throws XMLStreamException {
+		StringBuilder ret = new StringBuilder();
+		int depth = 1;
+		while(depth > 0)	{
+			int event = xml.next();
+			if(event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if(event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+			else if(depth == 1 && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA))
+				ret.append(xml.getText());
+		}
+		return ret.toString();
+	}
+
+	private String attr(String name)	{
+		return xml.getAttributeValue(null, name);
+	}
+
+	private static String[] idrefs(String idrefs)	{
+		if(idrefs == null || idrefs.trim().isEmpty())
+			return new String[0];
+		return idrefs.trim().split("\\s+");
+	}
+
+	private static XMLInputFactory createInputFactory()	{
+		XMLInputFactory ret = XMLInputFactory.newInstance();
+		ret.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		ret.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		ret.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return ret;
+	}
+}
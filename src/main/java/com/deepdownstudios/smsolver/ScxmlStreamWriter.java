@@ -0,0 +1,371 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import static com.deepdownstudios.smsolver.ScxmlPrologData.*;
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+
+/**
+ * Writes an SCXML document straight from its Prolog terms.  The output is equivalent to running the
+ * terms through PrologToScxml and marshalling the DOM (same elements, attributes, order and
+ * indentation) but neither the DOM nor the document text is ever held in memory.
+ */
+public class ScxmlStreamWriter {
+	private static final String SCXML_NAMESPACE = "http://www.w3.org/2005/07/scxml";
+	private static final String SCXML_VERSION = "1.0";
+	private static final String ENCODING = "UTF-8";
+	private static final String INDENT = "    ";
+	// XMLStreamWriter cannot write the standalone pseudo-attribute that the JAXB marshaller writes.
+	private static final byte[] XML_DECLARATION =
+			("<?xml version=\"1.0\" encoding=\"" + ENCODING + "\" standalone=\"yes\"?>").getBytes(Charsets.UTF_8);
+
+	private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+	// Indexes over the terms.  Lists are in term order, which is the order PrologToScxml's queries return.
+	private final Map<String, String> stateTypes = new HashMap<String, String>();
+	private final Map<String, List<String>> children = new HashMap<String, List<String>>();
+	private final Map<String, List<Struct>> edges = new HashMap<String, List<Struct>>();
+	private final Map<String, List<String>> initials = new HashMap<String, List<String>>();
+	private final Map<String, List<Term>> onEntries = new HashMap<String, List<Term>>();
+	private final Map<String, List<Term>> onExits = new HashMap<String, List<Term>>();
+	private XMLStreamWriter xml;
+	private int depth = 0;
+
+	private ScxmlStreamWriter(List<Term> terms)	{
+		for(Term term : terms)	{
+			if(!(term instanceof Struct))
+				continue;
+			Struct struct = (Struct) term;
+			String functor = struct.getName();
+			if(STATE_STR.equals(functor) && struct.getArity() == 2)	{
+				stateTypes.put(struct.getArg(1).toUnquotedString(), struct.getArg(0).toUnquotedString());
+			} else if(PARENT_STR.equals(functor) && struct.getArity() == 2)	{
+				add(children, struct.getArg(0).toUnquotedString(), struct.getArg(1).toUnquotedString());
+			} else if(EDGE_STR.equals(functor) && struct.getArity() == 5)	{
+				add(edges, struct.getArg(0).toUnquotedString(), struct);
+			} else if(PROP_STR.equals(functor) && struct.getArity() == 3)	{
+				String id = struct.getArg(0).toUnquotedString();
+				String prop = struct.getArg(1).toUnquotedString();
+				if(INITIAL_STR.equals(prop))
+					add(initials, id, struct.getArg(2).toUnquotedString());
+				else if(ON_ENTRY_STR.equals(prop))
+					add(onEntries, id, ExecutableContentStore.resolve(struct.getArg(2)));
+				else if(ON_EXIT_STR.equals(prop))
+					add(onExits, id, ExecutableContentStore.resolve(struct.getArg(2)));
+			}
+		}
+	}
+
+	/**
+	 * Write the SCXML document described by terms.
+	 * @param name		State machine name
+	 * @param terms		The document as Prolog terms
+	 * @param out		Stream to write the UTF-8 document to.  It is flushed but not closed.
+	 * @throws CommandException		The terms do not describe a valid document or the write failed
+	 */
+	public static void write(String name, List<Term> terms, OutputStream out) throws CommandException {
+		ScxmlStreamWriter writer = new ScxmlStreamWriter(terms);
+		try	{
+			out.write(XML_DECLARATION);
+			synchronized(outputFactory)	{
+				writer.xml = outputFactory.createXMLStreamWriter(out, ENCODING);
+			}
+			writer.scxml(name);
+			writer.xml.flush();
+		} catch (XMLStreamException e) {
+			throw new CommandException("I/O error while writing SCXML document: " + e.getMessage(), e);
+		} catch (IOException e) {
+			throw new CommandException("I/O error while writing SCXML document: " + e.getMessage(), e);
+		} finally {
+			if(writer.xml != null)	{
+				try {
+					writer.xml.close();
+				} catch (XMLStreamException e) {
+					throw new CommandException("BUG: Could not close SCXML stream writer.", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the SCXML document described by terms to a channel (eg a FileChannel or socket channel).
+	 * @see #write(String, List, OutputStream)
+	 */
+	public static void write(String name, List<Term> terms, WritableByteChannel channel) throws CommandException {
+		write(name, terms, Channels.newOutputStream(channel));
+	}
+
+	private void scxml(String name) throws XMLStreamException, CommandException {
+		xml.setDefaultNamespace(SCXML_NAMESPACE);
+		xml.writeCharacters(EOL_STR);
+		xml.writeStartElement(SCXML_NAMESPACE, "scxml");
+		xml.writeDefaultNamespace(SCXML_NAMESPACE);
+		xml.writeAttribute("version", SCXML_VERSION);
+		if(name != null)
+			xml.writeAttribute("name", name);
+		writeInitialAttribute(TOP_STATE_STR);
+		depth++;
+
+		// Valid onEntry content for TOP_STATE has to be <script>
+		for(Term onEntryContent : get(onEntries, TOP_STATE_STR))	{
+			if(!(onEntryContent instanceof Struct) || !SCRIPT_STR.equals(((Struct)onEntryContent).getName()))
+				throw new CommandException("BUG: Invalid format for top-state <script>: " + onEntryContent.toString());
+			executableContent(onEntryContent);
+		}
+		for(String child : get(children, TOP_STATE_STR))
+			state(child);
+
+		end();
+		xml.writeCharacters(EOL_STR);
+		xml.writeEndDocument();
+	}
+
+	private void state(String id) throws XMLStreamException, CommandException {
+		String type = stateTypes.get(id);
+		if(SIMPLE_STR.equals(type))	{
+			compound("state", id, true);
+		} else if(PARALLEL_STR.equals(type))	{
+			compound("parallel", id, false);
+		} else if(DEEP_STR.equals(type) || SHALLOW_STR.equals(type))	{
+			history(id, type);
+		} else if(FINAL_STR.equals(type))	{
+			finalState(id);
+		} else {
+			throw new CommandException("BUG: Invalid state type given for state: " + id + " : " + type);
+		}
+	}
+
+	/**
+	 * Write a <state> or <parallel>.  They differ only in whether they have an initial attribute.
+	 */
+	private void compound(String elt, String id, boolean hasInitial) throws XMLStreamException, CommandException {
+		List<String> substates = get(children, id);
+		List<Struct> transitions = get(edges, id);
+		List<Term> entries = get(onEntries, id);
+		List<Term> exits = get(onExits, id);
+		boolean hasChildren = !(substates.isEmpty() && transitions.isEmpty() && entries.isEmpty() && exits.isEmpty());
+		start(elt, hasChildren);
+		xml.writeAttribute("id", id);
+		if(hasInitial)
+			writeInitialAttribute(id);
+		for(String substate : substates)
+			state(substate);
+		for(Struct edge : transitions)
+			transition(edge, true);
+		handlers("onentry", entries);
+		handlers("onexit", exits);
+		if(hasChildren)
+			end();
+	}
+
+	private void history(String id, String type) throws XMLStreamException, CommandException {
+		List<Struct> transitions = get(edges, id);
+		// there should be only one transition from history state.  TODO: What about forks?
+		assert transitions.size() <= 1;
+		boolean hasChildren = !transitions.isEmpty();
+		start("history", hasChildren);
+		xml.writeAttribute("id", id);
+		xml.writeAttribute("type", DEEP_STR.equals(type) ? "deep" : "shallow");
+		for(Struct edge : transitions)
+			transition(edge, false);		// history state transitions cannot have conditions or triggering events
+		if(hasChildren)
+			end();
+	}
+
+	private void finalState(String id) throws XMLStreamException, CommandException {
+		List<Term> entries = get(onEntries, id);
+		List<Term> exits = get(onExits, id);
+		boolean hasChildren = !(entries.isEmpty() && exits.isEmpty());
+		start("final", hasChildren);
+		xml.writeAttribute("id", id);
+		handlers("onentry", entries);
+		handlers("onexit", exits);
+		if(hasChildren)
+			end();
+	}
+
+	private void handlers(String elt, List<Term> contents) throws XMLStreamException, CommandException {
+		for(Term content : contents)	{
+			boolean hasContent = !isNoContent(content);
+			start(elt, hasContent);
+			if(hasContent)	{
+				executableContent(content);
+				end();
+			}
+		}
+	}
+
+	private void transition(Struct edge, boolean withTrigger) throws XMLStreamException, CommandException {
+		String target = edge.getArg(1).toUnquotedString();
+		String cond = edge.getArg(2).toUnquotedString();
+		String event = edge.getArg(3).toUnquotedString();
+		Term action = ExecutableContentStore.resolve(edge.getArg(4));
+		boolean hasAction = !action.equals(NO_ACTION_ATOM);
+		start("transition", hasAction);
+		if(withTrigger && !NO_EVENTS_STR.equals(event))
+			xml.writeAttribute("event", event);
+		if(withTrigger && !NO_COND_STR.equals(cond))
+			xml.writeAttribute("cond", cond);
+		if(!NO_TARGET_STR.equals(target))
+			xml.writeAttribute("target", target);
+		if(hasAction)	{
+			executableContent(action);
+			end();
+		}
+	}
+
+	/**
+	 * Mirrors PrologToScxml.parseExecutableContent.
+	 */
+	private void executableContent(Term term) throws XMLStreamException, CommandException {
+		if(!(term instanceof Struct))
+			throw new CommandException("BUG: Invalid format for executable content: " + term.toString());
+		Struct oec = (Struct) term;
+		String functor = oec.getName();
+		if(functor.equals(NO_CONTENT_STR))	{
+			return;
+		}
+		if(functor.equals(SEQ_STR))	{
+			assert oec.getArity() == 2;
+			executableContent(oec.getArg(0));
+			executableContent(oec.getArg(1));
+			return;
+		}
+		if(functor.equals(RAISE_STR))	{
+			assert oec.getArity() == 1;
+			start("raise", false);
+			xml.writeAttribute("event", oec.getArg(0).toUnquotedString());
+			return;
+		}
+		if(functor.equals(IF_STR))	{
+			assert oec.getArity() == 5;
+			start("if", true);
+			xml.writeAttribute("cond", oec.getArg(0).toUnquotedString());		// if-cond
+			executableContent(oec.getArg(1));		// if-branch
+			start("elseif", false);
+			xml.writeAttribute("cond", oec.getArg(2).toUnquotedString());		// elseif-cond, written even if no_cond
+			executableContent(oec.getArg(3));		// elseif-branch
+			if(!isNoContent(oec.getArg(4)))	{
+				start("else", false);
+				executableContent(oec.getArg(4));		// else-branch
+			}
+			end();
+			return;
+		}
+		if(functor.equals(FOREACH_STR))	{
+			assert oec.getArity() == 3;
+			start("foreach", false);
+			xml.writeAttribute("array", oec.getArg(0).toUnquotedString());
+			xml.writeAttribute("item", oec.getArg(1).toUnquotedString());
+			String index = oec.getArg(2).toUnquotedString();
+			if(!index.equals(NO_INDEX_STR))
+				xml.writeAttribute("index", index);
+			return;
+		}
+		if(functor.equals(LOG_STR))	{
+			assert oec.getArity() == 2;
+			start("log", false);
+			String label = oec.getArg(0).toUnquotedString();
+			String expr = oec.getArg(1).toUnquotedString();
+			if(!label.equals(NO_LABEL_STR))
+				xml.writeAttribute("label", label);
+			if(!expr.equals(NO_LOG_EXPR_STR))
+				xml.writeAttribute("expr", expr);
+			return;
+		}
+		if(functor.equals(ASSIGN_STR))	{
+			assert oec.getArity() == 2;
+			start("assign", false);
+			xml.writeAttribute("location", oec.getArg(0).toUnquotedString());
+			xml.writeAttribute("expr", oec.getArg(1).toUnquotedString());
+			return;
+		}
+		if(functor.equals(SCRIPT_STR))	{
+			assert oec.getArity() == 1;
+			if(!(oec.getArg(0) instanceof Struct))
+				throw new CommandException("BUG: Invalid format for <script> executable content: " + oec.toString());
+			Struct src = (Struct) oec.getArg(0);
+			if(src.getName().equals(SCRIPT_SRC_STR))	{
+				assert src.getArity() == 1;
+				start("script", false);
+				xml.writeAttribute("src", src.getArg(0).toUnquotedString());
+			} else {
+				// Text content is written inline so that no whitespace is added to the script.
+				indent();
+				xml.writeStartElement(SCXML_NAMESPACE, "script");
+				xml.writeCharacters(src.toUnquotedString());
+				xml.writeEndElement();
+			}
+			return;
+		}
+		throw new CommandException("BUG: Unable to interpret executable content: " + oec.toString());
+	}
+
+	private void writeInitialAttribute(String id) throws XMLStreamException {
+		List<String> initialStates = get(initials, id);
+		if(!initialStates.isEmpty())
+			xml.writeAttribute("initial", Joiner.on(' ').join(initialStates));
+	}
+
+	/******************************** FORMATTING ***********************************/
+
+	/**
+	 * Start an element on its own line.
+	 * @param hasChildren	If false, the element is written as an empty element and must not be end()ed.
+	 */
+	private void start(String elt, boolean hasChildren) throws XMLStreamException {
+		indent();
+		if(hasChildren)	{
+			xml.writeStartElement(SCXML_NAMESPACE, elt);
+			depth++;
+		} else {
+			xml.writeEmptyElement(SCXML_NAMESPACE, elt);
+		}
+	}
+
+	private void end() throws XMLStreamException {
+		depth--;
+		indent();
+		xml.writeEndElement();
+	}
+
+	private void indent() throws XMLStreamException {
+		StringBuilder whitespace = new StringBuilder(EOL_STR);
+		for(int i=0; i<depth; i++)
+			whitespace.append(INDENT);
+		xml.writeCharacters(whitespace.toString());
+	}
+
+	static boolean isNoContent(Term term)	{
+		return (term instanceof Struct) && NO_CONTENT_STR.equals(((Struct)term).getName()) && ((Struct)term).getArity() == 0;
+	}
+
+	private static <T> void add(Map<String, List<T>> map, String key, T value)	{
+		List<T> list = map.get(key);
+		if(list == null)	{
+			list = new ArrayList<T>();
+			map.put(key, list);
+		}
+		list.add(value);
+	}
+
+	private static <T> List<T> get(Map<String, List<T>> map, String key)	{
+		List<T> list = map.get(key);
+		return list == null ? new ArrayList<T>() : list;
+	}
+}
@@ -2,7 +2,6 @@ package com.deepdownstudios.smsolver;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
 
 import javax.xml.bind.JAXBElement;
 
@@ -31,26 +30,35 @@ import com.deepdownstudios.scxml.jaxb.ScxmlScxmlType;
 import com.deepdownstudios.scxml.jaxb.ScxmlSendType;
 import com.deepdownstudios.scxml.jaxb.ScxmlStateType;
 import com.deepdownstudios.scxml.jaxb.ScxmlTransitionType;
+import com.deepdownstudios.smsolver.ConversionPool.ConversionTask;
 import com.google.common.base.Joiner;
 
 public class ScxmlToProlog {
-	public static List<Term> scxmlToProlog(ScxmlScxmlType scxml) throws CommandException {
+	public static List<Term> scxmlToProlog(final ScxmlScxmlType scxml) throws CommandException {
+		// Small documents are converted on this thread.  Large ones are split across the ConversionPool.
+		if(countStates(scxml.getScxmlScxmlMix(), ConversionPool.FORK_THRESHOLD) < ConversionPool.FORK_THRESHOLD)
+			return convert(scxml);
+		return ConversionPool.invoke(new ConversionTask<List<Term>>() {
+			private static final long serialVersionUID = 1L;
+			protected List<Term> convert() throws CommandException {
+				return ScxmlToProlog.convert(scxml);
+			}
+		});
+	}
+
+	private static List<Term> convert(ScxmlScxmlType scxml) throws CommandException {
 		List<Term> ret = new ArrayList<Term>();
+		List<SubtreeTask> forked = new ArrayList<SubtreeTask>();
+		AnonymousIds ids = new AnonymousIds();
 
 		addInitialStates(ret, TOP_STATE_ATOM, scxml.getInitial());
+		int childIndex = 0;
 		
 		List<Term> onEntryHandlers = new ArrayList<Term>();
 		for(Object iChildObj : scxml.getScxmlScxmlMix())	{
 			Object iChild = resolveJAXBObject(iChildObj);
-			if(iChild instanceof ScxmlStateType)	{
-				ScxmlStateType state = (ScxmlStateType) iChild;
-				addSimpleState(ret, TOP_STATE_STR, state);
-			} else if(iChild instanceof ScxmlParallelType)	{
-				ScxmlParallelType state = (ScxmlParallelType) iChild; 
-				addParallelState(ret, TOP_STATE_STR, state);
-			} else if(iChild instanceof ScxmlFinalType)	{
-				ScxmlFinalType state = (ScxmlFinalType) iChild; 
-				addFinalState(ret, TOP_STATE_STR, state);
+			if(iChild instanceof ScxmlStateType || iChild instanceof ScxmlParallelType || iChild instanceof ScxmlFinalType)	{
+				addSubstate(ret, forked, ids, TOP_STATE_ATOM, childIndex++, iChild);
 			} else if(iChild instanceof ScxmlScriptType)	{
 				// Model top-level scripts as onEntry into TOP_STATE_ATOM.
 				Term script = executableContentHelper(iChild);
@@ -61,10 +69,12 @@ public class ScxmlToProlog {
 				throw new CommandException("SCXML child element " + iChild + " could not be interpreted.");
 			}
 		}
+		joinSubstates(ret, forked);
 		
 		// THIS IS A PROBLEM because I cant easily pull apart the parameters when the arity is random as it is here.
 		if(!onEntryHandlers.isEmpty())
 			ret.add(onEntryProp(TOP_STATE_ATOM, toSeqList(onEntryHandlers)));
+		ids.resolveCollisions(ret);
 		return ret;
 	}
 
@@ -89,18 +99,18 @@ public class ScxmlToProlog {
 		}
 	}
 
-	private static void addSimpleState(List<Term> ret, String parentStr, ScxmlStateType state) throws CommandException {
-		String idStr = state.getId();
-		if(idStr == null)
-			idStr = genId();
-		Struct id = new Struct(idStr);
+	private static void addSimpleState(List<Term> ret, AnonymousIds ids, Struct parent, int index, ScxmlStateType state) throws CommandException {
+		Struct id = ids.get(state.getId(), parent, index);
 		ret.add(simple(id));
-		if(!TOP_STATE_STR.equals(parentStr))		// parent(top_state,xxx) is not supposed to be given to clingo
-			ret.add(parent(new Struct(parentStr), id));
+		// parent(top_state,xxx) is not supposed to be given to clingo (ClingoSolver filters it) but the
+		// stream writer needs it to find top-level states.
+		ret.add(parent(parent, id));
 		addInitialStates(ret, id, state.getInitial());
 		
 		List<Term> onEntryHandlers = new ArrayList<Term>();
 		List<Term> onExitHandlers = new ArrayList<Term>();
+		List<SubtreeTask> forked = new ArrayList<SubtreeTask>();
+		int childIndex = 0;
 		for(Object childObj : state.getScxmlStateMix())	{
 			Object child = resolveJAXBObject(childObj);
 			if(child instanceof ScxmlOnentryType)	{
@@ -109,18 +119,9 @@ public class ScxmlToProlog {
 			} else if(child instanceof ScxmlOnexitType)	{
 				ScxmlOnexitType executable = (ScxmlOnexitType) child;
 				onExitHandlers.add(onexit(executable));
-			} else if(child instanceof ScxmlStateType)	{
-				ScxmlStateType substate = (ScxmlStateType) child;
-				addSimpleState(ret, idStr, substate);
-			} else if(child instanceof ScxmlParallelType)	{
-				ScxmlParallelType substate = (ScxmlParallelType) child; 
-				addParallelState(ret, idStr, substate);
-			} else if(child instanceof ScxmlFinalType)	{
-				ScxmlFinalType substate = (ScxmlFinalType) child; 
-				addFinalState(ret, idStr, substate);
-			} else if(child instanceof ScxmlHistoryType)	{
-				ScxmlHistoryType substate = (ScxmlHistoryType) child; 
-				addHistoryState(ret, idStr, substate);
+			} else if(child instanceof ScxmlStateType || child instanceof ScxmlParallelType || 
+					child instanceof ScxmlFinalType || child instanceof ScxmlHistoryType)	{
+				addSubstate(ret, forked, ids, id, childIndex++, child);
 			} else if(child instanceof ScxmlInvokeType)	{
 				ScxmlInvokeType invokeElt = (ScxmlInvokeType) child; 
 				throw new CommandException("The invoke element is not yet implemented: " + invokeElt);
@@ -143,6 +144,7 @@ public class ScxmlToProlog {
 				throw new CommandException("Simple state child element " + child + " could not be interpreted.");
 			}
 		}
+		joinSubstates(ret, forked);
 		if(!onEntryHandlers.isEmpty())	{
 			ret.add(onEntryProp(id, toSeqList(onEntryHandlers)));
 		}
@@ -151,6 +153,89 @@ public class ScxmlToProlog {
 		}
 	}
 
+	/**
+	 * Convert the index'th child state of parent.  Large subtrees are forked into the ConversionPool (when running
+	 * in it) and their terms are spliced into ret, at the position they would have had, by joinSubstates.
+	 */
+	private static void addSubstate(List<Term> ret, List<SubtreeTask> forked, AnonymousIds ids, Struct parent, int index,
+			Object state) throws CommandException {
+		if(ConversionPool.canFork() && countStates(state, ConversionPool.FORK_THRESHOLD) >= ConversionPool.FORK_THRESHOLD)	{
+			SubtreeTask task = new SubtreeTask(ret.size(), ids, parent, index, state);
+			task.fork();
+			forked.add(task);
+		} else {
+			addState(ret, ids, parent, index, state);
+		}
+	}
+
+	private static void joinSubstates(List<Term> ret, List<SubtreeTask> forked) throws CommandException {
+		// Insert from the back so that the positions of the earlier tasks stay valid.
+		for(int i=forked.size()-1; i>=0; i--)	{
+			SubtreeTask task = forked.get(i);
+			ret.addAll(task.position, ConversionPool.join(task));
+		}
+	}
+
+	private static void addState(List<Term> ret, AnonymousIds ids, Struct parent, int index, Object state) throws CommandException {
+		if(state instanceof ScxmlStateType)
+			addSimpleState(ret, ids, parent, index, (ScxmlStateType) state);
+		else if(state instanceof ScxmlParallelType)
+			addParallelState(ret, ids, parent, index, (ScxmlParallelType) state);
+		else if(state instanceof ScxmlFinalType)
+			addFinalState(ret, ids, parent, index, (ScxmlFinalType) state);
+		else if(state instanceof ScxmlHistoryType)
+			addHistoryState(ret, ids, parent, index, (ScxmlHistoryType) state);
+		else
+			throw new CommandException("BUG: Not a state element: " + state);
+	}
+
+	private static class SubtreeTask extends ConversionTask<List<Term>>	{
+		private static final long serialVersionUID = 1L;
+		private final int position;
+		private final AnonymousIds ids;
+		private final Struct parent;
+		private final int index;
+		private final Object state;
+
+		SubtreeTask(int position, AnonymousIds ids, Struct parent, int index, Object state)	{
+			this.position = position;
+			this.ids = ids;
+			this.parent = parent;
+			this.index = index;
+			this.state = state;
+		}
+
+		protected List<Term> convert() throws CommandException {
+			List<Term> ret = new ArrayList<Term>();
+			addState(ret, ids, parent, index, state);
+			return ret;
+		}
+	}
+
+	/**
+	 * Count the states in the subtree rooted at stateObj, stopping once limit is reached.
+	 */
+	private static int countStates(Object stateObj, int limit)	{
+		Object state = resolveJAXBObject(stateObj);
+		if(state instanceof ScxmlStateType)
+			return 1 + countStates(((ScxmlStateType) state).getScxmlStateMix(), limit - 1);
+		if(state instanceof ScxmlParallelType)
+			return 1 + countStates(((ScxmlParallelType) state).getScxmlParallelMix(), limit - 1);
+		if(state instanceof ScxmlFinalType || state instanceof ScxmlHistoryType)
+			return 1;
+		return 0;
+	}
+
+	private static int countStates(List<Object> mix, int limit)	{
+		int count = 0;
+		for(Object child : mix)	{
+			if(count >= limit)
+				break;
+			count += countStates(child, limit - count);
+		}
+		return count;
+	}
+
 	private static void addTransition(List<Term> ret, Struct srcState, ScxmlTransitionType transition) throws CommandException {
 		Term events = events(transition.getEvent());
 		Term cond = condition(transition.getCond());
@@ -160,7 +245,7 @@ public class ScxmlToProlog {
 			// TODO:
 			throw new CommandException("Fork-transitions are not yet supported: " + transition.toString());
 		}
-		if(targets != null)	{
+		if(targets != null && !targets.isEmpty())	{
 			String targetId = getId(targets.get(0));
 			target = new Struct(targetId);
 		} else {
@@ -170,7 +255,7 @@ public class ScxmlToProlog {
 		// Executable content defines actions
 		Term action;
 		if(!transition.getScxmlCoreExecutablecontent().isEmpty())	{
-			action = executableContent(transition.getScxmlCoreExecutablecontent());
+			action = ExecutableContentStore.intern(executableContent(transition.getScxmlCoreExecutablecontent()));
 		} else {
 			action = NO_ACTION_ATOM;
 		}
@@ -196,16 +281,15 @@ public class ScxmlToProlog {
 		throw new CommandException("ID of element type could not be interpreted: " + elt.toString());
 	}
 
-	private static void addParallelState(List<Term> ret, String parentStr, ScxmlParallelType state) throws CommandException {
-		String idStr = state.getId();
-		if(idStr == null)
-			idStr = genId();
-		Struct id = new Struct(idStr);
+	private static void addParallelState(List<Term> ret, AnonymousIds ids, Struct parent, int index, ScxmlParallelType state) throws CommandException {
+		Struct id = ids.get(state.getId(), parent, index);
 		ret.add(parallel(id));
-		ret.add(parent(new Struct(parentStr), id));
+		ret.add(parent(parent, id));
 		
 		List<Term> onEntryHandlers = new ArrayList<Term>();
 		List<Term> onExitHandlers = new ArrayList<Term>();
+		List<SubtreeTask> forked = new ArrayList<SubtreeTask>();
+		int childIndex = 0;
 		for(Object childObj : state.getScxmlParallelMix())	{
 			Object child = resolveJAXBObject(childObj);
 			if(child instanceof ScxmlOnentryType)	{
@@ -214,15 +298,9 @@ public class ScxmlToProlog {
 			} else if(child instanceof ScxmlOnexitType)	{
 				ScxmlOnexitType executable = (ScxmlOnexitType) child;
 				onExitHandlers.add(onexit(executable));
-			} else if(child instanceof ScxmlStateType)	{
-				ScxmlStateType substate = (ScxmlStateType) child;
-				addSimpleState(ret, idStr, substate);
-			} else if(child instanceof ScxmlParallelType)	{
-				ScxmlParallelType substate = (ScxmlParallelType) child; 
-				addParallelState(ret, idStr, substate);
-			} else if(child instanceof ScxmlHistoryType)	{
-				ScxmlHistoryType substate = (ScxmlHistoryType) child; 
-				addHistoryState(ret, idStr, substate);
+			} else if(child instanceof ScxmlStateType || child instanceof ScxmlParallelType || 
+					child instanceof ScxmlHistoryType)	{
+				addSubstate(ret, forked, ids, id, childIndex++, child);
 			} else if(child instanceof ScxmlInvokeType)	{
 				ScxmlInvokeType invokeElt = (ScxmlInvokeType) child; 
 				throw new CommandException("The invoke element is not yet implemented: " + invokeElt);
@@ -235,6 +313,7 @@ public class ScxmlToProlog {
 				throw new CommandException("Simple state child element " + child + " could not be interpreted.");
 			}
 		}
+		joinSubstates(ret, forked);
 		if(!onEntryHandlers.isEmpty())	{
 			ret.add(onEntryProp(id, toSeqList(onEntryHandlers)));
 		}
@@ -243,13 +322,10 @@ public class ScxmlToProlog {
 		}
 	}
 
-	private static void addHistoryState(List<Term> ret, String parentStr, ScxmlHistoryType state) throws CommandException {
-		String idStr = state.getId();
-		if(idStr == null)
-			idStr = genId();
-		Struct id = new Struct(idStr);
+	private static void addHistoryState(List<Term> ret, AnonymousIds ids, Struct parent, int index, ScxmlHistoryType state) throws CommandException {
+		Struct id = ids.get(state.getId(), parent, index);
 		ret.add(simple(id));
-		ret.add(parent(new Struct(parentStr), id));
+		ret.add(parent(parent, id));
 		HistoryTypeDatatype historyDatatype = state.getType();
 		Struct historyType;
 		if(historyDatatype == HistoryTypeDatatype.DEEP)
@@ -262,13 +338,10 @@ public class ScxmlToProlog {
 			addTransition(ret, id, transition);
 	}
 
-	private static void addFinalState(List<Term> ret, String parentStr, ScxmlFinalType state) throws CommandException {
-		String idStr = state.getId();
-		if(idStr == null)
-			idStr = genId();
-		Struct id = new Struct(idStr);
+	private static void addFinalState(List<Term> ret, AnonymousIds ids, Struct parent, int index, ScxmlFinalType state) throws CommandException {
+		Struct id = ids.get(state.getId(), parent, index);
 		ret.add(finalState(id));
-		ret.add(parent(new Struct(parentStr), id));
+		ret.add(parent(parent, id));
 		
 		List<Term> onEntryHandlers = new ArrayList<Term>();
 		List<Term> onExitHandlers = new ArrayList<Term>();
@@ -344,7 +417,7 @@ public class ScxmlToProlog {
 				label = NO_LABEL_ATOM;
 			else
 				label = new Struct(logType.getLabel());
-			if(logType.getLabel() == null)
+			if(logType.getExpr() == null)
 				expr = NO_LOG_EXPR_ATOM;
 			else
 				expr = new Struct(logType.getExpr());
@@ -388,7 +461,7 @@ public class ScxmlToProlog {
 		}
 	}
 
-	private static Term toSeqList(List<Term> terms) throws CommandException	{
+	static Term toSeqList(List<Term> terms) throws CommandException	{
 		if(terms.isEmpty())
 			throw new CommandException("BUG: Empty sequential operations list.");
 		Term ret = terms.get(0);
@@ -397,8 +470,11 @@ public class ScxmlToProlog {
 		return ret;
 	}
 	
+	/**
+	 * An empty block, such as <onentry/> or an if without an else, is noop.
+	 */
 	private static Term executableContent(List<Object> executablecontent) throws CommandException {
-		if(executablecontent == null)	{
+		if(executablecontent == null || executablecontent.isEmpty())	{
 			return NO_CONTENT_ATOM;
 		}
 		List<Term> terms = new ArrayList<Term>();
@@ -408,54 +484,50 @@ public class ScxmlToProlog {
 		return toSeqList(terms);
 	}
 
-	private static Term raise(String event) {
+	static Term raise(String event) {
 		return new Struct(RAISE_STR, new Term[] { new Struct(event) });
 	}
 
-	private static Struct onEntryProp(Struct id, Term onEntryHandlers) {
-		return prop(id, ON_ENTRY_ATOM, onEntryHandlers);
+	static Struct onEntryProp(Struct id, Term onEntryHandlers) {
+		return prop(id, ON_ENTRY_ATOM, ExecutableContentStore.intern(onEntryHandlers));
 	}
 
-	private static Struct onExitProp(Struct id, Term onExitHandlers) {
-		return prop(id, ON_EXIT_ATOM, onExitHandlers);
+	static Struct onExitProp(Struct id, Term onExitHandlers) {
+		return prop(id, ON_EXIT_ATOM, ExecutableContentStore.intern(onExitHandlers));
 	}
 
-	private static Struct simple(Struct id) {
+	static Struct simple(Struct id) {
 		return new Struct(STATE_STR, new Term[] { SIMPLE_ATOM, id });
 	}
 
-	private static Struct parallel(Struct id) {
+	static Struct parallel(Struct id) {
 		return new Struct(STATE_STR, new Term[] { PARALLEL_ATOM, id });
 	}
 
-	private static Struct finalState(Struct id) {	// NOTE: 'final' is a Java keyword so name is 'finalState'
+	static Struct finalState(Struct id) {	// NOTE: 'final' is a Java keyword so name is 'finalState'
 		return new Struct(STATE_STR, new Term[] { FINAL_ATOM, id });
 	}
 
-	private static String genId() {
-		return String.valueOf(UUID.randomUUID().toString());
-	}
-
-	private static Struct parent(Struct parent, Struct child) {
+	static Struct parent(Struct parent, Struct child) {
 		return new Struct(PARENT_STR, new Term[] { parent, child });
 	}
 
-	private static Struct prop(Term param0, Term param1, 
+	static Struct prop(Term param0, Term param1, 
 			Term param2) {
 		return new Struct(PROP_STR, new Term[] {param0, param1, param2});
 	}
 	
-	private static Struct initialProp(Struct parent, Struct target)	{
+	static Struct initialProp(Struct parent, Struct target)	{
 		return prop(parent, INITIAL_ATOM, target);
 	}
 
-	private static Term events(String event) {
+	static Term events(String event) {
 		if(event == null)
 			return NO_EVENTS_ATOM;
 		return new Struct(event);
 	}
 
-	private static Term condition(String cond) {
+	static Term condition(String cond) {
 		if(cond == null)
 			return NO_COND_ATOM;
 		return new Struct(cond);
@@ -0,0 +1,85 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * The canonical serialized form of an SCXML document.  Instances are immutable so they can be
+ * shared between threads and endpoints.  The version tag is a strong validator: two documents have
+ * the same tag iff they have the same bytes.
+ */
+public class SerializedScxml {
+	private final byte[] utf8;
+	private final String versionTag;
+	private byte[] gzipped = null;		///< Computed on first use
+	private String string = null;		///< Computed on first use
+
+	/**
+	 * @param utf8		The UTF-8 encoded document.  This object takes ownership of the array.
+	 */
+	public SerializedScxml(byte[] utf8)	{
+		assert utf8 != null;
+		this.utf8 = utf8;
+		this.versionTag = Hashing.sha256().hashBytes(utf8).toString();
+	}
+
+	/**
+	 * The document as UTF-8.  Returns a copy.
+	 */
+	public byte[] getBytes() {
+		return Arrays.copyOf(utf8, utf8.length);
+	}
+
+	/**
+	 * Length of the document, in UTF-8 bytes.
+	 */
+	public int getLength() {
+		return utf8.length;
+	}
+
+	/**
+	 * The document as a String.
+	 */
+	public synchronized String getString() {
+		if(string == null)
+			string = new String(utf8, Charsets.UTF_8);
+		return string;
+	}
+
+	/**
+	 * The document as gzipped UTF-8.  Returns a copy.
+	 */
+	public synchronized byte[] getGzippedBytes() {
+		if(gzipped == null)	{
+			ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length / 4 + 64);
+			try	{
+				GZIPOutputStream gzip = new GZIPOutputStream(out);
+				gzip.write(utf8);
+				gzip.close();
+			} catch (IOException e) {
+				throw new RuntimeException("BUG: I/O error while compressing an in-memory buffer.", e);
+			}
+			gzipped = out.toByteArray();
+		}
+		return Arrays.copyOf(gzipped, gzipped.length);
+	}
+
+	/**
+	 * A strong version tag for the document (hex SHA-256 of the UTF-8 bytes).
+	 */
+	public String getVersionTag() {
+		return versionTag;
+	}
+
+	/**
+	 * True iff this document is the one identified by versionTag.
+	 */
+	public boolean hasVersion(String versionTag) {
+		return this.versionTag.equals(versionTag);
+	}
+}
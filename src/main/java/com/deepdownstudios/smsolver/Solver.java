@@ -0,0 +1,15 @@
+package com.deepdownstudios.smsolver;
+
+/**
+ * Something that can run ASP commands (set/change/delete/test) on a state to produce a new SCXML document.
+ */
+public interface Solver {
+	/**
+	 * Run 'command' on 'state'.
+	 * @param state		The state to use as input
+	 * @param command	The commands to execute on the state
+	 * @return			The result as a new SCXML model
+	 * @throws CommandException		The commands were not satisfiable or could not be run
+	 */
+	ScxmlFile run(State state, Command command) throws CommandException;
+}
@@ -0,0 +1,199 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Chooses the clingo configuration for each solve from past observations.  Solves are grouped into
+ * buckets by input size (powers of two) and, for each bucket, the store records the number of solves
+ * and the mean solve time of each configuration.  A solve uses the configuration with the best mean
+ * time in its bucket, except that configurations that have not been tried yet are tried first and,
+ * with probability explorationRate, a random configuration is tried instead.
+ *
+ * The store is a properties file (by default ~/.smsolver.tuning) with lines like
+ * 		size_2048.jumpy = 12,35.5
+ * meaning 12 solves with a mean of 35.5ms.  It is rewritten after every observation.
+ */
+public class SolverTuner {
+	/** The clingo configurations that are tried. */
+	public static final List<String> CONFIGURATIONS = ImmutableList.of("auto", "jumpy", "tweety", "trendy", "crafty");
+	public static final double DEFAULT_EXPLORATION_RATE = 0.1;
+	public static final String DEFAULT_STORE_NAME = ".smsolver.tuning";
+	private static final String BUCKET_PREFIX = "size_";
+	private static final String STORE_COMMENT = "smsolver clingo configuration timings: <size bucket>.<configuration> = <solves>,<mean ms>";
+	private static final String TIME_STAT = "Time";
+
+	private final File storeFile;
+	private final double explorationRate;
+	private final Properties observations = new Properties();
+	private final Random random = new Random();
+
+	/**
+	 * Solve statistics read from clingo's --stats output.
+	 */
+	public static class Stats	{
+		private double seconds = -1;
+
+		/**
+		 * Read one line of clingo output.  Lines that are not statistics are ignored.
+		 */
+		public void parseLine(String line)	{
+			// eg 'Time         : 0.004s (Solving: 0.00s 1st Model: 0.00s Unsat: 0.00s)'
+			int colon = line.indexOf(':');
+			if(colon < 0 || !TIME_STAT.equals(line.substring(0, colon).trim()))
+				return;
+			String value = line.substring(colon+1).trim();
+			int end = value.indexOf('s');
+			if(end <= 0)
+				return;
+			try	{
+				seconds = Double.parseDouble(value.substring(0, end));
+			} catch (NumberFormatException e) {
+				// Not the line we thought it was.  Ignore it.
+			}
+		}
+
+		/**
+		 * Total time clingo reported, in milliseconds, or -1 if it was not reported.
+		 */
+		public double getMillis()	{
+			return seconds < 0 ? -1 : seconds * 1000.0;
+		}
+	}
+
+	/**
+	 * @param storeFile			File to keep observations in.  It is created if it does not exist.
+	 * @param explorationRate	Probability of trying a random configuration instead of the best one.
+	 * @throws CommandException	The store exists but could not be read.
+	 */
+	public SolverTuner(File storeFile, double explorationRate) throws CommandException {
+		assert storeFile != null && explorationRate >= 0 && explorationRate <= 1;
+		this.storeFile = storeFile;
+		this.explorationRate = explorationRate;
+		load();
+	}
+
+	/**
+	 * The default store, in the user's home directory.
+	 */
+	public static File getDefaultStoreFile()	{
+		return new File(System.getProperty("user.home"), DEFAULT_STORE_NAME);
+	}
+
+	/**
+	 * Choose the configuration for a solve.
+	 * @param size		Number of input facts and commands.
+	 * @return			A member of CONFIGURATIONS
+	 */
+	public synchronized String choose(int size)	{
+		String bucket = getBucket(size);
+		String best = null;
+		double bestMillis = Double.MAX_VALUE;
+		for(String configuration : CONFIGURATIONS)	{
+			double[] observation = getObservation(bucket, configuration);
+			if(observation == null)
+				return configuration;		// Try everything once
+			if(observation[1] < bestMillis)	{
+				best = configuration;
+				bestMillis = observation[1];
+			}
+		}
+		if(random.nextDouble() < explorationRate)
+			return CONFIGURATIONS.get(random.nextInt(CONFIGURATIONS.size()));
+		return best;
+	}
+
+	/**
+	 * Record the time a solve took.
+	 * @param size				Number of input facts and commands.
+	 * @param configuration		The configuration that was used
+	 * @param millis			The solve time.  Negative values are ignored.
+	 */
+	public synchronized void record(int size, String configuration, double millis)	{
+		if(millis < 0)
+			return;
+		String key = getBucket(size) + '.' + configuration;
+		double[] observation = getObservation(getBucket(size), configuration);
+		long count = observation == null ? 0 : (long) observation[0];
+		double mean = observation == null ? 0 : observation[1];
+		mean += (millis - mean) / (count + 1);
+		observations.setProperty(key, (count + 1) + "," + String.format(Locale.ROOT, "%.3f", mean));
+		try	{
+			save();
+		} catch (CommandException e) {
+			// Tuning is best effort.  Keep the observation in memory and try again next time.
+		}
+	}
+
+	private double[] getObservation(String bucket, String configuration)	{
+		String value = observations.getProperty(bucket + '.' + configuration);
+		if(value == null)
+			return null;
+		List<String> fields = Splitter.on(',').trimResults().splitToList(value);
+		if(fields.size() != 2)
+			return null;
+		try	{
+			return new double[] { Long.parseLong(fields.get(0)), Double.parseDouble(fields.get(1)) };
+		} catch (NumberFormatException e) {
+			return null;		// Corrupt entry.  It will be replaced.
+		}
+	}
+
+	private static String getBucket(int size)	{
+		return BUCKET_PREFIX + Integer.highestOneBit(Math.max(size, 1));
+	}
+
+	private void load() throws CommandException {
+		InputStream stream;
+		try {
+			stream = new FileInputStream(storeFile);
+		} catch (FileNotFoundException e) {
+			return;		// No observations yet
+		}
+		try	{
+			observations.load(stream);
+		} catch (IOException e) {
+			throw new CommandException("I/O error reading solver tuning store '" + storeFile.getPath() + "': " + e.getMessage(), e);
+		} finally {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// Nothing more to read.  Ignore.
+			}
+		}
+	}
+
+	private void save() throws CommandException {
+		File tempFile = AtomicFiles.getTempFile(storeFile);
+		OutputStream stream = null;
+		try	{
+			stream = new FileOutputStream(tempFile);
+			observations.store(stream, STORE_COMMENT);
+			stream.close();
+			stream = null;
+			AtomicFiles.replace(tempFile, storeFile);
+		} catch (IOException e) {
+			throw new CommandException("I/O error writing solver tuning store '" + storeFile.getPath() + "': " + e.getMessage(), e);
+		} finally {
+			if(stream != null)	{
+				try {
+					stream.close();
+				} catch (IOException e) {
+					// Already failing.  Ignore.
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Measures the time from starting a new SMSolver JVM to the result of its first command line.  Each run
+ * starts 'java' with this JVM's classpath, pipes the command line in and times the first result line
+ * SMSolver prints (--print-results), not the exit of the JVM.  The default command creates a document
+ * (JAXB), solves two commands (clingo and the Prolog term parser) and saves the result as SCXML in a
+ * scratch directory.  Pass --jvm-arg to compare settings, eg
+ * 		--jvm-arg -XX:SharedArchiveFile=target/smsolver.jsa
+ * for the class-data sharing archive made by extra/build-cds.sh.
+ */
+public class StartupBenchmark {
+	private static final String DEFAULT_COMMAND = "new(startup_benchmark). set(state(simple, idle)). " +
+			"set(parent(top_state, idle)). save('%s').";
+	private static final String DEFAULT_OUTPUT_FILENAME = "startup_benchmark.scxml";
+	private static final String WARNING_PREFIX = "WARNING";
+	private static final String ERROR_PREFIX = "ERROR";
+
+	private static class Args {
+		@Parameter(names = { "-n", "--runs" }, description = "Number of JVMs to start.")
+		public int runs = 10;
+		@Parameter(names = { "--command" }, description = "Command line to time.  Default creates, solves and saves a document.")
+		public String command = null;
+		@Parameter(names = { "--jvm-arg" }, description = "Argument for the JVMs.  May be repeated.")
+		public List<String> jvmArgs = new ArrayList<String>();
+		@Parameter(names = { "-h", "--help" }, description = "Help with command line arguments", help = true)
+		public boolean help = false;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Args cliArgs = new Args();
+		JCommander jcommander = new JCommander(cliArgs, args);
+		jcommander.setProgramName("java " + StartupBenchmark.class.getName());
+		if(cliArgs.help || cliArgs.runs < 1)	{
+			jcommander.usage();
+			return;
+		}
+
+		List<String> commandLine = new ArrayList<String>();
+		commandLine.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		commandLine.addAll(cliArgs.jvmArgs);
+		commandLine.add("-cp");
+		commandLine.add(System.getProperty("java.class.path"));
+		commandLine.add(SMSolver.class.getName());
+		commandLine.add("--autosave");
+		commandLine.add("0");
+		commandLine.add("--print-results");
+
+		File directory = Files.createTempDir();
+		String command = cliArgs.command;
+		if(command == null)	{
+			String output = new File(directory, DEFAULT_OUTPUT_FILENAME).getPath();
+			command = String.format(Locale.ROOT, DEFAULT_COMMAND, output.replace('\\', '/').replace("'", "''"));
+		}
+		List<Double> millis = new ArrayList<Double>();
+		IOException failure = null;
+		try	{
+			for(int i=0; i<cliArgs.runs; ++i)	{
+				double elapsed = run(commandLine, command);
+				millis.add(elapsed);
+				System.out.println(String.format(Locale.ROOT, "run %d: %.1fms", i+1, elapsed));
+			}
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			for(File file : directory.listFiles())
+				file.delete();
+			directory.delete();
+		}
+		if(failure != null)	{
+			System.err.println("ERROR: " + failure.getMessage());
+			System.exit(1);
+			return;
+		}
+		Collections.sort(millis);
+		System.out.println(String.format(Locale.ROOT, "time to first result: min %.1fms, median %.1fms, max %.1fms",
+				millis.get(0), millis.get(millis.size()/2), millis.get(millis.size()-1)));
+	}
+
+	/**
+	 * Run SMSolver once.
+	 * @return	Milliseconds from starting the process to reading its first result line
+	 * @throws IOException		The command failed, or SMSolver printed no result or exited with an error
+	 */
+	private static double run(List<String> commandLine, String command) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		Process process = new ProcessBuilder(commandLine).redirectErrorStream(true).start();
+		OutputStream stdin = process.getOutputStream();
+		stdin.write((command + "\n").getBytes(Charsets.UTF_8));
+		stdin.close();
+		BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), Charsets.UTF_8));
+		try	{
+			String line = stdout.readLine();
+			while(line != null && line.startsWith(WARNING_PREFIX))
+				line = stdout.readLine();
+			double elapsed = (System.nanoTime() - start) / 1e6;
+			if(line == null)
+				throw new IOException("SMSolver printed no result.");
+			if(line.startsWith(ERROR_PREFIX))
+				throw new IOException("SMSolver failed: " + line);
+			while(stdout.readLine() != null)	{
+				// Drain it so the process cannot block
+			}
+			int status = process.waitFor();
+			if(status != 0)
+				throw new IOException("SMSolver exited with status " + status + ".");
+			return elapsed;
+		} finally {
+			stdout.close();
+		}
+	}
+}
@@ -4,7 +4,9 @@ package com.deepdownstudios.smsolver;
 public class State {
 	private Command command;
 	private String commandMessage;
-	private ScxmlFile scxmlFile;
+	private ScxmlFile scxmlFile;							///< null while spilled (see StateSpillStore)
+	private StateSpillStore.Handle spillHandle = null;		///< Where the document is in the spill file, once written
+	private SerializedScxml serializedScxml = null;		///< Computed on first use
 	
 	/**
 	 * Create a State with an empty statechart.
@@ -44,7 +46,51 @@ public class State {
 		return commandMessage;
 	}
 
-	public ScxmlFile getScxmlFile() {
-		return scxmlFile;
+	/**
+	 * The document.  If it was spilled to disk to stay within the history's memory budget then it
+	 * is read back.
+	 * @throws CommandException		The spilled document could not be read
+	 */
+	public ScxmlFile getScxmlFile() throws CommandException {
+		ScxmlFile ret;
+		synchronized(this)	{
+			if(scxmlFile == null)
+				scxmlFile = StateSpillStore.read(spillHandle);
+			ret = scxmlFile;
+		}
+		StateSpillStore.touch(this, ret);
+		return ret;
+	}
+
+	/**
+	 * Drop the document from memory, writing it to the spill file if it has not been written yet.
+	 * It is read back on the next call to getScxmlFile().
+	 */
+	synchronized void spill()	{
+		if(scxmlFile == null)
+			return;
+		try	{
+			if(spillHandle == null)
+				spillHandle = StateSpillStore.write(this, scxmlFile);
+		} catch (CommandException e) {
+			System.err.println("WARNING: Keeping history state in memory.  " + e.getMessage());
+			return;
+		}
+		scxmlFile = null;
+		serializedScxml = null;		// Its version tag does not change when it is rebuilt
+	}
+
+	/**
+	 * The marshalled SCXML document for this state.  States never change so this is only
+	 * computed once, no matter how often the state is sent, undone or redone.
+	 * @throws CommandException		Error generating the document
+	 */
+	public SerializedScxml getSerializedScxml() throws CommandException {
+		ScxmlFile file = getScxmlFile();		// Not under this lock: using a document can spill other states
+		synchronized(this)	{
+			if(serializedScxml == null)
+				serializedScxml = new SerializedScxml(file.getScxmlAsBytes());
+			return serializedScxml;
+		}
 	}
 }
@@ -0,0 +1,375 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import alice.tuprolog.Term;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Keeps the documents of the states in the history within a memory budget.  A State registers its
+ * document the first time it is used and marks it as recently used every time after that.  When the estimated size of the
+ * registered documents is over budget, the least recently used documents are written (as deflated
+ * Prolog text) to a spill file and dropped from their States.  A State reloads its document from the
+ * memory-mapped spill file the next time it is asked for it (eg by undo, redo or saving).
+ *
+ * The budget is off (0) by default.  Sizes are estimates from the number of terms in each document.
+ *
+ * States are only weakly referenced, so a State that is dropped from the history (eg by new, load or
+ * a command after an undo) is not kept alive here.  Once it is collected its estimated size no longer
+ * counts against the budget and its part of the spill file is reused for other documents (or cut off,
+ * if it is at the end of the file).
+ */
+public class StateSpillStore {
+	/** Estimated heap use of one term of a document, including its share of the JAXB tree and indexes. */
+	public static final long ESTIMATED_BYTES_PER_TERM = 1024;
+	private static final String SPILL_PREFIX = "smsolver-history";
+	private static final String SPILL_SUFFIX = ".spill";
+
+	private static final Object lock = new Object();
+	private static volatile long budget = 0;		///< Bytes.  0 means no limit.
+	private static long residentBytes = 0;		///< Estimated size of the registered documents
+	private static final LinkedHashMap<StateRef, Long> resident =	///< Registered states, least recently used first
+			new LinkedHashMap<StateRef, Long>(16, 0.75f, true);
+	private static final Set<StateRef> spilled = new HashSet<StateRef>();	///< States with a document in the spill file
+	private static final ReferenceQueue<State> collected = new ReferenceQueue<State>();
+	private static final TreeMap<Long, Long> freeRegions = new TreeMap<Long, Long>();	///< Unused parts of the spill file: offset -> length
+	private static long spillEnd = 0;			///< Length of the used part of the spill file
+	private static FileChannel spillChannel = null;
+
+	private static final AtomicLong evictions = new AtomicLong();
+	private static final AtomicLong reloads = new AtomicLong();
+
+	/**
+	 * Where a spilled document is in the spill file.
+	 */
+	static class Handle	{
+		private final String filename;
+		private final String statemachineName;
+		private final long offset;
+		private final int length;
+		private final int inflatedLength;
+
+		private Handle(String filename, String statemachineName, long offset, int length, int inflatedLength)	{
+			this.filename = filename;
+			this.statemachineName = statemachineName;
+			this.offset = offset;
+			this.length = length;
+			this.inflatedLength = inflatedLength;
+		}
+	}
+
+	/**
+	 * A weak reference to a State that, while the State is alive, is equal to any other reference to it.
+	 * References for spilled documents also have the document's Handle, so its space can be reused once
+	 * the State is collected.
+	 */
+	private static class StateRef extends WeakReference<State>	{
+		private final int hash;
+		private final Handle handle;		///< null for entries of 'resident'
+
+		StateRef(State state, Handle handle)	{
+			super(state, collected);
+			this.hash = System.identityHashCode(state);
+			this.handle = handle;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(this == obj)
+				return true;
+			if(!(obj instanceof StateRef))
+				return false;
+			State state = get();
+			return state != null && state == ((StateRef)obj).get();
+		}
+	}
+
+	private StateSpillStore()	{	}
+
+	/**
+	 * Set the memory budget for the documents in the history.
+	 * @param bytes		The budget.  0 turns spilling off.
+	 */
+	public static void setBudget(long bytes)	{
+		assert bytes >= 0;
+		synchronized(lock)	{
+			budget = bytes;
+			if(budget == 0)	{
+				resident.clear();
+				residentBytes = 0;
+			}
+		}
+	}
+
+	/**
+	 * Number of documents written to the spill file.
+	 */
+	public static long getEvictionCount()	{
+		return evictions.get();
+	}
+
+	/**
+	 * Number of documents read back from the spill file.
+	 */
+	public static long getReloadCount()	{
+		return reloads.get();
+	}
+
+	/**
+	 * Estimated size of the documents that are registered and in memory.
+	 */
+	static long getResidentBytes()	{
+		synchronized(lock)	{
+			reclaim();
+			return residentBytes;
+		}
+	}
+
+	/**
+	 * Number of bytes of the spill file that hold the documents of States that are still alive.
+	 */
+	static long getSpilledBytes()	{
+		synchronized(lock)	{
+			reclaim();
+			long ret = spillEnd;
+			for(long length : freeRegions.values())
+				ret -= length;
+			return ret;
+		}
+	}
+
+	/**
+	 * Note that 'state' (which holds 'scxmlFile') was used, then spill other states if over budget.
+	 */
+	static void touch(State state, ScxmlFile scxmlFile)	{
+		if(budget == 0)
+			return;
+		List<State> victims;
+		synchronized(lock)	{
+			if(budget == 0)
+				return;
+			reclaim();
+			StateRef ref = new StateRef(state, null);
+			if(!resident.containsKey(ref))	{
+				long size;
+				try	{
+					size = scxmlFile.getScxmlProlog().size() * ESTIMATED_BYTES_PER_TERM;
+				} catch (CommandException e) {
+					return;		// Can't be spilled anyway
+				}
+				resident.put(ref, size);
+				residentBytes += size;
+			} else	{
+				ref.clear();				// Not registered, so it must not be queued
+				resident.get(ref);		// Mark it as most recently used
+			}
+			victims = new ArrayList<State>();
+			Iterator<Map.Entry<StateRef, Long>> it = resident.entrySet().iterator();
+			while(residentBytes > budget && it.hasNext())	{
+				Map.Entry<StateRef, Long> entry = it.next();
+				State victim = entry.getKey().get();
+				if(victim == state)
+					continue;		// Never spill the state being used
+				residentBytes -= entry.getValue();
+				it.remove();
+				if(victim != null)
+					victims.add(victim);
+			}
+		}
+		// Outside of the lock: State.spill() holds the state's lock while writing.
+		for(State victim : victims)
+			victim.spill();
+	}
+
+	/**
+	 * Write the document of 'state' to the spill file.  The space is freed when 'state' is collected.
+	 */
+	static Handle write(State state, ScxmlFile scxmlFile) throws CommandException {
+		StringBuilder text = new StringBuilder();
+		for(Term term : scxmlFile.getScxmlProlog())
+			text.append(term.toString()).append(".\n");
+		byte[] utf8 = text.toString().getBytes(Charsets.UTF_8);
+		byte[] deflated = deflate(utf8);
+		synchronized(lock)	{
+			try	{
+				reclaim();
+				FileChannel channel = getSpillChannel();
+				long offset = allocate(deflated.length);
+				ByteBuffer buffer = ByteBuffer.wrap(deflated);
+				long position = offset;
+				try	{
+					while(buffer.hasRemaining())
+						position += channel.write(buffer, position);
+				} catch (IOException e) {
+					release(offset, deflated.length);
+					throw e;
+				}
+				evictions.incrementAndGet();
+				Handle ret = new Handle(scxmlFile.getFilename(), scxmlFile.getStatemachineName(), offset, deflated.length, utf8.length);
+				spilled.add(new StateRef(state, ret));
+				return ret;
+			} catch (IOException e) {
+				throw new CommandException("I/O error writing history spill file: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Read a document back from the spill file.
+	 */
+	static ScxmlFile read(Handle handle) throws CommandException {
+		byte[] deflated = new byte[handle.length];
+		try	{
+			FileChannel channel;
+			synchronized(lock)	{
+				channel = getSpillChannel();
+			}
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, handle.offset, handle.length);
+			mapped.get(deflated);
+		} catch (IOException e) {
+			throw new CommandException("I/O error reading history spill file: " + e.getMessage(), e);
+		}
+
+		String text = new String(inflate(deflated, handle.inflatedLength), Charsets.UTF_8);
+		List<Term> terms;
+		try	{
+			terms = CommandParser.parse(text, true);
+		} catch (CommandException e) {
+			throw new CommandException("BUG: Could not parse spilled history state: " + e.getMessage(), e);
+		}
+		reloads.incrementAndGet();
+		return new ScxmlFile(handle.filename, handle.statemachineName, terms);
+	}
+
+	/**
+	 * Forget the states that were collected and free their parts of the spill file.  Call with 'lock' held.
+	 */
+	private static void reclaim()	{
+		Reference<? extends State> reference;
+		while((reference = collected.poll()) != null)	{
+			StateRef ref = (StateRef) reference;
+			if(ref.handle == null)	{
+				Long size = resident.remove(ref);
+				if(size != null)
+					residentBytes -= size;
+			} else if(spilled.remove(ref))
+				release(ref.handle.offset, ref.handle.length);
+		}
+	}
+
+	/**
+	 * Find room for 'length' bytes in the spill file: the first free region that is big enough, or the end.
+	 * Call with 'lock' held.
+	 */
+	private static long allocate(long length)	{
+		for(Map.Entry<Long, Long> region : freeRegions.entrySet())	{
+			if(region.getValue() >= length)	{
+				long offset = region.getKey();
+				freeRegions.remove(offset);
+				if(region.getValue() > length)
+					freeRegions.put(offset + length, region.getValue() - length);
+				return offset;
+			}
+		}
+		long ret = spillEnd;
+		spillEnd += length;
+		return ret;
+	}
+
+	/**
+	 * Mark part of the spill file as free, merging it with its free neighbours.  Free space at the end of
+	 * the file is cut off.  Call with 'lock' held.
+	 */
+	private static void release(long offset, long length)	{
+		Map.Entry<Long, Long> before = freeRegions.floorEntry(offset);
+		if(before != null && before.getKey() + before.getValue() == offset)	{
+			freeRegions.remove(before.getKey());
+			offset = before.getKey();
+			length += before.getValue();
+		}
+		Long after = freeRegions.remove(offset + length);
+		if(after != null)
+			length += after;
+		if(offset + length < spillEnd)	{
+			freeRegions.put(offset, length);
+			return;
+		}
+		spillEnd = offset;
+		try	{
+			if(spillChannel != null)
+				spillChannel.truncate(spillEnd);
+		} catch (IOException e) {
+			// Only disk space is lost.  The next write past the end reuses it anyway.
+		}
+	}
+
+	private static FileChannel getSpillChannel() throws IOException {
+		if(spillChannel == null)	{
+			File file = File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX);
+			file.deleteOnExit();
+			spillChannel = new RandomAccessFile(file, "rw").getChannel();
+		}
+		return spillChannel;
+	}
+
+	private static byte[] deflate(byte[] bytes)	{
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(bytes);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+		byte[] buffer = new byte[8192];
+		while(!deflater.finished())	{
+			int count = deflater.deflate(buffer);
+			out.write(buffer, 0, count);
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	private static byte[] inflate(byte[] bytes, int inflatedLength) throws CommandException {
+		Inflater inflater = new Inflater();
+		inflater.setInput(bytes);
+		byte[] ret = new byte[inflatedLength];
+		try	{
+			int offset = 0;
+			while(offset < inflatedLength && !inflater.finished())	{
+				int count = inflater.inflate(ret, offset, inflatedLength - offset);
+				if(count == 0 && inflater.needsInput())
+					throw new DataFormatException("truncated");
+				offset += count;
+			}
+		} catch (DataFormatException e) {
+			throw new CommandException("BUG: Corrupt history spill file: " + e.getMessage(), e);
+		} finally {
+			inflater.end();
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ * JNI glue between NativeClingo and the clingo C library (clingo 5 API).  Build with
+ * extra/build-native.sh.
+ */
+#include <jni.h>
+#include <clingo.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+
+#define COMMAND_EXCEPTION "com/deepdownstudios/smsolver/CommandException"
+#define ILLEGAL_ARGUMENT_EXCEPTION "java/lang/IllegalArgumentException"
+#define INPUTS_FUNCTION "smsolver_inputs"
+
+JNIEXPORT void JNICALL Java_com_deepdownstudios_smsolver_NativeClingo_destroySession(JNIEnv *env, jclass cls, jlong handle);
+
+typedef struct {
+	char *program;			/* engine + input rule */
+	char **arguments;		/* clingo command line arguments */
+	size_t arguments_size;
+} session_t;
+
+typedef struct {
+	jclass struct_class;
+	jclass int_class;
+	jclass number_class;
+	jclass term_class;
+	jmethodID struct_get_name;
+	jmethodID struct_get_arity;
+	jmethodID struct_get_arg;
+	jmethodID struct_new;
+	jmethodID int_new;
+	jmethodID number_is_integer;
+	jmethodID number_long_value;
+} term_classes_t;
+
+typedef struct {
+	clingo_symbol_t *symbols;
+	size_t size;
+} inputs_t;
+
+static void throw_command_exception(JNIEnv *env, char const *prefix, char const *message) {
+	jclass cls = (*env)->FindClass(env, COMMAND_EXCEPTION);
+	size_t size = strlen(prefix) + (message ? strlen(message) : 0) + 1;
+	char *buf = malloc(size);
+	if (cls == NULL || buf == NULL) {
+		free(buf);
+		return;
+	}
+	strcpy(buf, prefix);
+	if (message)
+		strcat(buf, message);
+	(*env)->ThrowNew(env, cls, buf);
+	free(buf);
+}
+
+static void throw_clingo_error(JNIEnv *env, char const *prefix) {
+	throw_command_exception(env, prefix, clingo_error_message());
+}
+
+static void ignore_messages(clingo_warning_t code, char const *message, void *data) {
+	(void)code; (void)message; (void)data;
+}
+
+static bool lookup_term_classes(JNIEnv *env, term_classes_t *c) {
+	c->term_class = (*env)->FindClass(env, "alice/tuprolog/Term");
+	c->struct_class = (*env)->FindClass(env, "alice/tuprolog/Struct");
+	c->int_class = (*env)->FindClass(env, "alice/tuprolog/Int");
+	c->number_class = (*env)->FindClass(env, "alice/tuprolog/Number");
+	if (!c->term_class || !c->struct_class || !c->int_class || !c->number_class)
+		return false;
+	c->struct_get_name = (*env)->GetMethodID(env, c->struct_class, "getName", "()Ljava/lang/String;");
+	c->struct_get_arity = (*env)->GetMethodID(env, c->struct_class, "getArity", "()I");
+	c->struct_get_arg = (*env)->GetMethodID(env, c->struct_class, "getArg", "(I)Lalice/tuprolog/Term;");
+	c->struct_new = (*env)->GetMethodID(env, c->struct_class, "<init>", "(Ljava/lang/String;[Lalice/tuprolog/Term;)V");
+	c->int_new = (*env)->GetMethodID(env, c->int_class, "<init>", "(I)V");
+	c->number_is_integer = (*env)->GetMethodID(env, c->number_class, "isInteger", "()Z");
+	c->number_long_value = (*env)->GetMethodID(env, c->number_class, "longValue", "()J");
+	return c->struct_get_name && c->struct_get_arity && c->struct_get_arg && c->struct_new &&
+		c->int_new && c->number_is_integer && c->number_long_value;
+}
+
+/* True iff name can be written as a clingo constant/function name. */
+static bool is_identifier(char const *name) {
+	if (!((*name >= 'a' && *name <= 'z') || *name == '_'))
+		return false;
+	for (++name; *name; ++name) {
+		char ch = *name;
+		if (!((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_' || ch == '\''))
+			return false;
+	}
+	return true;
+}
+
+/* Convert a ground tuProlog term to a clingo symbol. */
+static bool term_to_symbol(JNIEnv *env, term_classes_t *c, jobject term, clingo_symbol_t *symbol) {
+	if ((*env)->IsInstanceOf(env, term, c->number_class)) {
+		/* clingo numbers are ints.  Anything else would silently become a different number. */
+		jlong value = (*env)->CallLongMethod(env, term, c->number_long_value);
+		if (!(*env)->CallBooleanMethod(env, term, c->number_is_integer) || value < INT32_MIN || value > INT32_MAX) {
+			jclass cls = (*env)->FindClass(env, ILLEGAL_ARGUMENT_EXCEPTION);
+			if (cls != NULL)
+				(*env)->ThrowNew(env, cls, "Native clingo input numbers must be integers that fit in 32 bits.");
+			return false;
+		}
+		clingo_symbol_create_number((int)value, symbol);
+		return true;
+	}
+	if (!(*env)->IsInstanceOf(env, term, c->struct_class)) {
+		throw_command_exception(env, "Native clingo input must be ground: ", "variable found");
+		return false;
+	}
+
+	jstring jname = (*env)->CallObjectMethod(env, term, c->struct_get_name);
+	jint arity = (*env)->CallIntMethod(env, term, c->struct_get_arity);
+	char const *name = (*env)->GetStringUTFChars(env, jname, NULL);
+	if (name == NULL)
+		return false;
+	bool ok = true;
+	if (arity == 0 && !is_identifier(name)) {
+		ok = clingo_symbol_create_string(name, symbol);
+	} else {
+		clingo_symbol_t *args = arity > 0 ? malloc(sizeof(clingo_symbol_t) * arity) : NULL;
+		for (jint i = 0; ok && i < arity; ++i) {
+			jobject arg = (*env)->CallObjectMethod(env, term, c->struct_get_arg, i);
+			ok = arg != NULL && term_to_symbol(env, c, arg, &args[i]);
+			(*env)->DeleteLocalRef(env, arg);
+		}
+		ok = ok && clingo_symbol_create_function(name, args, arity, true, symbol);
+		free(args);
+	}
+	(*env)->ReleaseStringUTFChars(env, jname, name);
+	(*env)->DeleteLocalRef(env, jname);
+	if (!ok && !(*env)->ExceptionCheck(env))
+		throw_clingo_error(env, "Could not convert input to a clingo symbol: ");
+	return ok;
+}
+
+/* Convert a clingo symbol to a tuProlog term.  Returns NULL (with a pending exception) on failure.
+ * Every local reference made here but the result is freed, so long answers do not overflow the local frame. */
+static jobject symbol_to_term(JNIEnv *env, term_classes_t *c, clingo_symbol_t symbol) {
+	switch (clingo_symbol_type(symbol)) {
+	case clingo_symbol_type_number: {
+		int number;
+		clingo_symbol_number(symbol, &number);
+		return (*env)->NewObject(env, c->int_class, c->int_new, (jint)number);
+	}
+	case clingo_symbol_type_string: {
+		char const *str;
+		clingo_symbol_string(symbol, &str);
+		if ((*env)->PushLocalFrame(env, 2) != 0)
+			return NULL;
+		jstring jstr = (*env)->NewStringUTF(env, str);
+		jobjectArray noArgs = jstr == NULL ? NULL : (*env)->NewObjectArray(env, 0, c->term_class, NULL);
+		jobject ret = noArgs == NULL ? NULL : (*env)->NewObject(env, c->struct_class, c->struct_new, jstr, noArgs);
+		return (*env)->PopLocalFrame(env, ret);
+	}
+	case clingo_symbol_type_function: {
+		char const *name;
+		clingo_symbol_t const *args;
+		size_t size;
+		bool positive;
+		clingo_symbol_name(symbol, &name);
+		clingo_symbol_arguments(symbol, &args, &size);
+		clingo_symbol_is_positive(symbol, &positive);
+		if ((*env)->PushLocalFrame(env, 3) != 0)
+			return NULL;
+		jobjectArray jargs = (*env)->NewObjectArray(env, (jsize)size, c->term_class, NULL);
+		if (jargs == NULL)
+			return (*env)->PopLocalFrame(env, NULL);
+		for (size_t i = 0; i < size; ++i) {
+			jobject arg = symbol_to_term(env, c, args[i]);
+			if (arg == NULL)
+				return (*env)->PopLocalFrame(env, NULL);
+			(*env)->SetObjectArrayElement(env, jargs, (jsize)i, arg);
+			(*env)->DeleteLocalRef(env, arg);
+		}
+		jstring jname;
+		if (positive) {
+			jname = (*env)->NewStringUTF(env, name);
+		} else {
+			/* Classically negated atom.  The engine never shows these but keep the sign. */
+			char *negated = malloc(strlen(name) + 2);
+			if (negated == NULL)
+				return (*env)->PopLocalFrame(env, NULL);
+			negated[0] = '-';
+			strcpy(negated + 1, name);
+			jname = (*env)->NewStringUTF(env, negated);
+			free(negated);
+		}
+		jobject ret = jname == NULL ? NULL : (*env)->NewObject(env, c->struct_class, c->struct_new, jname, jargs);
+		return (*env)->PopLocalFrame(env, ret);
+	}
+	default:
+		throw_command_exception(env, "BUG: Unexpected #inf/#sup symbol in clingo answer.", "");
+		return NULL;
+	}
+}
+
+static bool ground_callback(clingo_location_t const *location, char const *name, clingo_symbol_t const *arguments,
+		size_t arguments_size, void *data, clingo_symbol_callback_t symbol_callback, void *symbol_callback_data) {
+	(void)location; (void)arguments;
+	inputs_t *inputs = data;
+	if (strcmp(name, INPUTS_FUNCTION) == 0 && arguments_size == 0)
+		return symbol_callback(inputs->symbols, inputs->size, symbol_callback_data);
+	clingo_set_error(clingo_error_runtime, "unknown external function");
+	return false;
+}
+
+JNIEXPORT jlong JNICALL Java_com_deepdownstudios_smsolver_NativeClingo_createSession(JNIEnv *env, jclass cls,
+		jstring jprogram, jobjectArray jarguments) {
+	(void)cls;
+	session_t *session = calloc(1, sizeof(session_t));
+	char const *program = (*env)->GetStringUTFChars(env, jprogram, NULL);
+	if (session == NULL || program == NULL) {
+		free(session);
+		return 0;
+	}
+	session->program = strdup(program);
+	(*env)->ReleaseStringUTFChars(env, jprogram, program);
+
+	session->arguments_size = (size_t)(*env)->GetArrayLength(env, jarguments);
+	session->arguments = calloc(session->arguments_size + 1, sizeof(char *));
+	for (size_t i = 0; i < session->arguments_size; ++i) {
+		jstring jarg = (*env)->GetObjectArrayElement(env, jarguments, (jsize)i);
+		char const *arg = (*env)->GetStringUTFChars(env, jarg, NULL);
+		session->arguments[i] = strdup(arg);
+		(*env)->ReleaseStringUTFChars(env, jarg, arg);
+		(*env)->DeleteLocalRef(env, jarg);
+	}
+
+	/* Fail now, rather than on the first command, if clingo rejects the arguments. */
+	clingo_control_t *control;
+	if (!clingo_control_new((char const *const *)session->arguments, session->arguments_size, ignore_messages, NULL, 20, &control)) {
+		throw_clingo_error(env, "clingo rejected its arguments: ");
+		Java_com_deepdownstudios_smsolver_NativeClingo_destroySession(env, cls, (jlong)(intptr_t)session);
+		return 0;
+	}
+	clingo_control_free(control);
+	return (jlong)(intptr_t)session;
+}
+
+JNIEXPORT jobjectArray JNICALL Java_com_deepdownstudios_smsolver_NativeClingo_solve(JNIEnv *env, jclass cls,
+		jlong handle, jobjectArray jinputs, jstring jcommands) {
+	(void)cls;
+	session_t *session = (session_t *)(intptr_t)handle;
+	term_classes_t classes;
+	if (!lookup_term_classes(env, &classes))
+		return NULL;
+
+	/* Input facts become symbols for @smsolver_inputs(). */
+	inputs_t inputs;
+	inputs.size = (size_t)(*env)->GetArrayLength(env, jinputs);
+	inputs.symbols = malloc(sizeof(clingo_symbol_t) * (inputs.size + 1));
+	for (size_t i = 0; i < inputs.size; ++i) {
+		jobject term = (*env)->GetObjectArrayElement(env, jinputs, (jsize)i);
+		bool ok = term_to_symbol(env, &classes, term, &inputs.symbols[i]);
+		(*env)->DeleteLocalRef(env, term);
+		if (!ok) {
+			free(inputs.symbols);
+			return NULL;
+		}
+	}
+
+	jobjectArray ret = NULL;
+	clingo_control_t *control = NULL;
+	clingo_solve_handle_t *solve = NULL;
+	char const *commands = (*env)->GetStringUTFChars(env, jcommands, NULL);
+	clingo_part_t part = { "base", NULL, 0 };
+	clingo_model_t const *model;
+
+	if (!clingo_control_new((char const *const *)session->arguments, session->arguments_size, ignore_messages, NULL, 20, &control)) {
+		throw_clingo_error(env, "Could not create clingo control: ");
+		goto done;
+	}
+	if (!clingo_control_add(control, "base", NULL, 0, session->program) ||
+			!clingo_control_add(control, "base", NULL, 0, commands)) {
+		throw_clingo_error(env, "clingo could not parse the commands: ");
+		goto done;
+	}
+	if (!clingo_control_ground(control, &part, 1, ground_callback, &inputs)) {
+		throw_clingo_error(env, "clingo could not ground the commands: ");
+		goto done;
+	}
+	if (!clingo_control_solve(control, clingo_solve_mode_yield, NULL, 0, NULL, NULL, &solve) ||
+			!clingo_solve_handle_resume(solve) || !clingo_solve_handle_model(solve, &model)) {
+		throw_clingo_error(env, "clingo failed while solving: ");
+		goto done;
+	}
+	if (model == NULL)
+		goto done;		/* Unsatisfiable.  Return null. */
+
+	size_t size;
+	if (!clingo_model_symbols_size(model, clingo_show_type_shown, &size)) {
+		throw_clingo_error(env, "Could not read clingo model: ");
+		goto done;
+	}
+	clingo_symbol_t *symbols = malloc(sizeof(clingo_symbol_t) * (size + 1));
+	if (!clingo_model_symbols(model, clingo_show_type_shown, symbols, size)) {
+		free(symbols);
+		throw_clingo_error(env, "Could not read clingo model: ");
+		goto done;
+	}
+	jobjectArray terms = (*env)->NewObjectArray(env, (jsize)size, classes.term_class, NULL);
+	bool ok = terms != NULL;
+	for (size_t i = 0; ok && i < size; ++i) {
+		jobject term = symbol_to_term(env, &classes, symbols[i]);
+		ok = term != NULL;
+		if (ok) {
+			(*env)->SetObjectArrayElement(env, terms, (jsize)i, term);
+			(*env)->DeleteLocalRef(env, term);
+		}
+	}
+	free(symbols);
+	if (ok)
+		ret = terms;
+
+done:
+	if (solve != NULL)
+		clingo_solve_handle_close(solve);
+	if (control != NULL)
+		clingo_control_free(control);
+	if (commands != NULL)
+		(*env)->ReleaseStringUTFChars(env, jcommands, commands);
+	free(inputs.symbols);
+	return ret;
+}
+
+JNIEXPORT void JNICALL Java_com_deepdownstudios_smsolver_NativeClingo_destroySession(JNIEnv *env, jclass cls, jlong handle) {
+	(void)env; (void)cls;
+	session_t *session = (session_t *)(intptr_t)handle;
+	if (session == NULL)
+		return;
+	for (size_t i = 0; i < session->arguments_size; ++i)
+		free(session->arguments[i]);
+	free(session->arguments);
+	free(session->program);
+	free(session);
+}
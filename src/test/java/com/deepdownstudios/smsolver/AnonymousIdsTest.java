@@ -0,0 +1,124 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+
+/**
+ * Unit tests for AnonymousIds.
+ */
+public class AnonymousIdsTest
+    extends TestCase
+{
+    /** The first top-level state has no id, so it is top_state__0, which the second state's id attribute also is. */
+    private static final String COLLIDING =
+            "<scxml xmlns=\"http://www.w3.org/2005/07/scxml\" version=\"1.0\" name=\"anonymous\">" +
+            "<state><state/><state/></state>" +
+            "<state id=\"top_state__0\"><state/></state>" +
+            "<parallel><state/></parallel>" +
+            "</scxml>";
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public AnonymousIdsTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( AnonymousIdsTest.class );
+    }
+
+    public void testSameDocumentGivesTheSameOutput() throws CommandException
+    {
+        assertTrue( Arrays.equals( convert( COLLIDING ), convert( COLLIDING ) ) );
+    }
+
+    public void testGeneratedIdThatIsTakenIsRenamed() throws CommandException
+    {
+        List<Term> terms = ScxmlStreamReader.load( "anonymous.scxml", new StringReader( COLLIDING ) ).getScxmlProlog();
+        Set<String> keys = new HashSet<String>();
+        for ( Term term : terms )
+        {
+            keys.add( FactIndex.key( term ) );
+        }
+        // The id attribute keeps its ID and the anonymous state is renamed.
+        assertTrue( keys.contains( "state(simple,top_state__0)" ) );
+        assertTrue( keys.contains( "state(simple,top_state__0_)" ) );
+        assertTrue( keys.contains( "parent(top_state__0_,top_state__0__0)" ) );
+        assertTrue( keys.contains( "parent(top_state__0_,top_state__0__1)" ) );
+
+        // Both top_state__0 states have an anonymous first child.  They must not share an ID either.
+        FactIndex index = FactIndex.build( terms );
+        assertEquals( 1, index.getChildren( "top_state__0" ).size() );
+        Set<String> children = new HashSet<String>( index.getChildren( "top_state__0" ) );
+        children.retainAll( index.getChildren( "top_state__0_" ) );
+        assertTrue( children.isEmpty() );
+    }
+
+    public void testRenamesDoNotDependOnConversionOrder()
+    {
+        List<Term> first = generate( false );
+        List<Term> second = generate( true );
+        assertEquals( first.toString(), second.toString() );
+    }
+
+    /**
+     * Make the IDs of two anonymous states whose generated IDs collide, and state/2 facts for them.
+     * @param reverse	Make the IDs in the other order
+     */
+    private static List<Term> generate( boolean reverse )
+    {
+        AnonymousIds ids = new AnonymousIds();
+        Struct top = new Struct( "top_state" );
+        Struct named = null;
+        Struct anonymous = null;
+        Struct namedChild = null;
+        Struct anonymousChild = null;
+        for ( int i = 0; i < 2; i++ )
+        {
+            if ( ( i == 0 ) != reverse )
+            {
+                anonymous = ids.get( null, top, 0 );
+                anonymousChild = ids.get( null, anonymous, 0 );
+            }
+            else
+            {
+                named = ids.get( "top_state__0", top, 1 );
+                namedChild = ids.get( null, named, 0 );
+            }
+        }
+        List<Term> terms = new ArrayList<Term>();
+        for ( Struct id : new Struct[] { anonymous, named, anonymousChild, namedChild } )
+        {
+            terms.add( new Struct( "state", new Struct( "simple" ), id ) );
+        }
+        ids.resolveCollisions( terms );
+        return terms;
+    }
+
+    private static byte[] convert( String document ) throws CommandException
+    {
+        ScxmlFile terms = ScxmlStreamReader.load( "anonymous.scxml", new StringReader( document ) );
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ScxmlStreamWriter.write( terms.getStatemachineName(), terms.getScxmlProlog(), stream );
+        return stream.toByteArray();
+    }
+}
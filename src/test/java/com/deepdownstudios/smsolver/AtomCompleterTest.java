@@ -0,0 +1,95 @@
+package com.deepdownstudios.smsolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for AtomCompleter.  The updates are run directly instead of on its background thread.
+ */
+public class AtomCompleterTest
+    extends TestCase
+{
+    private static final String DOCUMENT =
+            "state(simple, idle).  state(simple, idle_wait).  state(simple, busy).\n" +
+            "parent(top_state, idle).  parent(idle, idle_wait).  parent(top_state, busy).\n" +
+            "edge(idle, busy, no_cond, go, no_action).  edge(busy, idle, no_cond, no_event, no_action).\n" +
+            "prop(busy, label, hello).\n";
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public AtomCompleterTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( AtomCompleterTest.class );
+    }
+
+    public void testCompletesStatesEventsAndProperties() throws CommandException
+    {
+        AtomCompleter completer = new AtomCompleter();
+        completer.update( index( DOCUMENT ) );
+        assertEquals( Arrays.asList( "idle", "idle_wait" ), complete( completer, "set(parent(id" ) );
+        assertEquals( Arrays.asList( "go" ), complete( completer, "query(edge(idle, busy, no_cond, g" ) );
+        assertEquals( Arrays.asList( "label" ), complete( completer, "query(prop(busy, la" ) );
+
+        // Neither the top state nor 'no event' are offered, and an empty prefix lists nothing
+        assertTrue( complete( completer, "top" ).isEmpty() );
+        assertTrue( complete( completer, "no_ev" ).isEmpty() );
+        assertTrue( complete( completer, "query(" ).isEmpty() );
+        assertEquals( 5, completer.size() );
+    }
+
+    public void testUpdateAddsAndRemovesTheChangedFacts() throws CommandException
+    {
+        AtomCompleter completer = new AtomCompleter();
+        completer.update( index( DOCUMENT ) );
+
+        // busy's state fact is gone but its edges still name it.  label is no longer used by any fact.
+        completer.update( index( DOCUMENT.replace( "state(simple, busy).", "state(simple, done)." )
+                .replace( "prop(busy, label, hello).", "prop(done, timeout, hello)." ) ) );
+        assertEquals( Arrays.asList( "busy" ), complete( completer, "b" ) );
+        assertEquals( Arrays.asList( "done" ), complete( completer, "d" ) );
+        assertTrue( complete( completer, "la" ).isEmpty() );
+        assertEquals( Arrays.asList( "timeout" ), complete( completer, "ti" ) );
+
+        // The same as building it from scratch
+        AtomCompleter rebuilt = new AtomCompleter();
+        rebuilt.update( index( DOCUMENT.replace( "state(simple, busy).", "state(simple, done)." )
+                .replace( "prop(busy, label, hello).", "prop(done, timeout, hello)." ) ) );
+        assertEquals( rebuilt.size(), completer.size() );
+
+        completer.update( null );
+        assertEquals( 0, completer.size() );
+    }
+
+    private static FactIndex index( String document ) throws CommandException
+    {
+        return FactIndex.build( CommandParser.parse( document, true ) );
+    }
+
+    private static List<String> complete( AtomCompleter completer, String buffer )
+    {
+        List<CharSequence> candidates = new ArrayList<CharSequence>();
+        completer.complete( buffer, buffer.length(), candidates );
+        List<String> ret = new ArrayList<String>();
+        for ( CharSequence candidate : candidates )
+        {
+            ret.add( candidate.toString() );
+        }
+        return ret;
+    }
+}
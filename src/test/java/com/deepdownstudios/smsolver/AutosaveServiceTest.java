@@ -0,0 +1,97 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for AutosaveService.
+ */
+public class AutosaveServiceTest
+    extends TestCase
+{
+    private File dir;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public AutosaveServiceTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( AutosaveServiceTest.class );
+    }
+
+    protected void setUp()
+    {
+        dir = Files.createTempDir();
+    }
+
+    protected void tearDown()
+    {
+        for ( File child : dir.listFiles() )
+        {
+            child.delete();
+        }
+        dir.delete();
+    }
+
+    public void testSavesAfterTheDelay() throws CommandException, InterruptedException
+    {
+        AutosaveService autosave = new AutosaveService( 50 );
+        History history = history( "state(simple, a)." );
+        autosave.historyChanged( history );
+        File file = new File( AutosaveService.getAutosaveName( history.getCurrentState().getScxmlFile() ) );
+        for ( int i = 0; i < 100 && !file.exists(); i++ )
+        {
+            Thread.sleep( 50 );
+        }
+        assertTrue( file.exists() );
+        assertNull( autosave.getLastError() );
+        autosave.close();
+    }
+
+    public void testCloseSavesTheLatestHistory() throws CommandException
+    {
+        AutosaveService autosave = new AutosaveService( 60000 );
+        autosave.historyChanged( history( "state(simple, a)." ) );
+        History latest = history( "state(simple, a).  state(simple, b)." );
+        autosave.historyChanged( latest );
+        autosave.close();
+
+        File file = new File( AutosaveService.getAutosaveName( latest.getCurrentState().getScxmlFile() ) );
+        assertTrue( file.exists() );
+        assertNull( autosave.getLastError() );
+        // Only the autosave file is left: the temporary file was renamed into place.
+        assertEquals( 1, dir.listFiles().length );
+    }
+
+    public void testNothingToSave() throws CommandException
+    {
+        AutosaveService autosave = new AutosaveService( 60000 );
+        autosave.historyChanged( new History() );
+        autosave.close();
+        assertNull( autosave.getLastError() );
+        assertEquals( 0, dir.listFiles().length );
+    }
+
+    private History history( String document ) throws CommandException
+    {
+        String filename = new File( dir, "autosaved.lpscr" ).getPath();
+        ScxmlFile scxmlFile = new ScxmlFile( filename, "autosaved", CommandParser.parse( document, true ) );
+        return new History( Arrays.asList( new State( Command.NOOP, "", scxmlFile ) ), 0 );
+    }
+}
@@ -0,0 +1,133 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for which files BatchCompiler rebuilds.
+ */
+public class BatchCompilerTest
+    extends TestCase
+{
+    private static final String SCXML =
+            "<scxml xmlns=\"http://www.w3.org/2005/07/scxml\" version=\"1.0\" name=\"batch\" initial=\"%s\">" +
+            "<state id=\"%s\"/></scxml>";
+
+    private File dir;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public BatchCompilerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( BatchCompilerTest.class );
+    }
+
+    protected void setUp()
+    {
+        dir = Files.createTempDir();
+    }
+
+    protected void tearDown()
+    {
+        delete( dir );
+    }
+
+    public void testUnchangedFilesAreSkipped() throws CommandException, IOException
+    {
+        File good = new File( dir, "good.lpscr" );
+        write( good, embedded( "idle" ) );
+        write( new File( dir, "bad.lpscr" ), "nonsense\n" );
+
+        Map<String, String> statuses = run();
+        assertEquals( "compiled", statuses.get( "good.lpscr" ) );
+        assertEquals( "failed", statuses.get( "bad.lpscr" ) );
+        assertTrue( new File( dir, "good.scxml" ).isFile() );
+
+        // Failures are not in the manifest, so they are tried again
+        statuses = run();
+        assertEquals( "skipped", statuses.get( "good.lpscr" ) );
+        assertEquals( "failed", statuses.get( "bad.lpscr" ) );
+
+        write( good, embedded( "busy" ) );
+        assertEquals( "compiled", run().get( "good.lpscr" ) );
+        assertTrue( read( new File( dir, "good.scxml" ) ).contains( "busy" ) );
+
+        // A missing output is rebuilt even though the file is unchanged
+        assertTrue( new File( dir, "good.scxml" ).delete() );
+        assertEquals( "compiled", run().get( "good.lpscr" ) );
+    }
+
+    /**
+     * The manifest only has the .lpscr file's hash, so a change to the .scxml file it refers to must not be missed.
+     */
+    public void testFilesWithAnScxmlFileBlockAreAlwaysRebuilt() throws CommandException, IOException
+    {
+        File external = new File( dir, "external.xml" );
+        write( external, String.format( SCXML, "idle", "idle" ) );
+        write( new File( dir, "ref.lpscr" ), "scxmlfile '" + external.getAbsolutePath() + "'\n" );
+
+        assertEquals( "compiled", run().get( "ref.lpscr" ) );
+        write( external, String.format( SCXML, "busy", "busy" ) );
+        assertEquals( "compiled", run().get( "ref.lpscr" ) );
+        assertTrue( read( new File( dir, "ref.scxml" ) ).contains( "busy" ) );
+    }
+
+    private Map<String, String> run() throws CommandException
+    {
+        BatchCompiler compiler = new BatchCompiler( dir, null, 2, false );
+        Map<String, String> ret = new HashMap<String, String>();
+        for ( BatchCompiler.Result result : compiler.run( null ) )
+        {
+            ret.put( result.getFile(), result.getStatus() );
+        }
+        return ret;
+    }
+
+    private static String embedded( String stateId )
+    {
+        return "scxml\n" + String.format( SCXML, stateId, stateId ) + "\n---\n";
+    }
+
+    private static void write( File file, String text ) throws IOException
+    {
+        Files.write( text, file, Charsets.UTF_8 );
+    }
+
+    private static String read( File file ) throws IOException
+    {
+        return Files.toString( file, Charsets.UTF_8 );
+    }
+
+    private static void delete( File file )
+    {
+        File[] children = file.listFiles();
+        if ( children != null )
+        {
+            for ( File child : children )
+            {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,144 @@
+package com.deepdownstudios.smsolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.deepdownstudios.smbridge.Endpoint;
+
+/**
+ * Unit tests for CommandCoalescer.
+ */
+public class CommandCoalescerTest
+    extends TestCase
+{
+    private static final long WINDOW_MILLIS = 100;
+
+    /**
+     * Records the batches it is given.
+     */
+    private static class Recorder implements CommandCoalescer.BatchProcessor
+    {
+        final List<List<String>> batches = new ArrayList<List<String>>();
+
+        final List<List<Endpoint>> sources = new ArrayList<List<Endpoint>>();
+
+        public synchronized void processBatch( List<CommandCoalescer.Request> requests )
+        {
+            List<String> texts = new ArrayList<String>();
+            List<Endpoint> endpoints = new ArrayList<Endpoint>();
+            for ( CommandCoalescer.Request request : requests )
+            {
+                texts.add( request.getText() );
+                endpoints.add( request.getSource() );
+            }
+            batches.add( texts );
+            sources.add( endpoints );
+            notifyAll();
+        }
+
+        synchronized List<List<String>> await( int count ) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + 5000;
+            while ( batches.size() < count && System.currentTimeMillis() < deadline )
+            {
+                wait( 50 );
+            }
+            return new ArrayList<List<String>>( batches );
+        }
+    }
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public CommandCoalescerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( CommandCoalescerTest.class );
+    }
+
+    public void testBurstIsOneBatch() throws InterruptedException
+    {
+        Recorder recorder = new Recorder();
+        CommandCoalescer coalescer = new CommandCoalescer( WINDOW_MILLIS, recorder );
+        coalescer.submit( "set(state(simple, a)).", null );
+        coalescer.submit( "set(state(simple, b)).", null );
+        coalescer.submit( "delete(state(simple, c)).", null );
+        List<List<String>> batches = recorder.await( 1 );
+        assertEquals( 1, batches.size() );
+        assertEquals( Arrays.asList( "set(state(simple, a)).", "set(state(simple, b)).", "delete(state(simple, c))." ),
+                batches.get( 0 ) );
+        coalescer.close();
+    }
+
+    public void testRequestsKeepTheirSource() throws InterruptedException
+    {
+        Endpoint first = new SMSolverTest.RecordingEndpoint();
+        Endpoint second = new SMSolverTest.RecordingEndpoint();
+        Recorder recorder = new Recorder();
+        CommandCoalescer coalescer = new CommandCoalescer( WINDOW_MILLIS, recorder );
+        coalescer.submit( "set(state(simple, a)).", first );
+        coalescer.submit( "set(state(simple, b)).", second );
+        recorder.await( 1 );
+        synchronized ( recorder )
+        {
+            assertEquals( Arrays.asList( first, second ), recorder.sources.get( 0 ) );
+        }
+        coalescer.close();
+    }
+
+    public void testOtherRequestsKeepTheirOrder() throws InterruptedException
+    {
+        Recorder recorder = new Recorder();
+        CommandCoalescer coalescer = new CommandCoalescer( WINDOW_MILLIS, recorder );
+        coalescer.submit( "set(state(simple, a)).", null );
+        coalescer.submit( "undo.", null );
+        coalescer.submit( "not valid syntax (", null );
+        List<List<String>> batches = recorder.await( 3 );
+        assertEquals( Arrays.asList( "set(state(simple, a))." ), batches.get( 0 ) );
+        assertEquals( Arrays.asList( "undo." ), batches.get( 1 ) );
+        assertEquals( Arrays.asList( "not valid syntax (" ), batches.get( 2 ) );
+        coalescer.close();
+    }
+
+    public void testFullBatchRunsAtOnce()
+    {
+        Recorder recorder = new Recorder();
+        CommandCoalescer coalescer = new CommandCoalescer( 60000, recorder );
+        for ( int i = 0; i < CommandCoalescer.MAX_BATCH; i++ )
+        {
+            coalescer.submit( "set(state(simple, s" + i + ")).", null );
+        }
+        synchronized ( recorder )
+        {
+            assertEquals( 1, recorder.batches.size() );
+            assertEquals( CommandCoalescer.MAX_BATCH, recorder.batches.get( 0 ).size() );
+        }
+        coalescer.close();
+    }
+
+    public void testCloseRunsWaitingRequests()
+    {
+        Recorder recorder = new Recorder();
+        CommandCoalescer coalescer = new CommandCoalescer( 60000, recorder );
+        coalescer.submit( "set(state(simple, a)).", null );
+        coalescer.close();
+        synchronized ( recorder )
+        {
+            assertEquals( 1, recorder.batches.size() );
+        }
+    }
+}
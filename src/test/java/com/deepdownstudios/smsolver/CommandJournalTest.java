@@ -0,0 +1,186 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for CommandJournal.
+ */
+public class CommandJournalTest
+    extends TestCase
+{
+    private File dir;
+    private File file;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public CommandJournalTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( CommandJournalTest.class );
+    }
+
+    protected void setUp()
+    {
+        dir = Files.createTempDir();
+        file = new File( dir, "session.journal" );
+    }
+
+    protected void tearDown()
+    {
+        for ( File child : dir.listFiles() )
+        {
+            child.delete();
+        }
+        dir.delete();
+    }
+
+    public void testRecordsSurviveReopen() throws CommandException
+    {
+        CommandJournal journal = new CommandJournal( file );
+        journal.appendCommand( "set(state(simple, a)).", "d1" );
+        journal.appendCommand( "set(state(simple, b)).", "d2" );
+        journal.close();
+
+        List<CommandJournal.Record> records = new CommandJournal( file ).getRecoveryRecords();
+        assertEquals( 2, records.size() );
+        assertFalse( records.get( 0 ).isCheckpoint() );
+        assertEquals( "set(state(simple, a)).", records.get( 0 ).getPayload() );
+        assertEquals( "d1", records.get( 0 ).getDigest() );
+        assertEquals( "set(state(simple, b)).", records.get( 1 ).getPayload() );
+    }
+
+    public void testTornTailIsTruncated() throws CommandException, IOException
+    {
+        CommandJournal journal = new CommandJournal( file );
+        journal.appendCommand( "set(state(simple, a)).", "d1" );
+        journal.close();
+        long complete = file.length();
+
+        // A crash in the middle of the second record
+        Files.append( "C d2 40\nset(state(sim", file, Charsets.UTF_8 );
+
+        journal = new CommandJournal( file );
+        assertEquals( 1, journal.getRecoveryRecords().size() );
+        assertEquals( complete, file.length() );
+
+        // New records go where the torn one was
+        journal.appendCommand( "set(state(simple, b)).", "d2" );
+        journal.close();
+        List<CommandJournal.Record> records = new CommandJournal( file ).getRecoveryRecords();
+        assertEquals( 2, records.size() );
+        assertEquals( "set(state(simple, b)).", records.get( 1 ).getPayload() );
+    }
+
+    public void testGarbageHeaderIsTruncated() throws CommandException, IOException
+    {
+        CommandJournal journal = new CommandJournal( file );
+        journal.appendCommand( "set(state(simple, a)).", "d1" );
+        journal.close();
+        long complete = file.length();
+
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        raf.seek( complete );
+        raf.write( new byte[] { 0, 0, 0, 0 } );
+        raf.close();
+
+        assertEquals( 1, new CommandJournal( file ).getRecoveryRecords().size() );
+        assertEquals( complete, file.length() );
+    }
+
+    public void testReplayStartsAtTheLastCheckpoint() throws CommandException
+    {
+        CommandJournal journal = new CommandJournal( file );
+        journal.appendCommand( "set(state(simple, a)).", "d1" );
+        journal.checkpoint( "first.lpscr", "d1" );
+        journal.appendCommand( "set(state(simple, b)).", "d2" );
+        journal.checkpoint( "second.lpscr", "d2" );
+        journal.appendCommand( "set(state(simple, c)).", "d3" );
+        journal.close();
+
+        List<CommandJournal.Record> records = new CommandJournal( file ).getRecoveryRecords();
+        assertEquals( 2, records.size() );
+        assertTrue( records.get( 0 ).isCheckpoint() );
+        assertEquals( new File( "second.lpscr" ).getAbsolutePath(), records.get( 0 ).getPayload() );
+        assertEquals( "d2", records.get( 0 ).getDigest() );
+        assertEquals( "set(state(simple, c)).", records.get( 1 ).getPayload() );
+    }
+
+    public void testCheckpointDropsQueuedRecords() throws CommandException
+    {
+        CommandJournal journal = new CommandJournal( file );
+        long first = journal.enqueueCommand( "set(state(simple, a)).", "d1" );
+        journal.checkpoint( "saved.lpscr", "d1" );
+        // The saved file has the queued command's effects, so waiting for it returns at once.
+        journal.awaitDurable( first );
+        journal.close();
+
+        List<CommandJournal.Record> records = new CommandJournal( file ).getRecoveryRecords();
+        assertEquals( 1, records.size() );
+        assertTrue( records.get( 0 ).isCheckpoint() );
+    }
+
+    public void testQueuedRecordsAreWrittenTogetherInOrder() throws CommandException, InterruptedException
+    {
+        final CommandJournal journal = new CommandJournal( file );
+        final int count = 50;
+        final long[] sequences = new long[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            sequences[i] = journal.enqueueCommand( "command" + i + ".", "d" + i );
+        }
+        final CommandException[] failure = new CommandException[1];
+        Thread[] threads = new Thread[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            final long sequence = sequences[count - 1 - i];
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        journal.awaitDurable( sequence );
+                    }
+                    catch ( CommandException e )
+                    {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+        assertNull( failure[0] );
+        journal.close();
+
+        List<CommandJournal.Record> records = new CommandJournal( file ).getRecoveryRecords();
+        assertEquals( count, records.size() );
+        for ( int i = 0; i < count; i++ )
+        {
+            assertEquals( "command" + i + ".", records.get( i ).getPayload() );
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.deepdownstudios.smsolver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import alice.tuprolog.InvalidTermException;
+import alice.tuprolog.Parser;
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+import alice.tuprolog.Var;
+
+/**
+ * Checks that CommandParser reads the same terms as alice.tuprolog.Parser, and that it is faster.
+ */
+public class CommandParserTest
+    extends TestCase
+{
+    /** Texts both parsers must read the same way. */
+    private static final String[] CONFORMANCE = {
+        "a.",
+        "set(state(simple, idle)).",
+        "edge(a, b, no_cond, go, no_action).  prop(b, label, hello).",
+        "f('Quoted Atom', 'it''s', \"double quoted\").",
+        "f('tab\\there', 'new\\nline', 'cr\\r', 'back\\\\slash', 'quote\\'', 'dq\\\"', 'bq\\`').",
+        "f(0, 42, -7, 2147483648, -2147483649, 3.25, -0.5, 1.5e10, 2.0E-3).",
+        "f([], [a], [a, b, c], [a | t], [[x], [y, z]]).",
+        "f(g(h(i(j)))).",
+        "% line comment\nf(a). /* block\ncomment */ g(b).",
+        "a :- b, c.",
+        "f(x > 1, a - b, - 1).",
+        "f((a, b)).",
+    };
+
+    /** Texts CommandParser leaves to tuProlog.  tuProlog may or may not accept them but both must agree. */
+    private static final String[] LEFT_TO_PROLOG = {
+        "f('\\a').", "f('\\b').", "f('\\f').", "f('\\v').", "f('\\x41\\').", "f('\\101\\').", "f('\\0\\').",
+        "f('line \\\ncontinued').", "f(0'a).", "f(0x1F).", "f({a}).",
+    };
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public CommandParserTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( CommandParserTest.class );
+    }
+
+    public void testConformance() throws CommandException, InvalidTermException
+    {
+        for ( String text : CONFORMANCE )
+        {
+            assertEquals( text, toStrings( prolog( text, true ) ), toStrings( CommandParser.parse( text, true ) ) );
+        }
+    }
+
+    public void testOptionalPeriods() throws CommandException, InvalidTermException
+    {
+        String text = "state(simple, a) state(simple, b) edge(a, b, no_cond, go, no_action)";
+        assertEquals( toStrings( prolog( text, false ) ), toStrings( CommandParser.parse( text, false ) ) );
+    }
+
+    public void testVariables() throws CommandException
+    {
+        List<Term> terms = CommandParser.parse( "f(X, Y, X, _, _).  g(X).", true );
+        Struct f = (Struct) terms.get( 0 );
+        assertTrue( f.getArg( 0 ) instanceof Var );
+        assertSame( f.getArg( 0 ), f.getArg( 2 ) );
+        assertNotSame( f.getArg( 0 ), f.getArg( 1 ) );
+        assertNotSame( f.getArg( 3 ), f.getArg( 4 ) );
+        // Each term has its own variables
+        assertNotSame( f.getArg( 0 ), ( (Struct) terms.get( 1 ) ).getArg( 0 ) );
+    }
+
+    /**
+     * Escapes and other syntax that CommandParser does not read itself must be left to tuProlog, not
+     * reported as errors.
+     */
+    public void testLeftToProlog()
+    {
+        for ( String text : LEFT_TO_PROLOG )
+        {
+            List<String> expected;
+            try
+            {
+                expected = toStrings( prolog( text, true ) );
+            }
+            catch ( InvalidTermException e )
+            {
+                expected = null;
+            }
+            try
+            {
+                assertEquals( text, expected, toStrings( CommandParser.parse( text, true ) ) );
+            }
+            catch ( CommandException e )
+            {
+                assertNull( text + ": " + e.getMessage(), expected );
+            }
+        }
+    }
+
+    public void testSyntaxErrors()
+    {
+        String[] texts = { "f(a", "f(a) g(b).", "'unterminated", "f(a,)." };
+        for ( String text : texts )
+        {
+            try
+            {
+                CommandParser.parse( text, true );
+                fail( "No error for: " + text );
+            }
+            catch ( CommandException e )
+            {
+                // expected
+            }
+        }
+    }
+
+    public void testErrorsGiveTheLine()
+    {
+        try
+        {
+            CommandParser.parse( "f(a).\ng(b).\nh(c d).", true );
+            fail( "No error" );
+        }
+        catch ( CommandException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage().contains( "line 3" ) );
+        }
+        try
+        {
+            CommandParser.parse( "h(c d).", true, 100 );
+            fail( "No error" );
+        }
+        catch ( CommandException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage().contains( "line 100" ) );
+        }
+    }
+
+    /**
+     * CommandParser exists because tuProlog's parser is slow.  It must read a large document faster.
+     */
+    public void testThroughput() throws CommandException, InvalidTermException
+    {
+        StringBuilder text = new StringBuilder();
+        int count = 20000;
+        for ( int i = 0; i < count; i++ )
+        {
+            text.append( "edge(s" ).append( i ).append( ", s" ).append( i + 1 )
+                .append( ", no_cond, 'event ").append( i ).append( "', no_action).\n" );
+        }
+        String document = text.toString();
+
+        long best = Long.MAX_VALUE;
+        long bestProlog = Long.MAX_VALUE;
+        for ( int run = 0; run < 3; run++ )
+        {
+            long start = System.nanoTime();
+            assertEquals( count, CommandParser.parse( document, true ).size() );
+            best = Math.min( best, System.nanoTime() - start );
+
+            start = System.nanoTime();
+            assertEquals( count, prolog( document, true ).size() );
+            bestProlog = Math.min( bestProlog, System.nanoTime() - start );
+        }
+        System.out.println( String.format( "CommandParser: %.0f terms/s, tuProlog: %.0f terms/s",
+                count / ( best / 1e9 ), count / ( bestProlog / 1e9 ) ) );
+        assertTrue( best < bestProlog );
+    }
+
+    private static List<Term> prolog( String text, boolean requirePeriod ) throws InvalidTermException
+    {
+        Parser parser = new Parser( text );
+        List<Term> ret = new ArrayList<Term>();
+        Term term = parser.nextTerm( requirePeriod );
+        while ( term != null )
+        {
+            ret.add( term );
+            term = parser.nextTerm( requirePeriod );
+        }
+        return ret;
+    }
+
+    private static List<String> toStrings( List<Term> terms )
+    {
+        List<String> ret = new ArrayList<String>();
+        for ( Term term : terms )
+        {
+            ret.add( term.toString() );
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,132 @@
+package com.deepdownstudios.smsolver;
+
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.deepdownstudios.smbridge.Endpoint;
+
+/**
+ * Unit tests for CompressingEndpoint, with two of them connected back to back.
+ */
+public class CompressingEndpointTest
+    extends TestCase
+{
+    private static final String DOCUMENT;
+    static
+    {
+        StringBuilder document = new StringBuilder( "Success.\n---\n<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<scxml xmlns=\"http://www.w3.org/2005/07/scxml\" version=\"1.0\" name=\"wire\" initial=\"s0\">\n" );
+        for ( int i = 0; i < 50; i++ )
+        {
+            document.append( "    <state id=\"s" ).append( i ).append( "\">\n        <transition event=\"next\" target=\"s" )
+                    .append( i + 1 ).append( "\"/>\n    </state>\n" );
+        }
+        DOCUMENT = document.append( "</scxml>\n" ).toString();
+    }
+
+    /**
+     * Passes what it is sent to the receiving end of the other CompressingEndpoint, and records it.
+     */
+    private static class Wire extends SMSolverTest.RecordingEndpoint
+    {
+        Endpoint far;
+
+        public synchronized void process( String message )
+        {
+            super.process( message );
+            far.process( message );
+        }
+    }
+
+    private Wire toServer;
+    private Wire toClient;
+    private CompressingEndpoint client;
+    private CompressingEndpoint server;
+    private SMSolverTest.RecordingEndpoint clientInbox;
+    private SMSolverTest.RecordingEndpoint serverInbox;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public CompressingEndpointTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( CompressingEndpointTest.class );
+    }
+
+    protected void setUp()
+    {
+        toServer = new Wire();
+        toClient = new Wire();
+        client = new CompressingEndpoint( toServer, true );
+        server = new CompressingEndpoint( toClient, false );
+        toServer.far = server.getReceiver();
+        toClient.far = client.getReceiver();
+        clientInbox = new SMSolverTest.RecordingEndpoint();
+        serverInbox = new SMSolverTest.RecordingEndpoint();
+        client.setConnectedEndpoint( clientInbox );
+        server.setConnectedEndpoint( serverInbox );
+    }
+
+    public void testRoundTrip()
+    {
+        client.start();
+        assertTrue( client.isEnabled() );
+        assertTrue( server.isEnabled() );
+
+        server.process( DOCUMENT );
+        client.process( DOCUMENT );
+        assertEquals( DOCUMENT, clientInbox.getMessages().get( 0 ) );
+        assertEquals( DOCUMENT, serverInbox.getMessages().get( 0 ) );
+
+        // It really was compressed, and counted
+        String sent = last( toClient.getMessages() );
+        assertTrue( sent.startsWith( "DEFLATE " ) );
+        assertTrue( sent.length() < DOCUMENT.length() / 2 );
+        assertEquals( 1, server.getCompressedMessages() );
+        assertEquals( DOCUMENT.length(), server.getRawBytes() );
+        assertEquals( sent.length(), server.getCompressedBytes() );
+    }
+
+    public void testShortMessagesAreSentAsIs()
+    {
+        client.start();
+        server.process( "Success." );
+        assertEquals( "Success.", last( toClient.getMessages() ) );
+        assertEquals( "Success.", clientInbox.getMessages().get( 0 ) );
+        assertEquals( 0, server.getCompressedMessages() );
+    }
+
+    public void testNothingIsCompressedWithoutAgreement()
+    {
+        server.process( DOCUMENT );
+        assertFalse( server.isEnabled() );
+        assertEquals( DOCUMENT, last( toClient.getMessages() ) );
+        assertEquals( DOCUMENT, clientInbox.getMessages().get( 0 ) );
+    }
+
+    public void testCorruptMessageIsAnsweredWithAnError()
+    {
+        client.start();
+        server.getReceiver().process( "DEFLATE not*base64" );
+        assertTrue( serverInbox.getMessages().isEmpty() );
+        assertTrue( last( toClient.getMessages() ).startsWith( "ERROR" ) );
+    }
+
+    private static String last( List<String> messages )
+    {
+        return messages.get( messages.size() - 1 );
+    }
+}
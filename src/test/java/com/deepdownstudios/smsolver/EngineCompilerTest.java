@@ -0,0 +1,194 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.CharStreams;
+
+/**
+ * Unit tests for EngineCompiler.  The compiled engine is run with clingo next to engine.lp on the same
+ * history of commands, when there is a clingo executable on the PATH.
+ */
+public class EngineCompilerTest
+    extends TestCase
+{
+    private static final String DOCUMENT =
+            "state(simple, a).  state(simple, b).  state(simple, c).  state(simple, p).  state(simple, p1).\n" +
+            "parent(p, p1).  prop(p, initial, p1).\n" +
+            "edge(a, b, no_cond, go, no_action).  edge(b, c, no_cond, go, no_action).  edge(c, a, no_cond, back, no_action).\n" +
+            "prop(b, label, hello).\n";
+
+    private static final List<String> HISTORY = Arrays.asList(
+            "set(state(simple, d)).  set(parent(p, d)).",
+            "change(state(final, c)).",
+            "delete(state(simple, b)).",
+            "set(state(shallow, h)).  set(parent(p, h)).",
+            "set(edge(d, a, no_cond, leave, no_action)).  set(prop(d, label, there))." );
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public EngineCompilerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( EngineCompilerTest.class );
+    }
+
+    public void testCommentsAndWhitespaceAreRemoved() throws CommandException
+    {
+        List<String> statements = EngineCompiler.compile( "#show a/1.   % line comment\n" +
+                "%* block\ncomment *%\na(X) :-\n\tb(X),   % why\n\tnot c(\"100% sure\").\n" );
+        assertEquals( Arrays.asList( "#show a/1.", "a(X) :- b(X), not c(\"100% sure\")." ), statements );
+    }
+
+    public void testMalformedProgramsAreRejected()
+    {
+        for ( String program : new String[] { "#show a/1.  %* unterminated", "#show a/1.  a(\"unterminated).",
+                "#show a/1.  a(b.", "#show a/1.  a(b)).", "#show a/1.  a(b)", "a(b)." } )
+        {
+            try
+            {
+                EngineCompiler.compile( program );
+                fail( "Accepted: " + program );
+            }
+            catch ( CommandException e )
+            {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Compiling the compiled engine again changes nothing, so no statement was split or joined.
+     */
+    public void testCompiledEngineIsStable() throws CommandException, IOException
+    {
+        List<String> statements = EngineCompiler.compile( engine() );
+        assertFalse( statements.isEmpty() );
+        assertEquals( statements, EngineCompiler.compile( Joiner.on( '\n' ).join( statements ) ) );
+    }
+
+    public void testCompiledEngineGivesTheSameAnswers() throws CommandException, IOException
+    {
+        if ( !JavaEngineSolverTest.hasClingo() )
+        {
+            return;
+        }
+        String source = engine();
+        String compiled = Joiner.on( '\n' ).join( EngineCompiler.compile( source ) ) + "\n";
+        List<Term> sourceFacts = CommandParser.parse( DOCUMENT, true );
+        List<Term> compiledFacts = sourceFacts;
+        for ( String commands : HISTORY )
+        {
+            String commandText = command( commands ).toSolverString();
+            sourceFacts = solve( source, sourceFacts, commandText );
+            compiledFacts = solve( compiled, compiledFacts, commandText );
+            assertEquals( commands, keys( sourceFacts ), keys( compiledFacts ) );
+        }
+    }
+
+    private static String engine() throws IOException
+    {
+        InputStream stream = EngineCompilerTest.class.getResourceAsStream( "/engine.lp" );
+        assertNotNull( stream );
+        try
+        {
+            return CharStreams.toString( new InputStreamReader( stream, Charsets.UTF_8 ) );
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /**
+     * Run clingo on 'engine' with 'facts' as input, as ClingoSolver does.
+     * @return	The answer, without parent(top_state, X) facts, which clingo is never given
+     */
+    private static List<Term> solve( String engine, List<Term> facts, String commandText )
+            throws CommandException, IOException
+    {
+        StringBuilder payload = new StringBuilder( engine );
+        for ( Term fact : facts )
+        {
+            payload.append( "input(" ).append( fact.toUnquotedString() ).append( ").\n" );
+        }
+        payload.append( commandText );
+
+        Process process = new ProcessBuilder( "clingo" ).redirectErrorStream( true ).start();
+        OutputStream stdin = process.getOutputStream();
+        stdin.write( payload.toString().getBytes( Charsets.UTF_8 ) );
+        stdin.close();
+        BufferedReader reader = new BufferedReader( new InputStreamReader( process.getInputStream(), Charsets.UTF_8 ) );
+        String answer = null;
+        boolean lastLineWasAnswerTag = false;
+        String line;
+        while ( ( line = reader.readLine() ) != null )
+        {
+            if ( lastLineWasAnswerTag && answer == null )
+            {
+                answer = line;
+            }
+            lastLineWasAnswerTag = line.startsWith( "Answer: " );
+        }
+        reader.close();
+        assertNotNull( "clingo gave no answer to: " + commandText, answer );
+
+        List<Term> ret = new ArrayList<Term>();
+        for ( Term term : CommandParser.parse( answer, false ) )
+        {
+            Struct struct = (Struct) term;
+            if ( !struct.getName().equals( ScxmlPrologData.PARENT_STR ) ||
+                    !struct.getArg( 0 ).toUnquotedString().equals( ScxmlPrologData.TOP_STATE_STR ) )
+            {
+                ret.add( term );
+            }
+        }
+        return ret;
+    }
+
+    private static Command command( String commands ) throws CommandException
+    {
+        List<Struct> structs = new ArrayList<Struct>();
+        for ( Term term : CommandParser.parse( commands, true ) )
+        {
+            structs.add( (Struct) term );
+        }
+        return Command.build( structs );
+    }
+
+    private static Set<String> keys( List<Term> terms )
+    {
+        Set<String> ret = new TreeSet<String>();
+        for ( Term term : terms )
+        {
+            ret.add( FactIndex.key( term ) );
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,185 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+
+import com.deepdownstudios.smsolver.Command.SingleCommand;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for ExecutableContentStore and the commands that carry executable content.
+ */
+public class ExecutableContentStoreTest 
+    extends TestCase
+{
+    private static final String CONTENT =
+            "_seq(log('entering s', 'a message long enough to be replaced by a handle'), noop)";
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ExecutableContentStoreTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ExecutableContentStoreTest.class );
+    }
+
+    private static Term parse( String text ) throws CommandException
+    {
+        return CommandParser.parse( text, false ).get( 0 );
+    }
+
+    public void testInternAndResolve() throws CommandException
+    {
+        Term content = parse( CONTENT );
+        Term handle = ExecutableContentStore.intern( content );
+        assertFalse( handle.isCompound() );
+        assertTrue( handle.toString().startsWith( "xc_" ) );
+        assertEquals( handle.toString(), ExecutableContentStore.intern( parse( CONTENT ) ).toString() );
+        assertEquals( content.toString(), ExecutableContentStore.resolve( handle ).toString() );
+    }
+
+    /**
+     * The table only keeps content for as long as a handle for it is in use.
+     */
+    public void testContentIsDroppedWithItsHandles() throws CommandException, InterruptedException
+    {
+        String text = "_seq(log('only used here', '" + System.nanoTime() + " and long enough for a handle'), noop)";
+        Term handle = ExecutableContentStore.intern( parse( text ) );
+        // An atom with the same name, as parsed from clingo's answer, does not hold the content...
+        Struct atom = new Struct( handle.toString() );
+        collectGarbage();
+        assertEquals( text, ExecutableContentStore.resolve( atom ).toString() );
+        // ...but interning it gives a handle that does.
+        Term fromAnswer = ExecutableContentStore.intern( atom );
+        handle = null;
+        collectGarbage();
+        assertEquals( text, ExecutableContentStore.resolve( atom ).toString() );
+        assertEquals( text, ExecutableContentStore.resolve( fromAnswer ).toString() );
+
+        fromAnswer = null;
+        for ( int i = 0; i < 50 && ExecutableContentStore.resolve( atom ) != atom; i++ )
+        {
+            collectGarbage();
+        }
+        assertSame( atom, ExecutableContentStore.resolve( atom ) );
+    }
+
+    private static void collectGarbage() throws InterruptedException
+    {
+        System.gc();
+        Thread.sleep( 10 );
+    }
+
+    public void testSmallContentStaysInline() throws CommandException
+    {
+        Term content = parse( "_seq(raise(e), noop)" );
+        assertSame( content, ExecutableContentStore.intern( content ) );
+    }
+
+    public void testPatternsAreNotInterned() throws CommandException
+    {
+        Term pattern = parse( "_seq(log(X, 'a message long enough to be replaced by a handle'), _)" );
+        assertSame( pattern, ExecutableContentStore.intern( pattern ) );
+
+        Term fact = parse( "prop(s, onentry, _seq(X, _))" );
+        assertTrue( ExecutableContentStore.hasContentPattern( fact ) );
+        assertSame( fact, ExecutableContentStore.internFacts( fact ) );
+        assertFalse( ExecutableContentStore.hasContentPattern( parse( "prop(s, onentry, " + CONTENT + ")" ) ) );
+    }
+
+    public void testInternFactsAndResolveFacts() throws CommandException
+    {
+        Term fact = parse( "edge(a, b, go, true, " + CONTENT + ")" );
+        Struct interned = (Struct) ExecutableContentStore.internFacts( fact );
+        assertFalse( interned.getArg( 4 ).isCompound() );
+        assertEquals( "a", interned.getArg( 0 ).toString() );
+        assertEquals( fact.toString(), ExecutableContentStore.resolveFacts( interned ).toString() );
+
+        // Other props keep their values
+        Term other = parse( "prop(s, initial, " + CONTENT + ")" );
+        assertSame( other, ExecutableContentStore.internFacts( other ) );
+    }
+
+    public void testCommandsKeepTheirContent() throws CommandException
+    {
+        SingleCommand command = SingleCommand.parseCommand( (Struct) parse( "set(prop(s, onentry, " + CONTENT + "))" ) );
+        assertFalse( command.toString().contains( "xc_" ) );
+        assertTrue( command.toString().contains( "a message long enough" ) );
+        assertTrue( command.toSolverString().contains( "xc_" ) );
+        assertFalse( command.toSolverString().contains( "a message long enough" ) );
+
+        // What is written to a file parses back to the same command
+        SingleCommand reparsed = SingleCommand.parseCommand( (Struct) parse( command.toString() ) );
+        assertEquals( command.toString(), reparsed.toString() );
+    }
+
+    /**
+     * A saved lpscr file holds the content itself, so it can be loaded by another process.
+     */
+    public void testSaveAndReload() throws CommandException, IOException
+    {
+        // new/1 and load/1 take the document name, which is relative to the working directory
+        File file = new File( "content_roundtrip.lpscr" );
+        try
+        {
+            Solver solver = new JavaEngineSolver( new Solver()
+            {
+                public ScxmlFile run( State state, Command command ) throws CommandException
+                {
+                    throw new CommandException( "Not supported by the test: " + command );
+                }
+            }, false );
+            History history = new History();
+            history = Commands.parse( "new(content_roundtrip)." ).execute( history, solver ).getHistory();
+            history = Commands.parse( "set(state(simple, s)).  set(parent(top_state, s))." )
+                    .execute( history, solver ).getHistory();
+            history = Commands.parse( "set(prop(s, onentry, " + CONTENT + "))." )
+                    .execute( history, solver ).getHistory();
+            List<Term> before = history.getCurrentState().getScxmlFile().getScxmlProlog();
+            Commands.parse( "save." ).execute( history, solver );
+
+            String text = Files.toString( file, Charsets.UTF_8 );
+            assertFalse( text, text.contains( "xc_" ) );
+            assertTrue( text, text.contains( "a message long enough" ) );
+
+            History loaded = Commands.parse( "load(content_roundtrip)." )
+                    .execute( new History(), solver ).getHistory();
+            List<Term> after = loaded.getCurrentState().getScxmlFile().getScxmlProlog();
+            assertEquals( keys( before ), keys( after ) );
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    private static Set<String> keys( List<Term> terms )
+    {
+        Set<String> ret = new TreeSet<String>();
+        for ( Term term : terms )
+        {
+            ret.add( FactIndex.key( ExecutableContentStore.resolveFacts( term ) ) );
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,143 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import alice.tuprolog.Struct;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for FactImporter.
+ */
+public class FactImporterTest
+    extends TestCase
+{
+    private File dir;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public FactImporterTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( FactImporterTest.class );
+    }
+
+    protected void setUp()
+    {
+        dir = Files.createTempDir();
+    }
+
+    protected void tearDown()
+    {
+        for ( File child : dir.listFiles() )
+        {
+            child.delete();
+        }
+        dir.delete();
+    }
+
+    public void testEdgeListEndpointsBecomeStates() throws CommandException, IOException
+    {
+        File file = write( "edges.csv", "source,target,event,cond\na,b,go\nb,c,,ready\n" );
+        FactIndex document = FactIndex.build( CommandParser.parse( "state(final, c).  parent(top_state, c).", true ) );
+        Set<String> keys = keys( FactImporter.read( file, document ) );
+        assertTrue( keys.contains( "state(simple,a)" ) );
+        assertTrue( keys.contains( "state(simple,b)" ) );
+        assertFalse( keys.contains( "state(simple,c)" ) );
+        assertTrue( keys.contains( "edge(a,b,no_cond,go,no_action)" ) );
+        assertTrue( keys.contains( "edge(b,c,ready,no_event,no_action)" ) );
+        assertEquals( 4, keys.size() );
+    }
+
+    public void testEdgeListWithoutDocument() throws CommandException, IOException
+    {
+        File file = write( "edges.tsv", "a\tb\n" );
+        Set<String> keys = keys( FactImporter.read( file, null ) );
+        assertTrue( keys.contains( "state(simple,a)" ) );
+        assertTrue( keys.contains( "state(simple,b)" ) );
+    }
+
+    /**
+     * A fact file longer than one chunk, with a quoted atom and a comment that span a chunk's worth of lines.
+     */
+    public void testLongFactFile() throws CommandException, IOException
+    {
+        StringBuilder text = new StringBuilder();
+        int count = 10000;
+        for ( int i = 0; i < count; i++ )
+        {
+            text.append( "state(simple, s" ).append( i ).append( ").\n" );
+            if ( i == 4000 )
+            {
+                text.append( "prop(s0, label, 'first line.\n" );
+                for ( int j = 0; j < 200; j++ )
+                {
+                    text.append( "more.\n" );
+                }
+                text.append( "last').\n/* a comment.\n" );
+                for ( int j = 0; j < 200; j++ )
+                {
+                    text.append( "more.\n" );
+                }
+                text.append( "*/\n" );
+            }
+        }
+        List<Struct> facts = FactImporter.read( write( "facts.lp", text.toString() ), null );
+        assertEquals( count + 1, facts.size() );
+    }
+
+    public void testSyntaxErrorsGiveTheLineInTheFile() throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+        for ( int i = 0; i < 5000; i++ )
+        {
+            text.append( "state(simple, s" ).append( i ).append( ").\n" );
+        }
+        text.append( "state(simple, bad bad).\n" );
+        text.append( "state(simple, good).\n" );
+        try
+        {
+            FactImporter.read( write( "facts.lp", text.toString() ), null );
+            fail( "The syntax error was not found" );
+        }
+        catch ( CommandException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage().contains( "line 5001" ) );
+        }
+    }
+
+    private File write( String name, String text ) throws IOException
+    {
+        File file = new File( dir, name );
+        Files.write( text, file, Charsets.UTF_8 );
+        return file;
+    }
+
+    private static Set<String> keys( List<Struct> facts )
+    {
+        Set<String> ret = new TreeSet<String>();
+        for ( Struct fact : facts )
+        {
+            ret.add( FactIndex.key( fact ) );
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,139 @@
+package com.deepdownstudios.smsolver;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+
+/**
+ * Unit tests for FactQuery.
+ */
+public class FactQueryTest
+    extends TestCase
+{
+    private static final String DOCUMENT =
+            "state(simple, idle).  state(simple, idle_wait).  state(simple, busy).  state(final, done).\n" +
+            "parent(top_state, idle).  parent(idle, idle_wait).  parent(top_state, busy).  parent(top_state, done).\n" +
+            "edge(idle, busy, no_cond, go, no_action).  edge(busy, idle, no_cond, back, no_action).\n" +
+            "edge(busy, busy, no_cond, tick, no_action).  edge(busy, done, no_cond, stop, no_action).\n" +
+            "prop(busy, label, working).  prop(done, label, finished).  prop(idle, timeout, 5).\n";
+
+    private FactIndex index;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public FactQueryTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( FactQueryTest.class );
+    }
+
+    protected void setUp() throws CommandException
+    {
+        index = FactIndex.build( CommandParser.parse( DOCUMENT, true ) );
+    }
+
+    public void testPatternBindsItsVariables() throws CommandException
+    {
+        Map<Struct, Map<String, String>> matches = match( "edge(idle, Target, Event, _, _)." );
+        assertEquals( 1, matches.size() );
+        Map.Entry<Struct, Map<String, String>> match = matches.entrySet().iterator().next();
+        assertEquals( "edge(idle,busy,no_cond,go,no_action)", FactIndex.key( match.getKey() ) );
+        assertEquals( "busy", match.getValue().get( "Target" ) );
+        assertEquals( "go", match.getValue().get( "Event" ) );
+        assertEquals( 2, match.getValue().size() );
+    }
+
+    public void testRepeatedVariablesMustAgree() throws CommandException
+    {
+        assertEquals( keys( "edge(busy,busy,no_cond,tick,no_action)" ), keys( match( "edge(X, X, _, _, _)." ) ) );
+    }
+
+    public void testEveryArgumentFilters() throws CommandException
+    {
+        // Bound by state ID, so looked up in the index
+        assertEquals( keys( "edge(busy,idle,no_cond,back,no_action)", "edge(busy,busy,no_cond,tick,no_action)",
+                "edge(busy,done,no_cond,stop,no_action)" ), keys( match( "edge(busy, _, _, _, _)." ) ) );
+        assertEquals( keys( "edge(idle,busy,no_cond,go,no_action)", "edge(busy,busy,no_cond,tick,no_action)" ),
+                keys( match( "edge(_, busy, _, _, _)." ) ) );
+        assertEquals( keys( "parent(idle,idle_wait)" ), keys( match( "parent(idle, Child)." ) ) );
+        assertEquals( keys( "state(final,done)" ), keys( match( "state(Type, done)." ) ) );
+
+        // No state ID, so every fact is scanned
+        assertEquals( keys( "prop(busy,label,working)", "prop(done,label,finished)" ),
+                keys( match( "prop(_, label, _)." ) ) );
+        assertEquals( keys( "state(final,done)" ), keys( match( "state(final, _)." ) ) );
+        assertTrue( match( "edge(_, _, _, missing, _)." ).isEmpty() );
+    }
+
+    public void testRelations() throws CommandException
+    {
+        assertEquals( "1 result:\n\tidle_wait", run( "children(idle)." ) );
+        assertEquals( "2 results:\n\tidle\n\ttop_state", run( "ancestors(idle_wait)." ) );
+        assertEquals( "1 result:\n\tedge(idle,busy,no_cond,go,no_action).", run( "outgoing(idle)." ) );
+        assertEquals( "0 results:", run( "children(done)." ) );
+        assertEquals( "1 result:\n\tedge(idle,busy,no_cond,go,no_action).\t\tE = go", run( "edge(idle, _, _, E, _)." ) );
+    }
+
+    public void testBadQueriesAreRejected()
+    {
+        for ( String query : new String[] { "children(X).", "unknown(idle).", "unknown(idle, busy).", "5." } )
+        {
+            try
+            {
+                run( query );
+                fail( "Accepted: " + query );
+            }
+            catch ( CommandException e )
+            {
+                // expected
+            }
+        }
+    }
+
+    private Map<Struct, Map<String, String>> match( String pattern ) throws CommandException
+    {
+        return FactQuery.match( index, (Struct) parse( pattern ) );
+    }
+
+    private String run( String query ) throws CommandException
+    {
+        return FactQuery.run( index, parse( query ) );
+    }
+
+    private static Term parse( String text ) throws CommandException
+    {
+        return CommandParser.parse( text, true ).get( 0 );
+    }
+
+    private static Set<String> keys( String... keys )
+    {
+        return new TreeSet<String>( Arrays.asList( keys ) );
+    }
+
+    private static Set<String> keys( Map<Struct, Map<String, String>> matches )
+    {
+        Set<String> ret = new TreeSet<String>();
+        for ( Struct fact : matches.keySet() )
+        {
+            ret.add( FactIndex.key( fact ) );
+        }
+        return ret;
+    }
+}
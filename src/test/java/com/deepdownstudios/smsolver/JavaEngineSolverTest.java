@@ -0,0 +1,205 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+
+/**
+ * Runs JavaEngineSolver and ClingoSolver on the same documents and commands and checks that they give
+ * the same facts.  The clingo half is skipped when there is no clingo executable on the PATH.
+ */
+public class JavaEngineSolverTest
+    extends TestCase
+{
+    private static final String DOCUMENT =
+            "state(simple, a).  state(simple, b).  state(simple, c).  state(simple, p).  state(simple, p1).\n" +
+            "parent(top_state, a).  parent(top_state, b).  parent(top_state, c).  parent(top_state, p).  parent(p, p1).\n" +
+            "prop(p, initial, p1).\n" +
+            "edge(a, b, no_cond, go, no_action).  edge(b, c, no_cond, go, no_action).  edge(c, a, no_cond, back, no_action).\n" +
+            "prop(b, label, hello).\n";
+
+    /** Fails every command, so a test fails if the Java engine cannot decide a command itself. */
+    private static final Solver NO_FALLBACK = new Solver()
+    {
+        public ScxmlFile run( State state, Command command ) throws CommandException
+        {
+            throw new CommandException( "The Java engine passed this command on: " + command );
+        }
+    };
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public JavaEngineSolverTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( JavaEngineSolverTest.class );
+    }
+
+    public void testDeleteCascadesToEdgesAndProps() throws CommandException
+    {
+        Set<String> result = check( DOCUMENT, "delete(state(simple, b))." );
+        assertFalse( result.contains( "state(simple,b)" ) );
+        assertFalse( result.contains( "edge(a,b,no_cond,go,no_action)" ) );
+        assertFalse( result.contains( "edge(b,c,no_cond,go,no_action)" ) );
+        assertFalse( result.contains( "prop(b,label,hello)" ) );
+        assertTrue( result.contains( "edge(c,a,no_cond,back,no_action)" ) );
+    }
+
+    public void testChangedStateKeepsItsEdges() throws CommandException
+    {
+        Set<String> result = check( DOCUMENT, "change(state(final, c))." );
+        assertTrue( result.contains( "state(final,c)" ) );
+        assertFalse( result.contains( "state(simple,c)" ) );
+    }
+
+    public void testNewStatesDefaultToTopState() throws CommandException
+    {
+        Set<String> result = check( DOCUMENT, "set(state(simple, d))." );
+        assertTrue( result.contains( "parent(top_state,d)" ) );
+
+        result = check( DOCUMENT, "set(state(simple, d)).  set(parent(p, d))." );
+        assertTrue( result.contains( "parent(p,d)" ) );
+        assertFalse( result.contains( "parent(top_state,d)" ) );
+
+        result = check( DOCUMENT, "change(parent(p, a))." );
+        assertTrue( result.contains( "parent(p,a)" ) );
+        assertFalse( result.contains( "parent(top_state,a)" ) );
+    }
+
+    public void testHistoryStatesDefaultToTheInitialState() throws CommandException
+    {
+        Set<String> result = check( DOCUMENT, "set(state(shallow, h)).  set(parent(p, h))." );
+        assertTrue( result.contains( "edge(h,p1,no_cond,no_event,no_action)" ) );
+
+        // An explicit transition replaces the default one
+        result = check( DOCUMENT, "set(state(simple, p2)).  set(parent(p, p2)).  set(state(shallow, h)).  " +
+                "set(parent(p, h)).  set(edge(h, p2, no_cond, no_event, no_action))." );
+        assertTrue( result.contains( "edge(h,p2,no_cond,no_event,no_action)" ) );
+        assertFalse( result.contains( "edge(h,p1,no_cond,no_event,no_action)" ) );
+    }
+
+    public void testUnsatisfiableCommandsFailInBoth() throws CommandException
+    {
+        Command command = command( "set(parent(a, b)).  set(parent(c, b))." );
+        State state = state( DOCUMENT );
+        try
+        {
+            new JavaEngineSolver( NO_FALLBACK, false ).run( state, command );
+            fail( "Two parents were allowed by the Java engine" );
+        }
+        catch ( CommandException e )
+        {
+            // expected
+        }
+        if ( hasClingo() )
+        {
+            try
+            {
+                ClingoSolver.run( state, command );
+                fail( "Two parents were allowed by clingo" );
+            }
+            catch ( CommandException e )
+            {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Run 'commands' on 'document' with the Java engine and, if it is installed, with clingo.
+     * @return	The keys of the Java engine's facts
+     */
+    private static Set<String> check( String document, String commands ) throws CommandException
+    {
+        State state = state( document );
+        Command command = command( commands );
+        Set<String> java = keys( new JavaEngineSolver( NO_FALLBACK, false ).run( state, command ).getScxmlProlog() );
+        if ( hasClingo() )
+        {
+            Set<String> clingo = keys( ClingoSolver.run( state, command ).getScxmlProlog() );
+            assertEquals( commands, clingo, java );
+        }
+        return java;
+    }
+
+    private static State state( String document ) throws CommandException
+    {
+        ScxmlFile scxmlFile = new ScxmlFile( "test.lpscr", "test", CommandParser.parse( document, true ) );
+        return new State( Command.NOOP, "", scxmlFile );
+    }
+
+    private static Command command( String commands ) throws CommandException
+    {
+        List<Struct> structs = new ArrayList<Struct>();
+        for ( Term term : CommandParser.parse( commands, true ) )
+        {
+            structs.add( (Struct) term );
+        }
+        return Command.build( structs );
+    }
+
+    private static Set<String> keys( List<Term> terms )
+    {
+        Set<String> ret = new TreeSet<String>();
+        for ( Term term : terms )
+        {
+            String key = FactIndex.key( term );
+            if ( !key.equals( "state(simple,top_state)" ) )
+            {
+                ret.add( key );
+            }
+        }
+        return ret;
+    }
+
+    private static Boolean clingo = null;
+
+    static synchronized boolean hasClingo()
+    {
+        if ( clingo == null )
+        {
+            try
+            {
+                Process process = new ProcessBuilder( "clingo", "--version" ).redirectErrorStream( true ).start();
+                process.getOutputStream().close();
+                while ( process.getInputStream().read() >= 0 )
+                {
+                    // Drain it
+                }
+                clingo = process.waitFor() == 0;
+            }
+            catch ( IOException e )
+            {
+                clingo = false;
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                clingo = false;
+            }
+            if ( !clingo )
+            {
+                System.err.println( "clingo is not installed.  Only the Java engine is tested." );
+            }
+        }
+        return clingo;
+    }
+}
@@ -0,0 +1,207 @@
+package com.deepdownstudios.smsolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.deepdownstudios.smbridge.Endpoint;
+
+/**
+ * Unit tests for OutboundQueue.
+ */
+public class OutboundQueueTest
+    extends TestCase
+{
+    /**
+     * Records what it is sent.  Sending blocks until the gate is opened.
+     */
+    private static class GatedEndpoint implements Endpoint
+    {
+        final List<String> received = new ArrayList<String>();
+        final CountDownLatch gate;
+        final CountDownLatch firstArrived = new CountDownLatch( 1 );
+        volatile boolean closed = false;
+
+        GatedEndpoint( boolean open )
+        {
+            gate = new CountDownLatch( open ? 0 : 1 );
+        }
+
+        public void process( String message )
+        {
+            firstArrived.countDown();
+            try
+            {
+                gate.await();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            synchronized ( received )
+            {
+                received.add( message );
+                received.notifyAll();
+            }
+        }
+
+        public void setConnectedEndpoint( Endpoint endpoint )
+        {
+        }
+
+        public void close()
+        {
+            closed = true;
+        }
+
+        List<String> await( int count ) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + 5000;
+            synchronized ( received )
+            {
+                while ( received.size() < count && System.currentTimeMillis() < deadline )
+                {
+                    received.wait( 100 );
+                }
+                return new ArrayList<String>( received );
+            }
+        }
+    }
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public OutboundQueueTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( OutboundQueueTest.class );
+    }
+
+    public void testMessagesAreSentInOrder() throws InterruptedException
+    {
+        GatedEndpoint endpoint = new GatedEndpoint( true );
+        OutboundQueue queue = new OutboundQueue( endpoint, 16 );
+        for ( int i = 0; i < 100; i++ )
+        {
+            queue.process( "message" + i );
+        }
+        List<String> received = endpoint.await( 100 );
+        assertEquals( 100, received.size() );
+        for ( int i = 0; i < 100; i++ )
+        {
+            assertEquals( "message" + i, received.get( i ) );
+        }
+        queue.close();
+    }
+
+    public void testOlderSnapshotsAreReplaced() throws InterruptedException
+    {
+        GatedEndpoint endpoint = new GatedEndpoint( false );
+        OutboundQueue queue = new OutboundQueue( endpoint, 16 );
+        queue.process( "first" );
+        assertTrue( endpoint.firstArrived.await( 5, TimeUnit.SECONDS ) );		// The sender is now blocked on it
+        queue.processSnapshot( "ack1", "ack1 document1" );
+        queue.process( "note" );
+        queue.processSnapshot( "ack2", "ack2 document2" );
+        endpoint.gate.countDown();
+
+        assertEquals( Arrays.asList( "first", "ack1", "note", "ack2 document2" ), endpoint.await( 4 ) );
+        assertEquals( 1, queue.getCoalescedCount() );
+        queue.close();
+        assertEquals( 4, queue.getSentCount() );
+    }
+
+    public void testSendersWaitWhenFull() throws InterruptedException
+    {
+        final GatedEndpoint endpoint = new GatedEndpoint( false );
+        final OutboundQueue queue = new OutboundQueue( endpoint, 1 );
+        queue.process( "first" );
+        assertTrue( endpoint.firstArrived.await( 5, TimeUnit.SECONDS ) );
+        queue.process( "second" );		// Fills the queue
+        final CountDownLatch thirdQueued = new CountDownLatch( 1 );
+        Thread sender = new Thread()
+        {
+            public void run()
+            {
+                queue.process( "third" );
+                thirdQueued.countDown();
+            }
+        };
+        sender.start();
+        assertFalse( thirdQueued.await( 200, TimeUnit.MILLISECONDS ) );
+        endpoint.gate.countDown();
+        assertTrue( thirdQueued.await( 5, TimeUnit.SECONDS ) );
+        assertEquals( Arrays.asList( "first", "second", "third" ), endpoint.await( 3 ) );
+        queue.close();
+    }
+
+    public void testCloseSendsWhatIsWaiting() throws InterruptedException
+    {
+        GatedEndpoint endpoint = new GatedEndpoint( false );
+        OutboundQueue queue = new OutboundQueue( endpoint, 16 );
+        queue.process( "first" );
+        queue.process( "second" );
+        assertTrue( endpoint.firstArrived.await( 5, TimeUnit.SECONDS ) );
+        endpoint.gate.countDown();
+        queue.close();
+        assertEquals( Arrays.asList( "first", "second" ), endpoint.await( 2 ) );
+        assertTrue( endpoint.closed );
+        assertEquals( 0, queue.getDroppedCount() );
+
+        queue.process( "late" );
+        assertEquals( 1, queue.getDroppedCount() );
+    }
+
+    public void testNothingIsSentAfterAFailedSend() throws InterruptedException
+    {
+        final List<String> attempts = new ArrayList<String>();
+        final CountDownLatch closed = new CountDownLatch( 1 );
+        Endpoint broken = new Endpoint()
+        {
+            public void process( String message )
+            {
+                synchronized ( attempts )
+                {
+                    attempts.add( message );
+                }
+                throw new IllegalStateException( "Connection lost" );
+            }
+
+            public void setConnectedEndpoint( Endpoint endpoint )
+            {
+            }
+
+            public void close()
+            {
+                closed.countDown();
+            }
+        };
+        OutboundQueue queue = new OutboundQueue( broken, 16 );
+        queue.process( "first" );
+        assertTrue( closed.await( 5, TimeUnit.SECONDS ) );
+        queue.processSnapshot( "ack", "ack document" );
+        queue.process( "late" );
+        queue.close();
+        synchronized ( attempts )
+        {
+            assertEquals( Arrays.asList( "first" ), attempts );
+        }
+        assertEquals( 0, queue.getSentCount() );
+        assertEquals( 3, queue.getDroppedCount() );
+    }
+}
@@ -0,0 +1,129 @@
+package com.deepdownstudios.smsolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import alice.tuprolog.Struct;
+import alice.tuprolog.Term;
+
+/**
+ * Unit tests for PartitionedSolver.
+ */
+public class PartitionedSolverTest
+    extends TestCase
+{
+    /** Three components: {a, b, p, p1}, {c, d} and {e}. */
+    private static final String DOCUMENT =
+            "state(simple, a).  state(simple, b).  state(simple, c).  state(simple, d).  state(simple, e).\n" +
+            "state(simple, p).  state(simple, p1).\n" +
+            "parent(top_state, a).  parent(top_state, b).  parent(top_state, c).  parent(top_state, d).\n" +
+            "parent(top_state, e).  parent(top_state, p).  parent(p, p1).  prop(p, initial, p1).\n" +
+            "edge(a, b, no_cond, go, no_action).  edge(b, p, no_cond, go, no_action).\n" +
+            "edge(c, d, no_cond, go, no_action).  prop(e, label, alone).\n";
+
+    /** Fails every command, so a test fails if the Java engine cannot decide a command itself. */
+    private static final Solver NO_FALLBACK = new Solver()
+    {
+        public ScxmlFile run( State state, Command command ) throws CommandException
+        {
+            throw new CommandException( "The Java engine passed this command on: " + command );
+        }
+    };
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public PartitionedSolverTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( PartitionedSolverTest.class );
+    }
+
+    public void testComponents()
+    {
+        PartitionedSolver.Components components = new PartitionedSolver.Components();
+        components.union( Arrays.asList( "a", "b" ) );
+        components.union( Arrays.asList( "c", "d", "e" ) );
+        components.union( Arrays.asList( "f" ) );
+        assertEquals( components.find( "a" ), components.find( "b" ) );
+        assertEquals( components.find( "c" ), components.find( "e" ) );
+        assertFalse( components.find( "a" ).equals( components.find( "c" ) ) );
+        assertFalse( components.find( "f" ).equals( components.find( "a" ) ) );
+
+        components.union( Arrays.asList( "b", "d" ) );
+        assertEquals( components.find( "a" ), components.find( "e" ) );
+        assertEquals( "g", components.find( "g" ) );
+    }
+
+    /**
+     * A chain as long as this overflowed the stack when find() was recursive and unions were not by size.
+     */
+    public void testLongChain()
+    {
+        PartitionedSolver.Components components = new PartitionedSolver.Components();
+        int count = 200000;
+        for ( int i = 1; i < count; i++ )
+        {
+            components.union( Arrays.asList( "s" + i, "s" + ( i - 1 ) ) );
+        }
+        String root = components.find( "s0" );
+        for ( int i = 0; i < count; i++ )
+        {
+            assertEquals( root, components.find( "s" + i ) );
+        }
+    }
+
+    /**
+     * Solving two components apart must give the same facts, once each, as solving the chart whole.
+     */
+    public void testSameFactsAsTheWholeChart() throws CommandException
+    {
+        State state = new State( Command.NOOP, "",
+                new ScxmlFile( "test.lpscr", "test", CommandParser.parse( DOCUMENT, true ) ) );
+        Command command = command( "set(prop(a, label, one)).  delete(state(simple, d)).  set(state(simple, f))." );
+        Solver whole = new JavaEngineSolver( NO_FALLBACK, false );
+
+        List<Term> partitioned = new PartitionedSolver( whole ).run( state, command ).getScxmlProlog();
+        Set<String> keys = keys( partitioned );
+        assertEquals( keys( whole.run( state, command ).getScxmlProlog() ), keys );
+        assertEquals( partitioned.size(), keys.size() );
+        assertTrue( keys.contains( "prop(a,label,one)" ) );
+        assertTrue( keys.contains( "prop(e,label,alone)" ) );
+        assertFalse( keys.contains( "state(simple,d)" ) );
+    }
+
+    private static Command command( String commands ) throws CommandException
+    {
+        List<Struct> structs = new ArrayList<Struct>();
+        for ( Term term : CommandParser.parse( commands, true ) )
+        {
+            structs.add( (Struct) term );
+        }
+        return Command.build( structs );
+    }
+
+    private static Set<String> keys( List<Term> terms )
+    {
+        Set<String> ret = new TreeSet<String>();
+        for ( Term term : terms )
+        {
+            ret.add( FactIndex.key( term ) );
+        }
+        return ret;
+    }
+}
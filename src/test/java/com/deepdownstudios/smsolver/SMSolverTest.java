@@ -0,0 +1,200 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.deepdownstudios.smbridge.Endpoint;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for how SMSolver answers the endpoints connected to it.
+ */
+public class SMSolverTest
+    extends TestCase
+{
+    private static final String DELIMITER = "\n---\n";
+
+    /** Fails every command the Java engine cannot decide itself. */
+    private static final Solver NO_FALLBACK = new Solver()
+    {
+        public ScxmlFile run( State state, Command command ) throws CommandException
+        {
+            throw new CommandException( "The Java engine passed this command on: " + command );
+        }
+    };
+
+    /**
+     * A transport that records what it is sent.
+     */
+    static class RecordingEndpoint implements Endpoint
+    {
+        final List<String> messages = new ArrayList<String>();
+        Endpoint connected;
+
+        public synchronized void process( String message )
+        {
+            messages.add( message );
+        }
+
+        public void setConnectedEndpoint( Endpoint endpoint )
+        {
+            connected = endpoint;
+        }
+
+        public void close()
+        {
+        }
+
+        synchronized List<String> getMessages()
+        {
+            return new ArrayList<String>( messages );
+        }
+    }
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public SMSolverTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( SMSolverTest.class );
+    }
+
+    public void testBatchAcksGoToTheirOwnEndpoint() throws CommandException
+    {
+        SMSolver smsolver = newSolver();
+        smsolver.execute( "new(acks)." );
+        RecordingEndpoint first = new RecordingEndpoint();
+        RecordingEndpoint second = new RecordingEndpoint();
+        RecordingEndpoint watcher = new RecordingEndpoint();
+        smsolver.connect( first, false, false, false, 0 );
+        smsolver.connect( second, false, false, false, 0 );
+        smsolver.connect( watcher, false, false, false, 0 );
+
+        smsolver.processBatch( Arrays.asList(
+                new CommandCoalescer.Request( "set(state(simple, a)).", first ),
+                new CommandCoalescer.Request( "set(state(simple, b)).", second ) ) );
+
+        // The first request's ack goes only to its endpoint.  The last one's is in the document everyone gets.
+        List<String> firstMessages = first.getMessages();
+        assertEquals( 2, firstMessages.size() );
+        assertFalse( firstMessages.get( 0 ).contains( DELIMITER ) );
+        assertTrue( firstMessages.get( 0 ).endsWith( "(solved with 1 other requests)" ) );
+        assertTrue( firstMessages.get( 1 ).contains( DELIMITER ) );
+        assertEquals( Arrays.asList( firstMessages.get( 1 ) ), second.getMessages() );
+        assertEquals( Arrays.asList( firstMessages.get( 1 ) ), watcher.getMessages() );
+    }
+
+    public void testErrorsGoToTheirOwnEndpoint() throws CommandException
+    {
+        SMSolver smsolver = newSolver();
+        smsolver.execute( "new(errors)." );
+        RecordingEndpoint sender = new RecordingEndpoint();
+        RecordingEndpoint watcher = new RecordingEndpoint();
+        smsolver.connect( sender, false, false, false, 0 );
+        smsolver.connect( watcher, false, false, false, 0 );
+
+        sender.connected.process( "not valid syntax (" );
+        assertEquals( 1, sender.getMessages().size() );
+        assertTrue( sender.getMessages().get( 0 ).startsWith( "ERROR" ) );
+        assertTrue( watcher.getMessages().isEmpty() );
+    }
+
+    public void testViewersGetEveryDocumentAndCannotSendCommands() throws CommandException
+    {
+        SMSolver smsolver = newSolver();
+        smsolver.execute( "new(viewers)." );
+        RecordingEndpoint driver = new RecordingEndpoint();
+        smsolver.connect( driver, false, false, false, 0 );
+        List<RecordingEndpoint> viewers = new ArrayList<RecordingEndpoint>();
+        for ( int i = 0; i < 3; i++ )
+        {
+            RecordingEndpoint viewer = new RecordingEndpoint();
+            smsolver.connect( viewer, false, false, true, 0 );
+            viewers.add( viewer );
+        }
+
+        driver.connected.process( "set(state(simple, a))." );
+        driver.connected.process( "set(state(simple, b))." );
+        History before = smsolver.history;
+        viewers.get( 0 ).connected.process( "set(state(simple, c))." );
+        assertSame( before, smsolver.history );
+
+        assertEquals( 2, driver.getMessages().size() );
+        for ( RecordingEndpoint viewer : viewers )
+        {
+            List<String> messages = viewer.getMessages();
+            if ( viewer == viewers.get( 0 ) )
+            {
+                assertEquals( 3, messages.size() );
+                assertTrue( messages.get( 2 ).startsWith( "ERROR" ) );
+                messages = messages.subList( 0, 2 );
+            }
+            assertEquals( driver.getMessages(), messages );
+        }
+    }
+
+    /**
+     * A session that stops without closing its journal is rebuilt from it, without running its saves again.
+     */
+    public void testRecoverAfterCrash() throws CommandException
+    {
+        File dir = Files.createTempDir();
+        try
+        {
+            File journal = new File( dir, "session.journal" );
+            File saved = new File( dir, "middle.lpscr" );
+            SMSolver crashed = newSolver();
+            assertEquals( 0, crashed.openJournal( journal, new PrintWriter( new StringWriter() ) ) );
+            crashed.execute( "new(crash)." );
+            crashed.execute( "set(state(simple, a))." );
+            crashed.execute( "set(state(simple, b)).  save('" + saved.getPath() + "').  set(state(simple, c))." );
+            crashed.execute( "set(state(simple, d))." );
+            crashed.execute( "undo." );
+            crashed.execute( "query(state(simple, X))." );
+            assertTrue( saved.delete() );
+
+            StringWriter warnings = new StringWriter();
+            SMSolver recovered = newSolver();
+            assertEquals( 5, recovered.openJournal( journal, new PrintWriter( warnings ) ) );
+            assertEquals( "", warnings.toString() );
+            assertEquals( digest( crashed ), digest( recovered ) );
+            assertFalse( saved.exists() );
+        }
+        finally
+        {
+            for ( File child : dir.listFiles() )
+            {
+                child.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static String digest( SMSolver smsolver ) throws CommandException
+    {
+        return smsolver.history.getCurrentState().getScxmlFile().getFactIndex().getDigest();
+    }
+
+    private static SMSolver newSolver()
+    {
+        return new SMSolver( new JavaEngineSolver( NO_FALLBACK, false ) );
+    }
+}
@@ -0,0 +1,183 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import alice.tuprolog.Term;
+
+import com.deepdownstudios.scxml.jaxb.ScxmlScxmlType;
+import com.google.common.base.Charsets;
+
+/**
+ * Checks that ScxmlStreamReader and ScxmlToProlog produce the same facts from the same document, and that
+ * ScxmlStreamWriter writes the same document as the JAXB marshaller.
+ */
+public class ScxmlConvertersTest
+    extends TestCase
+{
+    private static final String DOCUMENT =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n" +
+            "<scxml xmlns=\"http://www.w3.org/2005/07/scxml\" version=\"1.0\" name=\"converters\" initial=\"idle\">\n" +
+            "    <script>top_script</script>\n" +
+            "    <state id=\"idle\">\n" +
+            "        <onentry><log label=\"entered\" expr=\"idle\"/></onentry>\n" +
+            "        <onexit/>\n" +
+            "        <transition event=\"go\" target=\"busy\"><raise event=\"started\"/><raise event=\"again\"/></transition>\n" +
+            "        <transition event=\"check\" cond=\"ready\" target=\"done\">\n" +
+            "            <if cond=\"a\"><raise event=\"x\"/><elseif cond=\"b\"/><raise event=\"y\"/></if>\n" +
+            "            <if cond=\"c\"><raise event=\"z\"/></if>\n" +
+            "        </transition>\n" +
+            "    </state>\n" +
+            "    <state id=\"busy\">\n" +
+            "        <initial><transition target=\"regions\"/></initial>\n" +
+            "        <history id=\"busy_history\" type=\"deep\"><transition target=\"regions\"/></history>\n" +
+            "        <parallel id=\"regions\">\n" +
+            "            <state id=\"left\"><state/><state/></state>\n" +
+            "            <state id=\"right\"><history type=\"shallow\"/></state>\n" +
+            "        </parallel>\n" +
+            "        <transition event=\"stop\"/>\n" +
+            "    </state>\n" +
+            "    <final id=\"done\"><onentry><assign location=\"result\" expr=\"1\"/></onentry></final>\n" +
+            "</scxml>\n";
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ScxmlConvertersTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ScxmlConvertersTest.class );
+    }
+
+    public void testSameFacts() throws Exception
+    {
+        Set<String> stream = keys( ScxmlStreamReader.load( "converters.scxml", new StringReader( DOCUMENT ) )
+                .getScxmlProlog() );
+        Set<String> jaxb = keys( ScxmlToProlog.scxmlToProlog( unmarshal( DOCUMENT ) ) );
+        assertEquals( jaxb, stream );
+    }
+
+    public void testHistoryStatesAreAlsoSimple() throws Exception
+    {
+        Set<String> stream = keys( ScxmlStreamReader.load( "converters.scxml", new StringReader( DOCUMENT ) )
+                .getScxmlProlog() );
+        assertTrue( stream.contains( "state(simple,busy_history)" ) );
+        assertTrue( stream.contains( "state(deep,busy_history)" ) );
+    }
+
+    public void testEmptyContentIsNoop() throws Exception
+    {
+        Set<String> stream = keys( ScxmlStreamReader.load( "converters.scxml", new StringReader( DOCUMENT ) )
+                .getScxmlProlog() );
+        assertTrue( stream.contains( "prop(idle,onexit,noop)" ) );
+    }
+
+    /**
+     * ScxmlStreamWriter must write the same text as marshalling the DOM PrologToScxml builds.
+     */
+    public void testWriterMatchesMarshaller() throws Exception
+    {
+        ScxmlFile terms = ScxmlStreamReader.load( "converters.scxml", new StringReader( DOCUMENT ) );
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ScxmlStreamWriter.write( terms.getStatemachineName(), terms.getScxmlProlog(), stream );
+        ScxmlFile dom = new ScxmlFile( "converters.scxml", terms.getScxml() );
+        assertEquals( dom.getScxmlAsString(), new String( stream.toByteArray(), Charsets.UTF_8 ) );
+    }
+
+    /**
+     * Documents with more than FORK_THRESHOLD states are converted in parallel.  They must give the same
+     * facts, and the same document, in the same order as converting them on one thread.
+     */
+    public void testParallelConversionMatchesSequential() throws Exception
+    {
+        String document = largeDocument( 3, ConversionPool.FORK_THRESHOLD + 10 );
+        ScxmlScxmlType scxml = unmarshal( document );
+        List<Term> sequential;
+        String sequentialDocument;
+        try
+        {
+            ConversionPool.setParallel( false );
+            sequential = ScxmlToProlog.scxmlToProlog( scxml );
+            sequentialDocument = new ScxmlFile( "large.scxml",
+                    new PrologToScxml().prologToScxml( "large", sequential ) ).getScxmlAsString();
+        }
+        finally
+        {
+            ConversionPool.setParallel( true );
+        }
+        List<Term> parallel = ScxmlToProlog.scxmlToProlog( scxml );
+        String parallelDocument = new ScxmlFile( "large.scxml",
+                new PrologToScxml().prologToScxml( "large", parallel ) ).getScxmlAsString();
+        assertEquals( sequential.toString(), parallel.toString() );
+        assertEquals( sequentialDocument, parallelDocument );
+    }
+
+    /**
+     * A document with 'groups' top-level states, each with 'size' child states (every other one anonymous)
+     * in a chain of transitions.
+     */
+    private static String largeDocument( int groups, int size )
+    {
+        StringBuilder ret = new StringBuilder(
+                "<scxml xmlns=\"http://www.w3.org/2005/07/scxml\" version=\"1.0\" name=\"large\" initial=\"g0\">" );
+        for ( int group = 0; group < groups; group++ )
+        {
+            ret.append( "<state id=\"g" ).append( group ).append( "\">" );
+            for ( int i = 0; i < size; i++ )
+            {
+                if ( i % 2 == 1 )
+                {
+                    ret.append( "<state/>" );
+                    continue;
+                }
+                ret.append( "<state id=\"g" ).append( group ).append( "_" ).append( i ).append( "\">" );
+                ret.append( "<transition event=\"next\" target=\"g" ).append( group ).append( "_" )
+                        .append( ( i + 2 ) % size ).append( "\"/>" );
+                ret.append( "</state>" );
+            }
+            ret.append( "<transition event=\"leave\" target=\"g" ).append( ( group + 1 ) % groups ).append( "\"/>" );
+            ret.append( "</state>" );
+        }
+        return ret.append( "</scxml>" ).toString();
+    }
+
+    private static ScxmlScxmlType unmarshal( String document ) throws JAXBException
+    {
+        JAXBContext context = JAXBContext.newInstance( ScxmlScxmlType.class.getPackage().getName() );
+        Object ret = context.createUnmarshaller().unmarshal( new StringReader( document ) );
+        if ( ret instanceof JAXBElement<?> )
+        {
+            ret = ( (JAXBElement<?>) ret ).getValue();
+        }
+        return (ScxmlScxmlType) ret;
+    }
+
+    private static Set<String> keys( List<Term> terms )
+    {
+        Set<String> ret = new TreeSet<String>();
+        for ( Term term : terms )
+        {
+            ret.add( FactIndex.key( ExecutableContentStore.resolveFacts( term ) ) );
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,129 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import alice.tuprolog.Term;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for reading SCXML with ScxmlStreamReader.  ScxmlConvertersTest checks its facts against
+ * ScxmlToProlog's.
+ */
+public class ScxmlStreamReaderTest
+    extends TestCase
+{
+    private static final String HEADER = "<scxml xmlns=\"http://www.w3.org/2005/07/scxml\" version=\"1.0\"";
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ScxmlStreamReaderTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ScxmlStreamReaderTest.class );
+    }
+
+    public void testLoadFile() throws CommandException, IOException
+    {
+        File dir = Files.createTempDir();
+        File file = new File( dir, "machine.scxml" );
+        try
+        {
+            Files.write( HEADER + " name=\"named\" initial=\"a\"><state id=\"a\"/></scxml>", file, Charsets.UTF_8 );
+            ScxmlFile scxmlFile = ScxmlStreamReader.load( file );
+            assertEquals( "named", scxmlFile.getStatemachineName() );
+            assertEquals( file.getPath(), scxmlFile.getFilename() );
+            Set<String> keys = keys( scxmlFile.getScxmlProlog() );
+            assertTrue( keys.contains( "state(simple,a)" ) );
+            assertTrue( keys.contains( "parent(top_state,a)" ) );
+            assertTrue( keys.contains( "prop(top_state,initial,a)" ) );
+        }
+        finally
+        {
+            file.delete();
+            dir.delete();
+        }
+    }
+
+    public void testMissingFileIsReported()
+    {
+        try
+        {
+            ScxmlStreamReader.load( new File( "no/such/machine.scxml" ) );
+            fail( "Loaded a missing file" );
+        }
+        catch ( CommandException e )
+        {
+            assertTrue( e.getMessage().contains( "was not found" ) );
+        }
+    }
+
+    public void testNameDefaultsToTheFileName() throws CommandException
+    {
+        ScxmlFile scxmlFile = ScxmlStreamReader.load( "unnamed.scxml", new StringReader( HEADER + "/>" ) );
+        assertEquals( "unnamed", scxmlFile.getStatemachineName() );
+    }
+
+    public void testCommentsAndProcessingInstructionsAreSkipped() throws CommandException
+    {
+        Set<String> keys = keys( ScxmlStreamReader.load( "comments.scxml", new StringReader( HEADER + " initial=\"a b\">" +
+                "<!-- a comment --><state id=\"a\"><?ignored please?><!-- another -->" +
+                "<transition event=\"go\" target=\"b\"/></state><state id=\"b\"/></scxml>" ) ).getScxmlProlog() );
+        assertTrue( keys.contains( "prop(top_state,initial,a)" ) );
+        assertTrue( keys.contains( "prop(top_state,initial,b)" ) );
+        assertTrue( keys.contains( "edge(a,b,no_cond,go,no_action)" ) );
+    }
+
+    public void testInvalidDocumentsAreRejected()
+    {
+        String[] documents = {
+                "<state id=\"a\"/>",
+                HEADER + "><state id=\"a\">",
+                HEADER + "><state id=\"a\"></scxml>",
+                HEADER + "><unknown/></scxml>",
+                HEADER + "><datamodel/></scxml>",
+                HEADER + "><state id=\"a\"><transition target=\"a b\"/></state></scxml>",
+                HEADER + "><state id=\"a\"><invoke/></state></scxml>" };
+        for ( String document : documents )
+        {
+            try
+            {
+                ScxmlStreamReader.load( "invalid.scxml", new StringReader( document ) );
+                fail( "Accepted: " + document );
+            }
+            catch ( CommandException e )
+            {
+                // expected
+            }
+        }
+    }
+
+    private static Set<String> keys( List<Term> terms )
+    {
+        Set<String> ret = new TreeSet<String>();
+        for ( Term term : terms )
+        {
+            ret.add( FactIndex.key( term ) );
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,89 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Unit tests for SerializedScxml.
+ */
+public class SerializedScxmlTest
+    extends TestCase
+{
+    private static final String DOCUMENT =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<scxml name=\"caf\u00e9\"><state id=\"\u00fcber\"/></scxml>\n";
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public SerializedScxmlTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( SerializedScxmlTest.class );
+    }
+
+    public void testStringAndLengthAreOfTheUtf8Bytes()
+    {
+        SerializedScxml serialized = serialize( DOCUMENT );
+        assertEquals( DOCUMENT, serialized.getString() );
+        assertEquals( DOCUMENT.getBytes( Charsets.UTF_8 ).length, serialized.getLength() );
+        assertTrue( serialized.getLength() > DOCUMENT.length() );
+    }
+
+    public void testVersionTagIdentifiesTheBytes()
+    {
+        SerializedScxml serialized = serialize( DOCUMENT );
+        assertEquals( 64, serialized.getVersionTag().length() );
+        assertEquals( serialized.getVersionTag(), serialize( DOCUMENT ).getVersionTag() );
+        assertTrue( serialized.hasVersion( serialize( DOCUMENT ).getVersionTag() ) );
+
+        SerializedScxml changed = serialize( DOCUMENT.replace( "\u00fcber", "uber" ) );
+        assertFalse( serialized.getVersionTag().equals( changed.getVersionTag() ) );
+        assertFalse( serialized.hasVersion( changed.getVersionTag() ) );
+    }
+
+    public void testGzippedBytesDecompressToTheDocument() throws IOException
+    {
+        SerializedScxml serialized = serialize( DOCUMENT );
+        byte[] gzipped = serialized.getGzippedBytes();
+        byte[] unzipped = ByteStreams.toByteArray( new GZIPInputStream( new ByteArrayInputStream( gzipped ) ) );
+        assertTrue( Arrays.equals( serialized.getBytes(), unzipped ) );
+    }
+
+    /**
+     * Instances are shared, so callers must not be able to change them through the arrays they are given.
+     */
+    public void testReturnedArraysAreCopies()
+    {
+        SerializedScxml serialized = serialize( DOCUMENT );
+        String tag = serialized.getVersionTag();
+        serialized.getBytes()[0] = 'X';
+        serialized.getGzippedBytes()[0] = 0;
+        assertEquals( DOCUMENT, serialized.getString() );
+        assertTrue( serialized.hasVersion( tag ) );
+        assertTrue( Arrays.equals( DOCUMENT.getBytes( Charsets.UTF_8 ), serialized.getBytes() ) );
+        assertEquals( (byte) 0x1f, serialized.getGzippedBytes()[0] );
+    }
+
+    private static SerializedScxml serialize( String document )
+    {
+        return new SerializedScxml( document.getBytes( Charsets.UTF_8 ) );
+    }
+}
@@ -0,0 +1,130 @@
+package com.deepdownstudios.smsolver;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for SolverTuner.  Exploration is off, so the choices are deterministic.
+ */
+public class SolverTunerTest
+    extends TestCase
+{
+    private File dir;
+    private File store;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public SolverTunerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( SolverTunerTest.class );
+    }
+
+    protected void setUp()
+    {
+        dir = Files.createTempDir();
+        store = new File( dir, "tuning" );
+    }
+
+    protected void tearDown()
+    {
+        for ( File child : dir.listFiles() )
+        {
+            child.delete();
+        }
+        dir.delete();
+    }
+
+    public void testEveryConfigurationIsTriedFirst() throws CommandException
+    {
+        SolverTuner tuner = new SolverTuner( store, 0 );
+        for ( String configuration : SolverTuner.CONFIGURATIONS )
+        {
+            assertEquals( configuration, tuner.choose( 100 ) );
+            tuner.record( 100, configuration, 50 );
+        }
+    }
+
+    public void testFastestConfigurationIsChosenForItsSize() throws CommandException
+    {
+        SolverTuner tuner = new SolverTuner( store, 0 );
+        recordAll( tuner, 100, "tweety" );
+        assertEquals( "tweety", tuner.choose( 100 ) );
+        assertEquals( "tweety", tuner.choose( 127 ) );		// Same bucket
+
+        // Other sizes are tuned separately
+        assertEquals( SolverTuner.CONFIGURATIONS.get( 0 ), tuner.choose( 128 ) );
+    }
+
+    public void testChoiceFollowsTheMeanTime() throws CommandException
+    {
+        SolverTuner tuner = new SolverTuner( store, 0 );
+        recordAll( tuner, 100, "tweety" );
+        tuner.record( 100, "tweety", 90 );		// Mean is now 50
+        tuner.record( 100, "jumpy", 30 );		// Mean is now 40
+        assertEquals( "jumpy", tuner.choose( 100 ) );
+
+        // Failed solves report no time and change nothing
+        tuner.record( 100, "jumpy", -1 );
+        assertEquals( "jumpy", tuner.choose( 100 ) );
+    }
+
+    public void testObservationsArePersisted() throws CommandException, IOException
+    {
+        SolverTuner tuner = new SolverTuner( store, 0 );
+        recordAll( tuner, 100, "crafty" );
+        assertTrue( store.isFile() );
+        assertFalse( AtomicFiles.getTempFile( store ).exists() );
+        assertTrue( Files.toString( store, Charsets.ISO_8859_1 ).contains( "size_64.crafty=1,10.000" ) );
+
+        assertEquals( "crafty", new SolverTuner( store, 0 ).choose( 100 ) );
+    }
+
+    public void testCorruptEntriesAreRetried() throws CommandException, IOException
+    {
+        SolverTuner tuner = new SolverTuner( store, 0 );
+        recordAll( tuner, 100, "crafty" );
+        String text = Files.toString( store, Charsets.ISO_8859_1 ).replace( "size_64.auto=1,50.000", "size_64.auto=garbage" );
+        Files.write( text, store, Charsets.ISO_8859_1 );
+
+        assertEquals( "auto", new SolverTuner( store, 0 ).choose( 100 ) );
+    }
+
+    public void testStatsReadClingoTime()
+    {
+        SolverTuner.Stats stats = new SolverTuner.Stats();
+        assertEquals( -1.0, stats.getMillis() );
+        stats.parseLine( "Models       : 1+" );
+        stats.parseLine( "Time         : 0.004s (Solving: 0.00s 1st Model: 0.00s Unsat: 0.00s)" );
+        stats.parseLine( "CPU Time     : 0.003s" );
+        assertEquals( 4.0, stats.getMillis(), 1e-9 );
+    }
+
+    /**
+     * Record one solve of every configuration, with 'fastest' taking 10ms and the others 50ms.
+     */
+    private static void recordAll( SolverTuner tuner, int size, String fastest )
+    {
+        for ( String configuration : SolverTuner.CONFIGURATIONS )
+        {
+            tuner.record( size, configuration, configuration.equals( fastest ) ? 10 : 50 );
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.deepdownstudios.smsolver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit tests for StateSpillStore.
+ */
+public class StateSpillStoreTest
+    extends TestCase
+{
+    private static final String DOCUMENT =
+            "state(simple, a).  state(simple, b).  parent(top_state, a).  parent(top_state, b).  " +
+            "edge(a, b, no_cond, go, no_action).";
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public StateSpillStoreTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( StateSpillStoreTest.class );
+    }
+
+    protected void setUp()
+    {
+        // Room for two of the documents
+        StateSpillStore.setBudget( 2 * 5 * StateSpillStore.ESTIMATED_BYTES_PER_TERM );
+    }
+
+    protected void tearDown()
+    {
+        StateSpillStore.setBudget( 0 );
+    }
+
+    public void testSpilledStatesAreReloaded() throws CommandException
+    {
+        List<State> states = newStates( 10 );
+        long evictions = StateSpillStore.getEvictionCount();
+        for ( State state : states )
+        {
+            assertEquals( 5, state.getScxmlFile().getScxmlProlog().size() );
+        }
+        assertTrue( StateSpillStore.getEvictionCount() > evictions );
+        assertTrue( StateSpillStore.getSpilledBytes() > 0 );
+        assertTrue( StateSpillStore.getResidentBytes() <= 2 * 5 * StateSpillStore.ESTIMATED_BYTES_PER_TERM );
+    }
+
+    /**
+     * Dropped states must not be kept alive by the store, and their part of the spill file is freed.
+     */
+    public void testDroppedStatesAreReleased() throws CommandException, InterruptedException
+    {
+        List<State> states = newStates( 20 );
+        assertTrue( StateSpillStore.getSpilledBytes() > 0 );
+        states.clear();
+        states = null;
+        for ( int i = 0; i < 100 && ( StateSpillStore.getSpilledBytes() > 0 || StateSpillStore.getResidentBytes() > 0 ); i++ )
+        {
+            System.gc();
+            Thread.sleep( 10 );
+        }
+        assertEquals( 0, StateSpillStore.getSpilledBytes() );
+        assertEquals( 0, StateSpillStore.getResidentBytes() );
+    }
+
+    /**
+     * States that each used the document and so were registered (and mostly spilled).
+     */
+    private static List<State> newStates( int count ) throws CommandException
+    {
+        List<State> ret = new ArrayList<State>();
+        for ( int i = 0; i < count; i++ )
+        {
+            ScxmlFile scxmlFile = new ScxmlFile( "spill" + i + ".lpscr", "spill" + i, CommandParser.parse( DOCUMENT, true ) );
+            State state = new State( Command.NOOP, "", scxmlFile );
+            state.getScxmlFile();
+            ret.add( state );
+        }
+        return ret;
+    }
+}